@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Scans H.264 Annex B byte streams, as MediaCodec AVC encoders output them,
+ * for NAL units.
+ *
+ * All methods use absolute gets on the buffer, so neither the data nor the
+ * position or limit of the buffer are changed; a NAL unit is a range of the
+ * buffer.
+ */
+public class AnnexB {
+    public static final String MIME = "video/avc";
+
+    public static final int NAL_TYPE_NON_IDR = 1;
+    public static final int NAL_TYPE_IDR = 5;
+    public static final int NAL_TYPE_SEI = 6;
+    public static final int NAL_TYPE_SPS = 7;
+    public static final int NAL_TYPE_PPS = 8;
+    public static final int NAL_TYPE_AUD = 9;
+
+    private AnnexB() {
+    }
+
+    /**
+     * Returns the position of the next 0x000001 start code in [from, end), or -1.
+     *
+     * Bytes above 1 can not be the last byte of a start code, so the scan
+     * looks at the third byte first and mostly advances by 3.
+     */
+    public static int findStartCode(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((buffer.get(i + 2) & 0xFF) > 1) {
+                i += 2;
+            } else if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the next NAL unit in [from, end).
+     *
+     * @param nal   receives the start and end of the NAL unit, without the start
+     *              code and without trailing zeros, which are part of a 4 byte
+     *              start code
+     * @return the position to continue the scan at, or -1 if there is no
+     *         further start code
+     */
+    public static int findNalUnit(ByteBuffer buffer, int from, int end, int[] nal) {
+        int start = findStartCode(buffer, from, end);
+        if (start < 0) {
+            return -1;
+        }
+        int nalStart = start + 3;
+        int next = findStartCode(buffer, nalStart, end);
+        if (next < 0) {
+            next = end;
+        }
+        nal[0] = nalStart;
+        nal[1] = trimZeros(buffer, nalStart, next);
+        return next;
+    }
+
+    /**
+     * Returns the type of the NAL unit starting at position.
+     */
+    public static int getNalType(ByteBuffer buffer, int position) {
+        return buffer.get(position) & 0x1F;
+    }
+
+    /**
+     * Tells if an encoder output buffer only holds parameter sets, i.e. is
+     * codec config even if the encoder did not flag it as such.
+     */
+    public static boolean isCodecConfig(ByteBuffer buffer, int offset, int size) {
+        int end = offset + size;
+        int[] nal = new int[2];
+        boolean parameterSets = false;
+        for (int position = findNalUnit(buffer, offset, end, nal); position >= 0;
+                position = findNalUnit(buffer, position, end, nal)) {
+            if (nal[1] == nal[0]) {
+                continue;
+            }
+            int type = getNalType(buffer, nal[0]);
+            if (type == NAL_TYPE_SPS || type == NAL_TYPE_PPS) {
+                parameterSets = true;
+            } else if (type != NAL_TYPE_AUD && type != NAL_TYPE_SEI) {
+                return false;
+            }
+        }
+        return parameterSets;
+    }
+
+    // Drops trailing zero bytes, part of the next 4 byte start code.
+    static int trimZeros(ByteBuffer buffer, int start, int end) {
+        while (end > start && buffer.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a VideoCodec in asynchronous mode.
+ *
+ * Input buffers announced by the codec are kept in a free list and filled as
+ * soon as input exists: either pushed by the client with offer() / submit(),
+ * or pulled from an InputSource.  Output buffers are handed to an OutputSink
+ * and released right away.  All codec events run on the codec's own handler
+ * thread, so neither the client nor the engine ever polls the codec.
+ */
+public class AsyncCodecEngine implements VideoCodec.Callback {
+    private static final String TAG = "VP8CodecTestBase";
+
+    /**
+     * Pull source of codec input, called on the codec thread.
+     */
+    public interface InputSource {
+        /**
+         * Fills the input buffer and sets size, presentationTimeUs and flags of
+         * info.  Returns false if no input is available right now, the engine
+         * asks again after the next requestInput().
+         */
+        public boolean fillInputBuffer(ByteBuffer buffer, VideoCodec.BufferInfo info);
+    }
+
+    /**
+     * Consumer of codec output, called on the codec thread.
+     */
+    public interface OutputSink {
+        public void onOutputFormatChanged(VideoCodec.Format format);
+
+        /**
+         * Consumes the output buffer (position and limit match info).
+         * Returns true to render the buffer to the codec output surface.
+         */
+        public boolean onOutputBuffer(ByteBuffer buffer, VideoCodec.BufferInfo info);
+
+        /**
+         * Called after the buffer has been released (and possibly rendered).
+         */
+        public void onOutputBufferReleased(VideoCodec.BufferInfo info, boolean rendered);
+    }
+
+    private static class PendingInput {
+        byte[] data;
+        int size;
+        long presentationTimeUs;
+        int flags;
+    }
+
+    private final String mName;
+    private final InputSource mSource;
+    private final OutputSink mSink;
+    private VideoCodec mCodec;
+
+    // Guarded by this.
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<Integer>();
+    private final ArrayDeque<PendingInput> mPendingInputs = new ArrayDeque<PendingInput>();
+    private final VideoCodec.BufferInfo mSourceInfo = new VideoCodec.BufferInfo();
+    private boolean mInputEnded;
+    private int mQueuedFrameCount;
+    private int mMaxPendingInputs;
+
+    private volatile int mOutputFrameCount;
+    private volatile RuntimeException mError;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /**
+     * @param name    name used in the log
+     * @param source  input source, or null if input is pushed by offer() / submit()
+     * @param sink    output consumer
+     */
+    public AsyncCodecEngine(String name, InputSource source, OutputSink sink) {
+        mName = name;
+        mSource = source;
+        mSink = sink;
+    }
+
+    /**
+     * Switches the codec to asynchronous mode driven by this engine.  Must be
+     * called before the codec is configured and started.
+     */
+    public void attach(VideoCodec codec) {
+        mCodec = codec;
+        codec.setCallback(this);
+    }
+
+    /**
+     * Queues the frame if the codec has a free input buffer, otherwise returns
+     * false and the caller may drop the frame.  The data is copied.
+     */
+    public synchronized boolean offer(byte[] data, int size, long presentationTimeUs, int flags) {
+        if (mError != null || mFreeInputs.isEmpty() || !mPendingInputs.isEmpty()) {
+            return false;
+        }
+        queueLocked(mFreeInputs.poll(), data, size, presentationTimeUs, flags);
+        return true;
+    }
+
+    /**
+     * Queues the frame now or as soon as an input buffer becomes available.
+     * The array is kept until then and must not be modified by the caller.
+     */
+    public synchronized void submit(byte[] data, int size, long presentationTimeUs, int flags) {
+        if (mError != null) {
+            return;
+        }
+        PendingInput input = new PendingInput();
+        input.data = data;
+        input.size = size;
+        input.presentationTimeUs = presentationTimeUs;
+        input.flags = flags;
+        mPendingInputs.add(input);
+        mMaxPendingInputs = Math.max(mMaxPendingInputs, mPendingInputs.size());
+        feedLocked();
+    }
+
+    /**
+     * Queues an empty end of stream buffer after all pending input.
+     */
+    public void signalEndOfStream(long presentationTimeUs) {
+        submit(null, 0, presentationTimeUs, VideoCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    /**
+     * Tells the engine that the InputSource may have new input.
+     */
+    public synchronized void requestInput() {
+        if (mError == null) {
+            feedLocked();
+        }
+    }
+
+    /**
+     * Waits for the end of stream output buffer or a codec error.
+     *
+     * @return false if the timeout expired
+     */
+    public boolean awaitEndOfStream(long timeoutMs) throws InterruptedException {
+        return mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the first error reported by the codec or thrown by the sink, or null.
+     */
+    public RuntimeException getError() {
+        return mError;
+    }
+
+    public synchronized int getQueuedFrameCount() {
+        return mQueuedFrameCount;
+    }
+
+    public int getOutputFrameCount() {
+        return mOutputFrameCount;
+    }
+
+    /**
+     * Returns the largest number of submitted frames which waited for an input buffer.
+     */
+    public synchronized int getMaxPendingInputs() {
+        return mMaxPendingInputs;
+    }
+
+    @Override
+    public void onInputBufferAvailable(VideoCodec codec, int index) {
+        try {
+            synchronized (this) {
+                mFreeInputs.add(index);
+                if (mError == null) {
+                    feedLocked();
+                }
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(VideoCodec codec, int index, VideoCodec.BufferInfo info) {
+        try {
+            ByteBuffer buffer = codec.getOutputBuffer(index);
+            if (buffer != null) {
+                buffer.clear();
+                buffer.limit(info.offset + info.size);
+                buffer.position(info.offset);
+            }
+            boolean render = mSink.onOutputBuffer(buffer, info);
+            codec.releaseOutputBuffer(index, render);
+            mSink.onOutputBufferReleased(info, render);
+            if (info.size > 0 && (info.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mOutputFrameCount++;
+            }
+            if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                Log.d(TAG, mName + ": output EOS");
+                mDone.countDown();
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(VideoCodec codec, VideoCodec.Format format) {
+        Log.d(TAG, mName + " output format changed: " + format);
+        mSink.onOutputFormatChanged(format);
+    }
+
+    @Override
+    public void onError(VideoCodec codec, RuntimeException e) {
+        fail(e);
+    }
+
+    private void fail(RuntimeException e) {
+        Log.e(TAG, mName + " failed: " + e.toString());
+        if (mError == null) {
+            mError = e;
+        }
+        mDone.countDown();
+    }
+
+    // Fills free input buffers with pending input first, then from the source.
+    private void feedLocked() {
+        while (!mFreeInputs.isEmpty()) {
+            if (!mPendingInputs.isEmpty()) {
+                PendingInput input = mPendingInputs.poll();
+                queueLocked(mFreeInputs.poll(), input.data, input.size,
+                        input.presentationTimeUs, input.flags);
+            } else if (mSource != null && !mInputEnded) {
+                int index = mFreeInputs.peek();
+                ByteBuffer buffer = mCodec.getInputBuffer(index);
+                mSourceInfo.set(0, 0, 0, 0);
+                if (!mSource.fillInputBuffer(buffer, mSourceInfo)) {
+                    break;
+                }
+                mFreeInputs.poll();
+                mCodec.queueInputBuffer(index, 0, mSourceInfo.size,
+                        mSourceInfo.presentationTimeUs, mSourceInfo.flags);
+                countInputLocked(mSourceInfo.size, mSourceInfo.flags);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void queueLocked(int index, byte[] data, int size, long presentationTimeUs, int flags) {
+        if (size > 0) {
+            ByteBuffer buffer = mCodec.getInputBuffer(index);
+            buffer.clear();
+            buffer.put(data, 0, size);
+        }
+        mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+        countInputLocked(size, flags);
+    }
+
+    private void countInputLocked(int size, int flags) {
+        if (size > 0 && (flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            mQueuedFrameCount++;
+        }
+        if ((flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mInputEnded = true;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The last H.264 SPS and PPS seen in encoder output, to configure a decoder
+ * with csd-0 and csd-1 before the first frame reaches it.  Thread safe, so
+ * the encoder output thread can update it while a decoder is configured.
+ */
+public class AvcCodecConfig {
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    private byte[] mSps;
+    private byte[] mPps;
+    private H264Sps mParsedSps;
+
+    /**
+     * Takes the parameter sets of an Annex B buffer, e.g. a
+     * BUFFER_FLAG_CODEC_CONFIG buffer.  Other NAL units are ignored and the
+     * buffer is not changed.
+     *
+     * @return true if the SPS or the PPS changed
+     */
+    public synchronized boolean update(ByteBuffer buffer, int offset, int size) {
+        int end = offset + size;
+        int[] nal = new int[2];
+        boolean changed = false;
+        for (int position = AnnexB.findNalUnit(buffer, offset, end, nal); position >= 0;
+                position = AnnexB.findNalUnit(buffer, position, end, nal)) {
+            if (nal[1] == nal[0]) {
+                continue;
+            }
+            int type = AnnexB.getNalType(buffer, nal[0]);
+            if (type == AnnexB.NAL_TYPE_SPS) {
+                H264Sps sps = H264Sps.parse(buffer, nal[0], nal[1]);
+                if (sps != null && !equals(mSps, buffer, nal[0], nal[1])) {
+                    mSps = copy(buffer, nal[0], nal[1]);
+                    mParsedSps = sps;
+                    changed = true;
+                }
+            } else if (type == AnnexB.NAL_TYPE_PPS && !equals(mPps, buffer, nal[0], nal[1])) {
+                mPps = copy(buffer, nal[0], nal[1]);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Tells if there are parameter sets for a decoder of the given size.
+     */
+    public synchronized boolean matches(int width, int height) {
+        return mParsedSps != null && mPps != null &&
+                mParsedSps.width == width && mParsedSps.height == height;
+    }
+
+    public synchronized H264Sps getSps() {
+        return mParsedSps;
+    }
+
+    /**
+     * Returns the SPS with a start code, for csd-0, or null.
+     */
+    public synchronized ByteBuffer getCsd0() {
+        return mSps == null ? null : withStartCode(mSps);
+    }
+
+    /**
+     * Returns the PPS with a start code, for csd-1, or null.
+     */
+    public synchronized ByteBuffer getCsd1() {
+        return mPps == null ? null : withStartCode(mPps);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mParsedSps == null ? "No SPS" : mParsedSps + (mPps == null ? ". No PPS" : "");
+    }
+
+    private static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer csd = ByteBuffer.allocate(START_CODE.length + nal.length);
+        csd.put(START_CODE).put(nal);
+        csd.flip();
+        return csd;
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int start, int end) {
+        byte[] nal = new byte[end - start];
+        for (int i = 0; i < nal.length; i++) {
+            nal[i] = buffer.get(start + i);
+        }
+        return nal;
+    }
+
+    private static boolean equals(byte[] nal, ByteBuffer buffer, int start, int end) {
+        if (nal == null || nal.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < nal.length; i++) {
+            if (nal[i] != buffer.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
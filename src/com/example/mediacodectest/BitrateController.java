@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.util.Log;
+
+/**
+ * Closed loop control of the encoder bitrate.
+ *
+ * The encoded frame sizes are summed over windows of presentation time.  At
+ * the end of every window the measured bitrate is compared to the target and
+ * a Strategy chooses the bitrate requested from the encoder, which is set by
+ * VideoCodec.setVideoBitrate().  Changes smaller than the dead band are not
+ * applied.  Every adjustment is logged.  A MediaCodecVideoCodec encoder needs
+ * API 19 for that, see MediaCodecVideoCodec.isParameterUpdateSupported().
+ *
+ * Not thread safe, call from the thread draining the encoder.
+ */
+public class BitrateController {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final long DEFAULT_WINDOW_US = 1000000;
+    private static final double DEAD_BAND = 0.03;
+
+    /**
+     * Chooses the bitrate requested from the encoder.
+     */
+    public interface Strategy {
+        /**
+         * @param targetBitrate     bitrate the stream should have
+         * @param requestedBitrate  bitrate currently requested from the encoder
+         * @param measuredBitrate   bitrate of the last window
+         * @return new bitrate to request
+         */
+        public int update(int targetBitrate, int requestedBitrate, double measuredBitrate);
+    }
+
+    /**
+     * Scales the requested bitrate by the ratio of target and measured bitrate.
+     * A gain below 1 damps the correction for noisy measurements.
+     */
+    public static class ProportionalStrategy implements Strategy {
+        private final double mGain;
+        private final double mMinRatio;
+        private final double mMaxRatio;
+
+        /**
+         * @param gain       part of the measured error corrected per window, 0 - 1
+         * @param minRatio   lowest requested bitrate relative to the target
+         * @param maxRatio   highest requested bitrate relative to the target
+         */
+        public ProportionalStrategy(double gain, double minRatio, double maxRatio) {
+            mGain = gain;
+            mMinRatio = minRatio;
+            mMaxRatio = maxRatio;
+        }
+
+        @Override
+        public int update(int targetBitrate, int requestedBitrate, double measuredBitrate) {
+            double correction = Math.pow(targetBitrate / measuredBitrate, mGain);
+            return clamp(requestedBitrate * correction, targetBitrate, mMinRatio, mMaxRatio);
+        }
+
+        @Override
+        public String toString() {
+            return "Proportional gain " + mGain;
+        }
+    }
+
+    /**
+     * Proportional-integral control of the encoder overshoot.  The integral
+     * term removes the steady state error of an encoder which constantly
+     * overshoots, the proportional term reacts to scene changes.
+     */
+    public static class PiStrategy implements Strategy {
+        private final double mKp;
+        private final double mKi;
+        private final double mMinRatio;
+        private final double mMaxRatio;
+        private double mIntegral;
+
+        public PiStrategy(double kp, double ki, double minRatio, double maxRatio) {
+            mKp = kp;
+            mKi = ki;
+            mMinRatio = minRatio;
+            mMaxRatio = maxRatio;
+        }
+
+        @Override
+        public int update(int targetBitrate, int requestedBitrate, double measuredBitrate) {
+            // Relative error, positive when the stream is below the target.
+            double error = (targetBitrate - measuredBitrate) / targetBitrate;
+            double integral = mIntegral + error;
+            double ratio = 1 + mKp * error + mKi * integral;
+            int bitrate = clamp(targetBitrate * ratio, targetBitrate, mMinRatio, mMaxRatio);
+            // Anti-windup: keep integrating only while the output is not saturated.
+            if (bitrate > targetBitrate * mMinRatio && bitrate < targetBitrate * mMaxRatio) {
+                mIntegral = integral;
+            }
+            return bitrate;
+        }
+
+        @Override
+        public String toString() {
+            return "PI kp " + mKp + " ki " + mKi;
+        }
+    }
+
+    private final VideoCodec mEncoder;
+    private final Strategy mStrategy;
+    private final long mWindowUs;
+    private int mTargetBitrate;
+    private int mRequestedBitrate;
+    private long mWindowStartUs = -1;
+    private long mWindowBytes;
+    private int mAdjustmentCount;
+    private double mLastMeasuredBitrate;
+    private double mErrorSum;
+    private int mWindowCount;
+
+    /**
+     * @param encoder        started encoder configured with targetBitrate
+     */
+    public BitrateController(VideoCodec encoder, int targetBitrate, Strategy strategy) {
+        this(encoder, targetBitrate, strategy, DEFAULT_WINDOW_US);
+    }
+
+    public BitrateController(VideoCodec encoder, int targetBitrate, Strategy strategy,
+            long windowUs) {
+        mEncoder = encoder;
+        mStrategy = strategy;
+        mWindowUs = windowUs;
+        mTargetBitrate = targetBitrate;
+        mRequestedBitrate = targetBitrate;
+    }
+
+    /**
+     * Changes the target.  The requested bitrate is reset to the target.
+     */
+    public void setTargetBitrate(int bitrate) {
+        mTargetBitrate = bitrate;
+        applyBitrate(bitrate, "new target");
+    }
+
+    /**
+     * Called for every encoded frame, codec config buffers excluded.
+     */
+    public void onFrameEncoded(int size, long presentationTimeUs) {
+        if (mWindowStartUs < 0) {
+            mWindowStartUs = presentationTimeUs;
+        }
+        if (presentationTimeUs - mWindowStartUs >= mWindowUs) {
+            long durationUs = presentationTimeUs - mWindowStartUs;
+            double measuredBitrate = mWindowBytes * 8 * 1e6 / durationUs;
+            mLastMeasuredBitrate = measuredBitrate;
+            mErrorSum += Math.abs(measuredBitrate - mTargetBitrate) / mTargetBitrate;
+            mWindowCount++;
+            if (measuredBitrate > 0) {
+                int bitrate = mStrategy.update(mTargetBitrate, mRequestedBitrate,
+                        measuredBitrate);
+                if (Math.abs(bitrate - mRequestedBitrate) > DEAD_BAND * mRequestedBitrate) {
+                    applyBitrate(bitrate, "measured " + (int)measuredBitrate);
+                }
+            }
+            mWindowStartUs = presentationTimeUs;
+            mWindowBytes = 0;
+        }
+        mWindowBytes += size;
+    }
+
+    public int getTargetBitrate() {
+        return mTargetBitrate;
+    }
+
+    /**
+     * Returns the bitrate currently requested from the encoder.
+     */
+    public int getRequestedBitrate() {
+        return mRequestedBitrate;
+    }
+
+    public int getAdjustmentCount() {
+        return mAdjustmentCount;
+    }
+
+    @Override
+    public String toString() {
+        return mStrategy + ". Target " + mTargetBitrate + " bps. Requested " +
+                mRequestedBitrate + " bps. Last measured " + (int)mLastMeasuredBitrate +
+                " bps. Average error " + String.format("%.1f",
+                mWindowCount > 0 ? 100 * mErrorSum / mWindowCount : 0.0) +
+                "%. Adjustments " + mAdjustmentCount;
+    }
+
+    private void applyBitrate(int bitrate, String reason) {
+        Log.d(TAG, "Encoder bitrate " + mRequestedBitrate + " -> " + bitrate + " bps (" +
+                reason + ", target " + mTargetBitrate + ")");
+        try {
+            mEncoder.setVideoBitrate(bitrate);
+            mRequestedBitrate = bitrate;
+            mAdjustmentCount++;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Bitrate update failed: " + e.toString());
+        }
+    }
+
+    private static int clamp(double bitrate, int targetBitrate, double minRatio,
+            double maxRatio) {
+        return (int)Math.max(targetBitrate * minRatio,
+                Math.min(targetBitrate * maxRatio, bitrate));
+    }
+}
@@ -23,10 +23,7 @@ import android.hardware.Camera;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.PreviewCallback;
 import android.media.MediaCodec;
-import android.media.MediaCodec.BufferInfo;
 import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.opengl.EGL14;
 import android.opengl.EGLConfig;
@@ -50,6 +47,8 @@ import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Record video from the camera preview and encode it as an ivf file.  Demonstrates the use
@@ -83,29 +82,69 @@ public class CameraToIvfTest {
     private static final int IFRAME_INTERVAL = 300;         // 10 seconds between I-frames
     private static final int DURATION_SEC = 300;           // 10 seconds of video
     private static boolean WRITE_IVF = true;
+    private static boolean WRITE_WEBM = false;              // whether write a seekable WebM file too
     private static boolean WRITE_YUV = false;				// whether write out the captured YUV
     private static boolean WRITE_DECODED_DATA = true;				// whether write out the captured YUV
     private static boolean USE_CLIP = true;				// whether use external clip as input
     private static boolean FORCE_SW_CODEC = false;
+    private static boolean USE_FAKE_CODEC = false;       // whether use FakeVideoCodec (byte buffers only)
+    private static boolean USE_ASYNC_CODEC = true;       // whether drive byte buffer codecs by callbacks, API 23
+    private static boolean USE_PIPELINE = false;         // whether run byte buffer test stages on own threads
+    private static boolean USE_CODEC_POOL = true;        // whether reuse warm synchronous byte buffer codecs
+    // Encoder flow control policy - limits the encoder input frames in flight.
+    private static final int FLOW_CONTROL_FIXED = 0;
+    private static final int FLOW_CONTROL_AIMD = 1;
+    private static final int FLOW_CONTROL_LATENCY = 2;
+    private static int FLOW_CONTROL = FLOW_CONTROL_FIXED;
+    private static final int FLOW_CONTROL_WINDOW = 2;             // fixed window
+    private static final int FLOW_CONTROL_MAX_WINDOW = 8;
+    private static final long FLOW_CONTROL_TARGET_LATENCY_US = 100000;
+    // Runtime encoder bitrate control - corrects the measured bitrate towards the target.
+    private static final int BITRATE_CONTROL_NONE = 0;
+    private static final int BITRATE_CONTROL_PROPORTIONAL = 1;
+    private static final int BITRATE_CONTROL_PI = 2;
+    private static int BITRATE_CONTROL = BITRATE_CONTROL_NONE;
+    // Delay based congestion control of the encoder bitrate against a simulated link.
+    private static boolean USE_CONGESTION_CONTROL = false;
+    private static final long[] LINK_CAPACITY_TIMES_MS = { 0, 10000, 20000 };
+    private static final int[] LINK_CAPACITY_BPS = { 1500000, 600000, 1200000 };
+    private static final int LINK_PROPAGATION_DELAY_MS = 20;
+    private static final int LINK_QUEUE_BYTES = 60000;
+    // Decoder buffer simulated on the encoder output at the target bitrate.
+    private static final int VBV_BUFFER_MS = 1000;
+    private static final int VBV_INITIAL_DELAY_MS = 500;
+    private static final int PIPELINE_QUEUE_SIZE = 4;
+    private static final long EOS_TIMEOUT_MS = 2000;
 
     // encoder / ivf writer state
-    private MediaCodec mEncoder;
-    private MediaCodec mDecoder;
+    private VideoCodec mEncoder;
+    private VideoCodec mDecoder;
     private Surface mEncoderSurface;
     private byte[] mEncoderData; // encoder output
     private long mEncoderDataTimestampUs;
+    private int mEncoderDataFlags;
+    // H.264 parameter sets from the encoder.  Static, so runs after the first one in
+    // the process configure their decoder with them.
+    private static final AvcCodecConfig sAvcConfig =
+            VP8_MIME.equals(AnnexB.MIME) ? new AvcCodecConfig() : null;
+    private boolean mDecoderCsdConfigured;
     private CodecInputSurface mInputSurface;
     private CameraBufferCallback mCameraCallback;
     private IvfWriter mIvfWriter;
+    private WebmWriter mWebmWriter;
     private YuvWriter mYuvWriter;
     private YuvWriter mYuvWriter_decoded;
     private YuvReader mYuvReader;
     private LooperRunner mCameraLooperRunner;
     private LooperRunner mTestLooperRunner;
     private Thread mTestRunner;
-    private int mInputFrameCount;
-    private int mOutputFrameCount;
+    private volatile int mInputFrameCount;
+    private volatile int mOutputFrameCount;
     private int mDroppedFrameCount;
+    private EncoderFlowControl mFlowControl;
+    private BitrateController mBitrateController;
+    private CongestionController mCongestionController;
+    private VbvAnalyzer mVbvAnalyzer;
     private int mEncodedSize;
     private int mEncoderColorFormat;
     private long[] mFrameInputTimeMs = new long[DURATION_SEC * FRAME_RATE + 1024];
@@ -116,22 +155,20 @@ public class CameraToIvfTest {
     private long[] mDecoderFrameOutputTimeMs = new long[DURATION_SEC * FRAME_RATE + 1024];
     private byte[] mFrameData = new byte[(int)(WIDTH * HEIGHT * 1.5)];
 
-    private int mDecoderInputFrameCount;
-    private int mDecoderOutputFrameCount;
+    private volatile int mDecoderInputFrameCount;
+    private volatile int mDecoderOutputFrameCount;
+    private CpuTimeProfiler mCpuProfiler = new CpuTimeProfiler();
+
+    // Asynchronous mode state.
+    private AsyncCodecEngine mEncoderEngine;
+    private AsyncCodecEngine mDecoderEngine;
+    private CountDownLatch mInputDone;
+    private long mInputStartTimeNs;
+    private long mAsyncLastPresentationTimeNs;
+    private CodecPipeline mPipeline;
 
     // Encoder parameters
-    private static final String OMX_SW_CODEC_PREFIX = "OMX.google";
-    private static final String VPX_SW_DECODER_NAME = "OMX.google.vp8.decoder";
-    private static final String VPX_SW_ENCODER_NAME = "OMX.google.vp8.encoder";
     private static final int VIDEO_ControlRateConstant = 2;
-    private static final int COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m = 0x7FA30C04;
-    // Allowable color formats supported by codec - in order of preference.
-    private static final int[] mSupportedColorList = {
-            CodecCapabilities.COLOR_FormatYUV420Planar,
-            CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
-            CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
-            COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m
-    };
 
     // camera state
     private Camera mCamera;
@@ -139,7 +176,7 @@ public class CameraToIvfTest {
     private SurfaceTextureManager mStManager;
 
     // allocate one of these up front so we don't need to do it every time
-    private BufferInfo mBufferInfo;
+    private VideoCodec.BufferInfo mBufferInfo;
 
     /** test entry point */
     public void testEncodeSurfaceCameraToIvf(final Surface screenSurface,
@@ -161,12 +198,27 @@ public class CameraToIvfTest {
         mTestLooperRunner.runCallableNoWait( new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                encodeCameraToIvfWithBuffers(screenSurface, rendererIf);
+                if (USE_PIPELINE) {
+                    encodeCameraToIvfPipelined(screenSurface, rendererIf);
+                } else if (USE_ASYNC_CODEC &&
+                        (USE_FAKE_CODEC || MediaCodecVideoCodec.isAsyncModeSupported())) {
+                    encodeCameraToIvfAsync(screenSurface, rendererIf);
+                } else {
+                    encodeCameraToIvfWithBuffers(screenSurface, rendererIf);
+                }
                 return null;
             }
         } );
     }
 
+    /**
+     * Sets the profiler used to account CPU time of the test stages.  Share the
+     * same instance with the renderer to get the GL thread time in the report.
+     */
+    public void setCpuProfiler(CpuTimeProfiler profiler) {
+        mCpuProfiler = profiler;
+    }
+
     public void stopEncodeCameraToIvf() throws Throwable {
 //        CameraToIvfWrapper.stopTest();
     }
@@ -182,9 +234,9 @@ public class CameraToIvfTest {
         Log.d(TAG, VP8_MIME + " output " + WIDTH + "x" + HEIGHT + " @" + BITRATE);
 
         try {
-            prepareEncoder(WIDTH, HEIGHT, BITRATE, useSurface);
+            prepareEncoder(WIDTH, HEIGHT, BITRATE, useSurface, null);
             if (useDecoder) {
-                prepareDecoder(WIDTH, HEIGHT, useDecoderSurface, screenSurface);
+                prepareDecoder(WIDTH, HEIGHT, useDecoderSurface, screenSurface, null);
             }
             mCameraLooperRunner = new LooperRunner();
             mCameraLooperRunner.requestStart();
@@ -197,7 +249,8 @@ public class CameraToIvfTest {
                 }
             } );
             //prepareCamera(encWidth, encHeight, encFps);
-            mCameraCallback = new CameraBufferCallback(mCamera, WIDTH, HEIGHT, mCameraFrameDropRatio);
+            mCameraCallback = new CameraBufferCallback(mCamera, WIDTH, HEIGHT,
+                    mCameraFrameDropRatio, mCpuProfiler);
             mCameraCallback.prepareCallback(mEncoderColorFormat);
 
             mCamera.startPreview();
@@ -209,9 +262,11 @@ public class CameraToIvfTest {
             mInputFrameCount = 0;
             mOutputFrameCount = 0;
             mDroppedFrameCount = 0;
+            mFlowControl = createFlowControl();
             mEncodedSize = 0;
             mDecoderInputFrameCount = 0;
             mDecoderOutputFrameCount = 0;
+            mCpuProfiler.reset();
             Log.d(TAG, "Start preview");
             ByteBuffer[] encoderInputBuffers = mEncoder.getInputBuffers();
             ByteBuffer[] decoderInputBuffers = null;
@@ -233,28 +288,32 @@ public class CameraToIvfTest {
 
                     // If encoder generated data submit it to decoder
                     if (useDecoder && mEncoderData != null) {
+                        mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_FEED);
                         // Get encoder input buffer and fill it with camera data
                         int inputBufIndex = mDecoder.dequeueInputBuffer(1000000);
                         if (inputBufIndex >= 0) {
                             int dataLength = mEncoderData.length;
+                            boolean codecConfig = isEncoderDataCodecConfig();
                             Log.d(TAG, "Decoder input frame # " + mDecoderInputFrameCount + ". TS: " +
-                                    (mEncoderDataTimestampUs / 1000) + " ms. Size: " + dataLength);
+                                    (mEncoderDataTimestampUs / 1000) + " ms. Size: " + dataLength +
+                                    (codecConfig ? ". CONFIG" : ""));
                             mDecoderFrameInputTimeMs[mDecoderInputFrameCount] =
                                     SystemClock.elapsedRealtime();
                             decoderInputBuffers[inputBufIndex].clear();
                             decoderInputBuffers[inputBufIndex].put(mEncoderData);
                             decoderInputBuffers[inputBufIndex].rewind();
                             mDecoder.queueInputBuffer(inputBufIndex, 0, dataLength,
-                                    mEncoderDataTimestampUs, 0);
-                            mDecoderInputFrameCount++;
-                            if (VP8_MIME == "video/avc" && dataLength < 30) {
-                                // Ignore H.264 SPS/PPS NAL
-                                mDecoderInputFrameCount--;
+                                    mEncoderDataTimestampUs,
+                                    codecConfig ? VideoCodec.BUFFER_FLAG_CODEC_CONFIG : 0);
+                            if (!codecConfig) {
+                                // Parameter sets do not count as loopback frames.
+                                mDecoderInputFrameCount++;
                             }
                         }
                         else {
                             Log.e(TAG, "Decoder is not ready: " + inputBufIndex);
                         }
+                        mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_FEED);
                     }
 
                     // check decoder output
@@ -294,7 +353,8 @@ public class CameraToIvfTest {
                 previousPresentationTimeNs = inPresentationTimeNs;
 
                 // Submit camera data to encoder
-                if (mInputFrameCount <= mOutputFrameCount + 1) {
+                if (mFlowControl.admit()) {
+                    mCpuProfiler.begin(CpuTimeProfiler.Stage.ENCODER_FEED);
                     // Get encoder input buffer and fill it with camera data
                     int inputBufIndex = mEncoder.dequeueInputBuffer(0);
                     if (inputBufIndex >= 0) {
@@ -302,7 +362,9 @@ public class CameraToIvfTest {
                         int dataLength = 0;
                         if (USE_CLIP) {
                             //data = mCameraCallback.getCameraData();
+                            mCpuProfiler.begin(CpuTimeProfiler.Stage.INPUT_READ);
                             int bytes = mYuvReader.readFrame(mFrameData, FORCE_SW_CODEC);
+                            mCpuProfiler.end(CpuTimeProfiler.Stage.INPUT_READ);
                             mFrameInputTimeMs[mInputFrameCount] = SystemClock.elapsedRealtime();
                             encoderInputBuffers[inputBufIndex].clear();
                             encoderInputBuffers[inputBufIndex].put(mFrameData);
@@ -310,16 +372,19 @@ public class CameraToIvfTest {
                             encoderInputBuffers[inputBufIndex].rewind();
                             dataLength = mFrameData.length;
                             if (bytes <= 0) {
+                                mCpuProfiler.end(CpuTimeProfiler.Stage.ENCODER_FEED);
                                 break;
                             } else {
                                 Log.i(TAG, "bytes = " + bytes);
                             }
                             if (WRITE_YUV) {
+                                mCpuProfiler.begin(CpuTimeProfiler.Stage.YUV_WRITE);
                                 try {
                                     mYuvWriter.writeFrame(mFrameData, FORCE_SW_CODEC);
                                 } catch (IOException e) {
                                     Log.e(TAG, "YuvWriter failure: " + e.toString());
                                 }
+                                mCpuProfiler.end(CpuTimeProfiler.Stage.YUV_WRITE);
                             }
                         }
                         else {
@@ -330,26 +395,31 @@ public class CameraToIvfTest {
                             encoderInputBuffers[inputBufIndex].rewind();
                             dataLength = data.length;
                             if (WRITE_YUV) {
+                                mCpuProfiler.begin(CpuTimeProfiler.Stage.YUV_WRITE);
                                 try {
                                     mYuvWriter.writeFrame(data, FORCE_SW_CODEC);
                                 } catch (IOException e) {
                                     Log.e(TAG, "YuvWriter failure: " + e.toString());
                                 }
+                                mCpuProfiler.end(CpuTimeProfiler.Stage.YUV_WRITE);
                             }
                         }
                         mEncoder.queueInputBuffer(inputBufIndex, 0, dataLength,
                                 inPresentationTimeNs / 1000, 0);
+                        mFlowControl.onFrameQueued(inPresentationTimeNs / 1000);
                         mInputFrameCount++;
                     }
                     else {
                         Log.w(TAG, "Encoder is not ready - drop frame: " + inputBufIndex);
+                        mFlowControl.onFrameDropped(EncoderFlowControl.DropReason.NO_INPUT_BUFFER);
                         mDroppedFrameCount++;
                     }
+                    mCpuProfiler.end(CpuTimeProfiler.Stage.ENCODER_FEED);
                 }
                 else {
                     mDroppedFrameCount++;
                     Log.w(TAG, "Encoder is behind - drop frame: " +
-                            (mInputFrameCount - mOutputFrameCount));
+                            mFlowControl.getFramesInFlight());
                 }
 
                 // Return camera frame back;
@@ -359,75 +429,668 @@ public class CameraToIvfTest {
             // send end-of-stream to encoder, and drain remaining output
             //getEncoderOutput(true);
 
-            // Print some statistics.
-            double bitrate = (double)mEncodedSize * 8 * 1e9 / inPresentationTimeNs;
-            double fps = mInputFrameCount * 1e9 / inPresentationTimeNs;
-            Log.d(TAG, "Encoding duration: " + (inPresentationTimeNs / 1000000) + " ms" +
-                    ". Size: " + mEncodedSize + ". Bitrate: " + (int)bitrate + " bps" +
-                    ". Fps: " + (int)(fps + 0.5));
-            Log.d(TAG, "Encoder Frames In: " + mInputFrameCount + ". Out: " +
-                    mOutputFrameCount + ". Dropped: " + mDroppedFrameCount);
+            logStatistics(inPresentationTimeNs, useDecoder);
             Log.d(TAG, "Camera frames: " + mCameraCallback.mFrameCount +
                     ". Dropped: " + mCameraCallback.mDroppedFrameCount);
 
-            // Get average bitrates and fps.
-            String bitrateList = "  Bitrate list: ";
-            String fpsList = "  FPS list: ";
-            int totalFrameSizePerSecond = 0;
-            int framesPerSecond = 0;
-            int currentSecond;
-            int nextSecond = 0;
-            for (int i = 0; i < mOutputFrameCount; i++) {
-                currentSecond = (int) (mEncoderPresentationTimeMs[i] / 1000);
-                boolean lastFrame = (i == mOutputFrameCount - 1);
-                if (!lastFrame) {
-                    nextSecond = (int) (mEncoderPresentationTimeMs[i + 1] / 1000);
+            // Get CPU time per frame for each stage and thread.
+            mCpuProfiler.recordThread("test");
+            mCameraLooperRunner.runCallable( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    mCpuProfiler.recordThread("camera");
+                    return null;
                 }
-                totalFrameSizePerSecond += mEncoderFrameOutputSize[i];
-                framesPerSecond++;
-                if (lastFrame || nextSecond > currentSecond) {
-                    int currentBitrate = totalFrameSizePerSecond * 8;
-                    bitrateList += (currentBitrate + " ");
-                    fpsList += (framesPerSecond + " ");
-                    totalFrameSizePerSecond = 0;
-                    framesPerSecond = 0;
+            } );
+            mCpuProfiler.logReport(mOutputFrameCount);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // release everything we grabbed
+            releaseCamera();
+            releaseEncoder();
+            if (useDecoder) {
+                releaseDecoder();
+            }
+            mCameraCallback.release();
+            mCameraCallback = null;
+            mCameraLooperRunner.requestStop();
+            mCameraLooperRunner = null;
+        }
+    }
+
+    /**
+     * Same test as encodeCameraToIvfWithBuffers(), but both codecs run in
+     * asynchronous mode.  Camera frames are queued to the encoder from the camera
+     * thread, encoder output is written and submitted to the decoder on the
+     * encoder callback thread and decoder output is consumed on the decoder
+     * callback thread.  The test thread only waits for the end of the input.
+     */
+    private void encodeCameraToIvfAsync(Surface screenSurface, final VideoRendererIf rendererIf) {
+        boolean useDecoder = true;
+        final boolean useDecoderSurface = false;
+
+        Log.d(TAG, "EncodeCameraToIvfAsync Thread id = " + Thread.currentThread().getId());
+        Log.d(TAG, VP8_MIME + " output " + WIDTH + "x" + HEIGHT + " @" + BITRATE);
+
+        mEncoderEngine = new AsyncCodecEngine("Encoder", null, new AsyncCodecEngine.OutputSink() {
+            @Override
+            public void onOutputFormatChanged(VideoCodec.Format format) {
+            }
+
+            @Override
+            public boolean onOutputBuffer(ByteBuffer buffer, VideoCodec.BufferInfo info) {
+                handleAsyncEncoderOutput(buffer, info);
+                return false;
+            }
+
+            @Override
+            public void onOutputBufferReleased(VideoCodec.BufferInfo info, boolean rendered) {
+            }
+        });
+        mDecoderEngine = null;
+        if (useDecoder) {
+            mDecoderEngine = new AsyncCodecEngine("Decoder", null, new AsyncCodecEngine.OutputSink() {
+                @Override
+                public void onOutputFormatChanged(VideoCodec.Format format) {
                 }
+
+                @Override
+                public boolean onOutputBuffer(ByteBuffer buffer, VideoCodec.BufferInfo info) {
+                    handleAsyncDecoderOutput(buffer, info);
+                    return useDecoderSurface;
+                }
+
+                @Override
+                public void onOutputBufferReleased(VideoCodec.BufferInfo info, boolean rendered) {
+                    if (info.size == 0) {
+                        return;
+                    }
+                    mDecoderFrameOutputTimeMs[mDecoderOutputFrameCount] =
+                            SystemClock.elapsedRealtime();
+                    if (rendered && rendererIf != null) {
+                        mCpuProfiler.begin(CpuTimeProfiler.Stage.RENDER_WAIT);
+                        rendererIf.RenderFrame();
+                        mCpuProfiler.end(CpuTimeProfiler.Stage.RENDER_WAIT);
+                    }
+                    mDecoderOutputFrameCount++;
+                }
+            });
+        }
+
+        try {
+            mInputFrameCount = 0;
+            mOutputFrameCount = 0;
+            mDroppedFrameCount = 0;
+            mFlowControl = createFlowControl();
+            mEncodedSize = 0;
+            mDecoderInputFrameCount = 0;
+            mDecoderOutputFrameCount = 0;
+            mInputStartTimeNs = -1;
+            mAsyncLastPresentationTimeNs = 0;
+            mInputDone = new CountDownLatch(1);
+            mCpuProfiler.reset();
+
+            prepareEncoder(WIDTH, HEIGHT, BITRATE, false, mEncoderEngine);
+            if (useDecoder) {
+                prepareDecoder(WIDTH, HEIGHT, useDecoderSurface, screenSurface, mDecoderEngine);
+            }
+            mCameraLooperRunner = new LooperRunner();
+            mCameraLooperRunner.requestStart();
+            // Configure and open camera on looper thread
+            mCameraLooperRunner.runCallable( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    prepareCamera(WIDTH, HEIGHT, FRAME_RATE, mEncoderColorFormat);
+                    return null;
+                }
+            } );
+            mCameraCallback = new CameraBufferCallback(mCamera, WIDTH, HEIGHT,
+                    mCameraFrameDropRatio, mCpuProfiler);
+            mCameraCallback.prepareCallback(mEncoderColorFormat);
+            mCameraCallback.setFrameListener(new CameraFrameListener() {
+                @Override
+                public void onCameraFrame(byte[] data, long timestampNs) {
+                    handleAsyncCameraFrame(data, timestampNs);
+                }
+            });
+
+            mCamera.startPreview();
+            Log.d(TAG, "Start preview");
+
+            // Camera thread feeds the encoder until the clip or the test time ends.
+            if (!mInputDone.await(DURATION_SEC + EOS_TIMEOUT_MS / 1000, TimeUnit.SECONDS)) {
+                Log.w(TAG, "No end of input - camera stalled?");
             }
-            Log.d(TAG, bitrateList);
-            Log.d(TAG, fpsList);
+            mCameraCallback.setFrameListener(null);
 
-            // Get average encoding time
-            long encodingTime = 0;
-            for (int i = 0; i < mOutputFrameCount; i++) {
-                encodingTime += (mFrameOutputTimeMs[i] - mFrameInputTimeMs[i]);
+            // Send end-of-stream to encoder, the encoder thread passes it to decoder.
+            mEncoderEngine.signalEndOfStream(mAsyncLastPresentationTimeNs / 1000);
+            if (!mEncoderEngine.awaitEndOfStream(EOS_TIMEOUT_MS)) {
+                Log.w(TAG, "Encoder EOS timeout");
+            }
+            if (useDecoder && !mDecoderEngine.awaitEndOfStream(EOS_TIMEOUT_MS)) {
+                Log.w(TAG, "Decoder EOS timeout");
+            }
+            if (mEncoderEngine.getError() != null) {
+                throw mEncoderEngine.getError();
+            }
+            if (useDecoder && mDecoderEngine.getError() != null) {
+                throw mDecoderEngine.getError();
             }
-            encodingTime /= mOutputFrameCount;
-            Log.d(TAG, "Average encoding time: " + encodingTime + " ms.");
-            // Get average decoding time
+
+            logStatistics(mAsyncLastPresentationTimeNs, useDecoder);
+            Log.d(TAG, "Camera frames: " + mCameraCallback.mFrameCount +
+                    ". Dropped: " + mCameraCallback.mDroppedFrameCount);
             if (useDecoder) {
-                Log.d(TAG, "Decoder Frames In: " + mDecoderInputFrameCount + ". Out: " +
-                        mDecoderOutputFrameCount);
-                long decodingTime = 0;
-                for (int i = 0; i < mDecoderOutputFrameCount; i++) {
-                    decodingTime += (mDecoderFrameOutputTimeMs[i] - mDecoderFrameInputTimeMs[i]);
+                Log.d(TAG, "Decoder max pending input frames: " +
+                        mDecoderEngine.getMaxPendingInputs());
+            }
+
+            // Get CPU time per frame for each stage and thread.  Codec callback
+            // threads are accounted by the stages only.
+            mCameraLooperRunner.runCallable( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    mCpuProfiler.recordThread("camera");
+                    return null;
+                }
+            } );
+            mCpuProfiler.logReport(mOutputFrameCount);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // release everything we grabbed
+            releaseCamera();
+            releaseEncoder();
+            if (useDecoder) {
+                releaseDecoder();
+            }
+            if (mCameraCallback != null) {
+                mCameraCallback.release();
+                mCameraCallback = null;
+            }
+            if (mCameraLooperRunner != null) {
+                mCameraLooperRunner.requestStop();
+                mCameraLooperRunner = null;
+            }
+            mEncoderEngine = null;
+            mDecoderEngine = null;
+        }
+    }
+
+    /**
+     * Queues a camera or clip frame to the encoder.  Called on the camera thread
+     * in asynchronous mode.
+     */
+    private void handleAsyncCameraFrame(byte[] data, long timestampNs) {
+        if (mInputDone.getCount() == 0) {
+            return;
+        }
+        // First image arrived - this is our reference start time
+        if (mInputStartTimeNs < 0) {
+            mInputStartTimeNs = timestampNs;
+        }
+        if (timestampNs - mInputStartTimeNs > DURATION_SEC * 1000000000L) {
+            mInputDone.countDown();
+            return;
+        }
+        long inPresentationTimeNs = 1000000000L * mInputFrameCount / FRAME_RATE;
+        if (!mFlowControl.admit()) {
+            mDroppedFrameCount++;
+            Log.w(TAG, "Encoder is behind - drop frame: " + mFlowControl.getFramesInFlight());
+            return;
+        }
+
+        mCpuProfiler.begin(CpuTimeProfiler.Stage.ENCODER_FEED);
+        byte[] frame = data;
+        if (USE_CLIP) {
+            mCpuProfiler.begin(CpuTimeProfiler.Stage.INPUT_READ);
+            int bytes = mYuvReader.readFrame(mFrameData, FORCE_SW_CODEC);
+            mCpuProfiler.end(CpuTimeProfiler.Stage.INPUT_READ);
+            if (bytes <= 0) {
+                mCpuProfiler.end(CpuTimeProfiler.Stage.ENCODER_FEED);
+                mInputDone.countDown();
+                return;
+            }
+            frame = mFrameData;
+        }
+        if (WRITE_YUV) {
+            mCpuProfiler.begin(CpuTimeProfiler.Stage.YUV_WRITE);
+            try {
+                mYuvWriter.writeFrame(frame, FORCE_SW_CODEC);
+            } catch (IOException e) {
+                Log.e(TAG, "YuvWriter failure: " + e.toString());
+            }
+            mCpuProfiler.end(CpuTimeProfiler.Stage.YUV_WRITE);
+        }
+        mFrameInputTimeMs[mInputFrameCount] = SystemClock.elapsedRealtime();
+        // Counted as queued before the offer, the output may arrive before offer() returns.
+        mFlowControl.onFrameQueued(inPresentationTimeNs / 1000);
+        if (mEncoderEngine.offer(frame, frame.length, inPresentationTimeNs / 1000, 0)) {
+            Log.d(TAG, "Encoder input frame # " + mInputFrameCount + ". TS: " +
+                    (inPresentationTimeNs / 1000000) + " ms.");
+            mAsyncLastPresentationTimeNs = inPresentationTimeNs;
+            mInputFrameCount++;
+        } else {
+            Log.w(TAG, "Encoder is not ready - drop frame");
+            mFlowControl.onFrameNotQueued(inPresentationTimeNs / 1000,
+                    EncoderFlowControl.DropReason.NO_INPUT_BUFFER);
+            mDroppedFrameCount++;
+        }
+        mCpuProfiler.end(CpuTimeProfiler.Stage.ENCODER_FEED);
+    }
+
+    /**
+     * Writes an encoded frame to ivf and submits it to the decoder.  Called on
+     * the encoder callback thread in asynchronous mode.
+     */
+    private void handleAsyncEncoderOutput(ByteBuffer encodedData, VideoCodec.BufferInfo info) {
+        mCpuProfiler.begin(CpuTimeProfiler.Stage.ENCODER_DRAIN);
+        boolean codecConfig = (info.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        if (info.size != 0) {
+            byte[] data = new byte[info.size];
+            encodedData.get(data, 0, info.size);
+            String logStr = "Encoder output frame # " + mOutputFrameCount +
+                    ". TS: " + (info.presentationTimeUs / 1000) + " ms.";
+            if (codecConfig) {
+                logStr += " CONFIG. ";
+            }
+            if ((info.flags & VideoCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                logStr += " KEY. ";
+            }
+            logStr += " Size: " + info.size;
+            if (codecConfig && sAvcConfig != null) {
+                updateAvcConfig(ByteBuffer.wrap(data), 0, data.length);
+            }
+
+            if (!codecConfig) {
+                mFlowControl.onFrameEncoded(info.presentationTimeUs);
+                if (mBitrateController != null) {
+                    mBitrateController.onFrameEncoded(info.size, info.presentationTimeUs);
+                }
+                if (mCongestionController != null) {
+                    mCongestionController.onFrameEncoded(info.size, info.presentationTimeUs);
+                }
+                mVbvAnalyzer.onFrame(info.size, info.presentationTimeUs);
+                mFrameOutputTimeMs[mOutputFrameCount] = SystemClock.elapsedRealtime();
+                mEncoderFrameOutputSize[mOutputFrameCount] = info.size;
+                mEncoderPresentationTimeMs[mOutputFrameCount] = info.presentationTimeUs / 1000;
+                logStr += " EncTime: " + (mFrameOutputTimeMs[mOutputFrameCount] -
+                        mFrameInputTimeMs[mOutputFrameCount] + " ms.");
+            }
+            Log.d(TAG, logStr);
+
+            if (WRITE_IVF) {
+                mCpuProfiler.begin(CpuTimeProfiler.Stage.IVF_WRITE);
+                try {
+                    mIvfWriter.writeFrame(data, info.presentationTimeUs);
+                } catch (IOException e) {
+                    Log.e(TAG, "IvfWriter failure: " + e.toString());
+                }
+                mCpuProfiler.end(CpuTimeProfiler.Stage.IVF_WRITE);
+            }
+            if (mWebmWriter != null && !codecConfig) {
+                mCpuProfiler.begin(CpuTimeProfiler.Stage.WEBM_WRITE);
+                try {
+                    mWebmWriter.writeFrame(encodedData, info.offset, info.size,
+                            info.presentationTimeUs,
+                            (info.flags & VideoCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                } catch (IOException e) {
+                    Log.e(TAG, "WebmWriter failure: " + e.toString());
+                }
+                mCpuProfiler.end(CpuTimeProfiler.Stage.WEBM_WRITE);
+            }
+            mEncodedSize += info.size;
+        }
+        mCpuProfiler.end(CpuTimeProfiler.Stage.ENCODER_DRAIN);
+
+        // Outside of the encoder drain stage, so the decoder feed is not counted twice.
+        if (info.size != 0) {
+            if (mDecoderEngine != null) {
+                mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_FEED);
+                if (!codecConfig) {
+                    mDecoderFrameInputTimeMs[mDecoderInputFrameCount] =
+                            SystemClock.elapsedRealtime();
+                    mDecoderInputFrameCount++;
+                }
+                mDecoderEngine.submit(data, data.length, info.presentationTimeUs,
+                        info.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG);
+                mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_FEED);
+            }
+            if (!codecConfig) {
+                mOutputFrameCount++;
+            }
+        }
+        if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            Log.d(TAG, "Encoder EOS reached");
+            if (mDecoderEngine != null) {
+                mDecoderEngine.signalEndOfStream(info.presentationTimeUs);
+            }
+        }
+    }
+
+    /**
+     * Writes a decoded frame to yuv.  Called on the decoder callback thread in
+     * asynchronous mode.
+     */
+    private void handleAsyncDecoderOutput(ByteBuffer decodedData, VideoCodec.BufferInfo info) {
+        mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_DRAIN);
+        if (info.size > 0) {
+            Log.d(TAG, "Decoder output frame # " + mDecoderOutputFrameCount +
+                    ". TS: " + (info.presentationTimeUs / 1000) + " ms. Size: " + info.size);
+            if (WRITE_DECODED_DATA) {
+                mCpuProfiler.begin(CpuTimeProfiler.Stage.YUV_WRITE);
+                try {
+                    byte[] b = new byte[decodedData.remaining()];
+                    decodedData.get(b);
+                    mYuvWriter_decoded.writeFrame(b, FORCE_SW_CODEC);
+                } catch (IOException e) {
+                    Log.e(TAG, "YuvWriter_decoded failure: " + e.toString());
+                }
+                mCpuProfiler.end(CpuTimeProfiler.Stage.YUV_WRITE);
+            }
+        }
+        mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_DRAIN);
+    }
+
+    /**
+     * Same test as encodeCameraToIvfWithBuffers(), but every step runs on its own
+     * thread connected by bounded queues, see CodecPipeline.  The camera thread
+     * is the source stage and drops frames when the encoder feed is behind.
+     */
+    private void encodeCameraToIvfPipelined(Surface screenSurface, VideoRendererIf rendererIf) {
+        boolean useDecoder = true;
+        boolean useDecoderSurface = false;
+
+        Log.d(TAG, "EncodeCameraToIvfPipelined Thread id = " + Thread.currentThread().getId());
+        Log.d(TAG, VP8_MIME + " output " + WIDTH + "x" + HEIGHT + " @" + BITRATE);
+
+        try {
+            mInputFrameCount = 0;
+            mInputStartTimeNs = -1;
+            mInputDone = new CountDownLatch(1);
+            mFlowControl = null;    // The pipeline queues limit the frames in flight.
+            mCpuProfiler.reset();
+
+            prepareEncoder(WIDTH, HEIGHT, BITRATE, false, null);
+            if (useDecoder) {
+                prepareDecoder(WIDTH, HEIGHT, useDecoderSurface, screenSurface, null);
+            }
+            mPipeline = new CodecPipeline(mEncoder, useDecoder ? mDecoder : null,
+                    PIPELINE_QUEUE_SIZE);
+            mPipeline.setCpuProfiler(mCpuProfiler);
+            mPipeline.setRenderer(rendererIf, useDecoderSurface);
+            if (WRITE_IVF || WRITE_WEBM) {
+                mPipeline.setIvfSink(new CodecPipeline.FrameSink() {
+                    @Override
+                    public void onFrame(CodecPipeline.Frame frame) throws Exception {
+                        if (WRITE_IVF) {
+                            mIvfWriter.writeFrame(frame.data, frame.presentationTimeUs);
+                        }
+                        if (mWebmWriter != null &&
+                                (frame.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                            mWebmWriter.writeFrame(ByteBuffer.wrap(frame.data), 0, frame.size,
+                                    frame.presentationTimeUs,
+                                    (frame.flags & VideoCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                        }
+                    }
+                });
+            }
+            if (WRITE_DECODED_DATA) {
+                mPipeline.setYuvSink(new CodecPipeline.FrameSink() {
+                    @Override
+                    public void onFrame(CodecPipeline.Frame frame) throws Exception {
+                        mYuvWriter_decoded.writeFrame(frame.data, FORCE_SW_CODEC);
+                    }
+                });
+            }
+
+            mCameraLooperRunner = new LooperRunner();
+            mCameraLooperRunner.requestStart();
+            // Configure and open camera on looper thread
+            mCameraLooperRunner.runCallable( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    prepareCamera(WIDTH, HEIGHT, FRAME_RATE, mEncoderColorFormat);
+                    return null;
                 }
-                decodingTime /= mDecoderOutputFrameCount;
-                Log.d(TAG, "Average decoding time: " + decodingTime + " ms.");
+            } );
+            mCameraCallback = new CameraBufferCallback(mCamera, WIDTH, HEIGHT,
+                    mCameraFrameDropRatio, mCpuProfiler);
+            mCameraCallback.prepareCallback(mEncoderColorFormat);
+            mCameraCallback.setFrameListener(new CameraFrameListener() {
+                @Override
+                public void onCameraFrame(byte[] data, long timestampNs) {
+                    handlePipelineCameraFrame(data, timestampNs);
+                }
+            });
+
+            mPipeline.start();
+            mCamera.startPreview();
+            Log.d(TAG, "Start preview");
+
+            if (!mInputDone.await(DURATION_SEC + EOS_TIMEOUT_MS / 1000, TimeUnit.SECONDS)) {
+                Log.w(TAG, "No end of input - camera stalled?");
+            }
+            mCameraCallback.setFrameListener(null);
+            if (!mPipeline.finish(EOS_TIMEOUT_MS)) {
+                Log.w(TAG, "Pipeline did not finish: " + mPipeline.getError());
             }
 
+            mPipeline.logStatistics();
+            Log.d(TAG, "Camera frames: " + mCameraCallback.mFrameCount +
+                    ". Dropped: " + mCameraCallback.mDroppedFrameCount);
+            mCameraLooperRunner.runCallable( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    mCpuProfiler.recordThread("camera");
+                    return null;
+                }
+            } );
+            mCpuProfiler.logReport(mPipeline.getEncodedFrameCount());
+
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
             // release everything we grabbed
+            if (mPipeline != null) {
+                mPipeline.stop();
+                mPipeline = null;
+            }
             releaseCamera();
             releaseEncoder();
             if (useDecoder) {
                 releaseDecoder();
             }
-            mCameraCallback.release();
-            mCameraCallback = null;
-            mCameraLooperRunner.requestStop();
-            mCameraLooperRunner = null;
+            if (mCameraCallback != null) {
+                mCameraCallback.release();
+                mCameraCallback = null;
+            }
+            if (mCameraLooperRunner != null) {
+                mCameraLooperRunner.requestStop();
+                mCameraLooperRunner = null;
+            }
+        }
+    }
+
+    /**
+     * Source stage of the pipeline: submits a camera or clip frame.  Called on
+     * the camera thread.
+     */
+    private void handlePipelineCameraFrame(byte[] data, long timestampNs) {
+        if (mInputDone.getCount() == 0) {
+            return;
+        }
+        if (mInputStartTimeNs < 0) {
+            mInputStartTimeNs = timestampNs;
+        }
+        if (timestampNs - mInputStartTimeNs > DURATION_SEC * 1000000000L) {
+            mInputDone.countDown();
+            return;
+        }
+        byte[] frame = data;
+        if (USE_CLIP) {
+            mCpuProfiler.begin(CpuTimeProfiler.Stage.INPUT_READ);
+            int bytes = mYuvReader.readFrame(mFrameData, FORCE_SW_CODEC);
+            mCpuProfiler.end(CpuTimeProfiler.Stage.INPUT_READ);
+            if (bytes <= 0) {
+                mInputDone.countDown();
+                return;
+            }
+            frame = mFrameData;
+        }
+        long inPresentationTimeUs = 1000000L * mInputFrameCount / FRAME_RATE;
+        if (mPipeline.submitFrame(frame, frame.length, inPresentationTimeUs)) {
+            mInputFrameCount++;
+        } else {
+            Log.w(TAG, "Pipeline is behind - drop frame");
+        }
+    }
+
+    /**
+     * Creates the encoder flow control selected by FLOW_CONTROL.
+     */
+    private static EncoderFlowControl createFlowControl() {
+        EncoderFlowControl.Policy policy;
+        if (FLOW_CONTROL == FLOW_CONTROL_AIMD) {
+            policy = new EncoderFlowControl.AimdWindowPolicy(1, FLOW_CONTROL_MAX_WINDOW, 0.25);
+        } else if (FLOW_CONTROL == FLOW_CONTROL_LATENCY) {
+            policy = new EncoderFlowControl.LatencyTargetPolicy(FLOW_CONTROL_TARGET_LATENCY_US,
+                    FLOW_CONTROL_MAX_WINDOW);
+        } else {
+            policy = new EncoderFlowControl.FixedWindowPolicy(FLOW_CONTROL_WINDOW);
+        }
+        return new EncoderFlowControl(policy);
+    }
+
+    /**
+     * Creates the encoder bitrate controller selected by BITRATE_CONTROL, or null.
+     */
+    private static BitrateController createBitrateController(VideoCodec encoder, int bitRate) {
+        BitrateController.Strategy strategy;
+        if (BITRATE_CONTROL == BITRATE_CONTROL_PROPORTIONAL) {
+            strategy = new BitrateController.ProportionalStrategy(0.5, 0.5, 1.5);
+        } else if (BITRATE_CONTROL == BITRATE_CONTROL_PI) {
+            strategy = new BitrateController.PiStrategy(0.5, 0.2, 0.5, 1.5);
+        } else {
+            return null;
+        }
+        if (!canChangeBitrate(encoder)) {
+            Log.w(TAG, "No bitrate control, the encoder bitrate can not be changed");
+            return null;
+        }
+        return new BitrateController(encoder, bitRate, strategy);
+    }
+
+    // VideoCodec.setVideoBitrate() of MediaCodecVideoCodec requires API 19.
+    private static boolean canChangeBitrate(VideoCodec encoder) {
+        return !(encoder instanceof MediaCodecVideoCodec) ||
+                MediaCodecVideoCodec.isParameterUpdateSupported();
+    }
+
+    /**
+     * Creates the congestion controller if USE_CONGESTION_CONTROL is set, or null.
+     */
+    private static CongestionController createCongestionController(VideoCodec encoder,
+            BitrateController bitrateController, int bitRate) {
+        if (!USE_CONGESTION_CONTROL) {
+            return null;
+        }
+        if (!canChangeBitrate(encoder)) {
+            Log.w(TAG, "No congestion control, the encoder bitrate can not be changed");
+            return null;
+        }
+        long[] changeTimesUs = new long[LINK_CAPACITY_TIMES_MS.length];
+        for (int i = 0; i < changeTimesUs.length; i++) {
+            changeTimesUs[i] = LINK_CAPACITY_TIMES_MS[i] * 1000;
+        }
+        SimulatedLink link = new SimulatedLink(changeTimesUs, LINK_CAPACITY_BPS,
+                LINK_PROPAGATION_DELAY_MS * 1000L, LINK_QUEUE_BYTES);
+        CongestionController controller = new CongestionController(encoder, link, bitRate,
+                bitRate / 10, bitRate * 4);
+        controller.setBitrateController(bitrateController);
+        return controller;
+    }
+
+    /**
+     * Logs encoder and decoder statistics of a finished test.
+     *
+     * @param durationNs    presentation time of the last input frame
+     */
+    private void logStatistics(long durationNs, boolean useDecoder) {
+        double bitrate = (double)mEncodedSize * 8 * 1e9 / durationNs;
+        double fps = mInputFrameCount * 1e9 / durationNs;
+        Log.d(TAG, "Encoding duration: " + (durationNs / 1000000) + " ms" +
+                ". Size: " + mEncodedSize + ". Bitrate: " + (int)bitrate + " bps" +
+                ". Fps: " + (int)(fps + 0.5));
+        Log.d(TAG, "Encoder Frames In: " + mInputFrameCount + ". Out: " +
+                mOutputFrameCount + ". Dropped: " + mDroppedFrameCount);
+        if (mFlowControl != null) {
+            Log.d(TAG, "Encoder flow control: " + mFlowControl);
+        }
+        if (mBitrateController != null) {
+            Log.d(TAG, "Encoder bitrate control: " + mBitrateController);
+        }
+        if (mCongestionController != null) {
+            Log.d(TAG, "Congestion control: " + mCongestionController);
+        }
+        if (mVbvAnalyzer != null && mVbvAnalyzer.getFrameCount() > 0) {
+            Log.d(TAG, "Decoder buffer " + (mVbvAnalyzer.isCompliant() ? "compliant" :
+                    "violated") + ": " + mVbvAnalyzer);
+        }
+        if (useDecoder && sAvcConfig != null) {
+            // Only the first run of the process, or a new frame size, gets the
+            // parameter sets in band.
+            Log.d(TAG, "Decoder configured with csd-0/csd-1: " + mDecoderCsdConfigured +
+                    ". " + sAvcConfig);
+        }
+
+        // Get average bitrates and fps.
+        String bitrateList = "  Bitrate list: ";
+        String fpsList = "  FPS list: ";
+        int totalFrameSizePerSecond = 0;
+        int framesPerSecond = 0;
+        int currentSecond;
+        int nextSecond = 0;
+        for (int i = 0; i < mOutputFrameCount; i++) {
+            currentSecond = (int) (mEncoderPresentationTimeMs[i] / 1000);
+            boolean lastFrame = (i == mOutputFrameCount - 1);
+            if (!lastFrame) {
+                nextSecond = (int) (mEncoderPresentationTimeMs[i + 1] / 1000);
+            }
+            totalFrameSizePerSecond += mEncoderFrameOutputSize[i];
+            framesPerSecond++;
+            if (lastFrame || nextSecond > currentSecond) {
+                int currentBitrate = totalFrameSizePerSecond * 8;
+                bitrateList += (currentBitrate + " ");
+                fpsList += (framesPerSecond + " ");
+                totalFrameSizePerSecond = 0;
+                framesPerSecond = 0;
+            }
+        }
+        Log.d(TAG, bitrateList);
+        Log.d(TAG, fpsList);
+
+        // Get average encoding time
+        long encodingTime = 0;
+        for (int i = 0; i < mOutputFrameCount; i++) {
+            encodingTime += (mFrameOutputTimeMs[i] - mFrameInputTimeMs[i]);
+        }
+        encodingTime /= mOutputFrameCount;
+        Log.d(TAG, "Average encoding time: " + encodingTime + " ms.");
+        // Get average decoding time
+        if (useDecoder) {
+            Log.d(TAG, "Decoder Frames In: " + mDecoderInputFrameCount + ". Out: " +
+                    mDecoderOutputFrameCount);
+            long decodingTime = 0;
+            for (int i = 0; i < mDecoderOutputFrameCount; i++) {
+                decodingTime += (mDecoderFrameOutputTimeMs[i] - mDecoderFrameInputTimeMs[i]);
+            }
+            decodingTime /= mDecoderOutputFrameCount;
+            Log.d(TAG, "Average decoding time: " + decodingTime + " ms.");
         }
     }
 
@@ -443,9 +1106,9 @@ public class CameraToIvfTest {
         Log.d(TAG, VP8_MIME + " output " + WIDTH + "x" + HEIGHT + " @" + BITRATE);
 
         try {
-            prepareEncoder(WIDTH, HEIGHT, BITRATE, useSurface);
+            prepareEncoder(WIDTH, HEIGHT, BITRATE, useSurface, null);
             if (useDecoder) {
-                prepareDecoder(WIDTH, HEIGHT, useDecoderSurface, screenSurface);
+                prepareDecoder(WIDTH, HEIGHT, useDecoderSurface, screenSurface, null);
             }
             prepareCamera(WIDTH, HEIGHT, FRAME_RATE, mEncoderColorFormat);
             mInputSurface = new CodecInputSurface(mEncoderSurface);
@@ -462,7 +1125,9 @@ public class CameraToIvfTest {
             mInputFrameCount = 0;
             mOutputFrameCount = 0;
             mDroppedFrameCount = 0;
+            mFlowControl = createFlowControl();
             mEncodedSize = 0;
+            mCpuProfiler.reset();
             ByteBuffer[] decoderInputBuffers = null;
             if (useDecoder) {
                 decoderInputBuffers = mDecoder.getInputBuffers();
@@ -486,28 +1151,32 @@ public class CameraToIvfTest {
 
                     // If encoder generated data submit it to decoder
                     if (useDecoder && mEncoderData != null) {
+                        mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_FEED);
                         // Get encoder input buffer and fill it with camera data
                         int inputBufIndex = mDecoder.dequeueInputBuffer(1000000);
                         if (inputBufIndex >= 0) {
                             int dataLength = mEncoderData.length;
+                            boolean codecConfig = isEncoderDataCodecConfig();
                             Log.d(TAG, "Decoder input frame # " + mDecoderInputFrameCount + ". TS: " +
-                                    (mEncoderDataTimestampUs / 1000) + " ms. Size: " + dataLength);
+                                    (mEncoderDataTimestampUs / 1000) + " ms. Size: " + dataLength +
+                                    (codecConfig ? ". CONFIG" : ""));
                             mDecoderFrameInputTimeMs[mDecoderInputFrameCount] =
                                     SystemClock.elapsedRealtime();
                             decoderInputBuffers[inputBufIndex].clear();
                             decoderInputBuffers[inputBufIndex].put(mEncoderData);
                             decoderInputBuffers[inputBufIndex].rewind();
                             mDecoder.queueInputBuffer(inputBufIndex, 0, dataLength,
-                                    mEncoderDataTimestampUs, 0);
-                            mDecoderInputFrameCount++;
-                            if (VP8_MIME == "video/avc" && dataLength < 30) {
-                                // Ignore H.264 SPS/PPS NAL
-                                mDecoderInputFrameCount--;
+                                    mEncoderDataTimestampUs,
+                                    codecConfig ? VideoCodec.BUFFER_FLAG_CODEC_CONFIG : 0);
+                            if (!codecConfig) {
+                                // Parameter sets do not count as loopback frames.
+                                mDecoderInputFrameCount++;
                             }
                         }
                         else {
                             Log.e(TAG, "Decoder is not ready: " + inputBufIndex);
                         }
+                        mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_FEED);
                     }
 
                     // check decoder output
@@ -543,17 +1212,20 @@ public class CameraToIvfTest {
                 // buffer (which we can't do, since we're stuck here).  So long as we fully drain
                 // the encoder before supplying additional input, the system guarantees that we
                 // can supply another frame without blocking.
-                if (mInputFrameCount <= mOutputFrameCount + 1) {
+                if (mFlowControl.admit()) {
+                    mCpuProfiler.begin(CpuTimeProfiler.Stage.ENCODER_FEED);
                     mStManager.drawImage();
                     mFrameInputTimeMs[mInputFrameCount] = SystemClock.elapsedRealtime();
                     mInputSurface.swapBuffers();
+                    mFlowControl.onFrameQueued(inPresentationTimeNs / 1000);
+                    mCpuProfiler.end(CpuTimeProfiler.Stage.ENCODER_FEED);
                     //  Log.d(TAG, "Input frame # " + mInputFrameCount + " submitted.");
                     mInputFrameCount++;
                 }
                 else {
                     mDroppedFrameCount++;
                     Log.w(TAG, "Encoder is behind - drop frame: " +
-                            (mInputFrameCount - mOutputFrameCount));
+                            mFlowControl.getFramesInFlight());
                 }
 
                 // Check encoder output.
@@ -568,60 +1240,11 @@ public class CameraToIvfTest {
             // send end-of-stream to encoder, and drain remaining output
             getEncoderOutput(true);
 
-            // Print some statistics.
-            double bitrate = (double)mEncodedSize * 8 * 1e9 / inPresentationTimeNs;
-            double fps = mInputFrameCount * 1e9 / inPresentationTimeNs;
-            Log.d(TAG, "Encoding duration: " + (inPresentationTimeNs / 1000000) + " ms" +
-                    ". Size: " + mEncodedSize + ". Bitrate: " + (int)bitrate + " bps" +
-                    ". Fps: " + (int)(fps + 0.5));
-            Log.d(TAG, "Encoder Frames In: " + mInputFrameCount + ". Out: " +
-                    mOutputFrameCount + ". Dropped: " + mDroppedFrameCount);
-
-            // Get average bitrates and fps.
-            String bitrateList = "  Bitrate list: ";
-            String fpsList = "  FPS list: ";
-            int totalFrameSizePerSecond = 0;
-            int framesPerSecond = 0;
-            int currentSecond;
-            int nextSecond = 0;
-            for (int i = 0; i < mOutputFrameCount; i++) {
-                currentSecond = (int) (mEncoderPresentationTimeMs[i] / 1000);
-                boolean lastFrame = (i == mOutputFrameCount - 1);
-                if (!lastFrame) {
-                    nextSecond = (int) (mEncoderPresentationTimeMs[i + 1] / 1000);
-                }
-                totalFrameSizePerSecond += mEncoderFrameOutputSize[i];
-                framesPerSecond++;
-                if (lastFrame || nextSecond > currentSecond) {
-                    int currentBitrate = totalFrameSizePerSecond * 8;
-                    bitrateList += (currentBitrate + " ");
-                    fpsList += (framesPerSecond + " ");
-                    totalFrameSizePerSecond = 0;
-                    framesPerSecond = 0;
-                }
-            }
-            Log.d(TAG, bitrateList);
-            Log.d(TAG, fpsList);
-
-            // Get average encoding time
-            long encodingTime = 0;
-            for (int i = 0; i < mOutputFrameCount; i++) {
-                encodingTime += (mFrameOutputTimeMs[i] - mFrameInputTimeMs[i]);
-            }
-            encodingTime /= mOutputFrameCount;
-            Log.d(TAG, "Average encoding time: " + encodingTime + " ms.");
+            logStatistics(inPresentationTimeNs, useDecoder);
 
-            // Get average decoding time
-            if (useDecoder) {
-                Log.d(TAG, "Decoder Frames In: " + mDecoderInputFrameCount + ". Out: " +
-                        mDecoderOutputFrameCount);
-                long decodingTime = 0;
-                for (int i = 0; i < mDecoderOutputFrameCount; i++) {
-                    decodingTime += (mDecoderFrameOutputTimeMs[i] - mDecoderFrameInputTimeMs[i]);
-                }
-                decodingTime /= mDecoderOutputFrameCount;
-                Log.d(TAG, "Average decoding time: " + decodingTime + " ms.");
-            }
+            // Get CPU time per frame for each stage.
+            mCpuProfiler.recordThread("test");
+            mCpuProfiler.logReport(mOutputFrameCount);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -796,105 +1419,17 @@ public class CameraToIvfTest {
         }
     }
 
-    /**
-     *  VP8 codec properties generated by getVp8CodecProperties() function.
-     */
-    protected class CodecProperties {
-        CodecProperties(String codecName, int colorFormat) {
-            this.codecName = codecName;
-            this.colorFormat = colorFormat;
-        }
-        public boolean  isGoogleSwCodec() {
-            return codecName.startsWith(OMX_SW_CODEC_PREFIX);
-        }
-
-        public final String codecName; // OpenMax component name for VP8 codec.
-        public final int colorFormat;  // Color format supported by codec.
-    }
-
-    /**
-     * Function to find VP8 codec.
-     *
-     * Iterates through the list of available codecs and tries to find
-     * VP8 codec, which can support either YUV420 planar or NV12 color formats.
-     * If forceSwGoogleCodec parameter set to true the function always returns
-     * Google sw VP8 codec.
-     * If forceSwGoogleCodec parameter set to false the functions looks for platform
-     * specific VP8 codec first. If no platform specific codec exist, falls back to
-     * Google sw VP8 codec.
-     *
-     * @param isEncoder     Flag if encoder is requested.
-     * @param forceSwGoogleCodec  Forces to use Google sw codec.
-     */
-    protected CodecProperties getVp8CodecProperties(boolean isEncoder, boolean forceSwGoogleCodec) {
-        CodecProperties codecProperties = null;
-
-        if (!forceSwGoogleCodec) {
-            // Loop through the list of omx components in case platform specific codec
-            // is requested.
-            for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
-                MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-                if (isEncoder != codecInfo.isEncoder()) {
-                    continue;
-                }
-                Log.v(TAG, codecInfo.getName());
-                // Check if this is sw Google codec - we should ignore it.
-                boolean isGoogleSwCodec = codecInfo.getName().startsWith(OMX_SW_CODEC_PREFIX);
-                if (isGoogleSwCodec) {
-                    continue;
-                }
-
-                for (String type : codecInfo.getSupportedTypes()) {
-                    if (!type.equalsIgnoreCase(VP8_MIME)) {
-                        continue;
-                    }
-                    CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(VP8_MIME);
-
-                    // Get candidate codec properties.
-                    Log.v(TAG, "Found candidate codec " + codecInfo.getName());
-                    for (int colorFormat : capabilities.colorFormats) {
-                        Log.v(TAG, "   Color: 0x" + Integer.toHexString(colorFormat));
-                    }
-
-                    // Check supported color formats.
-                    for (int supportedColorFormat : mSupportedColorList) {
-                        for (int codecColorFormat : capabilities.colorFormats) {
-                            if (codecColorFormat == supportedColorFormat) {
-                                codecProperties = new CodecProperties(codecInfo.getName(),
-                                        codecColorFormat);
-                                Log.d(TAG, "Found target codec " + codecProperties.codecName +
-                                        ". Color: 0x" + Integer.toHexString(codecColorFormat));
-                                return codecProperties;
-                            }
-                        }
-                    }
-                    // HW codec we found does not support one of necessary color formats.
-                    throw new RuntimeException("No hw codec with YUV420 or NV12 color formats");
-                }
-            }
-        }
-        // If no hw vp8 codec exist or sw codec is requested use default Google sw codec.
-        if (codecProperties == null) {
-            Log.v(TAG, "Use SW VP8 codec");
-            if (isEncoder) {
-                codecProperties = new CodecProperties(VPX_SW_ENCODER_NAME,
-                        CodecCapabilities.COLOR_FormatYUV420Planar);
-            } else {
-                codecProperties = new CodecProperties(VPX_SW_DECODER_NAME,
-                        CodecCapabilities.COLOR_FormatYUV420Planar);
-            }
-        }
-
-        return codecProperties;
-    }
-
     /**
      * Configures encoder  and prepares the input Surface.  Initializes
      * mEncoder, mInputSurface, mBufferInfo.
+     *
+     * @param engine    engine driving the encoder in asynchronous mode, or null
      */
-    private void prepareEncoder(int width, int height, int bitRate, boolean useSurface) {
-        mBufferInfo = new MediaCodec.BufferInfo();
-        CodecProperties properties = getVp8CodecProperties(true, FORCE_SW_CODEC);
+    private void prepareEncoder(int width, int height, int bitRate, boolean useSurface,
+            AsyncCodecEngine engine) {
+        mBufferInfo = new VideoCodec.BufferInfo();
+        CodecCatalog.CodecProperties properties =
+                CodecCatalog.getInstance().getCodecProperties(VP8_MIME, true, FORCE_SW_CODEC);
         if (useSurface) {
             mEncoderColorFormat = CodecCapabilities.COLOR_FormatSurface;
         } else {
@@ -921,20 +1456,51 @@ public class CameraToIvfTest {
         // you will likely want to defer instantiation of CodecInputSurface until after the
         // "display" EGL context is created, then modify the eglCreateContext call to
         // take eglGetCurrentContext() as the share_context argument.
-        try {
-            mEncoder = MediaCodec.createByCodecName(properties.codecName);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (USE_FAKE_CODEC && !useSurface) {
+            FakeVideoCodec encoder = new FakeVideoCodec("fake.encoder", VP8_MIME, true,
+                    width, height);
+            encoder.setBitrate(bitRate, FRAME_RATE);
+            encoder.setKeyFrames(IFRAME_INTERVAL * FRAME_RATE, 4.0);
+            if (engine != null) {
+                engine.attach(encoder);
+            }
+            mEncoder = encoder;
+            mEncoder.start();
+        } else if (USE_CODEC_POOL && !useSurface && engine == null) {
+            try {
+                mEncoder = CodecPool.getInstance().acquire(properties.codecName, format,
+                        MediaCodec.CONFIGURE_FLAG_ENCODE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            try {
+                MediaCodecVideoCodec encoder = new MediaCodecVideoCodec(properties.codecName);
+                if (engine != null) {
+                    engine.attach(encoder);
+                }
+                encoder.configure(format, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                if (useSurface) {
+                    mEncoderSurface = encoder.createInputSurface();
+                }
+                mEncoder = encoder;
+                mEncoder.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        if (useSurface) {
-            mEncoderSurface = mEncoder.createInputSurface();
+        mBitrateController = createBitrateController(mEncoder, bitRate);
+        mCongestionController = createCongestionController(mEncoder, mBitrateController,
+                bitRate);
+        mVbvAnalyzer = new VbvAnalyzer(bitRate, (long)bitRate * VBV_BUFFER_MS / 1000,
+                VBV_INITIAL_DELAY_MS * 1000L);
+        if (engine == null) {
+            // Buffer arrays are not available in asynchronous mode.
+            ByteBuffer[] encoderInputBuffers = mEncoder.getInputBuffers();
+            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+            Log.d(TAG, "Input buffers: " + encoderInputBuffers.length +
+                    ". Output buffers: " + encoderOutputBuffers.length);
         }
-        mEncoder.start();
-        ByteBuffer[] encoderInputBuffers = mEncoder.getInputBuffers();
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-        Log.d(TAG, "Input buffers: " + encoderInputBuffers.length +
-                ". Output buffers: " + encoderOutputBuffers.length);
 
         // Output filename.  Ideally this would use Context.getFilesDir() rather than a
         // hard-coded output directory.
@@ -949,6 +1515,12 @@ public class CameraToIvfTest {
 
         try {
             mIvfWriter = new IvfWriter(outputPath, width, height);
+            if (WRITE_WEBM && WebmWriter.isSupportedType(VP8_MIME)) {
+                mWebmWriter = new WebmWriter(new File(OUTPUT_DIR,
+                        INPUT_FILE + ".webm").toString(), VP8_MIME, width, height);
+            } else if (WRITE_WEBM) {
+                Log.w(TAG, "No WebM file for " + VP8_MIME);
+            }
             mYuvWriter = new YuvWriter(outputPathYuv, width, height);
             mYuvWriter_decoded = new YuvWriter(outputDecodedYuv, width, height);
             if (USE_CLIP) {
@@ -956,7 +1528,7 @@ public class CameraToIvfTest {
             }
             Log.i(TAG, "mYuvReader is " + mYuvReader);
         } catch (IOException e) {
-            Log.e(TAG, "IvfWriter/YuvWriter/YuvReader failure: " + e.toString());
+            Log.e(TAG, "IvfWriter/WebmWriter/YuvWriter/YuvReader failure: " + e.toString());
         }
     }
 
@@ -966,8 +1538,7 @@ public class CameraToIvfTest {
     private void releaseEncoder() {
         Log.d(TAG, "Releasing encoder");
         if (mEncoder != null) {
-            mEncoder.stop();
-            mEncoder.release();
+            CodecPool.getInstance().recycle(mEncoder);
             mEncoder = null;
         }
         if (mInputSurface != null) {
@@ -985,6 +1556,16 @@ public class CameraToIvfTest {
             }
             mIvfWriter = null;
         }
+        if (mWebmWriter != null) {
+            try {
+                mWebmWriter.close();
+                Log.d(TAG, "WebM clusters: " + mWebmWriter.getClusterCount() +
+                        ". Cues: " + mWebmWriter.getCueCount());
+            } catch (IOException e) {
+                Log.e(TAG, "WebmWriter failure: " + e.toString());
+            }
+            mWebmWriter = null;
+        }
         if (mYuvWriter != null) {
             try {
                 mYuvWriter.close();
@@ -1021,25 +1602,26 @@ public class CameraToIvfTest {
             Log.d(TAG, "Sending EOS to encoder");
             mEncoder.signalEndOfInputStream();
         }
+        mCpuProfiler.begin(CpuTimeProfiler.Stage.ENCODER_DRAIN);
 
         ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
         while (true) {
             int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
 
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            if (encoderStatus == VideoCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet - break from a loop
                 if (!endOfStream) {
                     break;      // out of while
                 } else {
                     Log.d(TAG, "No output available, spinning to await EOS");
                 }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            } else if (encoderStatus == VideoCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 // not expected for an encoder
                 encoderOutputBuffers = mEncoder.getOutputBuffers();
                 Log.d(TAG, "New output buffers: " + encoderOutputBuffers.length);
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            } else if (encoderStatus == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
-                MediaFormat newFormat = mEncoder.getOutputFormat();
+                VideoCodec.Format newFormat = mEncoder.getOutputFormat();
                 Log.d(TAG, "Encoder output format changed: " + newFormat);
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "Unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
@@ -1052,18 +1634,18 @@ public class CameraToIvfTest {
 
                 String logStr = "Encoder output frame # " + mOutputFrameCount +
                         ". TS: " + (mBufferInfo.presentationTimeUs / 1000) + " ms.";
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                if ((mBufferInfo.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                     logStr += " CONFIG. ";
                 }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                if ((mBufferInfo.flags & VideoCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
                     logStr += " KEY. ";
                 }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if ((mBufferInfo.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     logStr += " EOS. ";
                 }
                 logStr += " Size: " + mBufferInfo.size;
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                if ((mBufferInfo.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                     Log.d(TAG, "Got BUFFER_FLAG_CODEC_CONFIG");
                     //mBufferInfo.size = 0;
                 }
@@ -1074,6 +1656,7 @@ public class CameraToIvfTest {
                     encodedData.position(mBufferInfo.offset);
                     encodedData.get(mEncoderData, 0, mBufferInfo.size);
                     mEncoderDataTimestampUs = mBufferInfo.presentationTimeUs;
+                    mEncoderDataFlags = mBufferInfo.flags;
                     mFrameOutputTimeMs[mOutputFrameCount] = SystemClock.elapsedRealtime();
                     mEncoderFrameOutputSize[mOutputFrameCount] = mBufferInfo.size;
                     mEncoderPresentationTimeMs[mOutputFrameCount] = mBufferInfo.presentationTimeUs / 1000;
@@ -1082,14 +1665,38 @@ public class CameraToIvfTest {
                     Log.d(TAG, logStr);
 
                     if (WRITE_IVF) {
+                        mCpuProfiler.begin(CpuTimeProfiler.Stage.IVF_WRITE);
                         try {
                             mIvfWriter.writeFrame(mEncoderData, mBufferInfo.presentationTimeUs);
                         } catch (IOException e) {
                             Log.e(TAG, "IvfWriter failure: " + e.toString());
                         }
+                        mCpuProfiler.end(CpuTimeProfiler.Stage.IVF_WRITE);
                     }                    
+                    if (mWebmWriter != null &&
+                            (mBufferInfo.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        mCpuProfiler.begin(CpuTimeProfiler.Stage.WEBM_WRITE);
+                        try {
+                            mWebmWriter.writeFrame(encodedData, mBufferInfo.offset,
+                                    mBufferInfo.size, mBufferInfo.presentationTimeUs,
+                                    (mBufferInfo.flags & VideoCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                        } catch (IOException e) {
+                            Log.e(TAG, "WebmWriter failure: " + e.toString());
+                        }
+                        mCpuProfiler.end(CpuTimeProfiler.Stage.WEBM_WRITE);
+                    }
                     
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    if ((mBufferInfo.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        mFlowControl.onFrameEncoded(mBufferInfo.presentationTimeUs);
+                        if (mBitrateController != null) {
+                            mBitrateController.onFrameEncoded(mBufferInfo.size,
+                                    mBufferInfo.presentationTimeUs);
+                        }
+                        if (mCongestionController != null) {
+                            mCongestionController.onFrameEncoded(mBufferInfo.size,
+                                    mBufferInfo.presentationTimeUs);
+                        }
+                        mVbvAnalyzer.onFrame(mBufferInfo.size, mBufferInfo.presentationTimeUs);
                         mOutputFrameCount++;
                     }
                     mEncodedSize += mBufferInfo.size;
@@ -1097,7 +1704,7 @@ public class CameraToIvfTest {
 
                 mEncoder.releaseOutputBuffer(encoderStatus, false);
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if ((mBufferInfo.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     if (!endOfStream) {
                         Log.w(TAG, "Reached end of stream unexpectedly");
                     } else {
@@ -1111,32 +1718,90 @@ public class CameraToIvfTest {
                 }
             }
         }
+        mCpuProfiler.end(CpuTimeProfiler.Stage.ENCODER_DRAIN);
+    }
+
+    /**
+     * Tells if mEncoderData is H.264 codec config, flagged by the encoder or
+     * only parameter sets, and keeps the parameter sets of config and key
+     * frames for the next decoder configuration.
+     */
+    private boolean isEncoderDataCodecConfig() {
+        boolean codecConfig = (mEncoderDataFlags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        if (sAvcConfig == null) {
+            return codecConfig;
+        }
+        ByteBuffer data = ByteBuffer.wrap(mEncoderData);
+        if (!codecConfig) {
+            codecConfig = AnnexB.isCodecConfig(data, 0, mEncoderData.length);
+        }
+        if (codecConfig || (mEncoderDataFlags & VideoCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            updateAvcConfig(data, 0, mEncoderData.length);
+        }
+        return codecConfig;
+    }
+
+    private void updateAvcConfig(ByteBuffer data, int offset, int size) {
+        if (sAvcConfig.update(data, offset, size)) {
+            Log.d(TAG, "Codec config: " + sAvcConfig);
+        }
     }
 
     /**
      * Configures decoder
+     *
+     * @param engine    engine driving the decoder in asynchronous mode, or null
      */
-    private void prepareDecoder(int width, int height, boolean useSurface, Surface screenSurface) {
-        CodecProperties properties = getVp8CodecProperties(false, FORCE_SW_CODEC);
+    private void prepareDecoder(int width, int height, boolean useSurface, Surface screenSurface,
+            AsyncCodecEngine engine) {
+        CodecCatalog.CodecProperties properties =
+                CodecCatalog.getInstance().getCodecProperties(VP8_MIME, false, FORCE_SW_CODEC);
         Log.d(TAG, "Open decoder " + width + " x " + height);
         MediaFormat format = MediaFormat.createVideoFormat(VP8_MIME, width, height);
+        if (sAvcConfig != null && sAvcConfig.matches(width, height)) {
+            // Parameter sets of an earlier run, so the decoder is ready on configure and
+            // does not wait for the in-band config.
+            format.setByteBuffer("csd-0", sAvcConfig.getCsd0());
+            format.setByteBuffer("csd-1", sAvcConfig.getCsd1());
+            mDecoderCsdConfigured = true;
+        }
         Log.d(TAG, "Format: " + format);
         Surface decoderSurface = null;
         if (useSurface) {
             decoderSurface = screenSurface;
         }
 
-        try {
-            mDecoder = MediaCodec.createByCodecName(properties.codecName);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (USE_FAKE_CODEC && !useSurface) {
+            mDecoder = new FakeVideoCodec("fake.decoder", VP8_MIME, false, width, height);
+            if (engine != null) {
+                engine.attach(mDecoder);
+            }
+            mDecoder.start();
+        } else if (USE_CODEC_POOL && decoderSurface == null && engine == null) {
+            try {
+                mDecoder = CodecPool.getInstance().acquire(properties.codecName, format, 0);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            try {
+                MediaCodecVideoCodec decoder = new MediaCodecVideoCodec(properties.codecName);
+                if (engine != null) {
+                    engine.attach(decoder);
+                }
+                decoder.configure(format, decoderSurface, 0);
+                mDecoder = decoder;
+                mDecoder.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (engine == null) {
+            ByteBuffer[] decoderInputBuffers = mDecoder.getInputBuffers();
+            ByteBuffer[] decoderOutputBuffers = mDecoder.getOutputBuffers();
+            Log.d(TAG, "Input buffers: " + decoderInputBuffers.length +
+                    ". Output buffers: " + decoderOutputBuffers.length);
         }
-        mDecoder.configure(format, decoderSurface, null, 0);
-        mDecoder.start();
-        ByteBuffer[] decoderInputBuffers = mDecoder.getInputBuffers();
-        ByteBuffer[] decoderOutputBuffers = mDecoder.getOutputBuffers();
-        Log.d(TAG, "Input buffers: " + decoderInputBuffers.length +
-                ". Output buffers: " + decoderOutputBuffers.length);
 
     }
 
@@ -1146,8 +1811,7 @@ public class CameraToIvfTest {
     private void releaseDecoder() {
         Log.d(TAG, "Releasing decoder");
         if (mDecoder != null) {
-            mDecoder.stop();
-            mDecoder.release();
+            CodecPool.getInstance().recycle(mDecoder);
             mDecoder = null;
         }
         Log.d(TAG, "Releasing decoder done");
@@ -1161,18 +1825,20 @@ public class CameraToIvfTest {
         //final int TIMEOUT_USEC = 1000;  // 1 ms timeout in dequeue
         final int TIMEOUT_USEC = 0;  // 1 ms timeout in dequeue
 
+        mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_DRAIN);
         ByteBuffer[] decoderOutputBuffers = mDecoder.getOutputBuffers();
         int decoderStatus = mDecoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
 
-        if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+        if (decoderStatus == VideoCodec.INFO_TRY_AGAIN_LATER) {
+            mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_DRAIN);
             return;      // out of while
-        } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+        } else if (decoderStatus == VideoCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
             // not expected for an encoder
             decoderOutputBuffers = mDecoder.getOutputBuffers();
             Log.d(TAG, "New decoder output buffers: " + decoderOutputBuffers.length);
-        } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        } else if (decoderStatus == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
             // should happen before receiving buffers, and should only happen once
-            MediaFormat newFormat = mDecoder.getOutputFormat();
+            VideoCodec.Format newFormat = mDecoder.getOutputFormat();
             Log.d(TAG, "Decoder output format changed: " + newFormat);
         } else if (decoderStatus < 0) {
             Log.w(TAG, "Unexpected result from decoder.dequeueOutputBuffer: " + decoderStatus);
@@ -1181,6 +1847,7 @@ public class CameraToIvfTest {
             ByteBuffer decodedData = decoderOutputBuffers[decoderStatus];
             
             if (WRITE_DECODED_DATA) {
+	    			mCpuProfiler.begin(CpuTimeProfiler.Stage.YUV_WRITE);
 	    			try {
 	    				byte[] b = new byte[decodedData.remaining()];
 	    				decodedData.get(b);
@@ -1188,6 +1855,7 @@ public class CameraToIvfTest {
 	    			} catch (IOException e) {
 	    				Log.e(TAG, "YuvWriter_decoded failure: " + e.toString());
 	    			}
+	    			mCpuProfiler.end(CpuTimeProfiler.Stage.YUV_WRITE);
 	    		}
             
             if (decodedData == null) {
@@ -1196,13 +1864,13 @@ public class CameraToIvfTest {
 
             String logStr = "Decoder output frame # " + mDecoderOutputFrameCount +
                     ". TS: " + (mBufferInfo.presentationTimeUs / 1000) + " ms.";
-            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            if ((mBufferInfo.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                 logStr += " CONFIG. ";
             }
-            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            if ((mBufferInfo.flags & VideoCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
                 logStr += " KEY. ";
             }
-            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if ((mBufferInfo.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                 logStr += " EOS. ";
             }
             logStr += " Size: " + mBufferInfo.size;
@@ -1211,14 +1879,25 @@ public class CameraToIvfTest {
             mDecoder.releaseOutputBuffer(decoderStatus, useSurface);
             mDecoderFrameOutputTimeMs[mDecoderOutputFrameCount] = SystemClock.elapsedRealtime();
             if (useSurface && rendererIf != null) {
+                mCpuProfiler.begin(CpuTimeProfiler.Stage.RENDER_WAIT);
                 rendererIf.RenderFrame();
+                mCpuProfiler.end(CpuTimeProfiler.Stage.RENDER_WAIT);
             }
 
             mDecoderOutputFrameCount++;
         }
+        mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_DRAIN);
     }
 
 
+    /**
+     * Receives camera frames directly on the camera thread, see
+     * CameraBufferCallback.setFrameListener().
+     */
+    private interface CameraFrameListener {
+        public void onCameraFrame(byte[] data, long timestampNs);
+    }
+
     private static class CameraBufferCallback implements PreviewCallback {
         private final int NUM_BUFFERS = 3;
         private Camera mCamera;
@@ -1234,12 +1913,16 @@ public class CameraToIvfTest {
         private int mFrameCount;
         private int mDroppedFrameCount;
         private int mFrameDropRatio;
+        private CpuTimeProfiler mCpuProfiler;
+        private volatile CameraFrameListener mFrameListener;
 
-        public CameraBufferCallback(Camera camera, int width, int height, int frameDropRatio) {
+        public CameraBufferCallback(Camera camera, int width, int height, int frameDropRatio,
+                CpuTimeProfiler cpuProfiler) {
             mCamera = camera;
             mWidth = width;
             mHeight = height;
             mFrameDropRatio = frameDropRatio;
+            mCpuProfiler = cpuProfiler;
         }
 
         public void release() {
@@ -1282,6 +1965,15 @@ public class CameraToIvfTest {
             return (long)mLastCaptureTime * 1000000;  // in ns
         }
 
+        /**
+         * Sets the listener which consumes every camera frame on the camera
+         * thread.  The buffer is returned to the camera when the listener
+         * returns, so checkNewImage() and getCameraData() are not used.
+         */
+        public void setFrameListener(CameraFrameListener listener) {
+            mFrameListener = listener;
+        }
+
         public byte[] getCameraData() {
             return mCameraData;
         }
@@ -1339,18 +2031,35 @@ public class CameraToIvfTest {
         @Override
         public void onPreviewFrame(byte[] data, Camera callbackCamera) {
             //Log.d(TAG, "Camera frame callback thread id = " + Thread.currentThread().getId());
+            CameraFrameListener listener;
+            mCpuProfiler.begin(CpuTimeProfiler.Stage.CAMERA_CALLBACK);
+            try {
+                listener = handlePreviewFrame(data);
+            } finally {
+                mCpuProfiler.end(CpuTimeProfiler.Stage.CAMERA_CALLBACK);
+            }
+            // Outside of the camera callback stage, the listener accounts its own stages.
+            if (listener != null) {
+                listener.onCameraFrame(data, getTimestamp());
+                mCamera.addCallbackBuffer(data);
+            }
+        }
+
+        // Returns the listener which takes the frame, or null if the frame was
+        // dropped or is handed to awaitNewImage().
+        private CameraFrameListener handlePreviewFrame(byte[] data) {
             synchronized (mFrameSyncObject) {
                 mFrameCount++;
                 if (mFrameDropRatio > 0 && (mFrameCount % mFrameDropRatio) != 0) {
                     // Drop this frame to get target fps
                     mCamera.addCallbackBuffer(data);
-                    return;
+                    return null;
                 }
                 if (mFrameAvailable) {
                     Log.w(TAG, "Camera frame dropped!!!");
                     mCamera.addCallbackBuffer(data);
                     mDroppedFrameCount++;
-                    return;
+                    return null;
                 }
                 if (mCaptureStartTime < 0) {
                     mCaptureStartTime = SystemClock.elapsedRealtime();
@@ -1363,11 +2072,16 @@ public class CameraToIvfTest {
                 //Log.d(TAG, "Camera frame #" + mFrameCount + ". TS " + captureTime +
                 //  ". Duration: " + (captureTime - mLastCaptureTime) + ". Fps: " + fps);
                 mLastCaptureTime = captureTime;
+                CameraFrameListener listener = mFrameListener;
+                if (listener != null) {
+                    return listener;
+                }
                 //System.arraycopy(data, 0, mCameraData,  0, data.length);
                 mCameraData = data;
                 mFrameAvailable = true;
                 //mCamera.addCallbackBuffer(data);
                 mFrameSyncObject.notifyAll();
+                return null;
             }
         }
     }
@@ -80,6 +80,12 @@ public class CameraToMpegTest extends AndroidTestCase {
     private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
     private static final long DURATION_SEC = 10;             // 8 seconds of video
 
+    // Write a fragmented MP4 file with Fmp4Writer instead of MediaMuxer.
+    private static final boolean USE_FRAGMENTED_MP4 = false;
+    private static final int FRAGMENT_FRAMES = FRAME_RATE;
+    private static final long FRAGMENT_DURATION_US = 1000000;
+    private static final int SEGMENT_INDEX_FRAGMENTS = 64;
+
     // Fragment shader that swaps color channels around.
     private static final String SWAPPED_FRAGMENT_SHADER =
             "#extension GL_OES_EGL_image_external : require\n" +
@@ -94,6 +100,7 @@ public class CameraToMpegTest extends AndroidTestCase {
     private MediaCodec mEncoder;
     private CodecInputSurface mInputSurface;
     private MediaMuxer mMuxer;
+    private Fmp4Writer mFmp4Writer;
     private int mTrackIndex;
     private boolean mMuxerStarted;
 
@@ -370,9 +377,17 @@ public class CameraToMpegTest extends AndroidTestCase {
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
         try {
-            mMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (USE_FRAGMENTED_MP4) {
+                mFmp4Writer = new Fmp4Writer(outputPath, MIME_TYPE, width, height, 90000);
+                mFmp4Writer.setFragmentDuration(FRAGMENT_FRAMES, FRAGMENT_DURATION_US);
+                mFmp4Writer.setSegmentIndex(SEGMENT_INDEX_FRAGMENTS);
+            } else {
+                mMuxer = new MediaMuxer(outputPath,
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            }
         } catch (IOException ioe) {
-            throw new RuntimeException("MediaMuxer creation failed", ioe);
+            throw new RuntimeException((USE_FRAGMENTED_MP4 ? "Fmp4Writer" : "MediaMuxer") +
+                    " creation failed", ioe);
         }
 
         mTrackIndex = -1;
@@ -398,6 +413,15 @@ public class CameraToMpegTest extends AndroidTestCase {
             mMuxer.release();
             mMuxer = null;
         }
+        if (mFmp4Writer != null) {
+            try {
+                mFmp4Writer.close();
+                Log.d(TAG, "Fragmented MP4: " + mFmp4Writer);
+            } catch (IOException ioe) {
+                Log.e(TAG, "Fmp4Writer failure: " + ioe.toString());
+            }
+            mFmp4Writer = null;
+        }
     }
 
     /**
@@ -441,8 +465,13 @@ public class CameraToMpegTest extends AndroidTestCase {
                 Log.d(TAG, "encoder output format changed: " + newFormat);
 
                 // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
+                if (mFmp4Writer != null) {
+                    addCodecConfig(newFormat, "csd-0");
+                    addCodecConfig(newFormat, "csd-1");
+                } else {
+                    mTrackIndex = mMuxer.addTrack(newFormat);
+                    mMuxer.start();
+                }
                 mMuxerStarted = true;
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
@@ -471,7 +500,17 @@ public class CameraToMpegTest extends AndroidTestCase {
                     encodedData.position(mBufferInfo.offset);
                     encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    if (mFmp4Writer != null) {
+                        try {
+                            mFmp4Writer.writeSampleData(encodedData, mBufferInfo.offset,
+                                    mBufferInfo.size, mBufferInfo.presentationTimeUs,
+                                    (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                        } catch (IOException ioe) {
+                            throw new RuntimeException("Fmp4Writer failure", ioe);
+                        }
+                    } else {
+                        mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    }
                     if (VERBOSE) Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer");
                 }
 
@@ -490,6 +529,16 @@ public class CameraToMpegTest extends AndroidTestCase {
     }
 
 
+    /**
+     * Passes a codec specific data buffer of the encoder output format to mFmp4Writer.
+     */
+    private void addCodecConfig(MediaFormat format, String key) {
+        ByteBuffer csd = format.getByteBuffer(key);
+        if (csd != null) {
+            mFmp4Writer.addCodecConfig(csd, csd.position(), csd.remaining());
+        }
+    }
+
     /**
      * Holds state associated with a Surface used for MediaCodec encoder input.
      * <p>
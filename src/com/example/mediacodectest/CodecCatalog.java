@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Codec capabilities of the device.
+ *
+ * MediaCodecList is enumerated once per process and the result, the codec
+ * name, mime types and color formats of every codec, is saved to a small
+ * text file together with Build.FINGERPRINT.  Later processes read the file
+ * instead of enumerating again until the system is updated.  Codecs are
+ * indexed by mime type and encoder/decoder, in MediaCodecList order.
+ */
+public class CodecCatalog {
+    private static final String TAG = "VP8CodecTestBase";
+    public static final String CACHE_FILE_NAME = "codec_catalog.txt";
+    private static final String CACHE_VERSION = "# codec catalog 1";
+    private static final String FINGERPRINT_PREFIX = "fingerprint=";
+
+    private static final String VP8_MIME = "video/x-vnd.on2.vp8";
+    private static final String OMX_SW_CODEC_PREFIX = "OMX.google";
+    private static final String VPX_SW_DECODER_NAME = "OMX.google.vp8.decoder";
+    private static final String VPX_SW_ENCODER_NAME = "OMX.google.vp8.encoder";
+
+    // NV12 color format supported by QCOM codec, but not declared in MediaCodec -
+    // see /hardware/qcom/media/mm-core/inc/OMX_QCOMExtns.h
+    public static final int COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m = 0x7FA30C04;
+    // Allowable color formats supported by codec - in order of preference.
+    public static final int[] SUPPORTED_COLOR_LIST = {
+            CodecCapabilities.COLOR_FormatYUV420Planar,
+            CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+            CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
+            COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m
+    };
+
+    private static File sCacheFile = new File(Environment.getExternalStorageDirectory(),
+            CACHE_FILE_NAME);
+    private static CodecCatalog sInstance;
+
+    /**
+     * One codec and mime type pair.
+     */
+    public static class CodecEntry {
+        public CodecEntry(String name, String mime, boolean isEncoder, int[] colorFormats) {
+            this.name = name;
+            this.mime = mime;
+            this.isEncoder = isEncoder;
+            this.isSoftware = name.startsWith(OMX_SW_CODEC_PREFIX);
+            this.colorFormats = colorFormats;
+        }
+
+        public final String name;
+        public final String mime;
+        public final boolean isEncoder;
+        public final boolean isSoftware;
+        public final int[] colorFormats;
+
+        /**
+         * Returns the first of the preferred color formats the codec supports, or -1.
+         */
+        public int selectColorFormat(int[] preferredColorFormats) {
+            for (int preferred : preferredColorFormats) {
+                for (int colorFormat : colorFormats) {
+                    if (colorFormat == preferred) {
+                        return colorFormat;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     *  Codec properties generated by getCodecProperties() function.
+     */
+    public static class CodecProperties {
+        CodecProperties(String codecName, int colorFormat) {
+            this.codecName = codecName;
+            this.colorFormat = colorFormat;
+        }
+        public boolean  isGoogleSwCodec() {
+            return codecName.startsWith(OMX_SW_CODEC_PREFIX);
+        }
+
+        public final String codecName; // OpenMax component name of the codec.
+        public final int colorFormat;  // Color format supported by codec.
+    }
+
+    private final List<CodecEntry> mCodecs;
+    private final HashMap<String, List<CodecEntry>> mIndex = new HashMap<String, List<CodecEntry>>();
+
+    /**
+     * Sets the file caching the catalog, by default on external storage.
+     * Must be called before the first getInstance().
+     */
+    public static synchronized void setCacheFile(File file) {
+        sCacheFile = file;
+    }
+
+    /**
+     * Returns the catalog, reading the cache file or enumerating the codecs
+     * on the first call.
+     */
+    public static synchronized CodecCatalog getInstance() {
+        if (sInstance == null) {
+            long startNs = System.nanoTime();
+            List<CodecEntry> codecs = readCache(sCacheFile, Build.FINGERPRINT);
+            String source = "cache";
+            if (codecs == null) {
+                codecs = enumerate();
+                writeCache(sCacheFile, Build.FINGERPRINT, codecs);
+                source = "MediaCodecList";
+            }
+            sInstance = new CodecCatalog(codecs);
+            Log.d(TAG, "Codec catalog: " + codecs.size() + " entries from " + source + " in " +
+                    (System.nanoTime() - startNs) / 1000000 + " ms");
+        }
+        return sInstance;
+    }
+
+    public CodecCatalog(List<CodecEntry> codecs) {
+        mCodecs = codecs;
+        for (CodecEntry codec : codecs) {
+            String key = getIndexKey(codec.mime, codec.isEncoder);
+            List<CodecEntry> list = mIndex.get(key);
+            if (list == null) {
+                list = new ArrayList<CodecEntry>();
+                mIndex.put(key, list);
+            }
+            list.add(codec);
+        }
+    }
+
+    public List<CodecEntry> getAllCodecs() {
+        return Collections.unmodifiableList(mCodecs);
+    }
+
+    /**
+     * Returns encoders or decoders of the mime type in MediaCodecList order.
+     */
+    public List<CodecEntry> getCodecs(String mime, boolean isEncoder) {
+        List<CodecEntry> list = mIndex.get(getIndexKey(mime, isEncoder));
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Returns the first HW or SW codec supporting one of the color formats, or null.
+     */
+    public CodecEntry findCodec(String mime, boolean isEncoder, boolean software,
+            int[] colorFormats) {
+        for (CodecEntry codec : getCodecs(mime, isEncoder)) {
+            if (codec.isSoftware == software && codec.selectColorFormat(colorFormats) >= 0) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Function to find a codec of the mime type.
+     *
+     * Returns the first platform specific codec, which must support either
+     * YUV420 planar or NV12 color formats.  If forceSwGoogleCodec parameter set
+     * to true, or no platform specific codec exist, returns Google sw codec.
+     *
+     * @param mime          Mime type of the stream.
+     * @param isEncoder     Flag if encoder is requested.
+     * @param forceSwGoogleCodec  Forces to use Google sw codec.
+     */
+    public CodecProperties getCodecProperties(String mime, boolean isEncoder,
+            boolean forceSwGoogleCodec) {
+        if (!forceSwGoogleCodec) {
+            for (CodecEntry codec : getCodecs(mime, isEncoder)) {
+                if (codec.isSoftware) {
+                    continue;
+                }
+                int colorFormat = codec.selectColorFormat(SUPPORTED_COLOR_LIST);
+                if (colorFormat < 0) {
+                    // HW codec we found does not support one of necessary color formats.
+                    throw new RuntimeException("No hw codec with YUV420 or NV12 color formats");
+                }
+                Log.d(TAG, "Found target codec " + codec.name +
+                        ". Color: 0x" + Integer.toHexString(colorFormat));
+                return new CodecProperties(codec.name, colorFormat);
+            }
+        }
+        Log.v(TAG, "Use SW " + mime + " codec");
+        if (VP8_MIME.equalsIgnoreCase(mime)) {
+            return new CodecProperties(isEncoder ? VPX_SW_ENCODER_NAME : VPX_SW_DECODER_NAME,
+                    CodecCapabilities.COLOR_FormatYUV420Planar);
+        }
+        for (CodecEntry codec : getCodecs(mime, isEncoder)) {
+            if (codec.isSoftware) {
+                int colorFormat = codec.selectColorFormat(SUPPORTED_COLOR_LIST);
+                return new CodecProperties(codec.name, colorFormat >= 0 ?
+                        colorFormat : CodecCapabilities.COLOR_FormatYUV420Planar);
+            }
+        }
+        throw new RuntimeException("No sw " + (isEncoder ? "encoder" : "decoder") +
+                " for " + mime);
+    }
+
+    private static String getIndexKey(String mime, boolean isEncoder) {
+        return (isEncoder ? "encoder " : "decoder ") + mime.toLowerCase();
+    }
+
+    private static List<CodecEntry> enumerate() {
+        List<CodecEntry> codecs = new ArrayList<CodecEntry>();
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            for (String type : codecInfo.getSupportedTypes()) {
+                int[] colorFormats = new int[0];
+                try {
+                    colorFormats = codecInfo.getCapabilitiesForType(type).colorFormats;
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "No capabilities for " + codecInfo.getName() + " " + type);
+                }
+                codecs.add(new CodecEntry(codecInfo.getName(), type, codecInfo.isEncoder(),
+                        colorFormats));
+            }
+        }
+        return codecs;
+    }
+
+    // Returns the cached codecs, or null if the file is missing, unreadable or
+    // written by another system build.
+    private static List<CodecEntry> readCache(File file, String fingerprint) {
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            if (!CACHE_VERSION.equals(reader.readLine()) ||
+                    !(FINGERPRINT_PREFIX + fingerprint).equals(reader.readLine())) {
+                Log.d(TAG, "Codec catalog cache is stale");
+                return null;
+            }
+            List<CodecEntry> codecs = new ArrayList<CodecEntry>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // <E|D> <name> <mime> <color formats>
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 4) {
+                    throw new IOException("Bad line: " + line);
+                }
+                int[] colorFormats = new int[0];
+                if (fields[3].length() > 0) {
+                    String[] colors = fields[3].split(",");
+                    colorFormats = new int[colors.length];
+                    for (int i = 0; i < colors.length; i++) {
+                        colorFormats[i] = (int)Long.parseLong(colors[i], 16);
+                    }
+                }
+                codecs.add(new CodecEntry(fields[1], fields[2], fields[0].equals("E"),
+                        colorFormats));
+            }
+            return codecs;
+        } catch (IOException e) {
+            Log.e(TAG, "Codec catalog cache read failure: " + e.toString());
+            return null;
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Codec catalog cache read failure: " + e.toString());
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private static void writeCache(File file, String fingerprint, List<CodecEntry> codecs) {
+        // Written to a temporary file first, so a killed process leaves no partial cache.
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(tmpFile);
+            writer.write(CACHE_VERSION + "\n");
+            writer.write(FINGERPRINT_PREFIX + fingerprint + "\n");
+            for (CodecEntry codec : codecs) {
+                StringBuilder line = new StringBuilder();
+                line.append(codec.isEncoder ? "E" : "D").append('\t');
+                line.append(codec.name).append('\t').append(codec.mime).append('\t');
+                for (int i = 0; i < codec.colorFormats.length; i++) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    line.append(Integer.toHexString(codec.colorFormats[i]));
+                }
+                writer.write(line.append('\n').toString());
+            }
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Can not rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Codec catalog cache write failure: " + e.toString());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encode / decode pipeline with one thread per stage:
+ *
+ *   source -> encoder feed -> encoder drain -> { IVF sink, decoder feed }
+ *          -> decoder drain -> { YUV sink, renderer }
+ *
+ * Stages are connected by bounded SpscQueues, fan-out uses one queue per
+ * consumer.  A slow sink only fills its own queue; the producer blocks once
+ * the queue is full, so backpressure reaches the source, which then drops
+ * frames in submitFrame().  The codecs are used in synchronous mode, every
+ * dequeue call blocks on a dedicated stage thread.
+ *
+ * End of stream travels through the queues as a frame with
+ * BUFFER_FLAG_END_OF_STREAM, every stage forwards it and exits.
+ */
+public class CodecPipeline {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final long DEQUEUE_TIMEOUT_US = 100000;
+
+    /**
+     * Frame travelling between stages.
+     */
+    public static class Frame {
+        public byte[] data;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public boolean isEndOfStream() {
+            return (flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        }
+    }
+
+    /**
+     * Consumer of encoded or decoded frames running on its own stage thread.
+     */
+    public interface FrameSink {
+        public void onFrame(Frame frame) throws Exception;
+    }
+
+    private final VideoCodec mEncoder;
+    private final VideoCodec mDecoder;
+    private final SpscQueue<Frame> mSourceQueue;
+    private final SpscQueue<Frame> mIvfQueue;
+    private final SpscQueue<Frame> mDecoderQueue;
+    private final SpscQueue<Frame> mYuvQueue;
+    private final SpscQueue<Frame> mRenderQueue;
+    private final List<SpscQueue<Frame>> mQueues = new ArrayList<SpscQueue<Frame>>();
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+    private FrameSink mIvfSink;
+    private FrameSink mYuvSink;
+    private VideoRendererIf mRenderer;
+    private boolean mRenderToSurface;
+    private CpuTimeProfiler mCpuProfiler = new CpuTimeProfiler();
+
+    private volatile Exception mError;
+    private volatile boolean mStopped;
+    private long mLastPresentationTimeUs;
+
+    // Input times by presentation time, to measure codec latency.
+    private final ConcurrentHashMap<Long, Long> mEncoderInputTimeNs =
+            new ConcurrentHashMap<Long, Long>();
+    private final ConcurrentHashMap<Long, Long> mDecoderInputTimeNs =
+            new ConcurrentHashMap<Long, Long>();
+    private final AtomicLong mEncoderLatencyNs = new AtomicLong();
+    private final AtomicLong mDecoderLatencyNs = new AtomicLong();
+    private volatile int mSubmittedFrames;
+    private volatile int mDroppedFrames;
+    private volatile int mEncodedFrames;
+    private volatile int mDecodedFrames;
+    private volatile long mEncodedBytes;
+
+    /**
+     * @param encoder        started encoder with byte buffer input
+     * @param decoder        started decoder, or null to encode only
+     * @param queueCapacity  capacity of every inter-stage queue
+     */
+    public CodecPipeline(VideoCodec encoder, VideoCodec decoder, int queueCapacity) {
+        mEncoder = encoder;
+        mDecoder = decoder;
+        mSourceQueue = addQueue("Source -> encoder", queueCapacity);
+        mIvfQueue = addQueue("Encoder -> IVF", queueCapacity);
+        mDecoderQueue = decoder != null ? addQueue("Encoder -> decoder", queueCapacity) : null;
+        mYuvQueue = decoder != null ? addQueue("Decoder -> YUV", queueCapacity) : null;
+        mRenderQueue = decoder != null ? addQueue("Decoder -> renderer", queueCapacity) : null;
+    }
+
+    public void setIvfSink(FrameSink sink) {
+        mIvfSink = sink;
+    }
+
+    public void setYuvSink(FrameSink sink) {
+        mYuvSink = sink;
+    }
+
+    /**
+     * Sets the renderer notified about every decoded frame.
+     *
+     * @param renderToSurface   release decoder buffers to the decoder output surface
+     */
+    public void setRenderer(VideoRendererIf renderer, boolean renderToSurface) {
+        mRenderer = renderer;
+        mRenderToSurface = renderToSurface;
+    }
+
+    public void setCpuProfiler(CpuTimeProfiler profiler) {
+        mCpuProfiler = profiler;
+    }
+
+    /**
+     * Starts the stage threads.
+     */
+    public void start() {
+        addStage("PipeEncFeed", new Stage() {
+            @Override
+            public void run() throws Exception {
+                runCodecFeed(mEncoder, mSourceQueue, mEncoderInputTimeNs,
+                        CpuTimeProfiler.Stage.ENCODER_FEED);
+            }
+        });
+        addStage("PipeEncDrain", new Stage() {
+            @Override
+            public void run() throws Exception {
+                runEncoderDrain();
+            }
+        });
+        addStage("PipeIvf", new Stage() {
+            @Override
+            public void run() throws Exception {
+                runSink(mIvfQueue, mIvfSink, CpuTimeProfiler.Stage.IVF_WRITE);
+            }
+        });
+        if (mDecoder != null) {
+            addStage("PipeDecFeed", new Stage() {
+                @Override
+                public void run() throws Exception {
+                    runCodecFeed(mDecoder, mDecoderQueue, mDecoderInputTimeNs,
+                            CpuTimeProfiler.Stage.DECODER_FEED);
+                }
+            });
+            addStage("PipeDecDrain", new Stage() {
+                @Override
+                public void run() throws Exception {
+                    runDecoderDrain();
+                }
+            });
+            addStage("PipeYuv", new Stage() {
+                @Override
+                public void run() throws Exception {
+                    runSink(mYuvQueue, mYuvSink, CpuTimeProfiler.Stage.YUV_WRITE);
+                }
+            });
+            addStage("PipeRender", new Stage() {
+                @Override
+                public void run() throws Exception {
+                    runRenderer();
+                }
+            });
+        }
+        for (Thread thread : mThreads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Submits a raw frame without blocking.  Returns false and counts a dropped
+     * frame if the encoder feed stage is behind.  The data is copied.
+     */
+    public boolean submitFrame(byte[] data, int size, long presentationTimeUs) {
+        Frame frame = new Frame();
+        frame.data = new byte[size];
+        System.arraycopy(data, 0, frame.data, 0, size);
+        frame.size = size;
+        frame.presentationTimeUs = presentationTimeUs;
+        if (!mSourceQueue.offer(frame)) {
+            mDroppedFrames++;
+            return false;
+        }
+        mLastPresentationTimeUs = presentationTimeUs;
+        mSubmittedFrames++;
+        return true;
+    }
+
+    /**
+     * Signals end of stream and waits until all stages have finished.
+     *
+     * @return false if the stages did not finish in time or a stage failed
+     */
+    public boolean finish(long timeoutMs) throws InterruptedException {
+        Frame eos = new Frame();
+        eos.presentationTimeUs = mLastPresentationTimeUs;
+        eos.flags = VideoCodec.BUFFER_FLAG_END_OF_STREAM;
+        mSourceQueue.put(eos);
+
+        long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        boolean finished = true;
+        for (Thread thread : mThreads) {
+            thread.join(Math.max(1, deadlineMs - System.currentTimeMillis()));
+            if (thread.isAlive()) {
+                Log.w(TAG, "Pipeline stage " + thread.getName() + " did not finish");
+                finished = false;
+            }
+        }
+        if (!finished) {
+            stop();
+        }
+        return finished && mError == null;
+    }
+
+    /**
+     * Stops all stages without draining the codecs.
+     */
+    public void stop() {
+        mStopped = true;
+        for (SpscQueue<Frame> queue : mQueues) {
+            queue.close();
+        }
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Returns the first exception thrown by a stage, or null.
+     */
+    public Exception getError() {
+        return mError;
+    }
+
+    public int getEncodedFrameCount() {
+        return mEncodedFrames;
+    }
+
+    public int getDecodedFrameCount() {
+        return mDecodedFrames;
+    }
+
+    public List<SpscQueue<Frame>> getQueues() {
+        return mQueues;
+    }
+
+    /**
+     * Logs frame counts, average codec latencies and queue depths.
+     */
+    public void logStatistics() {
+        double durationSec = mLastPresentationTimeUs / 1e6;
+        Log.d(TAG, "Pipeline frames submitted: " + mSubmittedFrames + ". Dropped: " +
+                mDroppedFrames + ". Encoded: " + mEncodedFrames + ". Decoded: " + mDecodedFrames);
+        if (durationSec > 0) {
+            Log.d(TAG, "Pipeline fps: " + String.format("%.1f", mEncodedFrames / durationSec) +
+                    ". Bitrate: " + (int)(mEncodedBytes * 8 / durationSec) + " bps");
+        }
+        if (mEncodedFrames > 0) {
+            Log.d(TAG, "Average encoding time: " +
+                    (mEncoderLatencyNs.get() / mEncodedFrames / 1000000) + " ms.");
+        }
+        if (mDecodedFrames > 0) {
+            Log.d(TAG, "Average decoding time: " +
+                    (mDecoderLatencyNs.get() / mDecodedFrames / 1000000) + " ms.");
+        }
+        for (SpscQueue<Frame> queue : mQueues) {
+            Log.d(TAG, "  " + queue);
+        }
+    }
+
+    private interface Stage {
+        public void run() throws Exception;
+    }
+
+    private SpscQueue<Frame> addQueue(String name, int capacity) {
+        SpscQueue<Frame> queue = new SpscQueue<Frame>(name, capacity);
+        mQueues.add(queue);
+        return queue;
+    }
+
+    private void addStage(final String name, final Stage stage) {
+        mThreads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stage.run();
+                } catch (InterruptedException e) {
+                    // Stopped.
+                } catch (Exception e) {
+                    Log.e(TAG, "Pipeline stage " + name + " failed: " + e.toString());
+                    if (mError == null) {
+                        mError = e;
+                    }
+                    stop();
+                } finally {
+                    mCpuProfiler.recordThread(name);
+                }
+            }
+        }, name));
+    }
+
+    // Copies frames from the queue into codec input buffers.
+    private void runCodecFeed(VideoCodec codec, SpscQueue<Frame> queue,
+            ConcurrentHashMap<Long, Long> inputTimes, CpuTimeProfiler.Stage profilerStage)
+            throws Exception {
+        Frame frame;
+        while ((frame = queue.take()) != null) {
+            int index = VideoCodec.INFO_TRY_AGAIN_LATER;
+            while (index < 0 && !mStopped) {
+                index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+            }
+            if (mStopped) {
+                return;
+            }
+            mCpuProfiler.begin(profilerStage);
+            if (frame.size > 0) {
+                ByteBuffer buffer = codec.getInputBuffer(index);
+                buffer.clear();
+                buffer.put(frame.data, 0, frame.size);
+            }
+            if ((frame.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && frame.size > 0) {
+                inputTimes.put(frame.presentationTimeUs, System.nanoTime());
+            }
+            codec.queueInputBuffer(index, 0, frame.size, frame.presentationTimeUs, frame.flags);
+            mCpuProfiler.end(profilerStage);
+            if (frame.isEndOfStream()) {
+                return;
+            }
+        }
+    }
+
+    // Copies one output buffer of the codec into a frame.  Returns null if no
+    // output is available yet.
+    private Frame dequeueOutput(VideoCodec codec, VideoCodec.BufferInfo info, boolean render) {
+        int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+        if (index == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            Log.d(TAG, codec.getName() + " output format changed: " + codec.getOutputFormat());
+            return null;
+        }
+        if (index < 0) {
+            return null;
+        }
+        Frame frame = new Frame();
+        frame.size = info.size;
+        frame.presentationTimeUs = info.presentationTimeUs;
+        frame.flags = info.flags;
+        if (info.size > 0) {
+            ByteBuffer buffer = codec.getOutputBuffer(index);
+            frame.data = new byte[info.size];
+            buffer.position(info.offset);
+            buffer.get(frame.data, 0, info.size);
+        }
+        codec.releaseOutputBuffer(index, render && info.size > 0);
+        return frame;
+    }
+
+    private void runEncoderDrain() throws Exception {
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        while (!mStopped) {
+            mCpuProfiler.begin(CpuTimeProfiler.Stage.ENCODER_DRAIN);
+            Frame frame = dequeueOutput(mEncoder, info, false);
+            mCpuProfiler.end(CpuTimeProfiler.Stage.ENCODER_DRAIN);
+            if (frame == null) {
+                continue;
+            }
+            boolean codecConfig = (frame.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if (frame.size > 0 && !codecConfig) {
+                Long inputTimeNs = mEncoderInputTimeNs.remove(frame.presentationTimeUs);
+                if (inputTimeNs != null) {
+                    mEncoderLatencyNs.addAndGet(System.nanoTime() - inputTimeNs);
+                }
+                mEncodedFrames++;
+            }
+            mEncodedBytes += frame.size;
+            if (frame.size > 0 || frame.isEndOfStream()) {
+                // Both consumers only read the frame, so it can be shared.
+                mIvfQueue.put(frame);
+                if (mDecoderQueue != null) {
+                    mDecoderQueue.put(frame);
+                }
+            }
+            if (frame.isEndOfStream()) {
+                return;
+            }
+        }
+    }
+
+    private void runDecoderDrain() throws Exception {
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        while (!mStopped) {
+            mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_DRAIN);
+            Frame frame = dequeueOutput(mDecoder, info, mRenderToSurface);
+            mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_DRAIN);
+            if (frame == null) {
+                continue;
+            }
+            if (frame.size > 0) {
+                Long inputTimeNs = mDecoderInputTimeNs.remove(frame.presentationTimeUs);
+                if (inputTimeNs != null) {
+                    mDecoderLatencyNs.addAndGet(System.nanoTime() - inputTimeNs);
+                }
+                mDecodedFrames++;
+                mYuvQueue.put(frame);
+                mRenderQueue.put(frame);
+            }
+            if (frame.isEndOfStream()) {
+                if (frame.size == 0) {
+                    mYuvQueue.put(frame);
+                    mRenderQueue.put(frame);
+                }
+                return;
+            }
+        }
+    }
+
+    private void runSink(SpscQueue<Frame> queue, FrameSink sink,
+            CpuTimeProfiler.Stage profilerStage) throws Exception {
+        Frame frame;
+        while ((frame = queue.take()) != null) {
+            if (sink != null && frame.size > 0) {
+                mCpuProfiler.begin(profilerStage);
+                sink.onFrame(frame);
+                mCpuProfiler.end(profilerStage);
+            }
+            if (frame.isEndOfStream()) {
+                return;
+            }
+        }
+    }
+
+    private void runRenderer() throws Exception {
+        Frame frame;
+        while ((frame = mRenderQueue.take()) != null) {
+            if (mRenderer != null && mRenderToSurface && frame.size > 0) {
+                mCpuProfiler.begin(CpuTimeProfiler.Stage.RENDER_WAIT);
+                mRenderer.RenderFrame();
+                mCpuProfiler.end(CpuTimeProfiler.Stage.RENDER_WAIT);
+            }
+            if (frame.isEndOfStream()) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of warm MediaCodec instances.
+ *
+ * createByCodecName(), configure() and start() take tens to hundreds of
+ * milliseconds on many devices.  A codec returned by recycle() is flushed and
+ * kept started; acquire() hands it out again if codec name, mime, resolution
+ * and color format (the Key) and the rest of the configuration match.  An
+ * idle codec of the same component with a different configuration is stopped
+ * and reconfigured, which still saves the component allocation.  Idle codecs
+ * are released after IDLE_TIMEOUT_MS, or at once when creation of another
+ * codec fails because the device ran out of codec instances.
+ *
+ * Only synchronous byte buffer codecs are pooled: surfaces and callbacks are
+ * bound to the client, so such codecs are created by the client and
+ * recycle() just stops and releases them.  Thread safe.
+ */
+public class CodecPool {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final int MAX_IDLE_CODECS = 4;
+
+    private static CodecPool sInstance;
+
+    /**
+     * Identity of a pooled codec configuration.
+     */
+    public static class Key {
+        public Key(String codecName, String mime, int width, int height, int colorFormat) {
+            this.codecName = codecName;
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+            this.colorFormat = colorFormat;
+        }
+
+        public final String codecName;
+        public final String mime;
+        public final int width;
+        public final int height;
+        public final int colorFormat;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return codecName.equals(other.codecName) && mime.equals(other.mime) &&
+                    width == other.width && height == other.height &&
+                    colorFormat == other.colorFormat;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = codecName.hashCode();
+            hash = 31 * hash + mime.hashCode();
+            hash = 31 * hash + width;
+            hash = 31 * hash + height;
+            return 31 * hash + colorFormat;
+        }
+
+        @Override
+        public String toString() {
+            return codecName + " " + mime + " " + width + " x " + height +
+                    ". Color: 0x" + Integer.toHexString(colorFormat);
+        }
+    }
+
+    /**
+     * The configure() arguments of a codec beyond the Key.  Compared key by
+     * key, as the key order and formatting of MediaFormat.toString() are
+     * implementation defined.
+     */
+    private static class Configuration {
+        int flags;
+        int bitrate;
+        int bitrateMode;
+        int frameRate;
+        int iFrameInterval;
+        ByteBuffer csd0;
+        ByteBuffer csd1;
+
+        Configuration(MediaFormat format, int flags) {
+            this.flags = flags;
+            bitrate = getInteger(format, MediaFormat.KEY_BIT_RATE);
+            bitrateMode = getInteger(format, "bitrate-mode");
+            frameRate = getInteger(format, MediaFormat.KEY_FRAME_RATE);
+            iFrameInterval = getInteger(format, MediaFormat.KEY_I_FRAME_INTERVAL);
+            csd0 = getByteBuffer(format, "csd-0");
+            csd1 = getByteBuffer(format, "csd-1");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Configuration)) {
+                return false;
+            }
+            Configuration other = (Configuration)o;
+            return flags == other.flags && bitrate == other.bitrate &&
+                    bitrateMode == other.bitrateMode && frameRate == other.frameRate &&
+                    iFrameInterval == other.iFrameInterval &&
+                    equals(csd0, other.csd0) && equals(csd1, other.csd1);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = flags;
+            hash = 31 * hash + bitrate;
+            hash = 31 * hash + bitrateMode;
+            hash = 31 * hash + frameRate;
+            return 31 * hash + iFrameInterval;
+        }
+
+        private static boolean equals(ByteBuffer a, ByteBuffer b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        private static int getInteger(MediaFormat format, String key) {
+            return format.containsKey(key) ? format.getInteger(key) : -1;
+        }
+
+        // A copy, so a later change of the caller's buffer does not change it.
+        private static ByteBuffer getByteBuffer(MediaFormat format, String key) {
+            if (!format.containsKey(key)) {
+                return null;
+            }
+            ByteBuffer buffer = format.getByteBuffer(key).duplicate();
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer);
+            copy.flip();
+            return copy;
+        }
+    }
+
+    private static class Entry {
+        MediaCodecVideoCodec codec;
+        Key key;
+        Configuration configuration;
+        long idleSinceMs;
+    }
+
+    private final long mIdleTimeoutMs;
+    private final int mMaxIdleCodecs;
+    private final List<Entry> mIdle = new ArrayList<Entry>();
+    private final HashMap<VideoCodec, Entry> mInUse = new HashMap<VideoCodec, Entry>();
+    private ScheduledExecutorService mEvictor;
+
+    // Statistics.
+    private int mWarmCount;
+    private int mReconfiguredCount;
+    private int mCreatedCount;
+    private int mEvictedCount;
+    private long mSetupTimeMs;
+
+    /**
+     * Returns the pool shared by all tests.
+     */
+    public static synchronized CodecPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new CodecPool(IDLE_TIMEOUT_MS, MAX_IDLE_CODECS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param idleTimeoutMs   time after which an unused codec is released
+     * @param maxIdleCodecs   number of unused codecs kept at most
+     */
+    public CodecPool(long idleTimeoutMs, int maxIdleCodecs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+        mMaxIdleCodecs = maxIdleCodecs;
+    }
+
+    /**
+     * Returns a started synchronous byte buffer codec configured with the format.
+     * The codec must be returned with recycle().
+     *
+     * @param flags      MediaCodec.CONFIGURE_FLAG_ENCODE for encoders
+     */
+    public MediaCodecVideoCodec acquire(String codecName, MediaFormat format, int flags)
+            throws IOException {
+        long startNs = System.nanoTime();
+        Key key = getKey(codecName, format);
+        Configuration configuration = new Configuration(format, flags);
+
+        // Prefer an identical configuration, then any idle instance of the component.
+        // A flushed encoder is only reused as is if it can be asked for a key frame
+        // and the bitrate, which needs API 19.  Older devices reconfigure it.
+        boolean canReuse = (flags & MediaCodec.CONFIGURE_FLAG_ENCODE) == 0 ||
+                MediaCodecVideoCodec.isParameterUpdateSupported();
+        Entry entry = null;
+        boolean warm = false;
+        synchronized (this) {
+            for (Entry idle : mIdle) {
+                if (canReuse && idle.key.equals(key) &&
+                        idle.configuration.equals(configuration)) {
+                    entry = idle;
+                    warm = true;
+                    break;
+                }
+                if (entry == null && idle.key.codecName.equals(codecName)) {
+                    entry = idle;
+                }
+            }
+            if (entry != null) {
+                mIdle.remove(entry);
+            }
+        }
+
+        String how = "created";
+        if (warm) {
+            // Flushed by recycle().  Encoders continue with a key frame at the
+            // configured bitrate, the previous client may have changed it.
+            if ((flags & MediaCodec.CONFIGURE_FLAG_ENCODE) != 0) {
+                if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+                    entry.codec.setVideoBitrate(format.getInteger(MediaFormat.KEY_BIT_RATE));
+                }
+                entry.codec.requestSyncFrame();
+            }
+            how = "warm";
+        } else if (entry != null) {
+            try {
+                entry.codec.stop();
+                entry.codec.configure(format, null, flags);
+                entry.codec.start();
+                how = "reconfigured";
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Reconfigure of " + entry.key + " failed: " + e.toString());
+                releaseCodec(entry.codec);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            entry = new Entry();
+            entry.codec = createCodec(codecName, format, flags);
+        }
+        entry.key = key;
+        entry.configuration = configuration;
+
+        long setupTimeMs = (System.nanoTime() - startNs) / 1000000;
+        synchronized (this) {
+            mInUse.put(entry.codec, entry);
+            if (warm) {
+                mWarmCount++;
+            } else if (how.equals("reconfigured")) {
+                mReconfiguredCount++;
+            } else {
+                mCreatedCount++;
+            }
+            mSetupTimeMs += setupTimeMs;
+        }
+        Log.d(TAG, "Codec " + key + " " + how + " in " + setupTimeMs + " ms");
+        return entry.codec;
+    }
+
+    /**
+     * Returns a codec to the pool.  Codecs not handed out by acquire(), and
+     * codecs which fail to flush, are stopped and released.
+     */
+    public void recycle(VideoCodec codec) {
+        Entry entry;
+        synchronized (this) {
+            entry = mInUse.remove(codec);
+        }
+        if (entry == null) {
+            codec.stop();
+            codec.release();
+            return;
+        }
+        try {
+            entry.codec.flush();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Flush of " + entry.key + " failed: " + e.toString());
+            releaseCodec(entry.codec);
+            return;
+        }
+
+        Entry evicted = null;
+        synchronized (this) {
+            entry.idleSinceMs = System.currentTimeMillis();
+            mIdle.add(entry);
+            if (mIdle.size() > mMaxIdleCodecs) {
+                evicted = mIdle.remove(0);
+                mEvictedCount++;
+            }
+            scheduleEvictionLocked();
+        }
+        if (evicted != null) {
+            releaseCodec(evicted.codec);
+        }
+    }
+
+    /**
+     * Releases codecs idle for at least maxIdleMs, all idle codecs for 0.
+     */
+    public void evictIdle(long maxIdleMs) {
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (this) {
+            long nowMs = System.currentTimeMillis();
+            Iterator<Entry> it = mIdle.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (nowMs - entry.idleSinceMs >= maxIdleMs) {
+                    it.remove();
+                    evicted.add(entry);
+                }
+            }
+            mEvictedCount += evicted.size();
+        }
+        for (Entry entry : evicted) {
+            Log.d(TAG, "Evict idle codec " + entry.key);
+            releaseCodec(entry.codec);
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        int acquired = mWarmCount + mReconfiguredCount + mCreatedCount;
+        return "Codec pool: warm " + mWarmCount + ". Reconfigured " + mReconfiguredCount +
+                ". Created " + mCreatedCount + ". Evicted " + mEvictedCount +
+                ". Idle " + mIdle.size() + ". In use " + mInUse.size() +
+                ". Average setup " + (acquired > 0 ? mSetupTimeMs / acquired : 0) + " ms";
+    }
+
+    private static Key getKey(String codecName, MediaFormat format) {
+        int colorFormat = format.containsKey(MediaFormat.KEY_COLOR_FORMAT) ?
+                format.getInteger(MediaFormat.KEY_COLOR_FORMAT) : 0;
+        return new Key(codecName, format.getString(MediaFormat.KEY_MIME),
+                format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT), colorFormat);
+    }
+
+    // Creates and starts a new codec.  If the device is out of codec instances
+    // the idle codecs are released and creation is retried once.
+    private MediaCodecVideoCodec createCodec(String codecName, MediaFormat format, int flags)
+            throws IOException {
+        try {
+            return createAndStart(codecName, format, flags);
+        } catch (RuntimeException e) {
+            if (getIdleCount() == 0) {
+                throw e;
+            }
+            Log.w(TAG, "Create of " + codecName + " failed, releasing idle codecs: " +
+                    e.toString());
+        } catch (IOException e) {
+            if (getIdleCount() == 0) {
+                throw e;
+            }
+            Log.w(TAG, "Create of " + codecName + " failed, releasing idle codecs: " +
+                    e.toString());
+        }
+        evictIdle(0);
+        return createAndStart(codecName, format, flags);
+    }
+
+    private static MediaCodecVideoCodec createAndStart(String codecName, MediaFormat format,
+            int flags) throws IOException {
+        MediaCodecVideoCodec codec = new MediaCodecVideoCodec(codecName);
+        try {
+            codec.configure(format, null, flags);
+            codec.start();
+        } catch (RuntimeException e) {
+            codec.release();
+            throw e;
+        }
+        return codec;
+    }
+
+    private void releaseCodec(MediaCodecVideoCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // Not started or in error state, release anyway.
+        }
+        try {
+            codec.release();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Release of " + codec.getName() + " failed: " + e.toString());
+        }
+    }
+
+    private void scheduleEvictionLocked() {
+        if (mEvictor == null) {
+            mEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CodecPoolEvictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        mEvictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle(mIdleTimeoutMs);
+            }
+        }, mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * One encode or decode session of the multi-session stress test.
+ *
+ * The session creates its own codec, feeds it at the target frame rate from a
+ * YUV file (encoder) or an IVF file (decoder) for a fixed time and measures
+ * achieved frame rate and per-frame codec latency.  Input files are read in a
+ * loop.  run() is meant to be the body of a dedicated thread.
+ */
+public class CodecSession implements Runnable {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final long MAX_WAIT_US = 10000;
+    private static final long DRAIN_TIMEOUT_MS = 1000;
+    private static final int MAX_FRAMES_IN_FLIGHT = 4;
+
+    /**
+     * Creates started codecs for the sessions.  Must be thread safe.
+     */
+    public interface CodecFactory {
+        public VideoCodec createEncoder(int width, int height, int bitrate, int frameRate)
+                throws IOException;
+
+        public VideoCodec createDecoder(int width, int height) throws IOException;
+    }
+
+    private final int mId;
+    private final boolean mIsEncoder;
+    private final CodecFactory mFactory;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBitrate;
+    private final int mFrameRate;
+    private final long mDurationMs;
+    private String mYuvPath;
+    private boolean mYuvPlanar;
+    private String mIvfPath;
+
+    // Results.
+    private final LatencyStats mLatency = new LatencyStats();
+    private volatile String mFailure;
+    private long mSetupTimeMs;
+    private long mElapsedMs;
+    private int mInputFrames;
+    private int mOutputFrames;
+    private long mOutputBytes;
+
+    // Source state.
+    private YuvReader mYuvReader;
+    private IvfReader mIvfReader;
+    private int mIvfFrameIndex;
+    private byte[] mYuvFrame;
+
+    /**
+     * @param id          session number used in the log
+     * @param isEncoder   true for an encode session, false for decode
+     * @param frameRate   input frame rate, 0 to feed as fast as the codec accepts
+     */
+    public CodecSession(int id, boolean isEncoder, CodecFactory factory,
+            int width, int height, int bitrate, int frameRate, long durationMs) {
+        mId = id;
+        mIsEncoder = isEncoder;
+        mFactory = factory;
+        mWidth = width;
+        mHeight = height;
+        mBitrate = bitrate;
+        mFrameRate = frameRate;
+        mDurationMs = durationMs;
+    }
+
+    /**
+     * Sets the YUV file of an encode session, null feeds a synthetic frame.
+     *
+     * @param planar   true to keep I420 layout, false to convert to NV12
+     */
+    public void setYuvSource(String path, boolean planar) {
+        mYuvPath = path;
+        mYuvPlanar = planar;
+    }
+
+    /**
+     * Sets the IVF file of a decode session.
+     */
+    public void setIvfSource(String path) {
+        mIvfPath = path;
+    }
+
+    @Override
+    public void run() {
+        VideoCodec codec = null;
+        try {
+            long setupStartNs = System.nanoTime();
+            openSource();
+            codec = mIsEncoder ?
+                    mFactory.createEncoder(mWidth, mHeight, mBitrate, mFrameRate) :
+                    mFactory.createDecoder(mWidth, mHeight);
+            mSetupTimeMs = (System.nanoTime() - setupStartNs) / 1000000;
+            process(codec);
+        } catch (Exception e) {
+            Log.e(TAG, "Session " + mId + " failed: " + e.toString());
+            mFailure = e.toString();
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                    codec.release();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Session " + mId + " release failure: " + e.toString());
+                }
+            }
+            closeSource();
+        }
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public boolean isEncoder() {
+        return mIsEncoder;
+    }
+
+    /**
+     * Returns the failure description, or null if the session completed.
+     */
+    public String getFailure() {
+        return mFailure;
+    }
+
+    public int getOutputFrameCount() {
+        return mOutputFrames;
+    }
+
+    /**
+     * Returns the achieved output frame rate.
+     */
+    public double getFps() {
+        return mElapsedMs > 0 ? mOutputFrames * 1000.0 / mElapsedMs : 0;
+    }
+
+    public int getTargetFrameRate() {
+        return mFrameRate;
+    }
+
+    public long getSetupTimeMs() {
+        return mSetupTimeMs;
+    }
+
+    public LatencyStats getLatency() {
+        return mLatency;
+    }
+
+    @Override
+    public String toString() {
+        String type = mIsEncoder ? "Encoder" : "Decoder";
+        if (mFailure != null) {
+            return type + " session " + mId + ": FAILED " + mFailure;
+        }
+        String result = type + " session " + mId + ": frames " + mInputFrames + " / " +
+                mOutputFrames + ". Fps " + String.format("%.1f", getFps()) +
+                ". Setup " + mSetupTimeMs + " ms. Latency " + mLatency;
+        if (mIsEncoder && mElapsedMs > 0) {
+            result += ". Bitrate " + (mOutputBytes * 8 * 1000 / mElapsedMs) + " bps";
+        }
+        return result;
+    }
+
+    // Feeds the codec at the target frame rate until the duration expires,
+    // then sends EOS and drains the remaining output.
+    private void process(VideoCodec codec) throws IOException {
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        HashMap<Long, Long> inputTimesNs = new HashMap<Long, Long>();
+        long frameIntervalUs = mFrameRate > 0 ? 1000000 / mFrameRate : 0;
+        // Unique timestamps are needed to match output with input also when unpaced.
+        long timestampIntervalUs = mFrameRate > 0 ? frameIntervalUs : 33333;
+        long startNs = System.nanoTime();
+        long endNs = startNs + mDurationMs * 1000000;
+        long drainEndNs = endNs + DRAIN_TIMEOUT_MS * 1000000;
+        boolean inputDone = false;
+
+        while (true) {
+            long nowNs = System.nanoTime();
+            long nextInputNs = startNs + mInputFrames * frameIntervalUs * 1000;
+            if (!inputDone && nowNs >= endNs) {
+                int index = codec.dequeueInputBuffer(MAX_WAIT_US);
+                if (index >= 0) {
+                    codec.queueInputBuffer(index, 0, 0, mInputFrames * timestampIntervalUs,
+                            VideoCodec.BUFFER_FLAG_END_OF_STREAM);
+                    inputDone = true;
+                }
+            } else if (!inputDone && nowNs >= nextInputNs &&
+                    mInputFrames - mOutputFrames < MAX_FRAMES_IN_FLIGHT) {
+                int index = codec.dequeueInputBuffer(0);
+                if (index >= 0) {
+                    ByteBuffer buffer = codec.getInputBuffer(index);
+                    buffer.clear();
+                    int size = readFrame(buffer);
+                    long presentationTimeUs = mInputFrames * timestampIntervalUs;
+                    inputTimesNs.put(presentationTimeUs, System.nanoTime());
+                    codec.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+                    mInputFrames++;
+                }
+            }
+            if (inputDone && nowNs > drainEndNs) {
+                Log.w(TAG, "Session " + mId + ": no EOS from " + codec.getName());
+                break;
+            }
+
+            // Wait for output until the next input is due.
+            long waitUs = MAX_WAIT_US;
+            if (!inputDone && mInputFrames - mOutputFrames < MAX_FRAMES_IN_FLIGHT) {
+                waitUs = Math.max(0, Math.min(waitUs,
+                        (startNs + mInputFrames * frameIntervalUs * 1000 - nowNs) / 1000));
+            }
+            int result = codec.dequeueOutputBuffer(info, waitUs);
+            if (result == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                Log.d(TAG, "Session " + mId + " format: " + codec.getOutputFormat());
+            } else if (result >= 0) {
+                codec.releaseOutputBuffer(result, false);
+                if (info.size > 0 && (info.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    Long inputTimeNs = inputTimesNs.remove(info.presentationTimeUs);
+                    if (inputTimeNs != null) {
+                        mLatency.add((System.nanoTime() - inputTimeNs) / 1000);
+                    }
+                    mOutputFrames++;
+                    mOutputBytes += info.size;
+                }
+                if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        }
+        mElapsedMs = Math.max(1, (Math.min(System.nanoTime(), endNs) - startNs) / 1000000);
+    }
+
+    private void openSource() throws IOException {
+        if (mIsEncoder) {
+            mYuvFrame = new byte[mWidth * mHeight * 3 / 2];
+            if (mYuvPath != null) {
+                mYuvReader = new YuvReader(mYuvPath, mWidth, mHeight, 0);
+            }
+        } else {
+            if (mIvfPath == null) {
+                throw new IOException("No IVF source for decoder session " + mId);
+            }
+            mIvfReader = new IvfReader(mIvfPath);
+            mIvfFrameIndex = 0;
+        }
+    }
+
+    private void closeSource() {
+        try {
+            if (mYuvReader != null) {
+                mYuvReader.close();
+                mYuvReader = null;
+            }
+            if (mIvfReader != null) {
+                mIvfReader.close();
+                mIvfReader = null;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Session " + mId + " source close failure: " + e.toString());
+        }
+    }
+
+    // Copies the next source frame into the buffer, restarting the file at its end.
+    private int readFrame(ByteBuffer buffer) throws IOException {
+        if (mIsEncoder) {
+            if (mYuvReader != null && mYuvReader.readFrame(mYuvFrame, mYuvPlanar) <= 0) {
+                mYuvReader.close();
+                mYuvReader = new YuvReader(mYuvPath, mWidth, mHeight, 0);
+                mYuvReader.readFrame(mYuvFrame, mYuvPlanar);
+            }
+            buffer.put(mYuvFrame);
+            return mYuvFrame.length;
+        }
+        if (mIvfFrameIndex >= mIvfReader.getFrameCount()) {
+            mIvfFrameIndex = 0;  // First frame is a key frame.
+        }
+        byte[] frame = mIvfReader.readFrame(mIvfFrameIndex++);
+        buffer.put(frame);
+        return frame.length;
+    }
+}
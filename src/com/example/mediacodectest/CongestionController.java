@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Delay based congestion control of the encoder bitrate against a
+ * SimulatedLink, after Google Congestion Control (draft-ietf-rmcat-gcc-02).
+ *
+ * Every encoded frame is sent over the link.  Arrivals are fed back once the
+ * sender clock reaches them.  For each arrived frame:
+ * - the arrival time filter, a Kalman filter, estimates the queueing delay
+ *   gradient m from the inter-arrival minus the inter-departure time;
+ * - the overuse detector compares m to an adaptive threshold and signals
+ *   overuse, underuse or normal;
+ * - the rate controller decreases the target to 0.85 of the received rate on
+ *   overuse, holds on underuse, and otherwise increases it, by 8% per second
+ *   or additively close to the rate of the last decrease.
+ * A loss based bound lowers the target for drop tail losses over 10%.  The
+ * target is set on the encoder, through the BitrateController if there is one.
+ *
+ * After each capacity change the time until the target stays within
+ * CONVERGENCE_BAND of the capacity for CONVERGENCE_HOLD_US is measured.
+ * Not thread safe, call from the thread draining the encoder.
+ */
+public class CongestionController {
+    private static final String TAG = "VP8CodecTestBase";
+
+    // Arrival time filter.
+    private static final double PROCESS_NOISE = 1e-3;
+    private static final double NOISE_CHI = 0.01;
+    // Overuse detector.
+    private static final double INITIAL_THRESHOLD_MS = 12.5;
+    private static final double MIN_THRESHOLD_MS = 6;
+    private static final double MAX_THRESHOLD_MS = 600;
+    private static final double THRESHOLD_GAIN_UP = 0.01;
+    private static final double THRESHOLD_GAIN_DOWN = 0.00018;
+    private static final double OVERUSE_TIME_MS = 10;
+    private static final int MAX_DELTAS = 60;
+    // Rate controller.
+    private static final double DECREASE_FACTOR = 0.85;
+    private static final double INCREASE_PER_SECOND = 1.08;
+    private static final int PACKET_BITS = 1200 * 8;
+    private static final long RATE_WINDOW_US = 500000;
+    private static final long LOSS_WINDOW_US = 1000000;
+    private static final double DEAD_BAND = 0.03;
+    // Convergence.
+    private static final double CONVERGENCE_BAND = 0.2;
+    private static final long CONVERGENCE_HOLD_US = 1000000;
+
+    public enum Signal { NORMAL, OVERUSE, UNDERUSE }
+    private enum State { HOLD, INCREASE, DECREASE }
+
+    private static class Frame {
+        int size;
+        long sendTimeUs;
+        long arrivalTimeUs;
+    }
+
+    private final VideoCodec mEncoder;
+    private final SimulatedLink mLink;
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private BitrateController mBitrateController;
+    private final ArrayDeque<Frame> mInFlight = new ArrayDeque<Frame>();
+    private final ArrayDeque<Frame> mReceived = new ArrayDeque<Frame>();
+    private long mReceivedBytes;
+
+    // Arrival time filter state.
+    private Frame mLastArrived;
+    private double mEstimateMs;
+    private double mErrorCovariance = 0.1;
+    private double mNoiseVariance = 50;
+    // Overuse detector state.
+    private double mThresholdMs = INITIAL_THRESHOLD_MS;
+    private int mDeltaCount;
+    private double mLastEstimateMs;
+    private long mLastDetectUs = -1;
+    private long mOveruseStartUs = -1;
+    private Signal mSignal = Signal.NORMAL;
+    // Rate controller state.
+    private State mState = State.INCREASE;
+    private double mDelayBitrate;
+    private double mLossBitrate;
+    private long mLastUpdateUs = -1;
+    private double mAverageMaxKbps = -1;
+    private double mMaxKbpsVariance = 0.4;
+    private int mAppliedBitrate;
+    // Loss feedback.
+    private long mLossWindowStartUs = -1;
+    private int mLossWindowSent;
+    private int mLossWindowLost;
+
+    // Convergence.
+    private int mCapacity = -1;
+    private long mCapacityChangeUs;
+    private long mInBandSinceUs = -1;
+    private boolean mConverged;
+    private final LatencyStats mConvergence = new LatencyStats();
+    private int mUnconvergedCount;
+
+    // Statistics.
+    private int mOveruseCount;
+    private int mDecreaseCount;
+    private int mUpdateCount;
+
+    /**
+     * @param encoder        encoder whose bitrate is controlled
+     * @param startBitrate   initial target bitrate
+     */
+    public CongestionController(VideoCodec encoder, SimulatedLink link, int startBitrate,
+            int minBitrate, int maxBitrate) {
+        mEncoder = encoder;
+        mLink = link;
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mDelayBitrate = startBitrate;
+        mLossBitrate = maxBitrate;
+        mAppliedBitrate = startBitrate;
+    }
+
+    /**
+     * Sets the target of a closed loop bitrate controller instead of the
+     * encoder bitrate.
+     */
+    public void setBitrateController(BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    /**
+     * Sends an encoded frame over the link and updates the target bitrate
+     * with the arrivals up to its presentation time.
+     */
+    public void onFrameEncoded(int size, long presentationTimeUs) {
+        // Feedback of the frames arrived by now.
+        while (!mInFlight.isEmpty() && mInFlight.peekFirst().arrivalTimeUs <= presentationTimeUs) {
+            onFrameArrived(mInFlight.pollFirst());
+        }
+
+        updateLoss(presentationTimeUs);
+        Frame frame = new Frame();
+        frame.size = size;
+        frame.sendTimeUs = presentationTimeUs;
+        frame.arrivalTimeUs = mLink.send(size, presentationTimeUs);
+        if (frame.arrivalTimeUs >= 0) {
+            mInFlight.addLast(frame);
+        } else {
+            mLossWindowLost++;
+        }
+
+        updateConvergence(presentationTimeUs);
+        applyBitrate();
+    }
+
+    public int getTargetBitrate() {
+        return (int)Math.min(mDelayBitrate, mLossBitrate);
+    }
+
+    /**
+     * Returns the convergence times after the capacity changes.
+     */
+    public LatencyStats getConvergence() {
+        return mConvergence;
+    }
+
+    @Override
+    public String toString() {
+        return "Target " + getTargetBitrate() + " bps, " + mState + ". Overuse signals " +
+                mOveruseCount + ". Decreases " + mDecreaseCount + ". Encoder updates " +
+                mUpdateCount + ". Convergence " + mConvergence + ", not converged " +
+                mUnconvergedCount + ". " + mLink;
+    }
+
+    private void onFrameArrived(Frame frame) {
+        long nowUs = frame.arrivalTimeUs;
+        mReceived.addLast(frame);
+        mReceivedBytes += frame.size;
+        while (mReceived.peekFirst().arrivalTimeUs < nowUs - RATE_WINDOW_US) {
+            mReceivedBytes -= mReceived.pollFirst().size;
+        }
+
+        if (mLastArrived != null) {
+            double sendDeltaMs = (frame.sendTimeUs - mLastArrived.sendTimeUs) / 1000.0;
+            double arrivalDeltaMs = (frame.arrivalTimeUs - mLastArrived.arrivalTimeUs) / 1000.0;
+            updateEstimate(arrivalDeltaMs - sendDeltaMs, sendDeltaMs);
+            detect(nowUs);
+        }
+        mLastArrived = frame;
+        updateRate(nowUs);
+    }
+
+    // Kalman filter of the delay gradient.
+    private void updateEstimate(double delayDeltaMs, double sendDeltaMs) {
+        double residual = delayDeltaMs - mEstimateMs;
+        // Noise smoothing scaled to 30 fps.
+        double alpha = Math.pow(1 - NOISE_CHI, Math.max(sendDeltaMs, 1) / (1000.0 / 30));
+        if (Math.abs(residual) < 3 * Math.sqrt(mNoiseVariance)) {
+            mNoiseVariance = Math.max(alpha * mNoiseVariance + (1 - alpha) * residual * residual,
+                    1);
+        }
+        double gain = (mErrorCovariance + PROCESS_NOISE) /
+                (mNoiseVariance + mErrorCovariance + PROCESS_NOISE);
+        mEstimateMs += gain * residual;
+        mErrorCovariance = (1 - gain) * (mErrorCovariance + PROCESS_NOISE);
+    }
+
+    // Overuse detector with adaptive threshold.  The gradient is scaled by
+    // the number of deltas, up to MAX_DELTAS, as in the draft.
+    private void detect(long nowUs) {
+        double deltaMs = mLastDetectUs < 0 ? 0 : (nowUs - mLastDetectUs) / 1000.0;
+        mLastDetectUs = nowUs;
+        mDeltaCount = Math.min(mDeltaCount + 1, MAX_DELTAS);
+        double estimateMs = mDeltaCount * mEstimateMs;
+        if (estimateMs > mThresholdMs) {
+            if (mOveruseStartUs < 0) {
+                mOveruseStartUs = nowUs;
+            }
+            if ((nowUs - mOveruseStartUs) / 1000.0 >= OVERUSE_TIME_MS &&
+                    estimateMs >= mLastEstimateMs) {
+                if (mSignal != Signal.OVERUSE) {
+                    mOveruseCount++;
+                }
+                mSignal = Signal.OVERUSE;
+            }
+        } else if (estimateMs < -mThresholdMs) {
+            mOveruseStartUs = -1;
+            mSignal = Signal.UNDERUSE;
+        } else {
+            mOveruseStartUs = -1;
+            mSignal = Signal.NORMAL;
+        }
+        mLastEstimateMs = estimateMs;
+
+        double excess = Math.abs(estimateMs) - mThresholdMs;
+        if (excess <= 15) {
+            double gain = Math.abs(estimateMs) < mThresholdMs ?
+                    THRESHOLD_GAIN_DOWN : THRESHOLD_GAIN_UP;
+            mThresholdMs += Math.min(deltaMs, 100) * gain * excess;
+            mThresholdMs = Math.max(MIN_THRESHOLD_MS, Math.min(MAX_THRESHOLD_MS, mThresholdMs));
+        }
+    }
+
+    // AIMD rate controller.
+    private void updateRate(long nowUs) {
+        double deltaS = mLastUpdateUs < 0 ? 0 : Math.min(nowUs - mLastUpdateUs, 1000000) / 1e6;
+        mLastUpdateUs = nowUs;
+        long windowUs = Math.max(nowUs - mReceived.peekFirst().arrivalTimeUs, 1000000 / 30);
+        double receivedBitrate = mReceivedBytes * 8 * 1e6 / Math.min(windowUs, RATE_WINDOW_US);
+
+        switch (mSignal) {
+            case OVERUSE:
+                mState = State.DECREASE;
+                break;
+            case UNDERUSE:
+                mState = State.HOLD;
+                break;
+            default:
+                mState = mState == State.DECREASE ? State.HOLD : State.INCREASE;
+                break;
+        }
+
+        if (mState == State.INCREASE) {
+            if (isNearMaxBitrate(receivedBitrate)) {
+                // Half a packet per response time.
+                double responseS = 0.1 + 2 * mLink.getPropagationDelayUs() / 1e6;
+                mDelayBitrate += Math.max(1000, 0.5 * PACKET_BITS * deltaS / responseS);
+            } else {
+                mDelayBitrate *= Math.pow(INCREASE_PER_SECOND, deltaS);
+            }
+            // Do not run away from the received rate.
+            if (receivedBitrate > 0) {
+                mDelayBitrate = Math.min(mDelayBitrate, 1.5 * receivedBitrate + 10000);
+            }
+        } else if (mState == State.DECREASE && mSignal == Signal.OVERUSE) {
+            mDelayBitrate = Math.min(mDelayBitrate, DECREASE_FACTOR * receivedBitrate);
+            updateMaxBitrate(receivedBitrate);
+            mDecreaseCount++;
+            // One decrease per overuse episode.
+            mSignal = Signal.NORMAL;
+            mOveruseStartUs = -1;
+        }
+        mDelayBitrate = Math.max(mMinBitrate, Math.min(mMaxBitrate, mDelayBitrate));
+    }
+
+    private boolean isNearMaxBitrate(double receivedBitrate) {
+        if (mAverageMaxKbps < 0) {
+            return false;
+        }
+        double deviationKbps = Math.sqrt(mMaxKbpsVariance * mAverageMaxKbps);
+        return Math.abs(receivedBitrate / 1000 - mAverageMaxKbps) < 3 * deviationKbps;
+    }
+
+    // Tracks the average and normalized variance of the rate at decreases.
+    private void updateMaxBitrate(double receivedBitrate) {
+        double kbps = receivedBitrate / 1000;
+        if (mAverageMaxKbps < 0) {
+            mAverageMaxKbps = kbps;
+        } else {
+            mAverageMaxKbps = 0.95 * mAverageMaxKbps + 0.05 * kbps;
+        }
+        double error = mAverageMaxKbps - kbps;
+        mMaxKbpsVariance = 0.95 * mMaxKbpsVariance +
+                0.05 * error * error / Math.max(mAverageMaxKbps, 1);
+        mMaxKbpsVariance = Math.max(0.4, Math.min(2.5, mMaxKbpsVariance));
+    }
+
+    // Loss based bound, updated once per loss window.
+    private void updateLoss(long nowUs) {
+        if (mLossWindowStartUs < 0) {
+            mLossWindowStartUs = nowUs;
+        }
+        mLossWindowSent++;
+        if (nowUs - mLossWindowStartUs < LOSS_WINDOW_US) {
+            return;
+        }
+        double loss = (double)mLossWindowLost / mLossWindowSent;
+        if (loss > 0.1) {
+            mLossBitrate = getTargetBitrate() * (1 - 0.5 * loss);
+        } else if (loss < 0.02) {
+            mLossBitrate = Math.min(mMaxBitrate, mLossBitrate * 1.05);
+        }
+        mLossBitrate = Math.max(mMinBitrate, mLossBitrate);
+        mLossWindowStartUs = nowUs;
+        mLossWindowSent = 0;
+        mLossWindowLost = 0;
+    }
+
+    private void updateConvergence(long nowUs) {
+        int capacity = mLink.getCapacity(nowUs);
+        if (capacity != mCapacity) {
+            if (mCapacity > 0 && !mConverged) {
+                mUnconvergedCount++;
+            }
+            mCapacity = capacity;
+            mCapacityChangeUs = nowUs;
+            mInBandSinceUs = -1;
+            mConverged = false;
+        }
+        if (mConverged) {
+            return;
+        }
+        if (Math.abs(getTargetBitrate() - capacity) <= CONVERGENCE_BAND * capacity) {
+            if (mInBandSinceUs < 0) {
+                mInBandSinceUs = nowUs;
+            }
+            if (nowUs - mInBandSinceUs >= CONVERGENCE_HOLD_US) {
+                mConverged = true;
+                mConvergence.add(mInBandSinceUs - mCapacityChangeUs);
+                Log.d(TAG, "Congestion control converged to " + getTargetBitrate() +
+                        " bps in " + (mInBandSinceUs - mCapacityChangeUs) / 1000 +
+                        " ms. Capacity " + capacity);
+            }
+        } else {
+            mInBandSinceUs = -1;
+        }
+    }
+
+    private void applyBitrate() {
+        int target = getTargetBitrate();
+        if (Math.abs(target - mAppliedBitrate) < DEAD_BAND * mAppliedBitrate) {
+            return;
+        }
+        if (mBitrateController != null) {
+            mBitrateController.setTargetBitrate(target);
+        } else {
+            try {
+                mEncoder.setVideoBitrate(target);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Bitrate update failed: " + e.toString());
+                return;
+            }
+        }
+        mAppliedBitrate = target;
+        mUpdateCount++;
+    }
+}
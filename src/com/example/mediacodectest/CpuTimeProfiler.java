@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accounts CPU time of the codec test threads per pipeline stage.
+ *
+ * Every stage accumulates both the thread CPU time (Debug.threadCpuTimeNanos)
+ * and the wall time spent in it, regardless of the thread which runs the stage.
+ * A stage with CPU time close to its wall time is CPU bound, a stage with much
+ * lower CPU time is waiting for the codec, the camera, the GL thread or I/O.
+ *
+ * Stages may nest (e.g. IVF writing happens inside encoder draining), in which
+ * case the outer stage includes the time of the inner one.
+ *
+ * All methods are thread safe.
+ */
+public class CpuTimeProfiler {
+    private static final String TAG = "VP8CodecTestBase";
+
+    public enum Stage {
+        CAMERA_CALLBACK("Camera callback"),
+        INPUT_READ("Input read"),
+        ENCODER_FEED("Encoder feed"),
+        ENCODER_DRAIN("Encoder drain"),
+        IVF_WRITE("IVF write"),
+        WEBM_WRITE("WebM write"),
+        YUV_WRITE("YUV write"),
+        DECODER_FEED("Decoder feed"),
+        DECODER_DRAIN("Decoder drain"),
+        RENDER_WAIT("Render wait"),
+        GL_DRAW("GL draw");
+
+        private final String mName;
+
+        private Stage(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private static final int STAGE_COUNT = Stage.values().length;
+
+    private final AtomicLongArray mCpuTimeNs = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mWallTimeNs = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mCalls = new AtomicLongArray(STAGE_COUNT);
+    private final List<String> mThreadNames = new ArrayList<String>();
+    private final List<Long> mThreadCpuTimeNs = new ArrayList<Long>();
+
+    // Start times of the stages entered on the current thread: {cpu, wall} per stage.
+    private final ThreadLocal<long[]> mStageStarts = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2 * STAGE_COUNT];
+        }
+    };
+
+    /**
+     * Returns CPU time consumed by the calling thread since its start, 0 if
+     * the platform does not support per-thread CPU time.
+     */
+    public static long threadCpuTimeNs() {
+        long time = Debug.threadCpuTimeNanos();
+        return time < 0 ? 0 : time;
+    }
+
+    /**
+     * Marks the beginning of a stage on the calling thread.
+     */
+    public void begin(Stage stage) {
+        long[] starts = mStageStarts.get();
+        starts[2 * stage.ordinal()] = threadCpuTimeNs();
+        starts[2 * stage.ordinal() + 1] = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Marks the end of a stage previously started by begin() on the calling thread.
+     */
+    public void end(Stage stage) {
+        long[] starts = mStageStarts.get();
+        int i = stage.ordinal();
+        mCpuTimeNs.addAndGet(i, threadCpuTimeNs() - starts[2 * i]);
+        mWallTimeNs.addAndGet(i, SystemClock.elapsedRealtimeNanos() - starts[2 * i + 1]);
+        mCalls.incrementAndGet(i);
+    }
+
+    /**
+     * Records the total CPU time of the calling thread.  Should be called on a
+     * dedicated thread (e.g. LooperRunner) right before it is stopped.
+     */
+    public void recordThread(String name) {
+        long cpuTimeNs = threadCpuTimeNs();
+        synchronized (mThreadNames) {
+            mThreadNames.add(name);
+            mThreadCpuTimeNs.add(cpuTimeNs);
+        }
+    }
+
+    /**
+     * Returns CPU time accumulated by the stage in nanoseconds.
+     */
+    public long getCpuTimeNs(Stage stage) {
+        return mCpuTimeNs.get(stage.ordinal());
+    }
+
+    /**
+     * Returns wall time accumulated by the stage in nanoseconds.
+     */
+    public long getWallTimeNs(Stage stage) {
+        return mWallTimeNs.get(stage.ordinal());
+    }
+
+    /**
+     * Clears all collected statistics.
+     */
+    public void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mCpuTimeNs.set(i, 0);
+            mWallTimeNs.set(i, 0);
+            mCalls.set(i, 0);
+        }
+        synchronized (mThreadNames) {
+            mThreadNames.clear();
+            mThreadCpuTimeNs.clear();
+        }
+    }
+
+    /**
+     * Logs CPU and wall milliseconds per frame for every stage which was entered,
+     * followed by the recorded thread totals.
+     *
+     * @param frames    number of frames the totals are normalized to
+     */
+    public void logReport(int frames) {
+        if (frames <= 0) {
+            frames = 1;
+        }
+        Log.d(TAG, "CPU time per frame (" + frames + " frames):");
+        long totalCpuTimeNs = 0;
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            long calls = mCalls.get(i);
+            if (calls == 0) {
+                continue;
+            }
+            long cpuTimeNs = mCpuTimeNs.get(i);
+            long wallTimeNs = mWallTimeNs.get(i);
+            int cpuLoad = wallTimeNs > 0 ? (int)(100 * cpuTimeNs / wallTimeNs) : 0;
+            Log.d(TAG, "  " + stage + ": CPU " + formatMs(cpuTimeNs / frames) +
+                    " ms. Wall " + formatMs(wallTimeNs / frames) + " ms. CPU/Wall " +
+                    cpuLoad + "%. Calls: " + calls);
+            if (stage != Stage.INPUT_READ && stage != Stage.IVF_WRITE &&
+                    stage != Stage.WEBM_WRITE && stage != Stage.YUV_WRITE &&
+                    stage != Stage.RENDER_WAIT) {
+                // Nested stages are already part of the feed, drain and
+                // camera callback stages.
+                totalCpuTimeNs += cpuTimeNs;
+            }
+        }
+        Log.d(TAG, "  Total stage CPU: " + formatMs(totalCpuTimeNs / frames) + " ms per frame.");
+        synchronized (mThreadNames) {
+            for (int i = 0; i < mThreadNames.size(); i++) {
+                long cpuTimeNs = mThreadCpuTimeNs.get(i);
+                Log.d(TAG, "  Thread " + mThreadNames.get(i) + ": CPU " +
+                        (cpuTimeNs / 1000000) + " ms. Per frame " +
+                        formatMs(cpuTimeNs / frames) + " ms.");
+            }
+        }
+    }
+
+    private static String formatMs(long timeNs) {
+        return String.format("%.2f", timeNs / 1e6);
+    }
+}
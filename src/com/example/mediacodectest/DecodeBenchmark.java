@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.media.MediaFormat;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+
+/**
+ * Maximum throughput decode benchmark.
+ *
+ * All frames of an IVF file are preloaded into one direct buffer, so no file
+ * I/O happens while decoding.  The decoder is fed as fast as it returns input
+ * buffers, for a number of loops of the clip; every loop starts with the key
+ * frame of the clip.  Output is released without rendering and optionally
+ * checksummed.  Frame rate and per-frame latency are measured after the
+ * first WARMUP_FRAMES output frames, with no logging per frame.
+ */
+public class DecodeBenchmark {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final File INPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final String INPUT_IVF = "nicklas.ivf";
+    private static final String VP8_MIME = "video/x-vnd.on2.vp8";
+    private static final int LOOPS = 10;
+    private static final int WARMUP_FRAMES = 30;
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final long TIMEOUT_US = 10000;
+    private static final long NO_PROGRESS_TIMEOUT_MS = 5000;
+    private static boolean FORCE_SW_CODEC = false;
+    private static boolean USE_FAKE_CODEC = false;
+
+    private final ByteBuffer mArena;   // all frames of the clip
+    private final int[] mFrameOffsets;
+    private final int[] mFrameSizes;
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * Result of one benchmark run.
+     */
+    public static class Result {
+        public String codecName;
+        public int frames;            // output frames after warmup
+        public long elapsedNs;        // from the end of warmup to the last output
+        public final LatencyStats latency = new LatencyStats();
+        public long checksum;
+
+        public double getFps() {
+            return elapsedNs > 0 ? frames * 1e9 / elapsedNs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return codecName + ": " + frames + " frames. Fps " + String.format("%.1f", getFps()) +
+                    ". Latency " + latency + (checksum != 0 ?
+                    ". Checksum 0x" + Long.toHexString(checksum) : "");
+        }
+    }
+
+    /**
+     * Preloads the IVF, WebM or MP4 file, which must have less than 2 GB of
+     * frames.
+     */
+    public DecodeBenchmark(String ivfPath) throws IOException {
+        EncodedFrameSource ivf = EncodedFrameSource.Factory.open(ivfPath, VP8_MIME);
+        try {
+            mWidth = ivf.getWidth();
+            mHeight = ivf.getHeight();
+            int frameCount = ivf.getFrameCount();
+            long totalSize = 0;
+            for (int i = 0; i < frameCount; i++) {
+                totalSize += ivf.getFrameSize(i);
+            }
+            // All frames are in one direct buffer, indexed by int.
+            if (totalSize > Integer.MAX_VALUE) {
+                throw new IOException(ivfPath + " has " + totalSize +
+                        " bytes of frames, too many to preload");
+            }
+            mArena = ByteBuffer.allocateDirect((int)Math.max(1, totalSize));
+            mFrameOffsets = new int[frameCount];
+            mFrameSizes = new int[frameCount];
+            for (int i = 0; i < frameCount; i++) {
+                mFrameOffsets[i] = mArena.position();
+                mFrameSizes[i] = ivf.readFrame(i, mArena);
+            }
+            Log.d(TAG, "Preloaded " + frameCount + " frames, " + totalSize + " bytes of " +
+                    ivfPath);
+        } finally {
+            ivf.close();
+        }
+        if (mFrameSizes.length == 0) {
+            throw new IOException("No frames in " + ivfPath);
+        }
+    }
+
+    /** test entry point */
+    public static void testDecodeThroughput(final boolean checksum) {
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    DecodeBenchmark benchmark = new DecodeBenchmark(
+                            new File(INPUT_DIR, INPUT_IVF).toString());
+                    Result result = benchmark.run(benchmark.createDecoder(), LOOPS, checksum);
+                    Log.d(TAG, "Decode benchmark " + INPUT_IVF + " " + benchmark.mWidth + "x" +
+                            benchmark.mHeight + ", " + LOOPS + " loops. " + result);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Thread testRunner = new Thread(r, "DecodeBenchmark");
+        testRunner.start();
+    }
+
+    /**
+     * Creates and starts a byte buffer decoder for the clip, MediaCodec or
+     * FakeVideoCodec according to USE_FAKE_CODEC.
+     */
+    public VideoCodec createDecoder() throws IOException {
+        if (USE_FAKE_CODEC) {
+            FakeVideoCodec decoder = new FakeVideoCodec("fake.decoder", VP8_MIME, false,
+                    mWidth, mHeight);
+            decoder.start();
+            return decoder;
+        }
+        CodecCatalog.CodecProperties properties =
+                CodecCatalog.getInstance().getCodecProperties(VP8_MIME, false, FORCE_SW_CODEC);
+        MediaFormat format = MediaFormat.createVideoFormat(VP8_MIME, mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, properties.colorFormat);
+        MediaCodecVideoCodec decoder = new MediaCodecVideoCodec(properties.codecName);
+        try {
+            decoder.configure(format, null, 0);
+            decoder.start();
+        } catch (RuntimeException e) {
+            decoder.release();
+            throw e;
+        }
+        return decoder;
+    }
+
+    /**
+     * Decodes the clip the given number of times and stops and releases the
+     * decoder.
+     *
+     * @param checksum   true to compute an Adler-32 checksum of all output frames
+     */
+    public Result run(VideoCodec decoder, int loops, boolean checksum) {
+        int frameCount = mFrameSizes.length;
+        int totalFrames = frameCount * loops;
+        // Input frame n has presentation time n * FRAME_INTERVAL_US.
+        long[] inputTimesNs = new long[totalFrames];
+        Adler32 adler = checksum ? new Adler32() : null;
+        byte[] outputData = new byte[0];
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        ByteBuffer source = mArena.duplicate();
+        Result result = new Result();
+        result.codecName = decoder.getName();
+
+        int inputFrames = 0;
+        int outputFrames = 0;
+        boolean inputDone = false;
+        long warmupEndNs = 0;
+        long lastOutputNs = 0;
+        long lastProgressNs = System.nanoTime();
+        try {
+            while (true) {
+                // Queue every free input buffer.
+                while (!inputDone) {
+                    int index = decoder.dequeueInputBuffer(0);
+                    if (index < 0) {
+                        break;
+                    }
+                    ByteBuffer buffer = decoder.getInputBuffer(index);
+                    buffer.clear();
+                    long presentationTimeUs = inputFrames * FRAME_INTERVAL_US;
+                    if (inputFrames == totalFrames) {
+                        decoder.queueInputBuffer(index, 0, 0, presentationTimeUs,
+                                VideoCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                        break;
+                    }
+                    int frame = inputFrames % frameCount;
+                    source.limit(mFrameOffsets[frame] + mFrameSizes[frame]);
+                    source.position(mFrameOffsets[frame]);
+                    buffer.put(source);
+                    inputTimesNs[inputFrames] = System.nanoTime();
+                    decoder.queueInputBuffer(index, 0, mFrameSizes[frame], presentationTimeUs, 0);
+                    inputFrames++;
+                }
+
+                int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                long nowNs = System.nanoTime();
+                if (index < 0) {
+                    if (nowNs - lastProgressNs > NO_PROGRESS_TIMEOUT_MS * 1000000) {
+                        throw new RuntimeException("Decoder stalled after " + outputFrames +
+                                " frames");
+                    }
+                    continue;
+                }
+                lastProgressNs = nowNs;
+                if (info.size > 0) {
+                    outputFrames++;
+                    if (outputFrames == WARMUP_FRAMES) {
+                        warmupEndNs = nowNs;
+                    } else if (outputFrames > WARMUP_FRAMES) {
+                        result.frames++;
+                        lastOutputNs = nowNs;
+                        int inputFrame = (int)(info.presentationTimeUs / FRAME_INTERVAL_US);
+                        if (inputFrame >= 0 && inputFrame < totalFrames) {
+                            result.latency.add((nowNs - inputTimesNs[inputFrame]) / 1000);
+                        }
+                    }
+                    if (adler != null) {
+                        if (outputData.length < info.size) {
+                            outputData = new byte[info.size];
+                        }
+                        ByteBuffer output = decoder.getOutputBuffer(index);
+                        output.limit(info.offset + info.size);
+                        output.position(info.offset);
+                        output.get(outputData, 0, info.size);
+                        adler.update(outputData, 0, info.size);
+                    }
+                }
+                decoder.releaseOutputBuffer(index, false);
+                if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        } finally {
+            try {
+                decoder.stop();
+                decoder.release();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Decoder release failure: " + e.toString());
+            }
+        }
+        if (warmupEndNs > 0) {
+            result.elapsedNs = lastOutputNs - warmupEndNs;
+        }
+        if (adler != null) {
+            result.checksum = adler.getValue();
+        }
+        return result;
+    }
+}
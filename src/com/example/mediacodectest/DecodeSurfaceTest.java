@@ -1,9 +1,6 @@
 package com.example.mediacodectest;
 
 import android.graphics.SurfaceTexture;
-import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaCodecInfo.CodecCapabilities;
 import android.media.MediaFormat;
 import android.opengl.EGL14;
@@ -20,6 +17,7 @@ import android.view.Surface;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.Callable;
 
@@ -43,27 +41,17 @@ public class DecodeSurfaceTest {
 
     protected static final String TAG = "VP8CodecTestBase";
     private static final String VP8_MIME = "video/x-vnd.on2.vp8";
-    private static final String VPX_SW_DECODER_NAME = "OMX.google.vp8.decoder";
-    private static final String VPX_SW_ENCODER_NAME = "OMX.google.vp8.encoder";
-    private static final String OMX_SW_CODEC_PREFIX = "OMX.google";
     private static final long DEFAULT_TIMEOUT_INPUT_US = 200000; // 200 ms
     private static final long DEFAULT_TIMEOUT_OUTPUT_US = 200000; // 5 ms;
+    private static final boolean USE_ASYNC_CODEC = true;  // decode in callback mode, API 23
+    private static final boolean USE_PACED_PLAYBACK = false;  // render at presentation time
+    private static final int JITTER_BUFFER_FRAMES = 2;
+    private static final long LATE_FRAME_DROP_US = 50000;
 
     // Video bitrate type - should be set to OMX_Video_ControlRateConstant from OMX_Video.h
     protected static final int VIDEO_ControlRateVariable = 1;
     protected static final int VIDEO_ControlRateConstant = 2;
 
-    // NV12 color format supported by QCOM codec, but not declared in MediaCodec -
-    // see /hardware/qcom/media/mm-core/inc/OMX_QCOMExtns.h
-    private static final int COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m = 0x7FA30C04;
-    // Allowable color formats supported by codec - in order of preference.
-    private static final int[] mSupportedColorList = {
-            CodecCapabilities.COLOR_FormatYUV420Planar,
-            CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
-            CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
-            COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m
-    };
-
     private static final int TEST_R0 = 0;                   // RGB equivalent of {0,0,0} (BT.601)
     private static final int TEST_G0 = 136;
     private static final int TEST_B0 = 0;
@@ -76,6 +64,7 @@ public class DecodeSurfaceTest {
     private long[] mFrameInputTimeMs = new long[30 * 50];
     private long[] mFrameOutputTimeMs = new long[30 * 50];
     private long[] mFrameSize = new long[30 * 50];
+    private CpuTimeProfiler mCpuProfiler = new CpuTimeProfiler();
 
     private LooperRunner mLooperRunner;
 
@@ -86,96 +75,6 @@ public class DecodeSurfaceTest {
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
 
-    protected class CodecProperties {
-        CodecProperties(String codecName, int colorFormat) {
-            this.codecName = codecName;
-            this.colorFormat = colorFormat;
-        }
-        public boolean  isGoogleSwCodec() {
-            return codecName.startsWith(OMX_SW_CODEC_PREFIX);
-        }
-
-        public final String codecName; // OpenMax component name for VP8 codec.
-        public final int colorFormat;  // Color format supported by codec.
-    }
-
-    /**
-     * Function to find VP8 codec.
-     *
-     * Iterates through the list of available codecs and tries to find
-     * VP8 codec, which can support either YUV420 planar or NV12 color formats.
-     * If forceSwGoogleCodec parameter set to true the function always returns
-     * Google sw VP8 codec.
-     * If forceSwGoogleCodec parameter set to false the functions looks for platform
-     * specific VP8 codec first. If no platform specific codec exist, falls back to
-     * Google sw VP8 codec.
-     *
-     * @param isEncoder     Flag if encoder is requested.
-     * @param forceSwGoogleCodec  Forces to use Google sw codec.
-     */
-    protected CodecProperties getVp8CodecProperties(boolean isEncoder,
-            boolean forceSwGoogleCodec) throws Exception {
-        CodecProperties codecProperties = null;
-
-        if (!forceSwGoogleCodec) {
-            // Loop through the list of omx components in case platform specific codec
-            // is requested.
-            for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
-                MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-                if (isEncoder != codecInfo.isEncoder()) {
-                    continue;
-                }
-                Log.v(TAG, codecInfo.getName());
-                // Check if this is sw Google codec - we should ignore it.
-                boolean isGoogleSwCodec = codecInfo.getName().startsWith(OMX_SW_CODEC_PREFIX);
-                if (isGoogleSwCodec) {
-                    continue;
-                }
-
-                for (String type : codecInfo.getSupportedTypes()) {
-                    if (!type.equalsIgnoreCase(VP8_MIME)) {
-                        continue;
-                    }
-                    CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(VP8_MIME);
-
-                    // Get candidate codec properties.
-                    Log.v(TAG, "Found candidate codec " + codecInfo.getName());
-                    for (int colorFormat : capabilities.colorFormats) {
-                        Log.v(TAG, "   Color: 0x" + Integer.toHexString(colorFormat));
-                    }
-
-                    // Check supported color formats.
-                    for (int supportedColorFormat : mSupportedColorList) {
-                        for (int codecColorFormat : capabilities.colorFormats) {
-                            if (codecColorFormat == supportedColorFormat) {
-                                codecProperties = new CodecProperties(codecInfo.getName(),
-                                        codecColorFormat);
-                                Log.v(TAG, "Found target codec " + codecProperties.codecName +
-                                        ". Color: 0x" + Integer.toHexString(codecColorFormat));
-                                return codecProperties;
-                            }
-                        }
-                    }
-                    // HW codec we found does not support one of necessary color formats.
-                    throw new RuntimeException("No hw codec with YUV420 or NV12 color formats");
-                }
-            }
-        }
-        // If no hw vp8 codec exist or sw codec is requested use default Google sw codec.
-        if (codecProperties == null) {
-            Log.v(TAG, "Use SW VP8 codec");
-            if (isEncoder) {
-                codecProperties = new CodecProperties(VPX_SW_ENCODER_NAME,
-                        CodecCapabilities.COLOR_FormatYUV420Planar);
-            } else {
-                codecProperties = new CodecProperties(VPX_SW_DECODER_NAME,
-                        CodecCapabilities.COLOR_FormatYUV420Planar);
-            }
-        }
-
-        return codecProperties;
-    }
-
     /**
      * Converts (de-interleaves) NV12 to YUV420 planar.
      * Stride may be greater than width, slice height may be greater than height.
@@ -214,6 +113,7 @@ public class DecodeSurfaceTest {
         encodingTime /= mOutputFrameIndex;
         Log.d(TAG, "Frames: " + mOutputFrameIndex + ". Codec time: " + encodingTime + " ms." +
                 " Size: " + totalSize);
+        mCpuProfiler.logReport(mOutputFrameIndex);
     }
 
 
@@ -222,16 +122,17 @@ public class DecodeSurfaceTest {
             String outputYuvFilename,
             boolean useSurface,
             Surface surface,
-            VideoRendererIf rendererIf) throws Exception {
+            final VideoRendererIf rendererIf) throws Exception {
         Log.d(TAG, "Running decoder on thread id " + Thread.currentThread().getId());
-        CodecProperties properties = getVp8CodecProperties(false, false);
+        CodecCatalog.CodecProperties properties =
+                CodecCatalog.getInstance().getCodecProperties(VP8_MIME, false, false);
         Surface decoderSurface = null;
         if (useSurface) {
             decoderSurface = surface;
             outputYuvFilename = null;
         }
         // Open input/output.
-        IvfReader ivf = new IvfReader(inputIvfFilename);
+        EncodedFrameSource ivf = EncodedFrameSource.Factory.open(inputIvfFilename, VP8_MIME);
         int frameWidth = ivf.getWidth();
         int frameHeight = ivf.getHeight();
         int frameCount = ivf.getFrameCount();
@@ -254,15 +155,31 @@ public class DecodeSurfaceTest {
                 ". " + frameWidth + " x " + frameHeight);
         Log.d(TAG, "  Format: " + format);
         Log.d(TAG, "  In: " + inputIvfFilename + ". Out:" + outputYuvFilename);
-        MediaCodec decoder = MediaCodec.createByCodecName(properties.codecName);
-        decoder.configure(format, decoderSurface, null, 0);
+        MediaCodecVideoCodec decoder = new MediaCodecVideoCodec(properties.codecName);
+        decoder.configure(format, decoderSurface, 0);
         decoder.start();
 
         ByteBuffer[] inputBuffers = decoder.getInputBuffers();
         ByteBuffer[] outputBuffers = decoder.getOutputBuffers();
         Log.d(TAG, "Input buffers: " + inputBuffers.length +
                 ". Output buffers: " + outputBuffers.length);
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        VideoCodec.BufferInfo bufferInfo = new VideoCodec.BufferInfo();
+
+        // Output buffers are released to the surface by the scheduler at their
+        // presentation time, instead of as soon as they are decoded.
+        PlaybackScheduler scheduler = null;
+        if (USE_PACED_PLAYBACK && useSurface) {
+            scheduler = new PlaybackScheduler(decoder, JITTER_BUFFER_FRAMES, LATE_FRAME_DROP_US);
+            if (rendererIf != null) {
+                scheduler.setListener(new PlaybackScheduler.Listener() {
+                    @Override
+                    public void onFrameRendered(long presentationTimeUs, long errorUs) {
+                        rendererIf.RenderFrame();
+                    }
+                });
+            }
+            scheduler.start();
+        }
 
         // decode loop
         mInputFrameIndex = 0;
@@ -271,106 +188,246 @@ public class DecodeSurfaceTest {
         long outPresentationTimeUs = 0;
         boolean sawOutputEOS = false;
         boolean sawInputEOS = false;
-
-        while (!sawOutputEOS) {
-            if (!sawInputEOS) {
-                int inputBufIndex = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_INPUT_US);
-                if (inputBufIndex >= 0) {
-                    byte[] frame = ivf.readFrame(mInputFrameIndex);
-                    inPresentationTimeUs = (long)(ivf.getFrameTimestamp(mInputFrameIndex) * 1e6);
-
-                    if (mInputFrameIndex == frameCount - 1) {
-                        Log.d(TAG, "  Input EOS for frame # " + mInputFrameIndex);
-                        sawInputEOS = true;
+        mCpuProfiler.reset();
+
+        try {
+            while (!sawOutputEOS) {
+                if (!sawInputEOS) {
+                    mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_FEED);
+                    int inputBufIndex = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_INPUT_US);
+                    if (inputBufIndex >= 0) {
+                        inputBuffers[inputBufIndex].clear();
+                        int frameSize = ivf.readFrame(mInputFrameIndex,
+                                inputBuffers[inputBufIndex]);
+                        inPresentationTimeUs =
+                                (long)(ivf.getFrameTimestamp(mInputFrameIndex) * 1e6);
+
+                        if (mInputFrameIndex == frameCount - 1) {
+                            Log.d(TAG, "  Input EOS for frame # " + mInputFrameIndex);
+                            sawInputEOS = true;
+                        }
+                        Log.d(TAG, "Decoder input frame # " + mInputFrameIndex + ". TS: " +
+                                (inPresentationTimeUs / 1000) + " ms. Size: " + frameSize);
+                        mFrameInputTimeMs[mInputFrameIndex] = SystemClock.elapsedRealtime();
+                        inputBuffers[inputBufIndex].rewind();
+
+                        decoder.queueInputBuffer(
+                                inputBufIndex,
+                                0,  // offset
+                                frameSize,
+                                inPresentationTimeUs,
+                                sawInputEOS ? VideoCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+
+                        mInputFrameIndex++;
                     }
-                    Log.d(TAG, "Decoder input frame # " + mInputFrameIndex + ". TS: " +
-                            (inPresentationTimeUs / 1000) + " ms. Size: " + frame.length);
-                    mFrameInputTimeMs[mInputFrameIndex] = SystemClock.elapsedRealtime();
-                    inputBuffers[inputBufIndex].clear();
-                    inputBuffers[inputBufIndex].put(frame);
-                    inputBuffers[inputBufIndex].rewind();
-
-                    decoder.queueInputBuffer(
-                            inputBufIndex,
-                            0,  // offset
-                            frame.length,
-                            inPresentationTimeUs,
-                            sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-
-                    mInputFrameIndex++;
+                    mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_FEED);
                 }
-            }
 
-            int result = decoder.dequeueOutputBuffer(bufferInfo, DEFAULT_TIMEOUT_OUTPUT_US);
-            while (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
-                    result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    outputBuffers = decoder.getOutputBuffers();
-                } else  if (result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // Process format change
-                    format = decoder.getOutputFormat();
-                    frameWidth = format.getInteger(MediaFormat.KEY_WIDTH);
-                    frameHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
-                    frameColorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
-                    Log.d(TAG, "Decoder output format change. Color: 0x" +
-                            Integer.toHexString(frameColorFormat));
-                    Log.d(TAG, "Format: " + format.toString());
+                mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_DRAIN);
+                int result = decoder.dequeueOutputBuffer(bufferInfo, DEFAULT_TIMEOUT_OUTPUT_US);
+                while (result == VideoCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
+                        result == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (result == VideoCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                        outputBuffers = decoder.getOutputBuffers();
+                    } else  if (result == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        // Process format change
+                        VideoCodec.Format outputFormat = decoder.getOutputFormat();
+                        frameWidth = outputFormat.width;
+                        frameHeight = outputFormat.height;
+                        frameColorFormat = outputFormat.colorFormat;
+                        Log.d(TAG, "Decoder output format change. Color: 0x" +
+                                Integer.toHexString(frameColorFormat));
+                        Log.d(TAG, "Format: " + outputFormat.toString());
+
+                        // Frame and slice height are parsed from undocumented values
+                        frameStride = outputFormat.stride;
+                        frameSliceHeight = outputFormat.sliceHeight;
+                        Log.d(TAG, "Frame stride and slice height: " + frameStride +
+                                " x " + frameSliceHeight);
+                    }
+                    result = decoder.dequeueOutputBuffer(bufferInfo, DEFAULT_TIMEOUT_OUTPUT_US);
+                }
+                while (result >= 0) {
+                    int outputBufIndex = result;
+                    outPresentationTimeUs = bufferInfo.presentationTimeUs;
+                    Log.d(TAG, "Decoder output frame # " + mOutputFrameIndex +
+                            ". TS: " + (outPresentationTimeUs / 1000) + " ms. Size: " + bufferInfo.size);
+                    if ((bufferInfo.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        sawOutputEOS = true;
+                        Log.d(TAG, "   Output EOS for frame # " + mOutputFrameIndex);
+                    }
 
-                    // Parse frame and slice height from undocumented values
-                    if (format.containsKey("stride")) {
-                        frameStride = format.getInteger("stride");
+                    if (bufferInfo.size > 0 && yuv != null) {
+                        mCpuProfiler.begin(CpuTimeProfiler.Stage.YUV_WRITE);
+                        // Save decoder output to yuv file.
+                        byte[] frame = new byte[bufferInfo.size];
+                        outputBuffers[outputBufIndex].position(bufferInfo.offset);
+                        outputBuffers[outputBufIndex].get(frame, 0, bufferInfo.size);
+                        // Convert NV12 to YUV420 if necessary
+                        if (frameColorFormat != CodecCapabilities.COLOR_FormatYUV420Planar) {
+                            frame = NV12ToYUV420(frameWidth, frameHeight,
+                                    frameStride, frameSliceHeight, frame);
+                        }
+                        yuv.write(frame);
+                        mCpuProfiler.end(CpuTimeProfiler.Stage.YUV_WRITE);
+                    }
+                    if (scheduler != null) {
+                        scheduler.queue(outputBufIndex, outPresentationTimeUs, bufferInfo.size > 0);
+                        mFrameOutputTimeMs[mOutputFrameIndex] = SystemClock.elapsedRealtime();
                     } else {
-                        frameStride = frameWidth;
+                        decoder.releaseOutputBuffer(outputBufIndex, useSurface);
+                        mFrameOutputTimeMs[mOutputFrameIndex] = SystemClock.elapsedRealtime();
+                        if (rendererIf != null && useSurface) {
+                            mCpuProfiler.begin(CpuTimeProfiler.Stage.RENDER_WAIT);
+                            rendererIf.RenderFrame();
+                            mCpuProfiler.end(CpuTimeProfiler.Stage.RENDER_WAIT);
+                        }
                     }
-                    if (format.containsKey("slice-height")) {
-                        frameSliceHeight = format.getInteger("slice-height");
+                    if (bufferInfo.size > 0) {
+                        mOutputFrameIndex++;
+                    }
+                    if (mOutputFrameIndex < mInputFrameIndex) {
+                      result = decoder.dequeueOutputBuffer(bufferInfo, DEFAULT_TIMEOUT_OUTPUT_US);
                     } else {
-                        frameSliceHeight = frameHeight;
+                      break;
                     }
-                    Log.d(TAG, "Frame stride and slice height: " + frameStride +
-                            " x " + frameSliceHeight);
                 }
-                result = decoder.dequeueOutputBuffer(bufferInfo, DEFAULT_TIMEOUT_OUTPUT_US);
+                mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_DRAIN);
+                if (result == VideoCodec.INFO_TRY_AGAIN_LATER) {
+                    Log.v(TAG, "INFO_TRY_AGAIN_LATER");
+                }
             }
-            while (result >= 0) {
-                int outputBufIndex = result;
-                outPresentationTimeUs = bufferInfo.presentationTimeUs;
-                Log.d(TAG, "Decoder output frame # " + mOutputFrameIndex +
-                        ". TS: " + (outPresentationTimeUs / 1000) + " ms. Size: " + bufferInfo.size);
-                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    sawOutputEOS = true;
-                    Log.d(TAG, "   Output EOS for frame # " + mOutputFrameIndex);
+            mCpuProfiler.recordThread("decoder");
+            if (scheduler != null) {
+                scheduler.finish();
+            }
+        } finally {
+            // Stops the scheduler if decoding failed, before the decoder is released.
+            if (scheduler != null) {
+                scheduler.stop();
+            }
+        }
+        decoder.stop();
+        decoder.release();
+        ivf.close();
+        if (yuv != null) {
+            yuv.close();
+        }
+    }
+
+    /**
+     * Same as decode(), but the decoder runs in asynchronous mode: input is read
+     * from ivf when the decoder announces a free input buffer and output is
+     * consumed when it becomes available, both on the decoder callback thread.
+     */
+    protected void decodeAsync(
+            String inputIvfFilename,
+            String outputYuvFilename,
+            final boolean useSurface,
+            Surface surface,
+            final VideoRendererIf rendererIf) throws Exception {
+        Log.d(TAG, "Running async decoder on thread id " + Thread.currentThread().getId());
+        CodecCatalog.CodecProperties properties =
+                CodecCatalog.getInstance().getCodecProperties(VP8_MIME, false, false);
+        Surface decoderSurface = null;
+        if (useSurface) {
+            decoderSurface = surface;
+            outputYuvFilename = null;
+        }
+        // Open input/output.
+        final EncodedFrameSource ivf = EncodedFrameSource.Factory.open(inputIvfFilename, VP8_MIME);
+        final int frameCount = ivf.getFrameCount();
+        final FileOutputStream yuv = outputYuvFilename == null ? null :
+                new FileOutputStream(outputYuvFilename, false);
+        final VideoCodec.Format[] outputFormat = new VideoCodec.Format[1];
+
+        AsyncCodecEngine.InputSource source = new AsyncCodecEngine.InputSource() {
+            @Override
+            public boolean fillInputBuffer(ByteBuffer buffer, VideoCodec.BufferInfo info) {
+                mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_FEED);
+                int frameSize = ivf.readFrame(mInputFrameIndex, buffer);
+                long inPresentationTimeUs = (long)(ivf.getFrameTimestamp(mInputFrameIndex) * 1e6);
+                int flags = 0;
+                if (mInputFrameIndex == frameCount - 1) {
+                    Log.d(TAG, "  Input EOS for frame # " + mInputFrameIndex);
+                    flags = VideoCodec.BUFFER_FLAG_END_OF_STREAM;
                 }
+                Log.d(TAG, "Decoder input frame # " + mInputFrameIndex + ". TS: " +
+                        (inPresentationTimeUs / 1000) + " ms. Size: " + frameSize);
+                mFrameInputTimeMs[mInputFrameIndex] = SystemClock.elapsedRealtime();
+                info.set(0, frameSize, inPresentationTimeUs, flags);
+                mInputFrameIndex++;
+                mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_FEED);
+                return true;
+            }
+        };
+        AsyncCodecEngine.OutputSink sink = new AsyncCodecEngine.OutputSink() {
+            @Override
+            public void onOutputFormatChanged(VideoCodec.Format format) {
+                outputFormat[0] = format;
+            }
 
-                if (bufferInfo.size > 0 && yuv != null) {
+            @Override
+            public boolean onOutputBuffer(ByteBuffer buffer, VideoCodec.BufferInfo info) {
+                Log.d(TAG, "Decoder output frame # " + mOutputFrameIndex +
+                        ". TS: " + (info.presentationTimeUs / 1000) + " ms. Size: " + info.size);
+                if (info.size > 0 && yuv != null) {
+                    mCpuProfiler.begin(CpuTimeProfiler.Stage.YUV_WRITE);
                     // Save decoder output to yuv file.
-                    byte[] frame = new byte[bufferInfo.size];
-                    outputBuffers[outputBufIndex].position(bufferInfo.offset);
-                    outputBuffers[outputBufIndex].get(frame, 0, bufferInfo.size);
+                    byte[] frame = new byte[info.size];
+                    buffer.get(frame, 0, info.size);
                     // Convert NV12 to YUV420 if necessary
-                    if (frameColorFormat != CodecCapabilities.COLOR_FormatYUV420Planar) {
-                        frame = NV12ToYUV420(frameWidth, frameHeight,
-                                frameStride, frameSliceHeight, frame);
+                    VideoCodec.Format format = outputFormat[0];
+                    if (format != null &&
+                            format.colorFormat != CodecCapabilities.COLOR_FormatYUV420Planar) {
+                        frame = NV12ToYUV420(format.width, format.height,
+                                format.stride, format.sliceHeight, frame);
+                    }
+                    try {
+                        yuv.write(frame);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Yuv write failure: " + e.toString());
                     }
-                    yuv.write(frame);
+                    mCpuProfiler.end(CpuTimeProfiler.Stage.YUV_WRITE);
+                }
+                return useSurface;
+            }
+
+            @Override
+            public void onOutputBufferReleased(VideoCodec.BufferInfo info, boolean rendered) {
+                if (info.size == 0) {
+                    return;
                 }
-                decoder.releaseOutputBuffer(outputBufIndex, useSurface);
                 mFrameOutputTimeMs[mOutputFrameIndex] = SystemClock.elapsedRealtime();
-                if (rendererIf != null && useSurface) {
+                if (rendererIf != null && rendered) {
+                    mCpuProfiler.begin(CpuTimeProfiler.Stage.RENDER_WAIT);
                     rendererIf.RenderFrame();
+                    mCpuProfiler.end(CpuTimeProfiler.Stage.RENDER_WAIT);
                 }
-                if (bufferInfo.size > 0) {
-                    mOutputFrameIndex++;
-                }
-                if (mOutputFrameIndex < mInputFrameIndex) {
-                  result = decoder.dequeueOutputBuffer(bufferInfo, DEFAULT_TIMEOUT_OUTPUT_US);
-                } else {
-                  break;
-                }
-            }
-            if (result == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                Log.v(TAG, "INFO_TRY_AGAIN_LATER");
+                mOutputFrameIndex++;
             }
+        };
+        AsyncCodecEngine engine = new AsyncCodecEngine("Decoder", source, sink);
+
+        // Create decoder.
+        MediaFormat format = MediaFormat.createVideoFormat(VP8_MIME,
+                                                           ivf.getWidth(),
+                                                           ivf.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, properties.colorFormat);
+        Log.d(TAG, "Creating async decoder " + properties.codecName + ". Format: " + format);
+        MediaCodecVideoCodec decoder = new MediaCodecVideoCodec(properties.codecName);
+        engine.attach(decoder);
+        decoder.configure(format, decoderSurface, 0);
+
+        mInputFrameIndex = 0;
+        mOutputFrameIndex = 0;
+        mCpuProfiler.reset();
+        decoder.start();
+
+        // Decoding runs on the decoder callback thread, wait for output EOS.
+        long timeoutMs = 1000 + (long)(ivf.getFrameTimestamp(frameCount - 1) * 1000) * 4;
+        if (!engine.awaitEndOfStream(timeoutMs)) {
+            Log.w(TAG, "Decoder EOS timeout");
         }
         decoder.stop();
         decoder.release();
@@ -378,6 +435,9 @@ public class DecodeSurfaceTest {
         if (yuv != null) {
             yuv.close();
         }
+        if (engine.getError() != null) {
+            throw engine.getError();
+        }
     }
 
     public void checkGlError(String op) {
@@ -468,10 +528,11 @@ public class DecodeSurfaceTest {
         Log.d(TAG, "Running decoderToSurface on thread id " + Thread.currentThread().getId());
 
         // Get codec properties
-        CodecProperties properties = getVp8CodecProperties(false, false);
+        CodecCatalog.CodecProperties properties =
+                CodecCatalog.getInstance().getCodecProperties(VP8_MIME, false, false);
 
         // Open input/output.
-        IvfReader ivf = new IvfReader(inputIvfFilename);
+        EncodedFrameSource ivf = EncodedFrameSource.Factory.open(inputIvfFilename, VP8_MIME);
         int frameWidth = ivf.getWidth();
         int frameHeight = ivf.getHeight();
         int frameCount = ivf.getFrameCount();
@@ -519,15 +580,15 @@ public class DecodeSurfaceTest {
                 ". " + frameWidth + " x " + frameHeight);
         Log.d(TAG, "  Format: " + format);
         Log.d(TAG, "  In: " + inputIvfFilename);
-        MediaCodec decoder = MediaCodec.createByCodecName(properties.codecName);
-        decoder.configure(format, decSurface, null, 0);
+        MediaCodecVideoCodec decoder = new MediaCodecVideoCodec(properties.codecName);
+        decoder.configure(format, decSurface, 0);
         decoder.start();
 
         ByteBuffer[] inputBuffers = decoder.getInputBuffers();
         ByteBuffer[] outputBuffers = decoder.getOutputBuffers();
         Log.d(TAG, "Input buffers: " + inputBuffers.length +
                 ". Output buffers: " + outputBuffers.length);
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        VideoCodec.BufferInfo bufferInfo = new VideoCodec.BufferInfo();
 
         // decode loop
         mInputFrameIndex = 0;
@@ -536,12 +597,15 @@ public class DecodeSurfaceTest {
         long outPresentationTimeUs = 0;
         boolean sawOutputEOS = false;
         boolean sawInputEOS = false;
+        mCpuProfiler.reset();
 
         while (!sawOutputEOS) {
             if (!sawInputEOS) {
+                mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_FEED);
                 int inputBufIndex = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_INPUT_US);
                 if (inputBufIndex >= 0) {
-                    byte[] frame = ivf.readFrame(mInputFrameIndex);
+                    inputBuffers[inputBufIndex].clear();
+                    int frameSize = ivf.readFrame(mInputFrameIndex, inputBuffers[inputBufIndex]);
                     inPresentationTimeUs = (long)(ivf.getFrameTimestamp(mInputFrameIndex) * 1e6);
 
                     if (mInputFrameIndex == frameCount - 1) {
@@ -549,49 +613,41 @@ public class DecodeSurfaceTest {
                         sawInputEOS = true;
                     }
                     Log.d(TAG, "Decoder input frame # " + mInputFrameIndex + ". TS: " +
-                            (inPresentationTimeUs / 1000) + " ms. Size: " + frame.length);
+                            (inPresentationTimeUs / 1000) + " ms. Size: " + frameSize);
                     mFrameInputTimeMs[mInputFrameIndex] = SystemClock.elapsedRealtime();
-                    inputBuffers[inputBufIndex].clear();
-                    inputBuffers[inputBufIndex].put(frame);
                     inputBuffers[inputBufIndex].rewind();
 
                     decoder.queueInputBuffer(
                             inputBufIndex,
                             0,  // offset
-                            frame.length,
+                            frameSize,
                             inPresentationTimeUs,
-                            sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                            sawInputEOS ? VideoCodec.BUFFER_FLAG_END_OF_STREAM : 0);
 
                     mInputFrameIndex++;
                 }
+                mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_FEED);
             }
 
+            mCpuProfiler.begin(CpuTimeProfiler.Stage.DECODER_DRAIN);
             int result = decoder.dequeueOutputBuffer(bufferInfo, DEFAULT_TIMEOUT_OUTPUT_US);
-            while (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
-                    result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            while (result == VideoCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
+                    result == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (result == VideoCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                     outputBuffers = decoder.getOutputBuffers();
-                } else  if (result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                } else  if (result == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     // Process format change
-                    format = decoder.getOutputFormat();
-                    frameWidth = format.getInteger(MediaFormat.KEY_WIDTH);
-                    frameHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
-                    frameColorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+                    VideoCodec.Format outputFormat = decoder.getOutputFormat();
+                    frameWidth = outputFormat.width;
+                    frameHeight = outputFormat.height;
+                    frameColorFormat = outputFormat.colorFormat;
                     Log.d(TAG, "Decoder output format change. Color: 0x" +
                             Integer.toHexString(frameColorFormat));
-                    Log.d(TAG, "Format: " + format.toString());
+                    Log.d(TAG, "Format: " + outputFormat.toString());
 
-                    // Parse frame and slice height from undocumented values
-                    if (format.containsKey("stride")) {
-                        frameStride = format.getInteger("stride");
-                    } else {
-                        frameStride = frameWidth;
-                    }
-                    if (format.containsKey("slice-height")) {
-                        frameSliceHeight = format.getInteger("slice-height");
-                    } else {
-                        frameSliceHeight = frameHeight;
-                    }
+                    // Frame and slice height are parsed from undocumented values
+                    frameStride = outputFormat.stride;
+                    frameSliceHeight = outputFormat.sliceHeight;
                     Log.d(TAG, "Frame stride and slice height: " + frameStride +
                             " x " + frameSliceHeight);
                 }
@@ -602,7 +658,7 @@ public class DecodeSurfaceTest {
                 outPresentationTimeUs = bufferInfo.presentationTimeUs;
                 Log.d(TAG, "Decoder output frame # " + mOutputFrameIndex +
                         ". TS: " + (outPresentationTimeUs / 1000) + " ms. Size: " + bufferInfo.size);
-                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if ((bufferInfo.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     sawOutputEOS = true;
                     Log.d(TAG, "   Output EOS for frame # " + mOutputFrameIndex);
                 }
@@ -610,6 +666,7 @@ public class DecodeSurfaceTest {
                 decoder.releaseOutputBuffer(outputBufIndex, true);
                 mFrameOutputTimeMs[mOutputFrameIndex] = SystemClock.elapsedRealtime();
                 if (rendererIf != null) {
+                    mCpuProfiler.begin(CpuTimeProfiler.Stage.RENDER_WAIT);
                     if (mSurfaceTexture == null) {
                         rendererIf.RenderFrame();
                     }
@@ -619,15 +676,18 @@ public class DecodeSurfaceTest {
                         rendererIf.RenderFrame(mTextureID, stMatrix);
                         //rendererIf.RenderFrame(mSurfaceTexture);
                     }
+                    mCpuProfiler.end(CpuTimeProfiler.Stage.RENDER_WAIT);
                 }
                 if (bufferInfo.size > 0) {
                     mOutputFrameIndex++;
                 }
             }
-            if (result == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            mCpuProfiler.end(CpuTimeProfiler.Stage.DECODER_DRAIN);
+            if (result == VideoCodec.INFO_TRY_AGAIN_LATER) {
                 Log.v(TAG, "INFO_TRY_AGAIN_LATER");
             }
         }
+        mCpuProfiler.recordThread("decoder");
         decoder.stop();
         decoder.release();
         ivf.close();
@@ -653,7 +713,14 @@ public class DecodeSurfaceTest {
         mLooperRunner.runCallableNoWait( new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                decode(encodedIvfFilename, outputYuvFilename, useSurface, surface, rendererIf);
+                // Paced playback holds output buffers, only the synchronous loop supports it.
+                if (USE_ASYNC_CODEC && !USE_PACED_PLAYBACK &&
+                        MediaCodecVideoCodec.isAsyncModeSupported()) {
+                    decodeAsync(encodedIvfFilename, outputYuvFilename, useSurface, surface,
+                            rendererIf);
+                } else {
+                    decode(encodedIvfFilename, outputYuvFilename, useSurface, surface, rendererIf);
+                }
                 //decodeToSurface(encodedIvfFilename, surface, rendererIf, sharedContext);
                 getAverageCodecTime();
                 return null;
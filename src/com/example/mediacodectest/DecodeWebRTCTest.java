@@ -2,8 +2,6 @@ package com.example.mediacodectest;
 
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaCodecInfo.CodecCapabilities;
 import android.media.MediaFormat;
 import android.opengl.EGL14;
@@ -49,27 +47,27 @@ public class DecodeWebRTCTest {
 
     protected static final String TAG = "VP8CodecTestBase";
     private static final String VP8_MIME = "video/x-vnd.on2.vp8";
-    private static final String VPX_SW_DECODER_NAME = "OMX.google.vp8.decoder";
-    private static final String VPX_SW_ENCODER_NAME = "OMX.google.vp8.encoder";
-    private static final String OMX_SW_CODEC_PREFIX = "OMX.google";
     private static final long DEFAULT_TIMEOUT_INPUT_US = 200000; // 200 ms
     private static final long DEFAULT_TIMEOUT_OUTPUT_US = 200000; // 5 ms;
+    // Decode with FakeVideoCodec in byte buffer mode, to measure the WebRTC path alone.
+    private static boolean USE_FAKE_CODEC = false;
+
+    // Feed the WebRTC decoder through a simulated network and receive frame buffer.
+    private static boolean USE_NETWORK_IMPAIRMENT = false;
+    private static final long NETWORK_SEED = 1;
+    private static final long NETWORK_DELAY_US = 50000;
+    private static final long NETWORK_JITTER_US = 20000;
+    private static final double NETWORK_LOSS = 0.01;
+    private static final double NETWORK_BURST_ENTER = 0.005;
+    private static final double NETWORK_BURST_EXIT = 0.5;
+    private static final double NETWORK_REORDER = 0.02;
+    private static final long NETWORK_REORDER_DELAY_US = 40000;
+    private static final long RECEIVE_MAX_WAIT_US = 100000;
 
     // Video bitrate type - should be set to OMX_Video_ControlRateConstant from OMX_Video.h
     protected static final int VIDEO_ControlRateVariable = 1;
     protected static final int VIDEO_ControlRateConstant = 2;
 
-    // NV12 color format supported by QCOM codec, but not declared in MediaCodec -
-    // see /hardware/qcom/media/mm-core/inc/OMX_QCOMExtns.h
-    private static final int COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m = 0x7FA30C04;
-    // Allowable color formats supported by codec - in order of preference.
-    private static final int[] mSupportedColorList = {
-            CodecCapabilities.COLOR_FormatYUV420Planar,
-            CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
-            CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
-            COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m
-    };
-
     private static final int TEST_R0 = 0;                   // RGB equivalent of {0,0,0} (BT.601)
     private static final int TEST_G0 = 136;
     private static final int TEST_B0 = 0;
@@ -92,96 +90,6 @@ public class DecodeWebRTCTest {
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
 
-    protected class CodecProperties {
-        CodecProperties(String codecName, int colorFormat) {
-            this.codecName = codecName;
-            this.colorFormat = colorFormat;
-        }
-        public boolean  isGoogleSwCodec() {
-            return codecName.startsWith(OMX_SW_CODEC_PREFIX);
-        }
-
-        public final String codecName; // OpenMax component name for VP8 codec.
-        public final int colorFormat;  // Color format supported by codec.
-    }
-
-    /**
-     * Function to find VP8 codec.
-     *
-     * Iterates through the list of available codecs and tries to find
-     * VP8 codec, which can support either YUV420 planar or NV12 color formats.
-     * If forceSwGoogleCodec parameter set to true the function always returns
-     * Google sw VP8 codec.
-     * If forceSwGoogleCodec parameter set to false the functions looks for platform
-     * specific VP8 codec first. If no platform specific codec exist, falls back to
-     * Google sw VP8 codec.
-     *
-     * @param isEncoder     Flag if encoder is requested.
-     * @param forceSwGoogleCodec  Forces to use Google sw codec.
-     */
-    protected CodecProperties getVp8CodecProperties(boolean isEncoder,
-            boolean forceSwGoogleCodec) throws Exception {
-        CodecProperties codecProperties = null;
-
-        if (!forceSwGoogleCodec) {
-            // Loop through the list of omx components in case platform specific codec
-            // is requested.
-            for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
-                MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-                if (isEncoder != codecInfo.isEncoder()) {
-                    continue;
-                }
-                Log.v(TAG, codecInfo.getName());
-                // Check if this is sw Google codec - we should ignore it.
-                boolean isGoogleSwCodec = codecInfo.getName().startsWith(OMX_SW_CODEC_PREFIX);
-                if (isGoogleSwCodec) {
-                    continue;
-                }
-
-                for (String type : codecInfo.getSupportedTypes()) {
-                    if (!type.equalsIgnoreCase(VP8_MIME)) {
-                        continue;
-                    }
-                    CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(VP8_MIME);
-
-                    // Get candidate codec properties.
-                    Log.v(TAG, "Found candidate codec " + codecInfo.getName());
-                    for (int colorFormat : capabilities.colorFormats) {
-                        Log.v(TAG, "   Color: 0x" + Integer.toHexString(colorFormat));
-                    }
-
-                    // Check supported color formats.
-                    for (int supportedColorFormat : mSupportedColorList) {
-                        for (int codecColorFormat : capabilities.colorFormats) {
-                            if (codecColorFormat == supportedColorFormat) {
-                                codecProperties = new CodecProperties(codecInfo.getName(),
-                                        codecColorFormat);
-                                Log.v(TAG, "Found target codec " + codecProperties.codecName +
-                                        ". Color: 0x" + Integer.toHexString(codecColorFormat));
-                                return codecProperties;
-                            }
-                        }
-                    }
-                    // HW codec we found does not support one of necessary color formats.
-                    throw new RuntimeException("No hw codec with YUV420 or NV12 color formats");
-                }
-            }
-        }
-        // If no hw vp8 codec exist or sw codec is requested use default Google sw codec.
-        if (codecProperties == null) {
-            Log.v(TAG, "Use SW VP8 codec");
-            if (isEncoder) {
-                codecProperties = new CodecProperties(VPX_SW_ENCODER_NAME,
-                        CodecCapabilities.COLOR_FormatYUV420Planar);
-            } else {
-                codecProperties = new CodecProperties(VPX_SW_DECODER_NAME,
-                        CodecCapabilities.COLOR_FormatYUV420Planar);
-            }
-        }
-
-        return codecProperties;
-    }
-
     /**
      * Converts (de-interleaves) NV12 to YUV420 planar.
      * Stride may be greater than width, slice height may be greater than height.
@@ -321,13 +229,14 @@ public class DecodeWebRTCTest {
             boolean useSurface,
             VideoRenderer.Callbacks renderer) throws Exception {
         Log.d(TAG, "Running decoder on thread id " + Thread.currentThread().getId());
-        CodecProperties properties = getVp8CodecProperties(false, false);
+        CodecCatalog.CodecProperties properties =
+                CodecCatalog.getInstance().getCodecProperties(VP8_MIME, false, false);
         I420Frame yuvVideoFrame;
         I420Frame texVideoFrame;
         int maxFrames = 10 * 30;
 
         // Open input/output.
-        IvfReader ivf = new IvfReader(inputIvfFilename);
+        EncodedFrameSource ivf = EncodedFrameSource.Factory.open(inputIvfFilename, VP8_MIME);
         int frameWidth = ivf.getWidth();
         int frameHeight = ivf.getHeight();
         int frameCount = ivf.getFrameCount();
@@ -407,7 +316,8 @@ public class DecodeWebRTCTest {
             if (!sawInputEOS) {
                 int inputBufIndex = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_INPUT_US);
                 if (inputBufIndex >= 0) {
-                    byte[] frame = ivf.readFrame(mInputFrameIndex);
+                    inputBuffers[inputBufIndex].clear();
+                    int frameSize = ivf.readFrame(mInputFrameIndex, inputBuffers[inputBufIndex]);
                     inPresentationTimeUs = (long)(ivf.getFrameTimestamp(mInputFrameIndex) * 1e6);
 
                     if ((mInputFrameIndex == frameCount - 1) || (mInputFrameIndex == maxFrames - 1)) {
@@ -415,16 +325,14 @@ public class DecodeWebRTCTest {
                         sawInputEOS = true;
                     }
                     Log.d(TAG, "Decoder input frame # " + mInputFrameIndex + ". TS: " +
-                            (inPresentationTimeUs / 1000) + " ms. Size: " + frame.length);
+                            (inPresentationTimeUs / 1000) + " ms. Size: " + frameSize);
                     mFrameInputTimeMs[mInputFrameIndex] = SystemClock.elapsedRealtime();
-                    inputBuffers[inputBufIndex].clear();
-                    inputBuffers[inputBufIndex].put(frame);
                     inputBuffers[inputBufIndex].rewind();
 
                     decoder.queueInputBuffer(
                             inputBufIndex,
                             0,  // offset
-                            frame.length,
+                            frameSize,
                             inPresentationTimeUs,
                             sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
 
@@ -510,20 +418,45 @@ public class DecodeWebRTCTest {
         }
     }
 
+    /**
+     * Returns a WebRTC decoder running on FakeVideoCodec, which outputs
+     * I420 frames of the configured size.
+     */
+    private static MediaCodecVideoDecoder createFakeDecoder() {
+        return new MediaCodecVideoDecoder() {
+            @Override
+            protected DecoderProperties findDecoder(boolean useSwCodec) {
+                return new DecoderProperties("fake.decoder",
+                        CodecCapabilities.COLOR_FormatYUV420Planar);
+            }
+
+            @Override
+            protected VideoCodec createDecoder(String codecName, MediaFormat format,
+                    Surface surface) {
+                VideoCodec codec = new FakeVideoCodec(codecName, VP8_MIME, false,
+                        format.getInteger(MediaFormat.KEY_WIDTH),
+                        format.getInteger(MediaFormat.KEY_HEIGHT));
+                codec.start();
+                return codec;
+            }
+        };
+    }
+
     protected void decodeWebRTC(
         String inputIvfFilename,
         boolean useSurface,
         EGLContext sharedContext,
         VideoRenderer.Callbacks renderer) throws Exception {
         Log.d(TAG, "Running decoder on thread id " + Thread.currentThread().getId());
-        CodecProperties properties = getVp8CodecProperties(false, false);
+        CodecCatalog.CodecProperties properties =
+                CodecCatalog.getInstance().getCodecProperties(VP8_MIME, false, false);
         I420Frame yuvVideoFrame;
         I420Frame texVideoFrame;
         int maxFrames = 10 * 30;
         //int maxFrames = 15;
 
         // Open input/output.
-        IvfReader ivf = new IvfReader(inputIvfFilename);
+        EncodedFrameSource ivf = EncodedFrameSource.Factory.open(inputIvfFilename, VP8_MIME);
         int frameWidth = ivf.getWidth();
         int frameHeight = ivf.getHeight();
         int frameCount = ivf.getFrameCount();
@@ -532,7 +465,13 @@ public class DecodeWebRTCTest {
         int frameColorFormat = properties.colorFormat;
 
         // Create decoder.
-        MediaCodecVideoDecoder decoder = new MediaCodecVideoDecoder();
+        MediaCodecVideoDecoder decoder;
+        if (USE_FAKE_CODEC && !useSurface) {
+            decoder = createFakeDecoder();
+            frameColorFormat = CodecCapabilities.COLOR_FormatYUV420Planar;
+        } else {
+            decoder = new PooledVideoDecoder();
+        }
         decoder.initDecode(frameWidth, frameHeight, false, useSurface, sharedContext);
 
         // Create video frame
@@ -545,21 +484,47 @@ public class DecodeWebRTCTest {
             renderer.setSize(frameWidth, frameHeight);
         }
 
+        // Simulated network, the next received frame is read ahead to detect EOS.
+        ImpairedIvfReader impaired = null;
+        NetworkImpairment.Frame received = null;
+        if (USE_NETWORK_IMPAIRMENT) {
+            NetworkImpairment network = new NetworkImpairment(NETWORK_SEED);
+            network.setDelay(NetworkImpairment.DelayDistribution.NORMAL,
+                    NETWORK_DELAY_US, NETWORK_JITTER_US);
+            network.setLoss(NETWORK_LOSS);
+            network.setBurstLoss(NETWORK_BURST_ENTER, NETWORK_BURST_EXIT);
+            network.setReordering(NETWORK_REORDER, NETWORK_REORDER_DELAY_US);
+            impaired = new ImpairedIvfReader(ivf, maxFrames, network,
+                    new ReceiveFrameBuffer(RECEIVE_MAX_WAIT_US, true));
+            received = impaired.readFrame();
+        }
+
         // decode loop
         mInputFrameIndex = 0;
         mOutputFrameIndex = 0;
         long inPresentationTimeUs = 0;
         //long outPresentationTimeUs = 0;
-        boolean sawEOS = false;
+        boolean sawEOS = impaired != null && received == null;
 
         while (!sawEOS) {
             if (!sawEOS) {
                 int inputBufIndex = decoder.dequeueInputBuffer();
                 if (inputBufIndex >= 0) {
-                    byte[] frame = ivf.readFrame(mInputFrameIndex);
-                    inPresentationTimeUs = (long)(ivf.getFrameTimestamp(mInputFrameIndex) * 1e6);
+                    byte[] frame;
+                    boolean lastFrame;
+                    if (impaired != null) {
+                        frame = received.data;
+                        inPresentationTimeUs = received.presentationTimeUs;
+                        received = impaired.readFrame();
+                        lastFrame = received == null;
+                    } else {
+                        frame = ivf.readFrame(mInputFrameIndex);
+                        inPresentationTimeUs =
+                                (long)(ivf.getFrameTimestamp(mInputFrameIndex) * 1e6);
+                        lastFrame = mInputFrameIndex == frameCount - 1;
+                    }
 
-                    if ((mInputFrameIndex == frameCount - 1) || (mInputFrameIndex == maxFrames - 1)) {
+                    if (lastFrame || (mInputFrameIndex == maxFrames - 1)) {
                         Log.d(TAG, "  Input EOS for frame # " + mInputFrameIndex);
                         sawEOS = true;
                     }
@@ -619,6 +584,9 @@ public class DecodeWebRTCTest {
         }
         decoder.release();
         ivf.close();
+        if (impaired != null) {
+            Log.d(TAG, impaired.toString());
+        }
 /*
         if (useSurface) {
           for (int i = 0; i < maxFrames; i++) {
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoded video frames of a file, by index in decoding order, independent of
+ * the container: IVF (IvfReader), MP4 (Mp4Reader) or WebM (WebmReader).
+ * Frames are in the format a decoder takes, e.g. Annex B for H.264.
+ */
+public interface EncodedFrameSource {
+    /**
+     * Opens a file as the source for its container, detected from the first
+     * bytes of the file.
+     */
+    public static class Factory {
+        /**
+         * @param mime   required frame MIME type, or null for any
+         */
+        public static EncodedFrameSource open(String filename, String mime)
+                throws IOException {
+            byte[] head = new byte[8];
+            RandomAccessFile file = new RandomAccessFile(filename, "r");
+            try {
+                file.readFully(head);
+            } finally {
+                file.close();
+            }
+            String type = new String(head, 4, 4, "US-ASCII");
+            EncodedFrameSource source;
+            if (head[0] == 'D' && head[1] == 'K' && head[2] == 'I' && head[3] == 'F') {
+                source = new IvfReader(filename);
+            } else if ((head[0] & 0xFF) == 0x1A && (head[1] & 0xFF) == 0x45 &&
+                    (head[2] & 0xFF) == 0xDF && (head[3] & 0xFF) == 0xA3) {
+                source = new WebmReader(filename);
+            } else if (type.equals("ftyp") || type.equals("styp") || type.equals("moov")) {
+                source = new Mp4Reader(filename);
+            } else {
+                throw new IOException("Unknown container: " + filename);
+            }
+            if (mime != null && !mime.equals(source.getMime())) {
+                source.close();
+                throw new IOException(filename + " is " + source.getMime() + ", not " + mime);
+            }
+            return source;
+        }
+    }
+
+    public String getMime();
+
+    public int getWidth();
+
+    public int getHeight();
+
+    public int getFrameCount();
+
+    /**
+     * Returns the size of a frame as read by readFrame(), e.g. to size a
+     * buffer for it.
+     */
+    public int getFrameSize(int frameIndex);
+
+    /**
+     * Returns the presentation time of a frame in seconds.
+     */
+    public double getFrameTimestamp(int frameIndex);
+
+    /**
+     * Returns frame data by index, or null if the index is out of range.
+     */
+    public byte[] readFrame(int frameIndex) throws IOException;
+
+    /**
+     * Reads a frame into a buffer, e.g. a decoder input buffer, from its
+     * position, which is advanced.  The buffer must have getFrameSize()
+     * bytes remaining.
+     *
+     * @return the number of bytes read, or -1 if the index is out of range
+     */
+    public int readFrame(int frameIndex, ByteBuffer buffer) throws IOException;
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.util.ArrayDeque;
+
+/**
+ * Admission control of frames into the encoder.
+ *
+ * A frame is admitted while the number of frames queued to the encoder and
+ * not yet encoded is below the window chosen by a Policy.  A deeper window
+ * keeps encoders with long pipelines busy, a shallow one keeps the encode
+ * latency low.  Every refused or lost frame is counted with a DropReason.
+ *
+ * Encoded frames are matched to queued frames by presentation time.  Frames
+ * queued before an encoded frame and not encoded themselves were skipped by
+ * the encoder.  Thread safe, the feed and the output may run on different
+ * threads.
+ */
+public class EncoderFlowControl {
+    /**
+     * Why an input frame was not encoded.
+     */
+    public enum DropReason {
+        WINDOW_FULL,      // window of frames in flight is full
+        LATENCY_BUDGET,   // expected encode latency is above the target
+        NO_INPUT_BUFFER,  // encoder has no free input buffer
+        ENCODER_SKIPPED   // frame was queued but the encoder produced no output for it
+    }
+
+    /**
+     * Chooses the window of frames in flight from the measured encode latency.
+     */
+    public interface Policy {
+        /**
+         * Returns the current maximum number of frames in flight, at least 1.
+         */
+        public int getWindow();
+
+        /**
+         * Returns true to drop a frame which fits in the window because the
+         * frames in flight already exceed the latency the policy accepts.
+         */
+        public boolean isOverBudget(int framesInFlight);
+
+        /**
+         * Called for every encoded frame.
+         *
+         * @param latencyUs         time from queueing to the encoded output
+         * @param framesInFlight    frames in flight when the frame was queued
+         */
+        public void onFrameEncoded(long latencyUs, int framesInFlight);
+    }
+
+    /**
+     * Constant window.  A window of 2 is the original behavior of the tests.
+     */
+    public static class FixedWindowPolicy implements Policy {
+        private final int mWindow;
+
+        public FixedWindowPolicy(int window) {
+            mWindow = Math.max(1, window);
+        }
+
+        @Override
+        public int getWindow() {
+            return mWindow;
+        }
+
+        @Override
+        public boolean isOverBudget(int framesInFlight) {
+            return false;
+        }
+
+        @Override
+        public void onFrameEncoded(long latencyUs, int framesInFlight) {
+        }
+
+        @Override
+        public String toString() {
+            return "Fixed window " + mWindow;
+        }
+    }
+
+    /**
+     * Additive increase, multiplicative decrease of the window.
+     *
+     * The lowest latency seen is taken as the encoder processing time.  While
+     * the latency stays within (1 + tolerance) of it, the extra frames are
+     * processed in parallel and the window grows by one frame per window of
+     * encoded frames.  Above that, frames queue up inside the encoder and the
+     * window is halved.
+     */
+    public static class AimdWindowPolicy implements Policy {
+        private final int mMinWindow;
+        private final int mMaxWindow;
+        private final double mTolerance;
+        private double mWindow;
+        private long mBaseLatencyUs = Long.MAX_VALUE;
+        private int mFramesSinceDecrease;
+
+        /**
+         * @param tolerance   accepted latency increase over the lowest latency, e.g. 0.25
+         */
+        public AimdWindowPolicy(int minWindow, int maxWindow, double tolerance) {
+            mMinWindow = Math.max(1, minWindow);
+            mMaxWindow = Math.max(mMinWindow, maxWindow);
+            mTolerance = tolerance;
+            mWindow = mMinWindow;
+        }
+
+        @Override
+        public int getWindow() {
+            return (int)mWindow;
+        }
+
+        @Override
+        public boolean isOverBudget(int framesInFlight) {
+            return false;
+        }
+
+        @Override
+        public void onFrameEncoded(long latencyUs, int framesInFlight) {
+            mBaseLatencyUs = Math.min(mBaseLatencyUs, latencyUs);
+            mFramesSinceDecrease++;
+            if (latencyUs > mBaseLatencyUs * (1 + mTolerance)) {
+                // Wait until the frames queued with the old window are out.
+                if (mFramesSinceDecrease > (int)mWindow) {
+                    mWindow = Math.max(mMinWindow, mWindow / 2);
+                    mFramesSinceDecrease = 0;
+                }
+            } else if (framesInFlight + 1 >= (int)mWindow) {
+                // Grow only if the window was actually used.
+                mWindow = Math.min(mMaxWindow, mWindow + 1.0 / mWindow);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "AIMD window " + getWindow() + " [" + mMinWindow + ", " + mMaxWindow +
+                    "]. Base latency " + (mBaseLatencyUs == Long.MAX_VALUE ? 0 :
+                    mBaseLatencyUs / 1000) + " ms";
+        }
+    }
+
+    /**
+     * Keeps the encode latency at a target.
+     *
+     * By Little's law the frames in flight equal the encoder throughput times
+     * the latency.  The throughput is estimated from every encoded frame as
+     * the frames in flight divided by its latency, and the window is that
+     * throughput times the target latency.  Frames are also dropped while the
+     * smoothed latency is above the target, until the encoder catches up.
+     */
+    public static class LatencyTargetPolicy implements Policy {
+        private static final double SMOOTHING = 0.1;
+        private final long mTargetLatencyUs;
+        private final int mMaxWindow;
+        private double mAverageLatencyUs;
+        private double mAverageFrameTimeUs;    // latency per frame in flight
+
+        public LatencyTargetPolicy(long targetLatencyUs, int maxWindow) {
+            mTargetLatencyUs = targetLatencyUs;
+            mMaxWindow = Math.max(1, maxWindow);
+        }
+
+        @Override
+        public int getWindow() {
+            if (mAverageFrameTimeUs <= 0) {
+                return 1;
+            }
+            int window = (int)(mTargetLatencyUs / mAverageFrameTimeUs);
+            return Math.max(1, Math.min(mMaxWindow, window));
+        }
+
+        @Override
+        public boolean isOverBudget(int framesInFlight) {
+            return framesInFlight > 0 && mAverageLatencyUs > mTargetLatencyUs;
+        }
+
+        @Override
+        public void onFrameEncoded(long latencyUs, int framesInFlight) {
+            double frameTimeUs = (double)latencyUs / (framesInFlight + 1);
+            mAverageFrameTimeUs = mAverageFrameTimeUs <= 0 ? frameTimeUs :
+                    mAverageFrameTimeUs + SMOOTHING * (frameTimeUs - mAverageFrameTimeUs);
+            mAverageLatencyUs = mAverageLatencyUs <= 0 ? latencyUs :
+                    mAverageLatencyUs + SMOOTHING * (latencyUs - mAverageLatencyUs);
+        }
+
+        @Override
+        public String toString() {
+            return "Latency target " + (mTargetLatencyUs / 1000) + " ms. Window " +
+                    getWindow() + ". Average latency " + (long)(mAverageLatencyUs / 1000) + " ms";
+        }
+    }
+
+    private final Policy mPolicy;
+    private final ArrayDeque<Long> mPendingTimesUs = new ArrayDeque<Long>();
+    private final ArrayDeque<Long> mPendingQueueTimesNs = new ArrayDeque<Long>();
+    private final ArrayDeque<Integer> mPendingInFlight = new ArrayDeque<Integer>();
+    private final int[] mDropCounts = new int[DropReason.values().length];
+    private final LatencyStats mLatency = new LatencyStats();
+    private int mQueuedFrames;
+    private int mEncodedFrames;
+    private int mMaxInFlight;
+    private long mInFlightSum;
+
+    public EncoderFlowControl(Policy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Returns true if a new frame may be queued to the encoder.  A refused
+     * frame is counted as dropped.
+     */
+    public synchronized boolean admit() {
+        int inFlight = mPendingTimesUs.size();
+        if (inFlight >= mPolicy.getWindow()) {
+            mDropCounts[DropReason.WINDOW_FULL.ordinal()]++;
+            return false;
+        }
+        if (mPolicy.isOverBudget(inFlight)) {
+            mDropCounts[DropReason.LATENCY_BUDGET.ordinal()]++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called after an admitted frame has been queued to the encoder.
+     */
+    public synchronized void onFrameQueued(long presentationTimeUs) {
+        int inFlight = mPendingTimesUs.size();
+        mPendingTimesUs.addLast(presentationTimeUs);
+        mPendingQueueTimesNs.addLast(System.nanoTime());
+        mPendingInFlight.addLast(inFlight);
+        mQueuedFrames++;
+        mMaxInFlight = Math.max(mMaxInFlight, inFlight + 1);
+        mInFlightSum += inFlight + 1;
+    }
+
+    /**
+     * Reverts onFrameQueued() of the last frame, which the encoder did not accept.
+     */
+    public synchronized void onFrameNotQueued(long presentationTimeUs, DropReason reason) {
+        if (!mPendingTimesUs.isEmpty() && mPendingTimesUs.peekLast() == presentationTimeUs) {
+            mPendingTimesUs.removeLast();
+            mPendingQueueTimesNs.removeLast();
+            int inFlight = mPendingInFlight.removeLast();
+            mQueuedFrames--;
+            mInFlightSum -= inFlight + 1;
+        }
+        mDropCounts[reason.ordinal()]++;
+    }
+
+    /**
+     * Called for a frame which was admitted but could not be queued, or
+     * dropped before admission for another reason.
+     */
+    public synchronized void onFrameDropped(DropReason reason) {
+        mDropCounts[reason.ordinal()]++;
+    }
+
+    /**
+     * Called for every encoded frame, codec config buffers excluded.
+     */
+    public synchronized void onFrameEncoded(long presentationTimeUs) {
+        while (!mPendingTimesUs.isEmpty() && mPendingTimesUs.peekFirst() < presentationTimeUs) {
+            mPendingTimesUs.removeFirst();
+            mPendingQueueTimesNs.removeFirst();
+            mPendingInFlight.removeFirst();
+            mDropCounts[DropReason.ENCODER_SKIPPED.ordinal()]++;
+        }
+        if (mPendingTimesUs.isEmpty() || mPendingTimesUs.peekFirst() != presentationTimeUs) {
+            return;  // Not queued through the flow control, or reordered.
+        }
+        mPendingTimesUs.removeFirst();
+        long latencyUs = (System.nanoTime() - mPendingQueueTimesNs.removeFirst()) / 1000;
+        int inFlight = mPendingInFlight.removeFirst();
+        mEncodedFrames++;
+        mLatency.add(latencyUs);
+        mPolicy.onFrameEncoded(latencyUs, inFlight);
+    }
+
+    public synchronized int getFramesInFlight() {
+        return mPendingTimesUs.size();
+    }
+
+    public synchronized int getWindow() {
+        return mPolicy.getWindow();
+    }
+
+    public synchronized int getDropCount(DropReason reason) {
+        return mDropCounts[reason.ordinal()];
+    }
+
+    public synchronized int getTotalDropCount() {
+        int drops = 0;
+        for (int count : mDropCounts) {
+            drops += count;
+        }
+        return drops;
+    }
+
+    /**
+     * Returns the queue to output latency of the encoded frames.
+     */
+    public synchronized LatencyStats getLatency() {
+        return mLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder drops = new StringBuilder();
+        for (DropReason reason : DropReason.values()) {
+            drops.append(' ').append(reason).append(' ').append(mDropCounts[reason.ordinal()]);
+        }
+        return mPolicy + ". Queued " + mQueuedFrames + ". Encoded " + mEncodedFrames +
+                ". In flight avg " + String.format("%.2f", mQueuedFrames > 0 ?
+                (double)mInFlightSum / mQueuedFrames : 0.0) + ", max " + mMaxInFlight +
+                ". Latency " + mLatency + ". Dropped:" + drops;
+    }
+}
@@ -0,0 +1,684 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pure Java VideoCodec which emulates timing of a hardware codec.
+ *
+ * Queued input is turned into output by a worker thread after the configured
+ * latency, no faster than the configured throughput, and only when a free
+ * output buffer exists - so a client which holds output buffers stalls the
+ * codec the same way it stalls a real one.  Encoder output sizes follow the
+ * configured bitrate with larger key frames; the payload starts with a valid
+ * VP8 frame tag so stream parsers accept it.  Decoder output is an I420 frame.
+ *
+ * Failures can be injected after a number of frames or with a probability per
+ * queued frame; a failed codec throws IllegalStateException like MediaCodec.
+ *
+ * In asynchronous mode the events are delivered on a single dispatch thread
+ * owned by the codec.  Events which were posted before flush() or stop() are
+ * dropped.
+ *
+ * The public methods are thread safe.
+ */
+public class FakeVideoCodec implements VideoCodec {
+    private static final int COLOR_FormatYUV420Planar = 19;  // CodecCapabilities value
+    private static final int DEFAULT_BUFFER_COUNT = 4;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int DEFAULT_BITRATE = 1000000;
+
+    private final String mName;
+    private final String mMime;
+    private final boolean mIsEncoder;
+    private final int mWidth;
+    private final int mHeight;
+
+    // Configuration.
+    private int mInputBufferCount = DEFAULT_BUFFER_COUNT;
+    private int mOutputBufferCount = DEFAULT_BUFFER_COUNT;
+    private long mLatencyNs;
+    private long mFrameIntervalNs;
+    private int mBitrate = DEFAULT_BITRATE;
+    private int mFrameRate = DEFAULT_FRAME_RATE;
+    private double mBitrateOvershoot = 1.0;
+    private int mFixedFrameSize;
+    private int mKeyFrameInterval;
+    private double mKeyFrameSizeRatio = 4.0;
+    private double mFrameSizeJitter;
+    private int mFailAfterFrames = -1;
+    private double mFailureProbability;
+    private final Random mRandom = new Random(1);
+
+    // State, guarded by mLock.
+    private final Object mLock = new Object();
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<Integer>();
+    private final ArrayDeque<Job> mPendingJobs = new ArrayDeque<Job>();
+    private final ArrayDeque<Job> mReadyOutputs = new ArrayDeque<Job>();
+    private boolean mRunning;
+    private boolean mFailed;
+    private boolean mFormatReported;
+    private int mGeneration;
+    private int mQueuedFrameCount;
+    private int mOutputFrameCount;
+    private long mLastOutputNs;
+    private Thread mWorker;
+    private Callback mCallback;
+    private ExecutorService mCallbackExecutor;
+
+    private static class Job {
+        int inputIndex;
+        int outputIndex;
+        int size;
+        long presentationTimeUs;
+        int flags;
+        long queuedNs;
+    }
+
+    /**
+     * Creates a fake codec.
+     *
+     * @param name       component name reported by getName()
+     * @param mime       mime type of the encoded stream
+     * @param isEncoder  true for an encoder, false for a decoder
+     * @param width      frame width
+     * @param height     frame height
+     */
+    public FakeVideoCodec(String name, String mime, boolean isEncoder, int width, int height) {
+        mName = name;
+        mMime = mime;
+        mIsEncoder = isEncoder;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Sets number of input and output buffers.  Must be called before start().
+     */
+    public void setBufferCount(int inputBuffers, int outputBuffers) {
+        mInputBufferCount = inputBuffers;
+        mOutputBufferCount = outputBuffers;
+    }
+
+    /**
+     * Sets time between queueing of an input frame and availability of its output.
+     */
+    public void setLatencyUs(long latencyUs) {
+        synchronized (mLock) {
+            mLatencyNs = latencyUs * 1000;
+        }
+    }
+
+    /**
+     * Limits the number of frames produced per second, 0 for unlimited.
+     */
+    public void setMaxFramesPerSecond(double framesPerSecond) {
+        synchronized (mLock) {
+            mFrameIntervalNs = framesPerSecond > 0 ? (long)(1e9 / framesPerSecond) : 0;
+        }
+    }
+
+    /**
+     * Sets the bitrate and frame rate encoder output sizes are derived from.
+     */
+    public void setBitrate(int bitrate, int frameRate) {
+        synchronized (mLock) {
+            mBitrate = bitrate;
+            mFrameRate = frameRate;
+        }
+    }
+
+    /**
+     * Makes the encoder produce the given multiple of the requested bitrate,
+     * e.g. 1.3 to model an encoder which overshoots its target by 30%.
+     */
+    public void setBitrateOvershoot(double ratio) {
+        synchronized (mLock) {
+            mBitrateOvershoot = ratio;
+        }
+    }
+
+    /**
+     * Forces a fixed size of every encoder output frame, 0 to use the bitrate.
+     */
+    public void setFixedFrameSize(int bytes) {
+        synchronized (mLock) {
+            mFixedFrameSize = bytes;
+        }
+    }
+
+    /**
+     * Sets key frame interval in frames (0 - only first frame is a key frame)
+     * and key frame size relative to a delta frame.
+     */
+    public void setKeyFrames(int interval, double sizeRatio) {
+        synchronized (mLock) {
+            mKeyFrameInterval = interval;
+            mKeyFrameSizeRatio = sizeRatio;
+        }
+    }
+
+    /**
+     * Sets relative random variation of encoder frame sizes, e.g. 0.2 for +-20%.
+     */
+    public void setFrameSizeJitter(double jitter) {
+        synchronized (mLock) {
+            mFrameSizeJitter = jitter;
+        }
+    }
+
+    /**
+     * Makes the codec fail when the given number of frames has been queued,
+     * -1 disables.
+     */
+    public void setFailAfterFrames(int frames) {
+        synchronized (mLock) {
+            mFailAfterFrames = frames;
+        }
+    }
+
+    /**
+     * Makes every queued frame fail the codec with the given probability.
+     */
+    public void setFailureProbability(double probability, long seed) {
+        synchronized (mLock) {
+            mFailureProbability = probability;
+            mRandom.setSeed(seed);
+        }
+    }
+
+    public int getQueuedFrameCount() {
+        synchronized (mLock) {
+            return mQueuedFrameCount;
+        }
+    }
+
+    public int getOutputFrameCount() {
+        synchronized (mLock) {
+            return mOutputFrameCount;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public boolean isEncoder() {
+        return mIsEncoder;
+    }
+
+    @Override
+    public void start() {
+        synchronized (mLock) {
+            if (mRunning) {
+                throw new IllegalStateException("Codec already started");
+            }
+            int frameSize = mWidth * mHeight * 3 / 2;
+            if (mInputBuffers == null) {
+                mInputBuffers = new ByteBuffer[mInputBufferCount];
+                for (int i = 0; i < mInputBufferCount; i++) {
+                    mInputBuffers[i] = ByteBuffer.allocateDirect(frameSize);
+                }
+                mOutputBuffers = new ByteBuffer[mOutputBufferCount];
+                for (int i = 0; i < mOutputBufferCount; i++) {
+                    mOutputBuffers[i] = ByteBuffer.allocateDirect(frameSize);
+                }
+            }
+            resetBuffersLocked();
+            mRunning = true;
+            mFailed = false;
+            postInputsLocked();
+            mWorker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    processJobs();
+                }
+            }, "FakeVideoCodec " + mName);
+            mWorker.start();
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        synchronized (mLock) {
+            return mInputBuffers;
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        synchronized (mLock) {
+            return mOutputBuffers;
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        synchronized (mLock) {
+            checkSyncModeLocked();
+            long deadlineNs = System.nanoTime() + timeoutUs * 1000;
+            while (true) {
+                checkStateLocked();
+                if (!mFreeInputs.isEmpty()) {
+                    return mFreeInputs.poll();
+                }
+                if (!waitLocked(timeoutUs, deadlineNs)) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        synchronized (mLock) {
+            ByteBuffer buffer = mInputBuffers[index];
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        synchronized (mLock) {
+            return mOutputBuffers[index];
+        }
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size,
+            long presentationTimeUs, int flags) {
+        synchronized (mLock) {
+            checkStateLocked();
+            if (index < 0 || index >= mInputBuffers.length) {
+                throw new IllegalArgumentException("Invalid input buffer index " + index);
+            }
+            if ((mFailAfterFrames >= 0 && mQueuedFrameCount >= mFailAfterFrames) ||
+                    (mFailureProbability > 0 && mRandom.nextDouble() < mFailureProbability)) {
+                mFailed = true;
+                mLock.notifyAll();
+                throw new IllegalStateException("Injected failure of " + mName +
+                        " at frame " + mQueuedFrameCount);
+            }
+            Job job = new Job();
+            job.inputIndex = index;
+            job.size = size;
+            job.presentationTimeUs = presentationTimeUs;
+            job.flags = flags;
+            job.queuedNs = System.nanoTime();
+            mPendingJobs.add(job);
+            if ((flags & BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mQueuedFrameCount++;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        synchronized (mLock) {
+            checkSyncModeLocked();
+            long deadlineNs = System.nanoTime() + timeoutUs * 1000;
+            while (true) {
+                checkStateLocked();
+                if (!mReadyOutputs.isEmpty()) {
+                    if (!mFormatReported) {
+                        mFormatReported = true;
+                        return INFO_OUTPUT_FORMAT_CHANGED;
+                    }
+                    Job job = mReadyOutputs.poll();
+                    info.set(0, job.size, job.presentationTimeUs, job.flags);
+                    return job.outputIndex;
+                }
+                if (!waitLocked(timeoutUs, deadlineNs)) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        synchronized (mLock) {
+            checkStateLocked();
+            mFreeOutputs.add(index);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        synchronized (mLock) {
+            checkStateLocked();
+            Job job = new Job();
+            job.inputIndex = -1;
+            job.flags = BUFFER_FLAG_END_OF_STREAM;
+            job.queuedNs = System.nanoTime();
+            mPendingJobs.add(job);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public Format getOutputFormat() {
+        return new Format(mMime, mWidth, mHeight, COLOR_FormatYUV420Planar, mWidth, mHeight);
+    }
+
+    @Override
+    public void flush() {
+        synchronized (mLock) {
+            checkStateLocked();
+            resetBuffersLocked();
+            mGeneration++;
+            postInputsLocked();
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        synchronized (mLock) {
+            if (mRunning) {
+                throw new IllegalStateException("setCallback() must be called before start()");
+            }
+            mCallback = callback;
+            if (mCallbackExecutor == null) {
+                mCallbackExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "FakeVideoCodec callback " + mName);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void setVideoBitrate(int bitrate) {
+        synchronized (mLock) {
+            checkStateLocked();
+            if (!mIsEncoder) {
+                throw new IllegalStateException("Not an encoder");
+            }
+            mBitrate = bitrate;
+        }
+    }
+
+    @Override
+    public void stop() {
+        Thread worker;
+        synchronized (mLock) {
+            mRunning = false;
+            mGeneration++;
+            worker = mWorker;
+            mWorker = null;
+            mLock.notifyAll();
+        }
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+        ExecutorService executor;
+        synchronized (mLock) {
+            mInputBuffers = null;
+            mOutputBuffers = null;
+            executor = mCallbackExecutor;
+            mCallbackExecutor = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    // Hands all free input buffers to the client in asynchronous mode.
+    private void postInputsLocked() {
+        if (mCallback == null) {
+            return;
+        }
+        while (!mFreeInputs.isEmpty()) {
+            final int index = mFreeInputs.poll();
+            postLocked(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onInputBufferAvailable(FakeVideoCodec.this, index);
+                }
+            });
+        }
+    }
+
+    // Hands all ready output buffers to the client in asynchronous mode.
+    private void postOutputsLocked() {
+        if (mCallback == null) {
+            return;
+        }
+        while (!mReadyOutputs.isEmpty()) {
+            if (!mFormatReported) {
+                mFormatReported = true;
+                final Format format = getOutputFormat();
+                postLocked(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onOutputFormatChanged(FakeVideoCodec.this, format);
+                    }
+                });
+            }
+            final Job job = mReadyOutputs.poll();
+            final BufferInfo info = new BufferInfo();
+            info.set(0, job.size, job.presentationTimeUs, job.flags);
+            postLocked(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onOutputBufferAvailable(FakeVideoCodec.this, job.outputIndex, info);
+                }
+            });
+        }
+    }
+
+    // Runs the event on the dispatch thread unless the codec has been flushed
+    // or stopped in the meantime.
+    private void postLocked(final Runnable event) {
+        final int generation = mGeneration;
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (generation != mGeneration || !mRunning || mFailed) {
+                        return;
+                    }
+                }
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    mCallback.onError(FakeVideoCodec.this, e);
+                }
+            }
+        });
+    }
+
+    private void checkSyncModeLocked() {
+        if (mCallback != null) {
+            throw new IllegalStateException("Codec " + mName + " is in asynchronous mode");
+        }
+    }
+
+    private void resetBuffersLocked() {
+        mPendingJobs.clear();
+        mReadyOutputs.clear();
+        mFreeInputs.clear();
+        mFreeOutputs.clear();
+        for (int i = 0; i < mInputBuffers.length; i++) {
+            mFreeInputs.add(i);
+        }
+        for (int i = 0; i < mOutputBuffers.length; i++) {
+            mFreeOutputs.add(i);
+        }
+    }
+
+    private void checkStateLocked() {
+        if (mFailed) {
+            throw new IllegalStateException("Codec " + mName + " failed");
+        }
+        if (!mRunning) {
+            throw new IllegalStateException("Codec " + mName + " is not running");
+        }
+    }
+
+    // Waits for a state change.  Returns false if the timeout has expired.
+    private boolean waitLocked(long timeoutUs, long deadlineNs) {
+        try {
+            if (timeoutUs < 0) {
+                mLock.wait();
+                return true;
+            }
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0) {
+                return false;
+            }
+            mLock.wait(remainingNs / 1000000, (int)(remainingNs % 1000000));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Worker thread: turns pending jobs into output buffers.
+    private void processJobs() {
+        while (true) {
+            Job job;
+            int generation;
+            long dueNs;
+            synchronized (mLock) {
+                while (mRunning && !mFailed &&
+                        (mPendingJobs.isEmpty() || mFreeOutputs.isEmpty())) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Woken up by stop().
+                    }
+                }
+                if (!mRunning || mFailed) {
+                    return;
+                }
+                job = mPendingJobs.peek();
+                generation = mGeneration;
+                dueNs = Math.max(job.queuedNs + mLatencyNs, mLastOutputNs + mFrameIntervalNs);
+            }
+
+            long waitNs = dueNs - System.nanoTime();
+            if (waitNs > 0) {
+                try {
+                    Thread.sleep(waitNs / 1000000, (int)(waitNs % 1000000));
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            synchronized (mLock) {
+                if (generation != mGeneration || mPendingJobs.peek() != job) {
+                    continue;  // Flushed while waiting.
+                }
+                mPendingJobs.poll();
+                if (job.inputIndex >= 0) {
+                    mFreeInputs.add(job.inputIndex);
+                    postInputsLocked();
+                }
+                boolean eos = (job.flags & BUFFER_FLAG_END_OF_STREAM) != 0;
+                boolean config = (job.flags & BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (config || (!eos && job.size == 0)) {
+                    // Nothing to output for codec config or empty input.
+                    mLock.notifyAll();
+                    continue;
+                }
+                job.outputIndex = mFreeOutputs.poll();
+                if (job.inputIndex < 0 || job.size == 0) {
+                    job.size = 0;
+                    job.flags = BUFFER_FLAG_END_OF_STREAM;
+                } else if (mIsEncoder) {
+                    encodeLocked(job);
+                } else {
+                    job.size = mWidth * mHeight * 3 / 2;
+                    job.flags &= BUFFER_FLAG_END_OF_STREAM;
+                }
+                ByteBuffer output = mOutputBuffers[job.outputIndex];
+                output.clear();
+                output.limit(job.size);
+                mReadyOutputs.add(job);
+                mLastOutputNs = System.nanoTime();
+                if (job.size > 0) {
+                    mOutputFrameCount++;
+                }
+                postOutputsLocked();
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    // Sets size and flags of an encoded frame and writes a VP8 frame tag.
+    private void encodeLocked(Job job) {
+        boolean keyFrame = mOutputFrameCount == 0 ||
+                (mKeyFrameInterval > 0 && mOutputFrameCount % mKeyFrameInterval == 0);
+        double size = mFixedFrameSize > 0 ?
+                mFixedFrameSize : mBitrateOvershoot * mBitrate / 8 / Math.max(1, mFrameRate);
+        if (keyFrame) {
+            size *= mKeyFrameSizeRatio;
+        }
+        if (mFrameSizeJitter > 0) {
+            size *= 1 + mFrameSizeJitter * (2 * mRandom.nextDouble() - 1);
+        }
+        ByteBuffer output = mOutputBuffers[job.outputIndex];
+        int frameSize = Math.max(10, Math.min((int)size, output.capacity()));
+        job.size = frameSize;
+        job.flags = (job.flags & BUFFER_FLAG_END_OF_STREAM) | (keyFrame ? BUFFER_FLAG_SYNC_FRAME : 0);
+
+        // Frame tag: key frame bit (0 for key frame), version 0, show_frame and
+        // size of the first partition, followed by start code and dimensions.
+        int firstPartitionSize = frameSize - (keyFrame ? 10 : 3);
+        int tag = (keyFrame ? 0 : 1) | (1 << 4) | (firstPartitionSize << 5);
+        output.put(0, (byte)tag);
+        output.put(1, (byte)(tag >> 8));
+        output.put(2, (byte)(tag >> 16));
+        if (keyFrame) {
+            output.put(3, (byte)0x9d);
+            output.put(4, (byte)0x01);
+            output.put(5, (byte)0x2a);
+            output.put(6, (byte)mWidth);
+            output.put(7, (byte)((mWidth >> 8) & 0x3f));
+            output.put(8, (byte)mHeight);
+            output.put(9, (byte)((mHeight >> 8) & 0x3f));
+        }
+    }
+}
@@ -0,0 +1,633 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a fragmented MP4 file with a single H.264 or VP8 video track, an
+ * alternative to MediaMuxer which does not depend on Android.
+ *
+ * The initialization segment (ftyp and moov without samples) is written with
+ * the first sample, and then a moof/mdat fragment every given number of
+ * samples or presentation time, see setFragmentDuration().
+ * Every written fragment is complete, so the file can be played while it is
+ * being recorded and stays playable up to the last fragment after a crash.
+ * Fragment data and sample tables are kept in buffers which are reused, so
+ * memory is bounded by the largest fragment however long the recording.
+ *
+ * H.264 samples are expected in Annex B format, as MediaCodec outputs them,
+ * and are converted to 4 byte length prefixed NAL units; SPS and PPS go into
+ * avcC from addCodecConfig().  Samples must come in decoding order with
+ * increasing presentation times, i.e. without B frames.
+ *
+ * An optional segment index (sidx) is written at close() into space reserved
+ * after the moov box, for up to a given number of fragments.
+ * Not thread safe.
+ */
+public class Fmp4Writer {
+    private static final String TAG = "VP8CodecTestBase";
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_VP8 = "video/x-vnd.on2.vp8";
+    private static final int TRACK_ID = 1;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int SIDX_HEADER_SIZE = 40;
+    private static final int SIDX_ENTRY_SIZE = 12;
+    private static final int FREE_HEADER_SIZE = 8;
+    private static final int MDAT_HEADER_SIZE = 8;
+    // trun flags: data offset, sample duration, size and flags present.
+    private static final int TRUN_FLAGS = 0x000701;
+    // tfhd flags: default base is moof.
+    private static final int TFHD_FLAGS = 0x020000;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final RandomAccessFile mOutputFile;
+    private final FileChannel mChannel;
+    private final String mMime;
+    private final boolean mAvc;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTimescale;
+    private int mFragmentFrames = 30;
+    private long mFragmentDurationUs = 1000000;
+    private final List<byte[]> mSps = new ArrayList<byte[]>();
+    private final List<byte[]> mPps = new ArrayList<byte[]>();
+
+    // Current fragment.  Durations are set when the next sample arrives.
+    private ByteBuffer mHeader = ByteBuffer.allocate(4096);
+    private ByteBuffer mData = ByteBuffer.allocateDirect(256 * 1024);
+    private int[] mSampleSizes = new int[64];
+    private int[] mSampleFlags = new int[64];
+    private long[] mSampleTimes = new long[64];
+    private int mSampleCount;
+    private long mFirstTimeUs = -1;
+    private long mLastDuration;
+
+    // Segment index.
+    private int mMaxIndexEntries;
+    private long mIndexPosition = -1;
+    private int[] mIndexSizes;
+    private long[] mIndexDurations;
+    private boolean[] mIndexStartsWithSap;
+
+    // Statistics.
+    private int mFragmentCount;
+    private int mTotalSampleCount;
+    private long mBytesWritten;
+    private int mMaxFragmentBytes;
+    private final LatencyStats mWriteLatency = new LatencyStats();
+
+    /**
+     * @param filename    name of the MP4 file
+     * @param mime        MIME_AVC or MIME_VP8
+     * @param timescale   media timescale in ticks per second, e.g. 90000
+     */
+    public Fmp4Writer(String filename, String mime, int width, int height, int timescale)
+            throws IOException {
+        if (!mime.equals(MIME_AVC) && !mime.equals(MIME_VP8)) {
+            throw new IllegalArgumentException("Unsupported type " + mime);
+        }
+        mMime = mime;
+        mAvc = mime.equals(MIME_AVC);
+        mWidth = width;
+        mHeight = height;
+        mTimescale = timescale;
+        mOutputFile = new RandomAccessFile(filename, "rw");
+        mOutputFile.setLength(0);
+        mChannel = mOutputFile.getChannel();
+    }
+
+    /**
+     * Sets when a fragment is ended: after the given number of samples or
+     * presentation time, whichever comes first.  Call before the first sample.
+     */
+    public void setFragmentDuration(int frames, long durationUs) {
+        if (frames < 1 || durationUs <= 0) {
+            throw new IllegalArgumentException("Invalid fragment duration");
+        }
+        mFragmentFrames = frames;
+        mFragmentDurationUs = durationUs;
+    }
+
+    /**
+     * Reserves space for a segment index of up to maxFragments fragments,
+     * written at close().  No index is written if there are more fragments.
+     * Call before the first sample.
+     */
+    public void setSegmentIndex(int maxFragments) {
+        if (mIndexPosition >= 0) {
+            throw new IllegalStateException("Segment index set after the first sample");
+        }
+        mMaxIndexEntries = maxFragments;
+        mIndexSizes = new int[maxFragments];
+        mIndexDurations = new long[maxFragments];
+        mIndexStartsWithSap = new boolean[maxFragments];
+    }
+
+    /**
+     * Adds H.264 codec config in Annex B format, e.g. csd-0 and csd-1 of the
+     * encoder output format or a BUFFER_FLAG_CODEC_CONFIG buffer.  Ignored
+     * for VP8.  Must be called before the first sample.
+     */
+    public void addCodecConfig(ByteBuffer buffer, int offset, int size) {
+        if (!mAvc) {
+            return;
+        }
+        int end = offset + size;
+        int[] range = new int[2];
+        for (int position = AnnexB.findNalUnit(buffer, offset, end, range); position >= 0;
+                position = AnnexB.findNalUnit(buffer, position, end, range)) {
+            if (range[1] > range[0]) {
+                byte[] nal = new byte[range[1] - range[0]];
+                for (int i = 0; i < nal.length; i++) {
+                    nal[i] = buffer.get(range[0] + i);
+                }
+                int type = nal[0] & 0x1F;
+                if (type == AnnexB.NAL_TYPE_SPS) {
+                    mSps.add(nal);
+                } else if (type == AnnexB.NAL_TYPE_PPS) {
+                    mPps.add(nal);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes an encoded sample.  The buffer is read from offset to
+     * offset + size and not changed.
+     *
+     * @param presentationTimeUs   presentation time, increasing
+     * @param keyFrame             true for sync samples
+     */
+    public void writeSampleData(ByteBuffer buffer, int offset, int size,
+            long presentationTimeUs, boolean keyFrame) throws IOException {
+        if (mIndexPosition < 0) {
+            writeInitSegment();
+            mFirstTimeUs = presentationTimeUs;
+        }
+        if (mSampleCount > 0) {
+            if (presentationTimeUs <= mSampleTimes[mSampleCount - 1]) {
+                throw new IllegalArgumentException("Presentation time " + presentationTimeUs +
+                        " not increasing");
+            }
+            if (mSampleCount >= mFragmentFrames ||
+                    presentationTimeUs - mSampleTimes[0] >= mFragmentDurationUs) {
+                writeFragment(presentationTimeUs);
+            }
+        }
+
+        if (mSampleCount == mSampleSizes.length) {
+            int length = mSampleCount * 2;
+            mSampleSizes = copyOf(mSampleSizes, length);
+            mSampleFlags = copyOf(mSampleFlags, length);
+            long[] times = new long[length];
+            System.arraycopy(mSampleTimes, 0, times, 0, mSampleCount);
+            mSampleTimes = times;
+        }
+        int dataStart = mData.position();
+        if (mAvc) {
+            writeNalUnits(buffer, offset, size);
+        } else {
+            ensureDataCapacity(size);
+            putData(buffer, offset, offset + size);
+        }
+        mSampleSizes[mSampleCount] = mData.position() - dataStart;
+        mSampleFlags[mSampleCount] = keyFrame ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+        mSampleTimes[mSampleCount] = presentationTimeUs;
+        mSampleCount++;
+        mTotalSampleCount++;
+    }
+
+    /**
+     * Writes the last fragment and the segment index, and closes the file.
+     */
+    public void close() throws IOException {
+        try {
+            if (mSampleCount > 0) {
+                writeFragment(-1);
+            }
+            if (mMaxIndexEntries > 0 && mIndexPosition >= 0) {
+                if (mFragmentCount <= mMaxIndexEntries) {
+                    writeSegmentIndex();
+                } else {
+                    Log.w(TAG, "No segment index, " +
+                            mFragmentCount + " fragments over " + mMaxIndexEntries);
+                }
+            }
+        } finally {
+            mOutputFile.close();
+        }
+    }
+
+    public int getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    /**
+     * Returns the time spent writing each fragment to the file.
+     */
+    public LatencyStats getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    @Override
+    public String toString() {
+        return mMime + " fragments " + mFragmentCount + ", samples " + mTotalSampleCount +
+                ", bytes " + mBytesWritten + ". Max fragment " + mMaxFragmentBytes +
+                " bytes, buffer " + mData.capacity() + " bytes. Write " + mWriteLatency;
+    }
+
+    private void writeInitSegment() throws IOException {
+        if (mAvc && (mSps.isEmpty() || mPps.isEmpty())) {
+            throw new IllegalStateException("No SPS / PPS for " + mMime);
+        }
+        ByteBuffer b = mHeader;
+        b.clear();
+        int box = startBox(b, "ftyp");
+        putType(b, "iso6");
+        b.putInt(0);
+        putType(b, "iso6");
+        putType(b, "mp41");
+        if (mAvc) {
+            putType(b, "avc1");
+        }
+        endBox(b, box);
+
+        int moov = startBox(b, "moov");
+        box = startFullBox(b, "mvhd", 0, 0);
+        b.putInt(0);                        // creation time
+        b.putInt(0);                        // modification time
+        b.putInt(MOVIE_TIMESCALE);
+        b.putInt(0);                        // duration, in the fragments
+        b.putInt(0x00010000);               // rate 1.0
+        b.putShort((short)0x0100);          // volume 1.0
+        b.put(new byte[10]);
+        putMatrix(b);
+        b.put(new byte[24]);                // pre defined
+        b.putInt(TRACK_ID + 1);             // next track ID
+        endBox(b, box);
+
+        int trak = startBox(b, "trak");
+        box = startFullBox(b, "tkhd", 0, 3);    // enabled, in movie
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(TRACK_ID);
+        b.putInt(0);
+        b.putInt(0);                        // duration
+        b.put(new byte[8]);
+        b.putShort((short)0);               // layer
+        b.putShort((short)0);               // alternate group
+        b.putShort((short)0);               // volume
+        b.putShort((short)0);
+        putMatrix(b);
+        b.putInt(mWidth << 16);
+        b.putInt(mHeight << 16);
+        endBox(b, box);
+
+        int mdia = startBox(b, "mdia");
+        box = startFullBox(b, "mdhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(mTimescale);
+        b.putInt(0);
+        b.putShort((short)0x55C4);          // language "und"
+        b.putShort((short)0);
+        endBox(b, box);
+        box = startFullBox(b, "hdlr", 0, 0);
+        b.putInt(0);
+        putType(b, "vide");
+        b.put(new byte[12]);
+        b.put("VideoHandler".getBytes());
+        b.put((byte)0);
+        endBox(b, box);
+
+        int minf = startBox(b, "minf");
+        box = startFullBox(b, "vmhd", 0, 1);
+        b.put(new byte[8]);                 // graphics mode, opcolor
+        endBox(b, box);
+        int dinf = startBox(b, "dinf");
+        int dref = startFullBox(b, "dref", 0, 0);
+        b.putInt(1);
+        endBox(b, startFullBox(b, "url ", 0, 1));   // media in this file
+        endBox(b, dref);
+        endBox(b, dinf);
+
+        int stbl = startBox(b, "stbl");
+        int stsd = startFullBox(b, "stsd", 0, 0);
+        b.putInt(1);
+        writeSampleEntry(b);
+        endBox(b, stsd);
+        box = startFullBox(b, "stts", 0, 0);
+        b.putInt(0);
+        endBox(b, box);
+        box = startFullBox(b, "stsc", 0, 0);
+        b.putInt(0);
+        endBox(b, box);
+        box = startFullBox(b, "stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        endBox(b, box);
+        box = startFullBox(b, "stco", 0, 0);
+        b.putInt(0);
+        endBox(b, box);
+        endBox(b, stbl);
+        endBox(b, minf);
+        endBox(b, mdia);
+        endBox(b, trak);
+
+        int mvex = startBox(b, "mvex");
+        box = startFullBox(b, "trex", 0, 0);
+        b.putInt(TRACK_ID);
+        b.putInt(1);                        // sample description index
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        endBox(b, box);
+        endBox(b, mvex);
+        endBox(b, moov);
+
+        // Space for the segment index, overwritten at close().
+        mIndexPosition = b.position();
+        if (mMaxIndexEntries > 0) {
+            int reserved = SIDX_HEADER_SIZE + SIDX_ENTRY_SIZE * mMaxIndexEntries +
+                    FREE_HEADER_SIZE;
+            ensureHeaderCapacity(reserved);
+            b = mHeader;
+            box = startBox(b, "free");
+            b.put(new byte[reserved - FREE_HEADER_SIZE]);
+            endBox(b, box);
+        }
+        b.flip();
+        write(new ByteBuffer[] { b });
+    }
+
+    private void writeSampleEntry(ByteBuffer b) {
+        int entry = startBox(b, mAvc ? "avc1" : "vp08");
+        b.put(new byte[6]);
+        b.putShort((short)1);               // data reference index
+        b.put(new byte[16]);
+        b.putShort((short)mWidth);
+        b.putShort((short)mHeight);
+        b.putInt(0x00480000);               // 72 dpi
+        b.putInt(0x00480000);
+        b.putInt(0);
+        b.putShort((short)1);               // frame count
+        b.put(new byte[32]);                // compressor name
+        b.putShort((short)0x0018);          // depth
+        b.putShort((short)-1);
+        if (mAvc) {
+            int box = startBox(b, "avcC");
+            byte[] sps = mSps.get(0);
+            b.put((byte)1);                 // configuration version
+            b.put(sps.length > 1 ? sps[1] : 0);     // profile
+            b.put(sps.length > 2 ? sps[2] : 0);     // compatibility
+            b.put(sps.length > 3 ? sps[3] : 0);     // level
+            b.put((byte)0xFF);              // 4 byte NAL lengths
+            b.put((byte)(0xE0 | mSps.size()));
+            for (byte[] nal : mSps) {
+                b.putShort((short)nal.length);
+                b.put(nal);
+            }
+            b.put((byte)mPps.size());
+            for (byte[] nal : mPps) {
+                b.putShort((short)nal.length);
+                b.put(nal);
+            }
+            endBox(b, box);
+        } else {
+            int box = startFullBox(b, "vpcC", 1, 0);
+            b.put((byte)0);                 // profile
+            b.put((byte)10);                // level 1
+            b.put((byte)((8 << 4) | (1 << 1)));     // 8 bit, 4:2:0 colocated
+            b.put((byte)2);                 // unspecified colour primaries
+            b.put((byte)2);
+            b.put((byte)2);
+            b.putShort((short)0);           // no codec initialization data
+            endBox(b, box);
+        }
+        endBox(b, entry);
+    }
+
+    /**
+     * Writes the buffered samples as one fragment.
+     *
+     * @param nextTimeUs   presentation time of the next sample, or -1 at the end
+     */
+    private void writeFragment(long nextTimeUs) throws IOException {
+        long startNs = System.nanoTime();
+        int count = mSampleCount;
+        mHeader.clear();
+        ensureHeaderCapacity(256 + 12 * count);
+        ByteBuffer b = mHeader;
+        int moof = startBox(b, "moof");
+        int box = startFullBox(b, "mfhd", 0, 0);
+        b.putInt(mFragmentCount + 1);       // sequence number
+        endBox(b, box);
+        int traf = startBox(b, "traf");
+        box = startFullBox(b, "tfhd", 0, TFHD_FLAGS);
+        b.putInt(TRACK_ID);
+        endBox(b, box);
+        long baseTime = toTicks(mSampleTimes[0]);
+        box = startFullBox(b, "tfdt", 1, 0);
+        b.putLong(baseTime);
+        endBox(b, box);
+        int trun = startFullBox(b, "trun", 0, TRUN_FLAGS);
+        b.putInt(count);
+        int dataOffsetPosition = b.position();
+        b.putInt(0);
+        long fragmentDuration = 0;
+        for (int i = 0; i < count; i++) {
+            long time = toTicks(mSampleTimes[i]);
+            long duration;
+            if (i + 1 < count) {
+                duration = toTicks(mSampleTimes[i + 1]) - time;
+            } else if (nextTimeUs >= 0) {
+                duration = toTicks(nextTimeUs) - time;
+            } else {
+                duration = mLastDuration > 0 ? mLastDuration : mTimescale / 30;
+            }
+            mLastDuration = duration;
+            fragmentDuration += duration;
+            b.putInt((int)duration);
+            b.putInt(mSampleSizes[i]);
+            b.putInt(mSampleFlags[i]);
+        }
+        endBox(b, trun);
+        endBox(b, traf);
+        endBox(b, moof);
+        int dataSize = mData.position();
+        b.putInt(MDAT_HEADER_SIZE + dataSize);
+        putType(b, "mdat");
+        // Data offset from the start of moof to the first sample.
+        b.putInt(dataOffsetPosition, b.position());
+        b.flip();
+        mData.flip();
+
+        int fragmentBytes = b.remaining() + dataSize;
+        if (mFragmentCount < mMaxIndexEntries) {
+            mIndexSizes[mFragmentCount] = fragmentBytes;
+            mIndexDurations[mFragmentCount] = fragmentDuration;
+            mIndexStartsWithSap[mFragmentCount] = mSampleFlags[0] == SAMPLE_FLAGS_SYNC;
+        }
+        write(new ByteBuffer[] { b, mData });
+        mData.clear();
+        mSampleCount = 0;
+        mFragmentCount++;
+        mMaxFragmentBytes = Math.max(mMaxFragmentBytes, fragmentBytes);
+        mWriteLatency.add((System.nanoTime() - startNs) / 1000);
+    }
+
+    private void writeSegmentIndex() throws IOException {
+        int reserved = SIDX_HEADER_SIZE + SIDX_ENTRY_SIZE * mMaxIndexEntries + FREE_HEADER_SIZE;
+        int padding = reserved - SIDX_HEADER_SIZE - SIDX_ENTRY_SIZE * mFragmentCount;
+        mHeader.clear();
+        ensureHeaderCapacity(reserved);
+        ByteBuffer b = mHeader;
+        int box = startFullBox(b, "sidx", 1, 0);
+        b.putInt(TRACK_ID);
+        b.putInt(mTimescale);
+        b.putLong(0);                       // earliest presentation time
+        b.putLong(padding);                 // first offset, after the free box
+        b.putShort((short)0);
+        b.putShort((short)mFragmentCount);
+        for (int i = 0; i < mFragmentCount; i++) {
+            b.putInt(mIndexSizes[i] & 0x7FFFFFFF);
+            b.putInt((int)mIndexDurations[i]);
+            b.putInt(mIndexStartsWithSap[i] ? 0x90000000 : 0);  // SAP type 1
+        }
+        endBox(b, box);
+        box = startBox(b, "free");
+        b.put(new byte[padding - FREE_HEADER_SIZE]);
+        endBox(b, box);
+        b.flip();
+        mChannel.write(b, mIndexPosition);
+    }
+
+    // Writes the NAL units of an Annex B sample with 4 byte length prefixes.
+    private void writeNalUnits(ByteBuffer buffer, int offset, int size) {
+        int end = offset + size;
+        if (AnnexB.findStartCode(buffer, offset, end) < 0) {
+            // Already a single NAL unit.
+            ensureDataCapacity(4 + size);
+            mData.putInt(size);
+            putData(buffer, offset, end);
+            return;
+        }
+        int[] range = new int[2];
+        for (int position = AnnexB.findNalUnit(buffer, offset, end, range); position >= 0;
+                position = AnnexB.findNalUnit(buffer, position, end, range)) {
+            int nalStart = range[0];
+            int nalEnd = range[1];
+            int type = nalEnd > nalStart ? AnnexB.getNalType(buffer, nalStart) : 0;
+            // Parameter sets are in avcC.
+            if (nalEnd > nalStart && type != AnnexB.NAL_TYPE_SPS &&
+                    type != AnnexB.NAL_TYPE_PPS && type != AnnexB.NAL_TYPE_AUD) {
+                ensureDataCapacity(4 + nalEnd - nalStart);
+                mData.putInt(nalEnd - nalStart);
+                putData(buffer, nalStart, nalEnd);
+            }
+        }
+    }
+
+    // Bulk copy, the position and limit of the caller's buffer are kept.
+    private void putData(ByteBuffer buffer, int start, int end) {
+        ByteBuffer data = buffer.duplicate();
+        data.limit(end);
+        data.position(start);
+        mData.put(data);
+    }
+
+    private long toTicks(long timeUs) {
+        return (timeUs - mFirstTimeUs) * mTimescale / 1000000;
+    }
+
+    private void write(ByteBuffer[] buffers) throws IOException {
+        long bytes = 0;
+        for (ByteBuffer buffer : buffers) {
+            bytes += buffer.remaining();
+        }
+        long written = 0;
+        while (written < bytes) {
+            written += mChannel.write(buffers);
+        }
+        mBytesWritten += bytes;
+    }
+
+    private void ensureDataCapacity(int bytes) {
+        if (mData.remaining() < bytes) {
+            ByteBuffer data = ByteBuffer.allocateDirect(
+                    Math.max(mData.capacity() * 2, mData.position() + bytes));
+            mData.flip();
+            data.put(mData);
+            mData = data;
+        }
+    }
+
+    private void ensureHeaderCapacity(int bytes) {
+        if (mHeader.remaining() < bytes) {
+            ByteBuffer header = ByteBuffer.allocate(
+                    Math.max(mHeader.capacity() * 2, mHeader.position() + bytes));
+            mHeader.flip();
+            header.put(mHeader);
+            mHeader = header;
+        }
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static int startBox(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0);
+        putType(b, type);
+        return start;
+    }
+
+    private static int startFullBox(ByteBuffer b, String type, int version, int flags) {
+        int start = startBox(b, type);
+        b.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    private static void putType(ByteBuffer b, String type) {
+        for (int i = 0; i < 4; i++) {
+            b.put((byte)type.charAt(i));
+        }
+    }
+
+    // Unity transformation matrix.
+    private static void putMatrix(ByteBuffer b) {
+        int[] matrix = { 0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000 };
+        for (int value : matrix) {
+            b.putInt(value);
+        }
+    }
+}
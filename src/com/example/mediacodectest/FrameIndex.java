@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.util.BitSet;
+
+/**
+ * Index of the frames of a container file in primitive arrays: file offset,
+ * size, presentation time and key frame flag, about 20 bytes per frame.
+ * Not thread safe.
+ */
+public class FrameIndex {
+    private long[] mOffsets = new long[256];
+    private int[] mSizes = new int[256];
+    private long[] mTimesUs = new long[256];
+    private final BitSet mKeyFrames = new BitSet();
+    private int mCount;
+
+    public void add(long offset, int size, long timeUs, boolean keyFrame) {
+        if (mCount == mOffsets.length) {
+            int length = mCount * 2;
+            long[] offsets = new long[length];
+            int[] sizes = new int[length];
+            long[] times = new long[length];
+            System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+            System.arraycopy(mSizes, 0, sizes, 0, mCount);
+            System.arraycopy(mTimesUs, 0, times, 0, mCount);
+            mOffsets = offsets;
+            mSizes = sizes;
+            mTimesUs = times;
+        }
+        mOffsets[mCount] = offset;
+        mSizes[mCount] = size;
+        mTimesUs[mCount] = timeUs;
+        mKeyFrames.set(mCount, keyFrame);
+        mCount++;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public long getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    public int getSize(int index) {
+        return mSizes[index];
+    }
+
+    public long getTimeUs(int index) {
+        return mTimesUs[index];
+    }
+
+    public boolean isKeyFrame(int index) {
+        return mKeyFrames.get(index);
+    }
+
+    public int getKeyFrameCount() {
+        return mKeyFrames.cardinality();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 sequence parameter set, ITU-T H.264 section 7.3.2.1.1, up to the
+ * frame cropping: profile, level and the cropped frame size.
+ */
+public class H264Sps {
+    public int profileIdc;
+    public int constraintFlags;     // constraint_set0_flag in bit 7
+    public int levelIdc;
+    public int spsId;
+    public int chromaFormatIdc = 1;
+    public int width;
+    public int height;
+
+    /**
+     * Reads the bits of a NAL unit payload, skipping emulation prevention bytes.
+     * Reads past the end return zeros and set overrun.
+     */
+    private static class BitReader {
+        private final ByteBuffer mBuffer;
+        private final int mEnd;
+        private int mPosition;
+        private int mBit = 8;
+        private int mCurrent;
+        private int mZeros;
+        boolean overrun;
+
+        BitReader(ByteBuffer buffer, int start, int end) {
+            mBuffer = buffer;
+            mPosition = start;
+            mEnd = end;
+        }
+
+        int readBit() {
+            if (mBit == 8) {
+                if (mPosition >= mEnd) {
+                    overrun = true;
+                    return 0;
+                }
+                mCurrent = mBuffer.get(mPosition++) & 0xFF;
+                if (mZeros >= 2 && mCurrent == 3) {
+                    mZeros = 0;
+                    return readBit();
+                }
+                mZeros = mCurrent == 0 ? mZeros + 1 : 0;
+                mBit = 0;
+            }
+            return (mCurrent >> (7 - mBit++)) & 1;
+        }
+
+        int readBits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | readBit();
+            }
+            return value;
+        }
+
+        // Unsigned Exp-Golomb code, ue(v).
+        int readUe() {
+            int leadingZeros = 0;
+            while (readBit() == 0) {
+                if (overrun || ++leadingZeros > 31) {
+                    overrun = true;
+                    return 0;
+                }
+            }
+            return (int)((1L << leadingZeros) - 1 + (readBits(leadingZeros) & 0xFFFFFFFFL));
+        }
+
+        // Signed Exp-Golomb code, se(v).
+        int readSe() {
+            int value = readUe();
+            return (value & 1) != 0 ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+
+    /**
+     * Parses an SPS NAL unit.
+     *
+     * @param start   position of the NAL unit header, after the start code
+     * @param end     end of the NAL unit
+     * @return the SPS, or null if the NAL unit is not a complete SPS
+     */
+    public static H264Sps parse(ByteBuffer buffer, int start, int end) {
+        if (end - start < 4 || AnnexB.getNalType(buffer, start) != AnnexB.NAL_TYPE_SPS) {
+            return null;
+        }
+        BitReader reader = new BitReader(buffer, start + 1, end);
+        H264Sps sps = new H264Sps();
+        sps.profileIdc = reader.readBits(8);
+        sps.constraintFlags = reader.readBits(8);
+        sps.levelIdc = reader.readBits(8);
+        sps.spsId = reader.readUe();
+        boolean separateColourPlanes = false;
+        if (hasChromaFormat(sps.profileIdc)) {
+            sps.chromaFormatIdc = reader.readUe();
+            if (sps.chromaFormatIdc == 3) {
+                separateColourPlanes = reader.readBit() != 0;
+            }
+            reader.readUe();    // bit_depth_luma_minus8
+            reader.readUe();    // bit_depth_chroma_minus8
+            reader.readBit();   // qpprime_y_zero_transform_bypass_flag
+            if (reader.readBit() != 0) {
+                int lists = sps.chromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < lists; i++) {
+                    if (reader.readBit() != 0) {
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        reader.readUe();        // log2_max_frame_num_minus4
+        int picOrderCntType = reader.readUe();
+        if (picOrderCntType == 0) {
+            reader.readUe();    // log2_max_pic_order_cnt_lsb_minus4
+        } else if (picOrderCntType == 1) {
+            reader.readBit();   // delta_pic_order_always_zero_flag
+            reader.readSe();    // offset_for_non_ref_pic
+            reader.readSe();    // offset_for_top_to_bottom_field
+            int cycle = reader.readUe();
+            for (int i = 0; i < cycle && !reader.overrun; i++) {
+                reader.readSe();
+            }
+        }
+        reader.readUe();        // max_num_ref_frames
+        reader.readBit();       // gaps_in_frame_num_value_allowed_flag
+        int widthInMbs = reader.readUe() + 1;
+        int heightInMapUnits = reader.readUe() + 1;
+        int frameMbsOnly = reader.readBit();
+        if (frameMbsOnly == 0) {
+            reader.readBit();   // mb_adaptive_frame_field_flag
+        }
+        reader.readBit();       // direct_8x8_inference_flag
+        sps.width = widthInMbs * 16;
+        sps.height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+        if (reader.readBit() != 0) {
+            int left = reader.readUe();
+            int right = reader.readUe();
+            int top = reader.readUe();
+            int bottom = reader.readUe();
+            int cropUnitX = 1;
+            int cropUnitY = 2 - frameMbsOnly;
+            if (sps.chromaFormatIdc != 0 && !separateColourPlanes) {
+                cropUnitX = sps.chromaFormatIdc == 3 ? 1 : 2;
+                cropUnitY *= sps.chromaFormatIdc == 1 ? 2 : 1;
+            }
+            sps.width -= (left + right) * cropUnitX;
+            sps.height -= (top + bottom) * cropUnitY;
+        }
+        if (reader.overrun || sps.width <= 0 || sps.height <= 0) {
+            return null;
+        }
+        return sps;
+    }
+
+    public String getProfileName() {
+        switch (profileIdc) {
+            case 66:
+                return (constraintFlags & 0x40) != 0 ? "Constrained Baseline" : "Baseline";
+            case 77:
+                return "Main";
+            case 88:
+                return "Extended";
+            case 100:
+                return "High";
+            case 110:
+                return "High 10";
+            case 122:
+                return "High 4:2:2";
+            case 244:
+                return "High 4:4:4";
+            default:
+                return "Profile " + profileIdc;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getProfileName() + " level " + (levelIdc / 10) + "." + (levelIdc % 10) + ". " +
+                width + " x " + height;
+    }
+
+    // Profiles with chroma_format_idc and the other high profile fields.
+    private static boolean hasChromaFormat(int profileIdc) {
+        switch (profileIdc) {
+            case 100: case 110: case 122: case 244: case 44: case 83: case 86:
+            case 118: case 128: case 138: case 139: case 134: case 135:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void skipScalingList(BitReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int i = 0; i < size && !reader.overrun; i++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + reader.readSe() + 256) % 256;
+            }
+            lastScale = nextScale == 0 ? lastScale : nextScale;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.io.IOException;
+
+/**
+ * Reads the frames of an IVF file as a receiver behind a simulated network
+ * would get them.
+ *
+ * Frame n of the file is sent at its timestamp with sequence number n, goes
+ * through the NetworkImpairment into the ReceiveFrameBuffer, and readFrame()
+ * returns the frames the buffer passes to the decoder.  All of it runs on a
+ * virtual clock which jumps from event to event - send, arrival or loss
+ * deadline - so a run takes no real time and only depends on the seed.
+ */
+public class ImpairedIvfReader {
+    private final EncodedFrameSource mIvf;
+    private final NetworkImpairment mNetwork;
+    private final ReceiveFrameBuffer mBuffer;
+    private final int mFrameCount;
+    private int mNextFrame;
+    private long mNowUs;
+
+    /**
+     * @param maxFrames  number of frames to send, at most the frames of the file
+     */
+    public ImpairedIvfReader(EncodedFrameSource ivf, int maxFrames, NetworkImpairment network,
+            ReceiveFrameBuffer buffer) {
+        mIvf = ivf;
+        mNetwork = network;
+        mBuffer = buffer;
+        mFrameCount = Math.min(maxFrames, ivf.getFrameCount());
+    }
+
+    /**
+     * Returns the next frame to decode, or null at the end of the stream.
+     * The frame arrivalTimeUs is its network arrival, getNowUs() the time it
+     * left the receive buffer.
+     */
+    public NetworkImpairment.Frame readFrame() throws IOException {
+        while (true) {
+            boolean endOfStream = mNextFrame == mFrameCount && mNetwork.isEmpty();
+            NetworkImpairment.Frame frame = mBuffer.poll(mNowUs, endOfStream);
+            if (frame != null) {
+                return frame;
+            }
+            if (endOfStream) {
+                return null;
+            }
+
+            // Advance to the next event.
+            long nextUs = Math.min(mNetwork.getNextArrivalTimeUs(), mBuffer.getDeadlineUs());
+            if (mNextFrame < mFrameCount) {
+                nextUs = Math.min(nextUs, getSendTimeUs(mNextFrame));
+            }
+            mNowUs = Math.max(mNowUs, nextUs);
+
+            while (mNextFrame < mFrameCount && getSendTimeUs(mNextFrame) <= mNowUs) {
+                mNetwork.send(new NetworkImpairment.Frame(mNextFrame, getSendTimeUs(mNextFrame),
+                        mIvf.readFrame(mNextFrame)), mNowUs);
+                mNextFrame++;
+            }
+            NetworkImpairment.Frame arrived;
+            while ((arrived = mNetwork.poll(mNowUs)) != null) {
+                mBuffer.insert(arrived, mNowUs);
+            }
+        }
+    }
+
+    /**
+     * Returns the virtual time in microseconds.
+     */
+    public long getNowUs() {
+        return mNowUs;
+    }
+
+    @Override
+    public String toString() {
+        return mNetwork + ". " + mBuffer;
+    }
+
+    private long getSendTimeUs(int frameIndex) {
+        return (long)(mIvf.getFrameTimestamp(frameIndex) * 1e6);
+    }
+}
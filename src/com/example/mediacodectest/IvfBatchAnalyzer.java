@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Statistics of all IVF files in a directory tree, one line per file.
+ *
+ * Every file is read with IvfReader.scanFrames(), which skips the frame
+ * data, so a file costs about one read per frame header whatever its
+ * bitrate.  The calling thread walks the directory tree and submits a task
+ * per file to a fixed thread pool, so workers start on the first files
+ * while the rest of the tree is listed, and a few large files do not leave
+ * the other workers waiting.
+ *
+ * Timestamp anomalies are counted against the nominal frame interval, the
+ * median timestamp delta of the file: gaps are steps of more than
+ * GAP_INTERVALS intervals past the latest timestamp so far, backward steps
+ * and duplicates are non-monotonic timestamps.
+ */
+public class IvfBatchAnalyzer {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final File INPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final String SUMMARY_FILE = "ivf_summary.txt";
+    private static final double GAP_INTERVALS = 2.5;
+    private static final long PEAK_WINDOW_US = 1000000;
+    private static final String TABLE_HEADER = "file\twidth\theight\tframes\tduration_s" +
+            "\tavg_kbps\tpeak_kbps\tkey_frames\tkey_interval_avg\tkey_interval_max" +
+            "\tsize_min\tsize_p50\tsize_p95\tsize_max\tgaps\tbackward\tduplicate" +
+            "\theader_frames\terror\n";
+
+    /**
+     * Statistics of one file.
+     */
+    public static class FileStats {
+        public String path;
+        public int width;
+        public int height;
+        public int frameCount;
+        public int headerFrameCount;    // as written in the file header
+        public long durationUs;
+        public double averageBitrate;
+        public double peakBitrate;      // over PEAK_WINDOW_US
+        public int keyFrameCount;
+        public double averageKeyFrameInterval;  // in frames
+        public int maxKeyFrameInterval;
+        public int minFrameSize;
+        public int medianFrameSize;
+        public int p95FrameSize;
+        public int maxFrameSize;
+        public int gapCount;
+        public int backwardCount;
+        public int duplicateCount;
+        public String error;            // null if the file was read
+
+        /**
+         * Returns true if the timestamps or the frame count of the header
+         * are inconsistent.
+         */
+        public boolean hasAnomalies() {
+            return error != null || gapCount > 0 || backwardCount > 0 || duplicateCount > 0 ||
+                    headerFrameCount != frameCount;
+        }
+
+        String toTableLine() {
+            return String.format(Locale.US, "%s\t%d\t%d\t%d\t%.3f\t%.1f\t%.1f\t%d\t%.1f\t%d" +
+                    "\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%s\n", path, width, height, frameCount,
+                    durationUs / 1e6, averageBitrate / 1000, peakBitrate / 1000, keyFrameCount,
+                    averageKeyFrameInterval, maxKeyFrameInterval, minFrameSize,
+                    medianFrameSize, p95FrameSize, maxFrameSize, gapCount, backwardCount,
+                    duplicateCount, headerFrameCount, error == null ? "-" : error);
+        }
+    }
+
+    /**
+     * Collects the frames of a file from IvfReader.scanFrames().
+     */
+    private static class FrameCollector implements IvfReader.FrameListener {
+        final FileStats stats;
+        double timestampScale;
+        int[] sizes = new int[1024];
+        long[] pts = new long[1024];
+        int lastKeyFrame = -1;
+        long keyFrameIntervalSum;
+
+        FrameCollector(FileStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void onFileHeader(int width, int height, int frameCount, double scale) {
+            stats.width = width;
+            stats.height = height;
+            stats.headerFrameCount = frameCount;
+            timestampScale = scale;
+        }
+
+        @Override
+        public void onFrame(int frameIndex, int frameSize, long timestamp, boolean keyFrame) {
+            if (frameIndex == sizes.length) {
+                sizes = Arrays.copyOf(sizes, frameIndex * 2);
+                pts = Arrays.copyOf(pts, frameIndex * 2);
+            }
+            sizes[frameIndex] = frameSize;
+            pts[frameIndex] = timestamp;
+            if (keyFrame) {
+                if (lastKeyFrame >= 0) {
+                    int interval = frameIndex - lastKeyFrame;
+                    keyFrameIntervalSum += interval;
+                    stats.maxKeyFrameInterval = Math.max(stats.maxKeyFrameInterval, interval);
+                }
+                lastKeyFrame = frameIndex;
+                stats.keyFrameCount++;
+            }
+        }
+    }
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param threads   number of worker threads
+     */
+    public IvfBatchAnalyzer(int threads) {
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+    /**
+     * Analyzes all IVF files below a directory.
+     *
+     * @return the statistics of every file, sorted by path
+     */
+    public List<FileStats> analyzeDirectory(File directory) throws InterruptedException {
+        List<Future<FileStats>> pending = new ArrayList<Future<FileStats>>();
+        submitDirectory(directory, new HashSet<String>(), pending);
+        List<FileStats> results = new ArrayList<FileStats>(pending.size());
+        for (Future<FileStats> future : pending) {
+            results.add(getResult(future));
+        }
+        Collections.sort(results, new Comparator<FileStats>() {
+            @Override
+            public int compare(FileStats a, FileStats b) {
+                return a.path.compareTo(b.path);
+            }
+        });
+        return results;
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    // Directories are entered once by canonical path, so a symbolic link to
+    // a parent directory does not recurse forever.
+    private void submitDirectory(File directory, Set<String> visited,
+            List<Future<FileStats>> pending) {
+        try {
+            if (!visited.add(directory.getCanonicalPath())) {
+                Log.w(TAG, "Directory already analyzed: " + directory);
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can not resolve " + directory + ": " + e.toString());
+            return;
+        }
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (final File entry : entries) {
+            if (entry.isDirectory()) {
+                submitDirectory(entry, visited, pending);
+            } else if (entry.getName().toLowerCase(Locale.US).endsWith(".ivf")) {
+                pending.add(mExecutor.submit(new Callable<FileStats>() {
+                    @Override
+                    public FileStats call() {
+                        return analyzeFile(entry.getPath());
+                    }
+                }));
+            }
+        }
+    }
+
+    private static FileStats getResult(Future<FileStats> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Analyzes one file.  Errors are reported in FileStats.error, also
+     * unexpected exceptions on malformed files, so the batch goes on.
+     */
+    public static FileStats analyzeFile(String path) {
+        FileStats stats = new FileStats();
+        stats.path = path;
+        try {
+            collectStats(path, stats);
+        } catch (IOException e) {
+            stats.error = e.getMessage() != null ? e.getMessage() : e.toString();
+        } catch (RuntimeException e) {
+            stats.error = e.toString();
+        }
+        return stats;
+    }
+
+    private static void collectStats(String path, FileStats stats) throws IOException {
+        FrameCollector collector = new FrameCollector(stats);
+        stats.frameCount = IvfReader.scanFrames(path, collector);
+        int frames = stats.frameCount;
+        if (frames == 0) {
+            return;
+        }
+        if (stats.keyFrameCount > 1) {
+            stats.averageKeyFrameInterval =
+                    (double)collector.keyFrameIntervalSum / (stats.keyFrameCount - 1);
+        }
+
+        // Frame size distribution.
+        int[] sorted = Arrays.copyOf(collector.sizes, frames);
+        Arrays.sort(sorted);
+        stats.minFrameSize = sorted[0];
+        stats.medianFrameSize = sorted[frames / 2];
+        stats.p95FrameSize = sorted[Math.min(frames - 1, frames * 95 / 100)];
+        stats.maxFrameSize = sorted[frames - 1];
+
+        // Timestamps, in microseconds.
+        double usPerUnit = collector.timestampScale * 1e6;
+        long[] timesUs = new long[frames];
+        for (int i = 0; i < frames; i++) {
+            timesUs[i] = (long)(collector.pts[i] * usPerUnit + 0.5);
+        }
+        long intervalUs = getMedianIntervalUs(timesUs, frames);
+        long maxTimeUs = timesUs[0];
+        for (int i = 1; i < frames; i++) {
+            if (timesUs[i] == timesUs[i - 1]) {
+                stats.duplicateCount++;
+            } else if (timesUs[i] < maxTimeUs) {
+                stats.backwardCount++;
+            } else if (intervalUs > 0 && timesUs[i] - maxTimeUs > intervalUs * GAP_INTERVALS) {
+                // Measured from the latest frame, so frames after a backward
+                // step are no gap.
+                stats.gapCount++;
+            }
+            maxTimeUs = Math.max(maxTimeUs, timesUs[i]);
+        }
+        // Every frame lasts one frame interval, including the last one.
+        stats.durationUs = maxTimeUs - timesUs[0] + intervalUs;
+
+        long totalBytes = 0;
+        for (int i = 0; i < frames; i++) {
+            totalBytes += collector.sizes[i];
+        }
+        if (stats.durationUs > 0) {
+            stats.averageBitrate = totalBytes * 8e6 / stats.durationUs;
+        }
+        stats.peakBitrate = getPeakBytes(timesUs, collector.sizes, frames) * 8e6 /
+                PEAK_WINDOW_US;
+    }
+
+    /**
+     * Writes the statistics as a tab separated table.
+     */
+    public static void writeTable(List<FileStats> results, String filename) throws IOException {
+        Writer writer = new BufferedWriter(new FileWriter(filename));
+        try {
+            writer.write(TABLE_HEADER);
+            for (FileStats stats : results) {
+                writer.write(stats.toTableLine());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns totals over all files.
+     */
+    public static String summarize(List<FileStats> results) {
+        int errors = 0;
+        int anomalies = 0;
+        long frames = 0;
+        long durationUs = 0;
+        for (FileStats stats : results) {
+            if (stats.error != null) {
+                errors++;
+            }
+            if (stats.hasAnomalies()) {
+                anomalies++;
+            }
+            frames += stats.frameCount;
+            durationUs += stats.durationUs;
+        }
+        return "Files " + results.size() + ", unreadable " + errors + ", with anomalies " +
+                anomalies + ". Frames " + frames + ", duration " + (durationUs / 1000000) + " s";
+    }
+
+    // Median of the positive timestamp deltas, or 0.
+    private static long getMedianIntervalUs(long[] timesUs, int frames) {
+        long[] deltas = new long[frames];
+        int count = 0;
+        for (int i = 1; i < frames; i++) {
+            long deltaUs = timesUs[i] - timesUs[i - 1];
+            if (deltaUs > 0) {
+                deltas[count++] = deltaUs;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(deltas, 0, count);
+        return deltas[count / 2];
+    }
+
+    // Largest number of bytes of the frames within any window of
+    // PEAK_WINDOW_US, in file order.
+    private static long getPeakBytes(long[] timesUs, int[] sizes, int frames) {
+        long peak = 0;
+        long windowBytes = 0;
+        int first = 0;
+        for (int i = 0; i < frames; i++) {
+            windowBytes += sizes[i];
+            while (timesUs[i] - timesUs[first] >= PEAK_WINDOW_US) {
+                windowBytes -= sizes[first++];
+            }
+            peak = Math.max(peak, windowBytes);
+        }
+        return peak;
+    }
+
+    /** test entry point */
+    public static void testBatchAnalyze() {
+        Runnable r = new Runnable() {
+            public void run() {
+                IvfBatchAnalyzer analyzer = new IvfBatchAnalyzer(
+                        Runtime.getRuntime().availableProcessors());
+                try {
+                    long startMs = System.currentTimeMillis();
+                    List<FileStats> results = analyzer.analyzeDirectory(INPUT_DIR);
+                    String summaryPath = new File(INPUT_DIR, SUMMARY_FILE).toString();
+                    writeTable(results, summaryPath);
+                    Log.d(TAG, "IVF batch analysis in " +
+                            (System.currentTimeMillis() - startMs) + " ms: " +
+                            summarize(results) + ". Table " + summaryPath);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "IVF batch analysis interrupted");
+                } finally {
+                    analyzer.shutdown();
+                }
+            }
+        };
+        Thread testRunner = new Thread(r, "IvfBatchAnalyzer");
+        testRunner.start();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Cuts, splits and concatenates IVF files without decoding, e.g. to make
+ * short test clips of a long recording.
+ *
+ * Frames are copied with IvfWriter.writeFrame(IvfReader, ...), which moves
+ * the frame data between the file channels; only the 12 byte frame headers
+ * are written from the heap, with timestamps rebased to start at 0.  A clip
+ * always starts at a key frame, so it can be decoded on its own: the start
+ * of a cut snaps back to the key frame before it, and segments of a split
+ * start at the first key frame after each segment boundary.  The end of a
+ * cut is not moved, as any prefix of a group of frames can be decoded.
+ */
+public class IvfEditor {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final File INPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final String INPUT_IVF = "nicklas.ivf";
+
+    /**
+     * Copies the frames between two times to a new file.
+     *
+     * @param startTime  start in seconds from the first frame, snapped back
+     *                   to a key frame
+     * @param endTime    end in seconds from the first frame, exclusive
+     * @return number of frames written
+     */
+    public static int trim(String input, String output, double startTime, double endTime)
+            throws IOException {
+        IvfReader reader = openReader(input);
+        try {
+            double base = reader.getFrameTimestamp(0);
+            int startFrame = 0;
+            while (startFrame < reader.getFrameCount() &&
+                    reader.getFrameTimestamp(startFrame) - base < startTime) {
+                startFrame++;
+            }
+            int endFrame = startFrame;
+            while (endFrame < reader.getFrameCount() &&
+                    reader.getFrameTimestamp(endFrame) - base < endTime) {
+                endFrame++;
+            }
+            return copyRange(reader, input, output, startFrame, endFrame);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Copies a range of frames to a new file.
+     *
+     * @param startFrame first frame, snapped back to a key frame
+     * @param endFrame   end of the range, exclusive
+     * @return number of frames written
+     */
+    public static int trimFrames(String input, String output, int startFrame, int endFrame)
+            throws IOException {
+        IvfReader reader = openReader(input);
+        try {
+            return copyRange(reader, input, output, Math.max(startFrame, 0),
+                    Math.min(endFrame, reader.getFrameCount()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Splits a file into segments of about segmentDuration seconds, named
+     * outputPrefix_000.ivf, outputPrefix_001.ivf and so on.  A segment ends at
+     * the first key frame at or after the next multiple of segmentDuration, so
+     * segments are longer when key frames are further apart, but boundaries do
+     * not drift.
+     *
+     * @return names of the segment files
+     */
+    public static List<String> split(String input, String outputPrefix, double segmentDuration)
+            throws IOException {
+        if (segmentDuration <= 0) {
+            throw new IllegalArgumentException("Segment duration " + segmentDuration);
+        }
+        List<String> outputs = new ArrayList<String>();
+        IvfReader reader = openReader(input);
+        try {
+            int frameCount = reader.getFrameCount();
+            double base = reader.getFrameTimestamp(0);
+            int start = findKeyFrame(reader, 0, frameCount, input);
+            while (start < frameCount) {
+                double boundary = segmentDuration *
+                        (Math.floor((reader.getFrameTimestamp(start) - base) / segmentDuration) + 1);
+                int end = start + 1;
+                while (end < frameCount && (reader.getFrameTimestamp(end) - base < boundary ||
+                        !reader.isKeyFrame(end))) {
+                    end++;
+                }
+                String output = String.format(Locale.US, "%s_%03d.ivf",
+                        outputPrefix, outputs.size());
+                checkOutput(input, output);
+                copyFrames(reader, output, start, end);
+                outputs.add(output);
+                start = end;
+            }
+        } finally {
+            reader.close();
+        }
+        return outputs;
+    }
+
+    /**
+     * Concatenates files of the same frame size and timebase.  Every file must
+     * start with a key frame.  Timestamps continue one frame interval after
+     * the last frame of the previous file, the last timestamp delta of it.
+     *
+     * @return number of frames written
+     */
+    public static int concat(String[] inputs, String output) throws IOException {
+        if (inputs.length == 0) {
+            throw new IllegalArgumentException("No input files");
+        }
+        IvfReader[] readers = new IvfReader[inputs.length];
+        IvfWriter writer = null;
+        try {
+            for (int i = 0; i < inputs.length; i++) {
+                checkOutput(inputs[i], output);
+                readers[i] = openReader(inputs[i]);
+                IvfReader first = readers[0];
+                IvfReader reader = readers[i];
+                if (reader.getWidth() != first.getWidth() ||
+                        reader.getHeight() != first.getHeight()) {
+                    throw new IOException(inputs[i] + " is " + reader.getWidth() + " x " +
+                            reader.getHeight() + ", " + inputs[0] + " is " +
+                            first.getWidth() + " x " + first.getHeight());
+                }
+                if (reader.getTimebaseScale() != first.getTimebaseScale() ||
+                        reader.getTimebaseRate() != first.getTimebaseRate()) {
+                    throw new IOException(inputs[i] + " timebase " + reader.getTimebaseScale() +
+                            "/" + reader.getTimebaseRate() + " differs from " + inputs[0]);
+                }
+                if (reader.getFrameCount() > 0 && !reader.isKeyFrame(0)) {
+                    throw new IOException(inputs[i] + " does not start with a key frame");
+                }
+            }
+
+            writer = new IvfWriter(output, readers[0].getWidth(), readers[0].getHeight(),
+                    readers[0].getTimebaseScale(), readers[0].getTimebaseRate());
+            int frames = 0;
+            long nextPts = 0;
+            long interval = 0;
+            for (IvfReader reader : readers) {
+                int frameCount = reader.getFrameCount();
+                if (frameCount == 0) {
+                    continue;
+                }
+                if (frames > 0) {
+                    if (interval <= 0) {
+                        interval = frameCount > 1 ?
+                                reader.getFramePts(1) - reader.getFramePts(0) : 1;
+                    }
+                    nextPts += Math.max(interval, 1);
+                }
+                long offset = nextPts - reader.getFramePts(0);
+                for (int i = 0; i < frameCount; i++) {
+                    writer.writeFrame(reader, i, reader.getFramePts(i) + offset);
+                }
+                nextPts = reader.getFramePts(frameCount - 1) + offset;
+                if (frameCount > 1) {
+                    interval = reader.getFramePts(frameCount - 1) -
+                            reader.getFramePts(frameCount - 2);
+                }
+                frames += frameCount;
+            }
+            return frames;
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            for (IvfReader reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cuts INPUT_IVF, splits it into 2 second segments and joins them again.
+     */
+    public static void testEdit() {
+        Runnable r = new Runnable() {
+            public void run() {
+                String input = new File(INPUT_DIR, INPUT_IVF).toString();
+                String prefix = input.substring(0, input.length() - ".ivf".length());
+                try {
+                    long startMs = System.currentTimeMillis();
+                    int frames = trim(input, prefix + "_trim.ivf", 2.0, 5.0);
+                    Log.d(TAG, "Trimmed " + frames + " frames to " + prefix + "_trim.ivf in " +
+                            (System.currentTimeMillis() - startMs) + " ms");
+
+                    startMs = System.currentTimeMillis();
+                    List<String> segments = split(input, prefix + "_segment", 2.0);
+                    Log.d(TAG, "Split into " + segments.size() + " segments in " +
+                            (System.currentTimeMillis() - startMs) + " ms");
+
+                    startMs = System.currentTimeMillis();
+                    frames = concat(segments.toArray(new String[segments.size()]),
+                            prefix + "_concat.ivf");
+                    Log.d(TAG, "Joined " + frames + " frames to " + prefix + "_concat.ivf in " +
+                            (System.currentTimeMillis() - startMs) + " ms");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Thread testRunner = new Thread(r, "IvfEditor");
+        testRunner.start();
+    }
+
+    private static IvfReader openReader(String input) throws IOException {
+        IvfReader reader = new IvfReader(input);
+        if (!reader.isHeaderValid()) {
+            reader.close();
+            throw new IOException("Not a VP8 IVF file: " + input);
+        }
+        return reader;
+    }
+
+    // Snaps startFrame back to a key frame and copies up to endFrame.
+    private static int copyRange(IvfReader reader, String input, String output,
+            int startFrame, int endFrame) throws IOException {
+        checkOutput(input, output);
+        if (startFrame >= endFrame) {
+            return copyFrames(reader, output, 0, 0);
+        }
+        int start = startFrame;
+        while (start > 0 && !reader.isKeyFrame(start)) {
+            start--;
+        }
+        start = findKeyFrame(reader, start, endFrame, input);
+        return copyFrames(reader, output, start, endFrame);
+    }
+
+    // Returns the first key frame at or after start, or end if there is none.
+    private static int findKeyFrame(IvfReader reader, int start, int end, String input)
+            throws IOException {
+        for (int i = start; i < end; i++) {
+            if (reader.isKeyFrame(i)) {
+                return i;
+            }
+        }
+        Log.w(TAG, "No key frame in frames " + start + " - " + end + " of " + input);
+        return end;
+    }
+
+    private static int copyFrames(IvfReader reader, String output, int start, int end)
+            throws IOException {
+        IvfWriter writer = new IvfWriter(output, reader.getWidth(), reader.getHeight(),
+                reader.getTimebaseScale(), reader.getTimebaseRate());
+        try {
+            long basePts = start < end ? reader.getFramePts(start) : 0;
+            for (int i = start; i < end; i++) {
+                writer.writeFrame(reader, i, reader.getFramePts(i) - basePts);
+            }
+        } finally {
+            writer.close();
+        }
+        return end - start;
+    }
+
+    // IvfWriter truncates its file, so never write over an input.
+    private static void checkOutput(String input, String output) throws IOException {
+        if (new File(input).getCanonicalPath().equals(new File(output).getCanonicalPath())) {
+            throw new IllegalArgumentException("Output " + output + " is the input file");
+        }
+    }
+}
@@ -18,8 +18,15 @@
 package com.example.mediacodectest;
 
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * A simple reader for an IVF file.
@@ -31,7 +38,7 @@ import java.io.RandomAccessFile;
  * frame number.
  */
 
-public class IvfReader {
+public class IvfReader implements EncodedFrameSource {
     private static final byte HEADER_SIZE = 32;
     private static final byte FOURCC_OFFSET = 8;
     private static final byte WIDTH_OFFSET = 12;
@@ -46,11 +53,45 @@ public class IvfReader {
     private int mWidth;
     private int mHeight;
     private int mFrameCount;
-    private int[] mFrameHeads;  // Head of frame header
+    private long[] mFrameHeads; // Head of frame header, files may exceed 2 GB
     private int[] mFrameSizes;  // Frame size excluding header
+    private int mTimebaseScale;
+    private int mTimebaseRate;
     private double mTimestampScale;
+    private long[] mFramePts;   // in timebase units
     private double[] mFrameTimestamps; // in seconds
 
+    /**
+     * Receives frame headers from scanFrameHeaders().
+     */
+    public interface FrameHeaderListener {
+        /**
+         * @param frameIndex    index of the frame
+         * @param frameSize     frame size excluding header
+         * @param timestamp     frame timestamp in seconds
+         */
+        public void onFrameHeader(int frameIndex, int frameSize, double timestamp);
+    }
+
+    /**
+     * Receives the file header and frames from scanFrames().
+     */
+    public interface FrameListener {
+        /**
+         * @param frameCount    frame count of the header, 0 or wrong if the
+         *                      writer did not close the file
+         * @param timestampScale    seconds per timestamp unit
+         */
+        public void onFileHeader(int width, int height, int frameCount, double timestampScale);
+
+        /**
+         * @param frameIndex    index of the frame
+         * @param frameSize     frame size excluding header
+         * @param pts           frame timestamp in timestamp units
+         * @param keyFrame      true if the frame tag marks a key frame
+         */
+        public void onFrame(int frameIndex, int frameSize, long pts, boolean keyFrame);
+    }
 
     /**
      * Initializes the IVF file reader.
@@ -80,6 +121,11 @@ public class IvfReader {
         return mHeaderValid;
     }
 
+    @Override
+    public String getMime() {
+        return "video/x-vnd.on2.vp8";
+    }
+
     /**
      * Returns frame width according to header information.
      */
@@ -108,11 +154,11 @@ public class IvfReader {
      * than 0 and less than frameCount.
      */
     public byte[] readFrame(int frameIndex) throws IOException {
-        if (frameIndex > mFrameCount || frameIndex < 0){
+        if (frameIndex >= mFrameCount || frameIndex < 0){
             return null;
         }
         int frameSize = mFrameSizes[frameIndex];
-        int frameHead = mFrameHeads[frameIndex];
+        long frameHead = mFrameHeads[frameIndex];
 
         byte[] frame = new byte[frameSize];
         mIvfFile.seek(frameHead + FRAME_HEADER_SIZE);
@@ -121,13 +167,184 @@ public class IvfReader {
         return frame;
     }
 
+    /**
+     * Reads frame data by index straight into a buffer, e.g. a decoder input
+     * buffer, without an intermediate array.
+     */
+    @Override
+    public int readFrame(int frameIndex, ByteBuffer buffer) throws IOException {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return -1;
+        }
+        int frameSize = mFrameSizes[frameIndex];
+        long position = mFrameHeads[frameIndex] + FRAME_HEADER_SIZE;
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + frameSize);
+        try {
+            while (buffer.hasRemaining()) {
+                int read = mIvfFile.getChannel().read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Truncated frame " + frameIndex);
+                }
+                position += read;
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+        return frameSize;
+    }
+
+    @Override
+    public int getFrameSize(int frameIndex) {
+        return mFrameSizes[frameIndex];
+    }
+
     public double getFrameTimestamp(int frameIndex) {
-        if (frameIndex > mFrameCount || frameIndex < 0){
+        if (frameIndex >= mFrameCount || frameIndex < 0){
             return 0;
         }
         return mFrameTimestamps[frameIndex];
     }
 
+    /**
+     * Returns the timestamp of a frame as written, in timebase units.
+     */
+    public long getFramePts(int frameIndex) {
+        return mFramePts[frameIndex];
+    }
+
+    /**
+     * Returns the timebase scale, the numerator of the timebase fraction.
+     */
+    public int getTimebaseScale() {
+        return mTimebaseScale;
+    }
+
+    /**
+     * Returns the timebase rate, the denominator of the timebase fraction.
+     */
+    public int getTimebaseRate() {
+        return mTimebaseRate;
+    }
+
+    /**
+     * Tells if a frame is a VP8 key frame.  Only the first byte of the frame
+     * tag is read.
+     */
+    public boolean isKeyFrame(int frameIndex) throws IOException {
+        if (mFrameSizes[frameIndex] < 3) {
+            return false;
+        }
+        ByteBuffer tag = ByteBuffer.allocate(1);
+        if (mIvfFile.getChannel().read(tag, mFrameHeads[frameIndex] + FRAME_HEADER_SIZE) != 1) {
+            throw new EOFException("Truncated frame " + frameIndex);
+        }
+        return (tag.get(0) & 1) == 0;
+    }
+
+    /**
+     * Copies frame data by index to a channel with FileChannel.transferTo(),
+     * so the data is not copied through the Java heap; between files this is
+     * a sendfile() in the kernel.
+     *
+     * @return frame size
+     */
+    public int transferFrame(int frameIndex, WritableByteChannel target) throws IOException {
+        if (frameIndex >= mFrameCount || frameIndex < 0){
+            return -1;
+        }
+        FileChannel channel = mIvfFile.getChannel();
+        int frameSize = mFrameSizes[frameIndex];
+        long position = mFrameHeads[frameIndex] + FRAME_HEADER_SIZE;
+        long end = position + frameSize;
+        while (position < end) {
+            long transferred = channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new EOFException("Truncated frame " + frameIndex);
+            }
+            position += transferred;
+        }
+        return frameSize;
+    }
+
+    /**
+     * Reads the frame headers of an IVF file sequentially, skipping the frame
+     * data, in constant memory.  Unlike the constructor this also works for
+     * files without a valid frame count, e.g. written by an interrupted test;
+     * frames are read up to the end of the file.
+     *
+     * @return number of frames read
+     */
+    public static int scanFrameHeaders(String filename, final FrameHeaderListener listener)
+            throws IOException {
+        final double[] timestampScale = new double[1];
+        return scanFrames(filename, new FrameListener() {
+            @Override
+            public void onFileHeader(int width, int height, int frameCount, double scale) {
+                timestampScale[0] = scale;
+            }
+
+            @Override
+            public void onFrame(int frameIndex, int frameSize, long pts, boolean keyFrame) {
+                listener.onFrameHeader(frameIndex, frameSize, pts * timestampScale[0]);
+            }
+        });
+    }
+
+    /**
+     * Reads the file header and the frame headers like scanFrameHeaders(),
+     * plus the first byte of every frame for the key frame flag.
+     *
+     * @return number of frames read
+     */
+    public static int scanFrames(String filename, FrameListener listener) throws IOException {
+        FileInputStream file = new FileInputStream(filename);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+        try {
+            // Skipping does not stop at the end of the file, so truncated frames
+            // are found by the length.
+            long length = file.getChannel().size();
+            byte[] header = new byte[HEADER_SIZE];
+            in.readFully(header);
+            if (header[0] != 'D' || header[1] != 'K' || header[2] != 'I' || header[3] != 'F') {
+                throw new IOException("Not an IVF file: " + filename);
+            }
+            int rateDen = readLittleEndianInt(header, FRAMERATE_DEN_OFFSET);
+            int rateNum = readLittleEndianInt(header, FRAMERATE_NUM_OFFSET);
+            listener.onFileHeader((header[WIDTH_OFFSET] & 0xFF) |
+                    ((header[WIDTH_OFFSET + 1] & 0xFF) << 8),
+                    (header[HEIGHT_OFFSET] & 0xFF) | ((header[HEIGHT_OFFSET + 1] & 0xFF) << 8),
+                    readLittleEndianInt(header, FRAMECOUNT_OFFSET), (double)rateNum / rateDen);
+
+            int frameCount = 0;
+            long position = HEADER_SIZE;
+            byte[] frameHeader = new byte[FRAME_HEADER_SIZE];
+            while (true) {
+                try {
+                    in.readFully(frameHeader);
+                } catch (EOFException e) {
+                    break;
+                }
+                int frameSize = readLittleEndianInt(frameHeader, 0);
+                long pts = ((long)readLittleEndianInt(frameHeader, 8) << 32) |
+                        ((long)readLittleEndianInt(frameHeader, 4) & 0xFFFFFFFFL);
+                position += FRAME_HEADER_SIZE + frameSize;
+                if (frameSize < 0 || position > length) {
+                    break;  // Truncated frame.
+                }
+                int tag = frameSize > 0 ? in.read() : 0;
+                int skip = frameSize > 0 ? frameSize - 1 : 0;
+                if (tag < 0 || in.skipBytes(skip) != skip) {
+                    break;
+                }
+                listener.onFrame(frameCount++, frameSize, pts, frameSize > 0 && (tag & 1) == 0);
+            }
+            return frameCount;
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Closes IVF file.
      */
@@ -176,16 +393,19 @@ public class IvfReader {
         int rateDen = changeEndianness(mIvfFile.readInt());
         mIvfFile.seek(FRAMERATE_NUM_OFFSET);
         int rateNum = changeEndianness(mIvfFile.readInt());
+        mTimebaseRate = rateDen;
+        mTimebaseScale = rateNum;
         mTimestampScale = (double)rateNum / rateDen;
 
         // allocate frame metadata
-        mFrameHeads = new int[mFrameCount];
+        mFrameHeads = new long[mFrameCount];
         mFrameSizes = new int[mFrameCount];
+        mFramePts = new long[mFrameCount];
         mFrameTimestamps = new double[mFrameCount];
     }
 
     private void readFrameMetadata() throws IOException{
-        int frameHead = HEADER_SIZE;
+        long frameHead = HEADER_SIZE;
         for(int i = 0; i < mFrameCount; i++){
             mIvfFile.seek(frameHead);
             int frameSize = changeEndianness(mIvfFile.readInt());
@@ -195,13 +415,19 @@ public class IvfReader {
             int ptsLo = changeEndianness(mIvfFile.readInt());
             mIvfFile.seek(frameHead + 8);
             int ptsHi = changeEndianness(mIvfFile.readInt());
-            long ptsTotal = ((long)ptsHi << 32) | ((long)ptsLo & (long)0xFFFFFFFF);
+            long ptsTotal = ((long)ptsHi << 32) | ((long)ptsLo & 0xFFFFFFFFL);
+            mFramePts[i] = ptsTotal;
             mFrameTimestamps[i] = (double)ptsTotal * mTimestampScale;
             // next frame
             frameHead += FRAME_HEADER_SIZE + frameSize;
         }
     }
 
+    private static int readLittleEndianInt(byte[] array, int index) {
+        return (array[index] & 0xFF) | ((array[index + 1] & 0xFF) << 8) |
+                ((array[index + 2] & 0xFF) << 16) | ((array[index + 3] & 0xFF) << 24);
+    }
+
     private static short changeEndianness(short value){
         // Rationale for down-cast;
         // Java Language specification 15.19:
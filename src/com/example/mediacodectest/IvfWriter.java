@@ -96,6 +96,22 @@ public class IvfWriter {
         mFrameCount++;
     }
 
+    /**
+     * Writes a frame of another IVF file with a new timestamp.  The frame data
+     * is transferred between the file channels and does not enter the heap.
+     *
+     * @param source     reader of the source file
+     * @param frameIndex index of the frame in the source file
+     * @param timeStamp  timestamp of the frame (in accordance to specified timebase)
+     */
+    public void writeFrame(IvfReader source, int frameIndex, long timeStamp)
+            throws IOException {
+        int frameSize = source.getFrameSize(frameIndex);
+        mOutputFile.write(makeIvfFrameHeader(frameSize, timeStamp));
+        source.transferFrame(frameIndex, mOutputFile.getChannel());
+        mFrameCount++;
+    }
+
     /**
      * Makes a 32 byte file header for IVF format.
      *
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples and reports average and percentiles.
+ *
+ * Samples are kept in a growing array, so percentiles are exact.  Not thread
+ * safe; merge() collects the samples of several instances.
+ */
+public class LatencyStats {
+    private long[] mSamplesUs = new long[256];
+    private int mCount;
+    private long mSumUs;
+    private long mMaxUs;
+
+    public void add(long latencyUs) {
+        if (mCount == mSamplesUs.length) {
+            mSamplesUs = Arrays.copyOf(mSamplesUs, mCount * 2);
+        }
+        mSamplesUs[mCount++] = latencyUs;
+        mSumUs += latencyUs;
+        mMaxUs = Math.max(mMaxUs, latencyUs);
+    }
+
+    /**
+     * Adds all samples of another instance.
+     */
+    public void merge(LatencyStats other) {
+        for (int i = 0; i < other.mCount; i++) {
+            add(other.mSamplesUs[i]);
+        }
+    }
+
+    public void reset() {
+        mCount = 0;
+        mSumUs = 0;
+        mMaxUs = 0;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getAverageUs() {
+        return mCount > 0 ? mSumUs / mCount : 0;
+    }
+
+    public long getMaxUs() {
+        return mMaxUs;
+    }
+
+    /**
+     * Returns the sample below which the given percentage of samples falls.
+     *
+     * @param percent   0 - 100
+     */
+    public long getPercentileUs(double percent) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mSamplesUs, mCount);
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(percent / 100 * mCount) - 1;
+        return sorted[Math.max(0, Math.min(mCount - 1, index))];
+    }
+
+    /**
+     * Returns "avg / p50 / p95 / max" in milliseconds.
+     */
+    @Override
+    public String toString() {
+        return String.format("avg %.1f / p50 %.1f / p95 %.1f / max %.1f ms",
+                getAverageUs() / 1e3, getPercentileUs(50) / 1e3,
+                getPercentileUs(95) / 1e3, getMaxUs() / 1e3);
+    }
+}
@@ -37,6 +37,13 @@ public class LooperRunner extends Thread {
         Looper.loop();
     }
 
+    /**
+     * Returns the Handler of the looper thread, null if the thread is not running.
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
     public void runCallable(final Callable<?> callable) throws Exception {
         final Exception[] exception = new Exception[1];
         final CountDownLatch countDownLatch = new CountDownLatch(1);
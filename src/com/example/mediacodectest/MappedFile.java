@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only, big endian access to a file of any size through memory mapped
+ * regions.
+ *
+ * Region k maps REGION_STEP * k up to REGION_STEP + MAX_READ bytes, so any
+ * read of up to MAX_READ bytes fits in the region of its start.  Only
+ * CACHED_REGIONS regions are kept, so the address space used stays bounded
+ * however large the file.  Not thread safe.
+ */
+public class MappedFile {
+    public static final int MAX_READ = 16 * 1024 * 1024;
+    private static final long REGION_STEP = 64L * 1024 * 1024;
+    private static final int CACHED_REGIONS = 4;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final MappedByteBuffer[] mRegions = new MappedByteBuffer[CACHED_REGIONS];
+    private final long[] mRegionIndexes = new long[CACHED_REGIONS];
+
+    public MappedFile(String filename) throws IOException {
+        mFile = new RandomAccessFile(filename, "r");
+        mChannel = mFile.getChannel();
+        mLength = mChannel.size();
+        for (int i = 0; i < CACHED_REGIONS; i++) {
+            mRegionIndexes[i] = -1;
+        }
+    }
+
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * Returns a view of size bytes at a file position, between the position
+     * and the limit of the returned buffer.  No data is copied.
+     */
+    public ByteBuffer slice(long position, int size) throws IOException {
+        if (size < 0 || size > MAX_READ || position < 0 || position + size > mLength) {
+            throw new IOException("Read of " + size + " bytes at " + position +
+                    " out of " + mLength);
+        }
+        ByteBuffer region = getRegion(position);
+        ByteBuffer view = region.duplicate();
+        int offset = (int)(position % REGION_STEP);
+        view.limit(offset + size);
+        view.position(offset);
+        return view;
+    }
+
+    public int get(long position) throws IOException {
+        return getRegion(position).get((int)(position % REGION_STEP)) & 0xFF;
+    }
+
+    public int getShort(long position) throws IOException {
+        return getRegion(position).getShort((int)(position % REGION_STEP)) & 0xFFFF;
+    }
+
+    public int getInt(long position) throws IOException {
+        return getRegion(position).getInt((int)(position % REGION_STEP));
+    }
+
+    public long getLong(long position) throws IOException {
+        return getRegion(position).getLong((int)(position % REGION_STEP));
+    }
+
+    public void close() throws IOException {
+        for (int i = 0; i < CACHED_REGIONS; i++) {
+            mRegions[i] = null;
+        }
+        mFile.close();
+    }
+
+    private MappedByteBuffer getRegion(long position) throws IOException {
+        if (position < 0 || position >= mLength) {
+            throw new IOException("Position " + position + " out of " + mLength);
+        }
+        long index = position / REGION_STEP;
+        int slot = (int)(index % CACHED_REGIONS);
+        if (mRegionIndexes[slot] != index) {
+            long start = index * REGION_STEP;
+            long size = Math.min(REGION_STEP + MAX_READ, mLength - start);
+            mRegions[slot] = mChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            mRegionIndexes[slot] = index;
+        }
+        return mRegions[slot];
+    }
+}
@@ -25,6 +25,7 @@ import org.webrtc.VideoRenderer;
 import org.webrtc.VideoRendererGui;
 import org.webrtc.VideoRendererGui.ScalingType;
 
+import java.io.File;
 import java.util.concurrent.CountDownLatch;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -58,6 +59,7 @@ public class MediaCodecActivity extends Activity implements SurfaceHolder.Callba
         public EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
         private SurfaceTexture mSurfaceTexture;
         private Surface mSurface;
+        private CpuTimeProfiler mCpuProfiler;
 
 
         public MyGLRenderer(GLSurfaceView glSurfaceVeiw) {
@@ -73,6 +75,10 @@ public class MediaCodecActivity extends Activity implements SurfaceHolder.Callba
             return mSurface;
         }
 
+        public void setCpuProfiler(CpuTimeProfiler profiler) {
+            mCpuProfiler = profiler;
+        }
+
         @Override
         public void onSurfaceCreated(GL10 unused, EGLConfig config) {
             Log.d(TAG, "GL onSurfaceCreated - GL thred id " + Thread.currentThread().getId());
@@ -105,6 +111,10 @@ public class MediaCodecActivity extends Activity implements SurfaceHolder.Callba
         public void onDrawFrame(GL10 unused) {
             // Redraw background color
             Log.d(TAG, "GL onDrawFrame - thread ID " + Thread.currentThread().getId());
+            CpuTimeProfiler profiler = mCpuProfiler;
+            if (profiler != null) {
+                profiler.begin(CpuTimeProfiler.Stage.GL_DRAW);
+            }
             GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
 
 /*            if (mFrameArrived && mSurfaceAttached) {
@@ -129,6 +139,9 @@ public class MediaCodecActivity extends Activity implements SurfaceHolder.Callba
                 mDrawCount++;
                 mFrameArrived = false;
             }
+            if (profiler != null) {
+                profiler.end(CpuTimeProfiler.Stage.GL_DRAW);
+            }
 
             synchronized (mDrawSyncObject) {
                 mDrawDone = true;
@@ -221,6 +234,7 @@ public class MediaCodecActivity extends Activity implements SurfaceHolder.Callba
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Log.d(TAG, "onCreate: Model: " + Build.MODEL);
+        CodecCatalog.setCacheFile(new File(getCacheDir(), CodecCatalog.CACHE_FILE_NAME));
 
         //getWindow().addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
         //getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -278,6 +292,15 @@ public class MediaCodecActivity extends Activity implements SurfaceHolder.Callba
         buttonStartDecoder.setLayoutParams(lp);
         buttonStartDecoder.setBackgroundColor(0x80E0E0E0);
         //buttonStartDecoder.setOnClickListener(mStartDecodeSurfaceListener);
+        //buttonStartDecoder.setOnClickListener(mStartMultiSessionListener);
+        //buttonStartDecoder.setOnClickListener(mStartSweepListener);
+        //buttonStartDecoder.setOnClickListener(mStartRdCurvesListener);
+        //buttonStartDecoder.setOnClickListener(mStartDecodeBenchmarkListener);
+        //buttonStartDecoder.setOnClickListener(mStartRtpLoopbackListener);
+        //buttonStartDecoder.setOnClickListener(mStartFecOverheadListener);
+        //buttonStartDecoder.setOnClickListener(mStartVp8AnalyzerListener);
+        //buttonStartDecoder.setOnClickListener(mStartIvfBatchAnalyzerListener);
+        //buttonStartDecoder.setOnClickListener(mStartIvfEditorListener);
         buttonStartDecoder.setOnClickListener(mStartDecodeWebRTCListener);
         mLayout.addView(buttonStartDecoder, lp);
 
@@ -322,10 +345,20 @@ public class MediaCodecActivity extends Activity implements SurfaceHolder.Callba
     }
 
 
+    // Lets the CPU time report of the test include the GL renderer thread.
+    private void shareCpuProfiler(CameraToIvfTest test) {
+        if (mRenderer != null) {
+            CpuTimeProfiler profiler = new CpuTimeProfiler();
+            test.setCpuProfiler(profiler);
+            mRenderer.setCpuProfiler(profiler);
+        }
+    }
+
     private OnClickListener mStartSurfaceCameraListener = new OnClickListener() {
         public void onClick(View v) {
             Log.d(TAG, "Start surface test. GUI thread id = " + Thread.currentThread().getId());
             CameraToIvfTest test = new CameraToIvfTest();
+            shareCpuProfiler(test);
             try {
                 if (useGlSurfaceView) {
                     test.testEncodeSurfaceCameraToIvf(mRenderer.getSurface(), mRenderer);
@@ -343,6 +376,7 @@ public class MediaCodecActivity extends Activity implements SurfaceHolder.Callba
         public void onClick(View v) {
             Log.d(TAG, "Start byte buffer test. GUI thread id = " + Thread.currentThread().getId());
             CameraToIvfTest test = new CameraToIvfTest();
+            shareCpuProfiler(test);
             try {
                 if (useGlSurfaceView) {
                     test.testEncodeBufferCameraToIvf(mRenderer.getSurface(), mRenderer);
@@ -391,5 +425,82 @@ public class MediaCodecActivity extends Activity implements SurfaceHolder.Callba
         }
     };
 
+    private OnClickListener mStartMultiSessionListener = new OnClickListener() {
+        public void onClick(View v) {
+            Log.d(TAG, "Start multi session test. GUI thread id = " + Thread.currentThread().getId());
+            MultiSessionTest test = new MultiSessionTest();
+            test.testSessionScaling(true, true);
+            Log.d(TAG, "Multi session test started");
+        }
+    };
+
+    private OnClickListener mStartSweepListener = new OnClickListener() {
+        public void onClick(View v) {
+            Log.d(TAG, "Start sweep benchmark. GUI thread id = " + Thread.currentThread().getId());
+            SweepBenchmark test = new SweepBenchmark();
+            test.testSweep();
+            Log.d(TAG, "Sweep benchmark started");
+        }
+    };
+
+    private OnClickListener mStartRdCurvesListener = new OnClickListener() {
+        public void onClick(View v) {
+            Log.d(TAG, "Start RD curves. GUI thread id = " + Thread.currentThread().getId());
+            RateDistortion test = new RateDistortion();
+            test.testRdCurves();
+            Log.d(TAG, "RD curves started");
+        }
+    };
+
+    private OnClickListener mStartDecodeBenchmarkListener = new OnClickListener() {
+        public void onClick(View v) {
+            Log.d(TAG, "Start decode benchmark. GUI thread id = " + Thread.currentThread().getId());
+            DecodeBenchmark.testDecodeThroughput(false);
+            Log.d(TAG, "Decode benchmark started");
+        }
+    };
+
+    private OnClickListener mStartRtpLoopbackListener = new OnClickListener() {
+        public void onClick(View v) {
+            Log.d(TAG, "Start RTP loopback. GUI thread id = " + Thread.currentThread().getId());
+            RtpLoopbackTest.testRtpLoopback();
+            Log.d(TAG, "RTP loopback started");
+        }
+    };
+
+    private OnClickListener mStartFecOverheadListener = new OnClickListener() {
+        public void onClick(View v) {
+            Log.d(TAG, "Start FEC overhead test. GUI thread id = " +
+                    Thread.currentThread().getId());
+            RtpLoopbackTest.testFecOverhead();
+            Log.d(TAG, "FEC overhead test started");
+        }
+    };
+
+    private OnClickListener mStartVp8AnalyzerListener = new OnClickListener() {
+        public void onClick(View v) {
+            Log.d(TAG, "Start VP8 analyzer. GUI thread id = " + Thread.currentThread().getId());
+            Vp8StreamAnalyzer.testAnalyze();
+            Log.d(TAG, "VP8 analyzer started");
+        }
+    };
+
+    private OnClickListener mStartIvfBatchAnalyzerListener = new OnClickListener() {
+        public void onClick(View v) {
+            Log.d(TAG, "Start IVF batch analyzer. GUI thread id = " +
+                    Thread.currentThread().getId());
+            IvfBatchAnalyzer.testBatchAnalyze();
+            Log.d(TAG, "IVF batch analyzer started");
+        }
+    };
+
+    private OnClickListener mStartIvfEditorListener = new OnClickListener() {
+        public void onClick(View v) {
+            Log.d(TAG, "Start IVF editor. GUI thread id = " + Thread.currentThread().getId());
+            IvfEditor.testEdit();
+            Log.d(TAG, "IVF editor started");
+        }
+    };
+
 }
 
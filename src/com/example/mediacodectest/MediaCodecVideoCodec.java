@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * VideoCodec backed by android.media.MediaCodec.
+ *
+ * In asynchronous mode the MediaCodec events are delivered on a LooperRunner
+ * thread owned by this object.  Asynchronous mode requires API 23 for the
+ * Handler argument of MediaCodec.setCallback(), see isAsyncModeSupported().
+ * getInputBuffer() and getOutputBuffer() use the MediaCodec methods of API 21
+ * when available, and the buffer arrays of getInputBuffers() and
+ * getOutputBuffers() on older devices.
+ */
+public class MediaCodecVideoCodec implements VideoCodec {
+    private final MediaCodec mCodec;
+    private final String mName;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private boolean mIsEncoder;
+    private String mMime;
+    private Format mLastOutputFormat;
+    private LooperRunner mCallbackThread;
+    private ByteBuffer[] mInputBuffers;     // below API 21 only
+    private ByteBuffer[] mOutputBuffers;    // below API 21 only
+
+    /**
+     * Creates the codec by its OpenMax component name.
+     */
+    public MediaCodecVideoCodec(String codecName) throws IOException {
+        mCodec = MediaCodec.createByCodecName(codecName);
+        if (mCodec == null) {
+            throw new IOException("Can not create codec " + codecName);
+        }
+        mName = codecName;
+    }
+
+    /**
+     * Tells if the device supports asynchronous mode, setCallback().
+     */
+    public static boolean isAsyncModeSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Tells if the device supports MediaCodec.setParameters(), used by
+     * requestSyncFrame() and setVideoBitrate().
+     */
+    public static boolean isParameterUpdateSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Configures the codec, see MediaCodec.configure().
+     *
+     * @param format     input format for encoders, output format for decoders
+     * @param surface    decoder output surface, or null
+     * @param flags      MediaCodec.CONFIGURE_FLAG_ENCODE for encoders
+     */
+    public void configure(MediaFormat format, Surface surface, int flags) {
+        mCodec.configure(format, surface, null, flags);
+        mLastOutputFormat = null;
+        mIsEncoder = (flags & MediaCodec.CONFIGURE_FLAG_ENCODE) != 0;
+        mMime = format.getString(MediaFormat.KEY_MIME);
+    }
+
+    /**
+     * Creates the encoder input surface.  Must be called between configure() and start().
+     */
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    /**
+     * Asks an encoder to produce a key frame soon.
+     *
+     * @throws UnsupportedOperationException below API 19
+     */
+    public void requestSyncFrame() {
+        if (!isParameterUpdateSupported()) {
+            throw new UnsupportedOperationException("Sync frame request requires API 19");
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(params);
+    }
+
+    /**
+     * Returns the output format reported by the last INFO_OUTPUT_FORMAT_CHANGED
+     * in synchronous mode since configure(), or null.  Kept across flush(), after
+     * which the codec does not report the format again.
+     */
+    public Format getLastOutputFormat() {
+        return mLastOutputFormat;
+    }
+
+    /**
+     * Returns the wrapped MediaCodec.
+     */
+    public MediaCodec getMediaCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public boolean isEncoder() {
+        return mIsEncoder;
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+        if (!hasBufferAccessors()) {
+            mInputBuffers = mCodec.getInputBuffers();
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        ByteBuffer[] buffers = mCodec.getInputBuffers();
+        if (!hasBufferAccessors()) {
+            mInputBuffers = buffers;
+        }
+        return buffers;
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        ByteBuffer[] buffers = mCodec.getOutputBuffers();
+        if (!hasBufferAccessors()) {
+            mOutputBuffers = buffers;
+        }
+        return buffers;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        if (hasBufferAccessors()) {
+            return mCodec.getInputBuffer(index);
+        }
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the output buffer with the given index.  Below API 21 the
+     * position and limit are not set to the data of the buffer, callers use
+     * the offset and size of BufferInfo.
+     */
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        if (hasBufferAccessors()) {
+            return mCodec.getOutputBuffer(index);
+        }
+        ByteBuffer buffer = mOutputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size,
+            long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        int result = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        if (result >= 0) {
+            info.set(mBufferInfo.offset, mBufferInfo.size,
+                    mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+        } else if (result == INFO_OUTPUT_FORMAT_CHANGED) {
+            mLastOutputFormat = getOutputFormat();
+        } else if (result == INFO_OUTPUT_BUFFERS_CHANGED && !hasBufferAccessors()) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+        return result;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public Format getOutputFormat() {
+        return toFormat(mCodec.getOutputFormat(), mMime);
+    }
+
+    @Override
+    public void flush() {
+        mCodec.flush();
+    }
+
+    /**
+     * Switches the codec to asynchronous mode.
+     *
+     * @throws UnsupportedOperationException below API 23
+     */
+    @Override
+    public void setCallback(final Callback callback) {
+        if (!isAsyncModeSupported()) {
+            throw new UnsupportedOperationException("Asynchronous mode requires API 23");
+        }
+        if (mCallbackThread == null) {
+            mCallbackThread = new LooperRunner();
+            try {
+                mCallbackThread.requestStart();
+            } catch (Exception e) {
+                throw new RuntimeException("Can not start callback thread", e);
+            }
+        }
+        final VideoCodec codec = this;
+        mCodec.setCallback(new MediaCodec.Callback() {
+            private final BufferInfo mInfo = new BufferInfo();
+
+            @Override
+            public void onInputBufferAvailable(MediaCodec mc, int index) {
+                callback.onInputBufferAvailable(codec, index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec mc, int index,
+                    MediaCodec.BufferInfo info) {
+                mInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                callback.onOutputBufferAvailable(codec, index, mInfo);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec mc, MediaFormat format) {
+                callback.onOutputFormatChanged(codec, toFormat(format, mMime));
+            }
+
+            @Override
+            public void onError(MediaCodec mc, MediaCodec.CodecException e) {
+                callback.onError(codec, e);
+            }
+        }, mCallbackThread.getHandler());
+    }
+
+    /**
+     * @throws UnsupportedOperationException below API 19
+     */
+    @Override
+    public void setVideoBitrate(int bitrate) {
+        if (!isParameterUpdateSupported()) {
+            throw new UnsupportedOperationException("Bitrate update requires API 19");
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+        mInputBuffers = null;
+        mOutputBuffers = null;
+        if (mCallbackThread != null) {
+            mCallbackThread.requestStop();
+            mCallbackThread = null;
+        }
+    }
+
+    // MediaCodec.getInputBuffer() and getOutputBuffer() are API 21.
+    private static boolean hasBufferAccessors() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Converts MediaFormat to VideoCodec.Format.  Stride and slice height are
+     * parsed from undocumented values and default to width and height.
+     */
+    public static Format toFormat(MediaFormat format, String defaultMime) {
+        String mime = format.containsKey(MediaFormat.KEY_MIME) ?
+                format.getString(MediaFormat.KEY_MIME) : defaultMime;
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int colorFormat = format.containsKey(MediaFormat.KEY_COLOR_FORMAT) ?
+                format.getInteger(MediaFormat.KEY_COLOR_FORMAT) : 0;
+        int stride = format.containsKey("stride") ? format.getInteger("stride") : width;
+        int sliceHeight = format.containsKey("slice-height") ?
+                format.getInteger("slice-height") : height;
+        return new Format(mime, width, height, colorFormat,
+                Math.max(width, stride), Math.max(height, sliceHeight));
+    }
+}
@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the first video track of an MP4 file, plain or fragmented, e.g.
+ * written by MediaMuxer or Fmp4Writer.
+ *
+ * The sample tables (stsz, stsc, stco/co64, stts, ctts, stss) and the track
+ * runs of the movie fragments are parsed into a FrameIndex when the file is
+ * opened.  Samples are read from the memory mapped file: getFrameBuffer()
+ * returns a view without a copy, readFrame() copies straight into the target
+ * buffer.  A file cut short, e.g. by a crash while recording, is read up to
+ * its last complete sample.
+ *
+ * H.264 samples are converted from length prefixed NAL units to Annex B by
+ * readFrame(), and getFrameSize() returns the converted size, which is larger
+ * with 1 or 2 byte lengths; the SPS and PPS are returned by getCodecConfig().
+ */
+public class Mp4Reader implements EncodedFrameSource {
+    private static final int MOOV = fourcc("moov");
+    private static final int MOOF = fourcc("moof");
+    private static final int TRAK = fourcc("trak");
+    private static final int TKHD = fourcc("tkhd");
+    private static final int MDIA = fourcc("mdia");
+    private static final int MDHD = fourcc("mdhd");
+    private static final int HDLR = fourcc("hdlr");
+    private static final int MINF = fourcc("minf");
+    private static final int STBL = fourcc("stbl");
+    private static final int STSD = fourcc("stsd");
+    private static final int STSZ = fourcc("stsz");
+    private static final int STSC = fourcc("stsc");
+    private static final int STCO = fourcc("stco");
+    private static final int CO64 = fourcc("co64");
+    private static final int STTS = fourcc("stts");
+    private static final int CTTS = fourcc("ctts");
+    private static final int STSS = fourcc("stss");
+    private static final int MVEX = fourcc("mvex");
+    private static final int TREX = fourcc("trex");
+    private static final int TRAF = fourcc("traf");
+    private static final int TFHD = fourcc("tfhd");
+    private static final int TFDT = fourcc("tfdt");
+    private static final int TRUN = fourcc("trun");
+    private static final int VIDE = fourcc("vide");
+    private static final int AVCC = fourcc("avcC");
+    private static final int SAMPLE_ENTRY_SIZE = 78;
+    private static final int SAMPLE_FLAG_NON_SYNC = 0x10000;
+
+    /**
+     * Position and type of a box.
+     */
+    private static class Box {
+        int type;
+        long start;
+        long contentStart;
+        long end;
+    }
+
+    private final MappedFile mFile;
+    private final FrameIndex mIndex = new FrameIndex();
+    private String mMime;
+    private int mWidth;
+    private int mHeight;
+    private int mTrackId = -1;
+    private long mTimescale;
+    private int mNalLengthSize;
+    private byte[] mCodecConfig;
+    // Track extends defaults.
+    private int mDefaultDuration;
+    private int mDefaultSize;
+    private int mDefaultFlags;
+    private long mNextDecodeTime;
+
+    /**
+     * Opens the file and indexes its samples.
+     *
+     * @param filename   name of the MP4 file
+     */
+    public Mp4Reader(String filename) throws IOException {
+        mFile = new MappedFile(filename);
+        try {
+            Box box = new Box();
+            long position = 0;
+            while (readBox(position, mFile.length(), box)) {
+                if (box.type == MOOV) {
+                    parseMoov(box.contentStart, box.end);
+                } else if (box.type == MOOF && mTrackId >= 0) {
+                    parseMoof(box.start, box.contentStart, box.end);
+                }
+                position = box.end;
+            }
+            if (mTrackId < 0) {
+                throw new IOException("No video track in " + filename);
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            mFile.close();
+            throw new IOException("Invalid MP4 file " + filename + ": " + e);
+        }
+    }
+
+    @Override
+    public String getMime() {
+        return mMime;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return mIndex.size();
+    }
+
+    @Override
+    public int getFrameSize(int frameIndex) {
+        if (mNalLengthSize > 0 && mNalLengthSize < 4) {
+            // Each shorter length prefix becomes a 4 byte start code.
+            try {
+                return getAnnexBSize(getFrameBuffer(frameIndex));
+            } catch (IOException e) {
+                // Sample past the file end, readFrame() throws the same.
+            }
+        }
+        return mIndex.getSize(frameIndex);
+    }
+
+    @Override
+    public double getFrameTimestamp(int frameIndex) {
+        if (frameIndex >= mIndex.size() || frameIndex < 0) {
+            return 0;
+        }
+        return mIndex.getTimeUs(frameIndex) / 1e6;
+    }
+
+    public boolean isKeyFrame(int frameIndex) {
+        return mIndex.isKeyFrame(frameIndex);
+    }
+
+    /**
+     * Returns the H.264 SPS and PPS in Annex B format, e.g. for csd-0, or
+     * null for other formats.
+     */
+    public byte[] getCodecConfig() {
+        return mCodecConfig;
+    }
+
+    /**
+     * Returns a view of a sample as stored in the file, without a copy.
+     */
+    public ByteBuffer getFrameBuffer(int frameIndex) throws IOException {
+        return mFile.slice(mIndex.getOffset(frameIndex), mIndex.getSize(frameIndex));
+    }
+
+    @Override
+    public byte[] readFrame(int frameIndex) throws IOException {
+        if (frameIndex >= mIndex.size() || frameIndex < 0) {
+            return null;
+        }
+        ByteBuffer sample = getFrameBuffer(frameIndex);
+        ByteBuffer frame = ByteBuffer.wrap(new byte[mNalLengthSize > 0 ?
+                getAnnexBSize(sample) : sample.remaining()]);
+        readFrame(frameIndex, frame);
+        return frame.array();
+    }
+
+    @Override
+    public int readFrame(int frameIndex, ByteBuffer buffer) throws IOException {
+        if (frameIndex >= mIndex.size() || frameIndex < 0) {
+            return -1;
+        }
+        ByteBuffer sample = getFrameBuffer(frameIndex);
+        int start = buffer.position();
+        if (mNalLengthSize == 0) {
+            buffer.put(sample);
+            return buffer.position() - start;
+        }
+        // Length prefixed NAL units to Annex B, refused before a partial write.
+        int size = getAnnexBSize(sample);
+        if (size > buffer.remaining()) {
+            throw new BufferOverflowException();
+        }
+        while (sample.remaining() >= mNalLengthSize) {
+            int length = readNalLength(sample);
+            if (length > sample.remaining()) {
+                throw new IOException("NAL unit of " + length + " bytes over sample end");
+            }
+            buffer.put((byte)0).put((byte)0).put((byte)0).put((byte)1);
+            int limit = sample.limit();
+            sample.limit(sample.position() + length);
+            buffer.put(sample);
+            sample.limit(limit);
+        }
+        return buffer.position() - start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return mMime + " " + mWidth + "x" + mHeight + ". Frames " + mIndex.size() +
+                ", key frames " + mIndex.getKeyFrameCount();
+    }
+
+    private int getAnnexBSize(ByteBuffer sample) {
+        int size = 0;
+        int position = sample.position();
+        while (sample.remaining() >= mNalLengthSize) {
+            int length = readNalLength(sample);
+            size += 4 + length;
+            sample.position(Math.min(sample.limit(), sample.position() + length));
+        }
+        sample.position(position);
+        return size;
+    }
+
+    private int readNalLength(ByteBuffer sample) {
+        int length = 0;
+        for (int i = 0; i < mNalLengthSize; i++) {
+            length = (length << 8) | (sample.get() & 0xFF);
+        }
+        return length;
+    }
+
+    private void parseMoov(long start, long end) throws IOException {
+        Box box = new Box();
+        long mvexStart = -1;
+        long mvexEnd = -1;
+        for (long position = start; readBox(position, end, box); position = box.end) {
+            if (box.type == TRAK && mTrackId < 0) {
+                parseTrak(box.contentStart, box.end);
+            } else if (box.type == MVEX) {
+                mvexStart = box.contentStart;
+                mvexEnd = box.end;
+            }
+        }
+        if (mvexStart >= 0 && mTrackId >= 0) {
+            for (long position = mvexStart; readBox(position, mvexEnd, box);
+                    position = box.end) {
+                if (box.type == TREX && mFile.getInt(box.contentStart + 4) == mTrackId) {
+                    mDefaultDuration = mFile.getInt(box.contentStart + 12);
+                    mDefaultSize = mFile.getInt(box.contentStart + 16);
+                    mDefaultFlags = mFile.getInt(box.contentStart + 20);
+                }
+            }
+        }
+    }
+
+    private void parseTrak(long start, long end) throws IOException {
+        Box tkhd = findBox(start, end, TKHD);
+        Box mdia = tkhd != null ? findBox(start, end, MDIA) : null;
+        Box hdlr = mdia != null ? findBox(mdia.contentStart, mdia.end, HDLR) : null;
+        if (hdlr == null || mFile.getInt(hdlr.contentStart + 8) != VIDE) {
+            return;
+        }
+        Box mdhd = findBox(mdia.contentStart, mdia.end, MDHD);
+        Box minf = findBox(mdia.contentStart, mdia.end, MINF);
+        Box stbl = minf != null ? findBox(minf.contentStart, minf.end, STBL) : null;
+        Box stsd = stbl != null ? findBox(stbl.contentStart, stbl.end, STSD) : null;
+        if (mdhd == null || stsd == null) {
+            throw new IOException("Incomplete video track");
+        }
+        boolean version1 = mFile.get(tkhd.contentStart) == 1;
+        int trackId = mFile.getInt(tkhd.contentStart + (version1 ? 20 : 12));
+        version1 = mFile.get(mdhd.contentStart) == 1;
+        mTimescale = mFile.getInt(mdhd.contentStart + (version1 ? 20 : 12)) & 0xFFFFFFFFL;
+        if (mTimescale == 0) {
+            throw new IOException("No timescale");
+        }
+        parseSampleEntry(stsd.contentStart + 8, stsd.end);
+        mTrackId = trackId;
+        parseSampleTables(stbl.contentStart, stbl.end);
+    }
+
+    private void parseSampleEntry(long start, long end) throws IOException {
+        Box entry = new Box();
+        if (!readBox(start, end, entry)) {
+            throw new IOException("No sample entry");
+        }
+        String type = new String(new char[] {
+                (char)(entry.type >>> 24), (char)((entry.type >> 16) & 0xFF),
+                (char)((entry.type >> 8) & 0xFF), (char)(entry.type & 0xFF) });
+        if (type.equals("avc1") || type.equals("avc3")) {
+            mMime = "video/avc";
+        } else if (type.equals("vp08")) {
+            mMime = "video/x-vnd.on2.vp8";
+        } else if (type.equals("vp09")) {
+            mMime = "video/x-vnd.on2.vp9";
+        } else {
+            throw new IOException("Unsupported sample entry " + type);
+        }
+        mWidth = mFile.getShort(entry.contentStart + 24);
+        mHeight = mFile.getShort(entry.contentStart + 26);
+        Box avcC = findBox(entry.contentStart + SAMPLE_ENTRY_SIZE, entry.end, AVCC);
+        if (avcC != null) {
+            parseAvcC(avcC.contentStart, avcC.end);
+        } else if (mMime.equals("video/avc") && type.equals("avc1")) {
+            throw new IOException("No avcC");
+        }
+    }
+
+    // Reads the NAL length size and the parameter sets of avcC.
+    private void parseAvcC(long start, long end) throws IOException {
+        mNalLengthSize = (mFile.get(start + 4) & 3) + 1;
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        long position = start + 5;
+        for (int type = 0; type < 2; type++) {
+            int count = mFile.get(position++) & (type == 0 ? 0x1F : 0xFF);
+            for (int i = 0; i < count; i++) {
+                int length = mFile.getShort(position);
+                position += 2;
+                if (position + length > end) {
+                    throw new IOException("Invalid avcC");
+                }
+                config.write(new byte[] { 0, 0, 0, 1 });
+                ByteBuffer nal = mFile.slice(position, length);
+                while (nal.hasRemaining()) {
+                    config.write(nal.get());
+                }
+                position += length;
+            }
+        }
+        mCodecConfig = config.toByteArray();
+    }
+
+    private void parseSampleTables(long start, long end) throws IOException {
+        Box stsz = findBox(start, end, STSZ);
+        Box stsc = findBox(start, end, STSC);
+        Box stco = findBox(start, end, STCO);
+        Box co64 = stco == null ? findBox(start, end, CO64) : null;
+        Box stts = findBox(start, end, STTS);
+        Box ctts = findBox(start, end, CTTS);
+        Box stss = findBox(start, end, STSS);
+        if (stsz == null || stsc == null || stts == null || (stco == null && co64 == null)) {
+            throw new IOException("Incomplete sample tables");
+        }
+        int sampleSize = mFile.getInt(stsz.contentStart + 4);
+        int sampleCount = mFile.getInt(stsz.contentStart + 8);
+        if (sampleCount == 0) {
+            return;     // Fragmented.
+        }
+        Box chunks = stco != null ? stco : co64;
+        int chunkCount = mFile.getInt(chunks.contentStart + 4);
+        int stscCount = mFile.getInt(stsc.contentStart + 4);
+        int syncCount = stss != null ? mFile.getInt(stss.contentStart + 4) : 0;
+        int syncIndex = 0;
+
+        // Iterators over the run length coded tables.
+        int sttsIndex = 0;
+        int sttsLeft = 0;
+        int delta = 0;
+        int cttsCount = ctts != null ? mFile.getInt(ctts.contentStart + 4) : 0;
+        int cttsIndex = 0;
+        int cttsLeft = 0;
+        int compositionOffset = 0;
+        long decodeTime = 0;
+
+        int sample = 0;
+        int stscIndex = 0;
+        for (int chunk = 0; chunk < chunkCount && sample < sampleCount; chunk++) {
+            // stsc first chunks are 1 based.
+            while (stscIndex + 1 < stscCount &&
+                    mFile.getInt(stsc.contentStart + 8 + 12 * (stscIndex + 1)) <= chunk + 1) {
+                stscIndex++;
+            }
+            int samplesPerChunk = mFile.getInt(stsc.contentStart + 12 + 12 * stscIndex);
+            long offset = stco != null ?
+                    mFile.getInt(stco.contentStart + 8 + 4 * chunk) & 0xFFFFFFFFL :
+                    mFile.getLong(co64.contentStart + 8 + 8 * chunk);
+            for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++, sample++) {
+                int size = sampleSize != 0 ? sampleSize :
+                        mFile.getInt(stsz.contentStart + 12 + 4 * sample);
+                while (sttsLeft == 0 && sttsIndex < mFile.getInt(stts.contentStart + 4)) {
+                    sttsLeft = mFile.getInt(stts.contentStart + 8 + 8 * sttsIndex);
+                    delta = mFile.getInt(stts.contentStart + 12 + 8 * sttsIndex);
+                    sttsIndex++;
+                }
+                while (cttsLeft == 0 && cttsIndex < cttsCount) {
+                    cttsLeft = mFile.getInt(ctts.contentStart + 8 + 8 * cttsIndex);
+                    compositionOffset = mFile.getInt(ctts.contentStart + 12 + 8 * cttsIndex);
+                    cttsIndex++;
+                }
+                boolean keyFrame = stss == null;
+                if (syncIndex < syncCount &&
+                        mFile.getInt(stss.contentStart + 8 + 4 * syncIndex) == sample + 1) {
+                    keyFrame = true;
+                    syncIndex++;
+                }
+                if (!addSample(offset, size, decodeTime + compositionOffset, keyFrame)) {
+                    return;
+                }
+                offset += size;
+                decodeTime += delta;
+                sttsLeft--;
+                cttsLeft--;
+            }
+        }
+    }
+
+    private void parseMoof(long moofStart, long start, long end) throws IOException {
+        Box box = new Box();
+        for (long position = start; readBox(position, end, box); position = box.end) {
+            if (box.type == TRAF) {
+                parseTraf(moofStart, box.contentStart, box.end);
+            }
+        }
+    }
+
+    private void parseTraf(long moofStart, long start, long end) throws IOException {
+        Box tfhd = findBox(start, end, TFHD);
+        if (tfhd == null || mFile.getInt(tfhd.contentStart + 4) != mTrackId) {
+            return;
+        }
+        int flags = mFile.getInt(tfhd.contentStart) & 0xFFFFFF;
+        long position = tfhd.contentStart + 8;
+        long baseOffset = moofStart;
+        if ((flags & 0x1) != 0) {
+            baseOffset = mFile.getLong(position);
+            position += 8;
+        }
+        if ((flags & 0x2) != 0) {
+            position += 4;      // sample description index
+        }
+        int defaultDuration = mDefaultDuration;
+        int defaultSize = mDefaultSize;
+        int defaultFlags = mDefaultFlags;
+        if ((flags & 0x8) != 0) {
+            defaultDuration = mFile.getInt(position);
+            position += 4;
+        }
+        if ((flags & 0x10) != 0) {
+            defaultSize = mFile.getInt(position);
+            position += 4;
+        }
+        if ((flags & 0x20) != 0) {
+            defaultFlags = mFile.getInt(position);
+        }
+        Box tfdt = findBox(start, end, TFDT);
+        if (tfdt != null) {
+            mNextDecodeTime = mFile.get(tfdt.contentStart) == 1 ?
+                    mFile.getLong(tfdt.contentStart + 4) :
+                    mFile.getInt(tfdt.contentStart + 4) & 0xFFFFFFFFL;
+        }
+
+        Box box = new Box();
+        long dataOffset = baseOffset;
+        for (long p = start; readBox(p, end, box); p = box.end) {
+            if (box.type != TRUN) {
+                continue;
+            }
+            int trunFlags = mFile.getInt(box.contentStart) & 0xFFFFFF;
+            int count = mFile.getInt(box.contentStart + 4);
+            position = box.contentStart + 8;
+            if ((trunFlags & 0x1) != 0) {
+                dataOffset = baseOffset + mFile.getInt(position);
+                position += 4;
+            }
+            int firstFlags = defaultFlags;
+            if ((trunFlags & 0x4) != 0) {
+                firstFlags = mFile.getInt(position);
+                position += 4;
+            }
+            for (int i = 0; i < count; i++) {
+                int duration = defaultDuration;
+                int size = defaultSize;
+                int sampleFlags = i == 0 ? firstFlags : defaultFlags;
+                int compositionOffset = 0;
+                if ((trunFlags & 0x100) != 0) {
+                    duration = mFile.getInt(position);
+                    position += 4;
+                }
+                if ((trunFlags & 0x200) != 0) {
+                    size = mFile.getInt(position);
+                    position += 4;
+                }
+                if ((trunFlags & 0x400) != 0) {
+                    sampleFlags = mFile.getInt(position);
+                    position += 4;
+                }
+                if ((trunFlags & 0x800) != 0) {
+                    // Signed in version 1, taken as signed in version 0 too.
+                    compositionOffset = mFile.getInt(position);
+                    position += 4;
+                }
+                if (!addSample(dataOffset, size, mNextDecodeTime + compositionOffset,
+                        (sampleFlags & SAMPLE_FLAG_NON_SYNC) == 0)) {
+                    return;
+                }
+                dataOffset += size;
+                mNextDecodeTime += duration & 0xFFFFFFFFL;
+            }
+        }
+    }
+
+    // Adds a sample unless it is past the end of the file.
+    private boolean addSample(long offset, int size, long time, boolean keyFrame) {
+        if (size < 0 || offset + size > mFile.length()) {
+            return false;
+        }
+        mIndex.add(offset, size, time * 1000000 / mTimescale, keyFrame);
+        return true;
+    }
+
+    /**
+     * Reads the header of the box at position.
+     *
+     * @return false at the end, or if the box is not complete
+     */
+    private boolean readBox(long position, long end, Box box) throws IOException {
+        if (position + 8 > end) {
+            return false;
+        }
+        long size = mFile.getInt(position) & 0xFFFFFFFFL;
+        box.type = mFile.getInt(position + 4);
+        box.start = position;
+        box.contentStart = position + 8;
+        if (size == 1) {
+            if (position + 16 > end) {
+                return false;
+            }
+            size = mFile.getLong(position + 8);
+            box.contentStart += 8;
+        } else if (size == 0) {
+            size = end - position;
+        }
+        box.end = position + size;
+        return size >= box.contentStart - position && box.end <= end;
+    }
+
+    private Box findBox(long start, long end, int type) throws IOException {
+        Box box = new Box();
+        for (long position = start; readBox(position, end, box); position = box.end) {
+            if (box.type == type) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) |
+                type.charAt(3);
+    }
+}
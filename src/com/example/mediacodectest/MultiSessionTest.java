@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaFormat;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs N simultaneous encode and/or decode sessions, each on its own thread,
+ * for N = 1, 2, ... up to MAX_SESSIONS and logs the scaling curve: total and
+ * per-session throughput and latency for every N, and the first N at which a
+ * session fails or falls below the target frame rate.
+ */
+public class MultiSessionTest {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final File INPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final String INPUT_FILE = "mac_marco_moving.320_240";
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_RATE = 30;
+    private static final int BITRATE = 300000;
+    private static final String VP8_MIME = "video/x-vnd.on2.vp8";
+    private static final int IFRAME_INTERVAL = 10;
+    private static final int VIDEO_ControlRateConstant = 2;
+
+    private static final int MAX_SESSIONS = 8;
+    private static final long SESSION_DURATION_MS = 10000;
+    private static final double DEGRADED_FPS_RATIO = 0.9;   // of the target frame rate
+    private static boolean FORCE_SW_CODEC = false;
+    private static boolean USE_FAKE_CODEC = false;
+
+    private CodecSession.CodecFactory mFactory;
+    private boolean mPlanarInput;
+    private Thread mTestRunner;
+
+    /**
+     * Result of one step of the scaling test.
+     */
+    public static class StepResult {
+        public int sessions;
+        public int failedSessions;
+        public int degradedSessions;
+        public double totalFps;
+        public double minFps;
+        public final LatencyStats latency = new LatencyStats();
+
+        public boolean isDegraded() {
+            return failedSessions > 0 || degradedSessions > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Sessions " + sessions + ": total fps " + String.format("%.1f", totalFps) +
+                    ". Min fps " + String.format("%.1f", minFps) + ". Failed " +
+                    failedSessions + ". Degraded " + degradedSessions + ". Latency " + latency;
+        }
+    }
+
+    /** test entry point */
+    public void testSessionScaling(final boolean encode, final boolean decode) {
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    runScaling(encode, decode, MAX_SESSIONS);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        mTestRunner = new Thread(r, "MultiSessionTest");
+        mTestRunner.start();
+    }
+
+    /**
+     * Sets the factory of session codecs, by default MediaCodec or FakeVideoCodec
+     * according to USE_FAKE_CODEC.
+     */
+    public void setCodecFactory(CodecSession.CodecFactory factory, boolean planarInput) {
+        mFactory = factory;
+        mPlanarInput = planarInput;
+    }
+
+    /**
+     * Increases the number of concurrent sessions until all sessions fail or
+     * maxSessions is reached.  Every step runs encode and decode sessions
+     * alternately if both are enabled.
+     *
+     * @return results of every step
+     */
+    public List<StepResult> runScaling(boolean encode, boolean decode, int maxSessions)
+            throws Exception {
+        if (mFactory == null) {
+            createDefaultFactory();
+        }
+        String yuvPath = new File(INPUT_DIR, INPUT_FILE + ".yuv").toString();
+        String ivfPath = new File(INPUT_DIR, INPUT_FILE + ".ivf").toString();
+        if (!new File(yuvPath).exists()) {
+            yuvPath = null;
+        }
+
+        List<StepResult> results = new ArrayList<StepResult>();
+        int firstDegraded = -1;
+        for (int n = 1; n <= maxSessions; n++) {
+            List<CodecSession> sessions = new ArrayList<CodecSession>();
+            for (int i = 0; i < n; i++) {
+                boolean isEncoder = encode && (!decode || i % 2 == 0);
+                CodecSession session = new CodecSession(i, isEncoder, mFactory,
+                        WIDTH, HEIGHT, BITRATE, FRAME_RATE, SESSION_DURATION_MS);
+                session.setYuvSource(yuvPath, mPlanarInput);
+                session.setIvfSource(ivfPath);
+                sessions.add(session);
+            }
+            StepResult result = runSessions(sessions);
+            results.add(result);
+            Log.d(TAG, result.toString());
+            if (result.isDegraded() && firstDegraded < 0) {
+                firstDegraded = n;
+            }
+            if (result.failedSessions == n) {
+                break;
+            }
+        }
+
+        Log.d(TAG, "Session scaling (" + (encode ? "encode " : "") + (decode ? "decode" : "") +
+                ", " + WIDTH + "x" + HEIGHT + " @ " + FRAME_RATE + " fps):");
+        for (StepResult result : results) {
+            Log.d(TAG, "  " + result);
+        }
+        if (firstDegraded > 0) {
+            Log.d(TAG, "Codec fails or degrades at " + firstDegraded + " sessions.");
+        } else {
+            Log.d(TAG, "No degradation up to " + maxSessions + " sessions.");
+        }
+        return results;
+    }
+
+    /**
+     * Runs the sessions concurrently, one thread each, and collects the results.
+     */
+    public StepResult runSessions(List<CodecSession> sessions) throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (CodecSession session : sessions) {
+            threads.add(new Thread(session, "Session " + session.getId()));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        StepResult result = new StepResult();
+        result.sessions = sessions.size();
+        result.minFps = Double.MAX_VALUE;
+        for (CodecSession session : sessions) {
+            Log.d(TAG, "  " + session);
+            if (session.getFailure() != null) {
+                result.failedSessions++;
+                result.minFps = 0;
+                continue;
+            }
+            double fps = session.getFps();
+            result.totalFps += fps;
+            result.minFps = Math.min(result.minFps, fps);
+            if (session.getTargetFrameRate() > 0 &&
+                    fps < DEGRADED_FPS_RATIO * session.getTargetFrameRate()) {
+                result.degradedSessions++;
+            }
+            result.latency.merge(session.getLatency());
+        }
+        if (result.minFps == Double.MAX_VALUE) {
+            result.minFps = 0;
+        }
+        return result;
+    }
+
+    private void createDefaultFactory() throws Exception {
+        if (USE_FAKE_CODEC) {
+            mFactory = new CodecSession.CodecFactory() {
+                @Override
+                public VideoCodec createEncoder(int width, int height, int bitrate, int frameRate) {
+                    FakeVideoCodec encoder = new FakeVideoCodec("fake.encoder", VP8_MIME, true,
+                            width, height);
+                    encoder.setBitrate(bitrate, frameRate);
+                    encoder.start();
+                    return encoder;
+                }
+
+                @Override
+                public VideoCodec createDecoder(int width, int height) {
+                    FakeVideoCodec decoder = new FakeVideoCodec("fake.decoder", VP8_MIME, false,
+                            width, height);
+                    decoder.start();
+                    return decoder;
+                }
+            };
+            mPlanarInput = true;
+            return;
+        }
+
+        CodecCatalog catalog = CodecCatalog.getInstance();
+        final CodecCatalog.CodecProperties encoderProperties =
+                catalog.getCodecProperties(VP8_MIME, true, FORCE_SW_CODEC);
+        final CodecCatalog.CodecProperties decoderProperties =
+                catalog.getCodecProperties(VP8_MIME, false, FORCE_SW_CODEC);
+        if (encoderProperties == null || decoderProperties == null) {
+            throw new RuntimeException("No VP8 codecs");
+        }
+        mPlanarInput = encoderProperties.colorFormat == CodecCapabilities.COLOR_FormatYUV420Planar;
+        mFactory = new CodecSession.CodecFactory() {
+            @Override
+            public VideoCodec createEncoder(int width, int height, int bitrate, int frameRate)
+                    throws IOException {
+                MediaFormat format = MediaFormat.createVideoFormat(VP8_MIME, width, height);
+                format.setInteger("bitrate-mode", VIDEO_ControlRateConstant);
+                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, encoderProperties.colorFormat);
+                format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+                format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+                format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+                MediaCodecVideoCodec encoder = new MediaCodecVideoCodec(encoderProperties.codecName);
+                try {
+                    encoder.configure(format, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                    encoder.start();
+                } catch (RuntimeException e) {
+                    // Out of codec instances or resources.
+                    encoder.release();
+                    throw e;
+                }
+                return encoder;
+            }
+
+            @Override
+            public VideoCodec createDecoder(int width, int height) throws IOException {
+                MediaFormat format = MediaFormat.createVideoFormat(VP8_MIME, width, height);
+                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, decoderProperties.colorFormat);
+                MediaCodecVideoCodec decoder = new MediaCodecVideoCodec(decoderProperties.codecName);
+                try {
+                    decoder.configure(format, null, 0);
+                    decoder.start();
+                } catch (RuntimeException e) {
+                    decoder.release();
+                    throw e;
+                }
+                return decoder;
+            }
+        };
+    }
+}
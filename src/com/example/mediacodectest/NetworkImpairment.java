@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simulated network link for encoded frames.
+ *
+ * Frames sent at a time arrive after a delay drawn from a distribution;
+ * frames are lost independently with a probability, and in bursts by a two
+ * state (Gilbert) model which drops every frame while in the bad state.  The
+ * link keeps frames in order - a frame never arrives before the previous one
+ * - except for frames picked for reordering, which get an extra delay.
+ *
+ * Time is a virtual clock in microseconds supplied by the caller and the
+ * random numbers come from a seeded generator, so a run is deterministic.
+ * Not thread safe.
+ */
+public class NetworkImpairment {
+    public enum DelayDistribution {
+        CONSTANT,   // base delay
+        UNIFORM,    // base + [0, jitter)
+        NORMAL,     // base + jitter * N(0, 1), at least 0
+        PARETO      // base + heavy tail with scale jitter
+    }
+
+    private static final double PARETO_SHAPE = 2.5;
+
+    /**
+     * An encoded frame on the way from the sender to the decoder.
+     */
+    public static class Frame {
+        public Frame(int sequenceNumber, long presentationTimeUs, byte[] data) {
+            this.sequenceNumber = sequenceNumber;
+            this.presentationTimeUs = presentationTimeUs;
+            this.data = data;
+            this.keyFrame = Vp8FrameHeader.isKeyFrame(data);
+        }
+
+        public final int sequenceNumber;
+        public final long presentationTimeUs;
+        public final byte[] data;
+        public final boolean keyFrame;
+        public long sendTimeUs;
+        public long arrivalTimeUs;
+    }
+
+    private final Random mRandom;
+    private DelayDistribution mDistribution = DelayDistribution.CONSTANT;
+    private long mBaseDelayUs;
+    private long mJitterUs;
+    private double mLossProbability;
+    private double mBurstEnterProbability;
+    private double mBurstExitProbability = 1;
+    private double mReorderProbability;
+    private long mReorderDelayUs;
+
+    private final PriorityQueue<Frame> mInFlight = new PriorityQueue<Frame>(16,
+            new Comparator<Frame>() {
+                @Override
+                public int compare(Frame f1, Frame f2) {
+                    if (f1.arrivalTimeUs != f2.arrivalTimeUs) {
+                        return f1.arrivalTimeUs < f2.arrivalTimeUs ? -1 : 1;
+                    }
+                    return f1.sequenceNumber - f2.sequenceNumber;
+                }
+            });
+    private boolean mBurst;
+    private long mLastArrivalTimeUs;
+
+    // Statistics.
+    private int mSentCount;
+    private int mLostCount;
+    private int mBurstLostCount;
+    private int mBurstCount;
+    private int mReorderedCount;
+    private long mDelaySumUs;
+    private long mMaxDelayUs;
+
+    public NetworkImpairment(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    public void setDelay(DelayDistribution distribution, long baseDelayUs, long jitterUs) {
+        mDistribution = distribution;
+        mBaseDelayUs = baseDelayUs;
+        mJitterUs = jitterUs;
+    }
+
+    /**
+     * Sets the probability of independent frame loss.
+     */
+    public void setLoss(double probability) {
+        mLossProbability = probability;
+    }
+
+    /**
+     * Sets the burst loss model.  The average burst length is 1 / exitProbability.
+     *
+     * @param enterProbability   probability per frame to start a burst
+     * @param exitProbability    probability per frame to end a burst
+     */
+    public void setBurstLoss(double enterProbability, double exitProbability) {
+        mBurstEnterProbability = enterProbability;
+        mBurstExitProbability = exitProbability;
+    }
+
+    /**
+     * Sets the probability of a frame to be delayed by extraDelayUs more,
+     * so that following frames can overtake it.
+     */
+    public void setReordering(double probability, long extraDelayUs) {
+        mReorderProbability = probability;
+        mReorderDelayUs = extraDelayUs;
+    }
+
+    /**
+     * Sends a frame.
+     *
+     * @return false if the frame is lost
+     */
+    public boolean send(Frame frame, long nowUs) {
+        mSentCount++;
+        // Burst state changes before the frame is sent.
+        if (mBurst) {
+            if (mRandom.nextDouble() < mBurstExitProbability) {
+                mBurst = false;
+            }
+        } else if (mRandom.nextDouble() < mBurstEnterProbability) {
+            mBurst = true;
+            mBurstCount++;
+        }
+        if (mBurst) {
+            mLostCount++;
+            mBurstLostCount++;
+            return false;
+        }
+        if (mRandom.nextDouble() < mLossProbability) {
+            mLostCount++;
+            return false;
+        }
+
+        long arrivalTimeUs = nowUs + getDelayUs();
+        if (mReorderProbability > 0 && mRandom.nextDouble() < mReorderProbability) {
+            arrivalTimeUs += mReorderDelayUs;
+            mReorderedCount++;
+        } else {
+            // In order with the frames sent before, except the reordered ones.
+            arrivalTimeUs = Math.max(arrivalTimeUs, mLastArrivalTimeUs);
+            mLastArrivalTimeUs = arrivalTimeUs;
+        }
+        frame.sendTimeUs = nowUs;
+        frame.arrivalTimeUs = arrivalTimeUs;
+        mDelaySumUs += arrivalTimeUs - nowUs;
+        mMaxDelayUs = Math.max(mMaxDelayUs, arrivalTimeUs - nowUs);
+        mInFlight.add(frame);
+        return true;
+    }
+
+    /**
+     * Returns the next frame arrived by the given time, or null.
+     */
+    public Frame poll(long nowUs) {
+        Frame frame = mInFlight.peek();
+        if (frame == null || frame.arrivalTimeUs > nowUs) {
+            return null;
+        }
+        return mInFlight.poll();
+    }
+
+    /**
+     * Returns the arrival time of the next frame, or Long.MAX_VALUE if no
+     * frame is in flight.
+     */
+    public long getNextArrivalTimeUs() {
+        Frame frame = mInFlight.peek();
+        return frame == null ? Long.MAX_VALUE : frame.arrivalTimeUs;
+    }
+
+    public boolean isEmpty() {
+        return mInFlight.isEmpty();
+    }
+
+    public int getLostCount() {
+        return mLostCount;
+    }
+
+    @Override
+    public String toString() {
+        int delivered = mSentCount - mLostCount;
+        return "Network " + mDistribution + " " + (mBaseDelayUs / 1000) + " + " +
+                (mJitterUs / 1000) + " ms. Sent " + mSentCount + ". Lost " + mLostCount +
+                " (" + mBurstLostCount + " in " + mBurstCount + " bursts). Reordered " +
+                mReorderedCount + ". Delay avg " + (delivered > 0 ?
+                mDelaySumUs / delivered / 1000 : 0) + ", max " + (mMaxDelayUs / 1000) + " ms";
+    }
+
+    private long getDelayUs() {
+        double jitter;
+        switch (mDistribution) {
+            case UNIFORM:
+                jitter = mRandom.nextDouble() * mJitterUs;
+                break;
+            case NORMAL:
+                jitter = mRandom.nextGaussian() * mJitterUs;
+                break;
+            case PARETO:
+                // Pareto with minimum 1, shifted to start at 0.
+                jitter = (Math.pow(1 - mRandom.nextDouble(), -1 / PARETO_SHAPE) - 1) * mJitterUs;
+                break;
+            default:
+                jitter = 0;
+                break;
+        }
+        return Math.max(0, mBaseDelayUs + (long)jitter);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct byte buffers of one size for network packets.
+ *
+ * Buffers are allocated on demand and reused after release(), so a stream
+ * allocates no more buffers than packets in flight at the same time.
+ * Thread safe.
+ */
+public class PacketPool {
+    private final int mBufferSize;
+    private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<ByteBuffer>();
+    private int mAllocatedCount;
+
+    public PacketPool(int bufferSize) {
+        mBufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer.
+     */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = mFree.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(mBufferSize);
+            mAllocatedCount++;
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        mFree.addFirst(buffer);
+    }
+
+    public synchronized int getAllocatedCount() {
+        return mAllocatedCount;
+    }
+}
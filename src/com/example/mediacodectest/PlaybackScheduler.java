@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Releases decoder output buffers to the surface at their presentation time.
+ *
+ * The decode loop queues every output buffer instead of releasing it.  The
+ * scheduler thread holds them in a jitter buffer until the buffer reaches
+ * its depth (or PREROLL_TIMEOUT_MS passes, or end of stream), then starts
+ * the playback clock on System.nanoTime(): every frame is due at the start
+ * time plus its presentation time offset from the first frame.  A frame
+ * later than the late drop threshold is released without rendering.
+ *
+ * The presentation error of rendered frames, release time minus due time,
+ * is collected in a histogram and as percentiles.  The held buffers count
+ * against the decoder output buffers, so the depth must be smaller than
+ * their number.  queue() and finish() may be called from any one thread.
+ */
+public class PlaybackScheduler implements Runnable {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final long PREROLL_TIMEOUT_MS = 1000;
+    // Upper limits of the error histogram bins, the last bin is open.
+    private static final long[] HISTOGRAM_LIMITS_US =
+            { 1000, 2000, 4000, 8000, 16000, 33000, 66000 };
+
+    /**
+     * Notified on the scheduler thread after a frame was released to the surface.
+     */
+    public interface Listener {
+        public void onFrameRendered(long presentationTimeUs, long errorUs);
+    }
+
+    private static class Frame {
+        int index;
+        long presentationTimeUs;
+        boolean render;
+    }
+
+    private final VideoCodec mCodec;
+    private final int mDepth;
+    private final long mLateDropUs;
+    private Listener mListener;
+    private Thread mThread;
+
+    // State, guarded by this.
+    private final ArrayDeque<Frame> mFrames = new ArrayDeque<Frame>();
+    private boolean mEndOfStream;
+    private boolean mPlaying;
+    private long mFirstQueuedNs;
+    private long mStartNs;
+    private long mStartPresentationTimeUs;
+    private int mMaxBuffered;
+
+    // Statistics, written by the scheduler thread.
+    private final LatencyStats mError = new LatencyStats();
+    private final int[] mHistogram = new int[HISTOGRAM_LIMITS_US.length + 1];
+    private volatile int mRenderedCount;
+    private volatile int mDroppedCount;
+    private long mPrerollMs;
+
+    /**
+     * @param codec         decoder configured with an output surface
+     * @param depth         frames buffered before playback starts
+     * @param lateDropUs    frames later than this are dropped
+     */
+    public PlaybackScheduler(VideoCodec codec, int depth, long lateDropUs) {
+        mCodec = codec;
+        mDepth = Math.max(1, depth);
+        mLateDropUs = lateDropUs;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void start() {
+        mThread = new Thread(this, "PlaybackScheduler");
+        mThread.start();
+    }
+
+    /**
+     * Hands an output buffer to the scheduler.
+     *
+     * @param render    false for buffers without a frame, e.g. the EOS buffer,
+     *                  which are released at once without rendering
+     */
+    public synchronized void queue(int index, long presentationTimeUs, boolean render) {
+        Frame frame = new Frame();
+        frame.index = index;
+        frame.presentationTimeUs = presentationTimeUs;
+        frame.render = render;
+        if (mFrames.isEmpty() && !mPlaying) {
+            mFirstQueuedNs = System.nanoTime();
+        }
+        mFrames.addLast(frame);
+        mMaxBuffered = Math.max(mMaxBuffered, mFrames.size());
+        notifyAll();
+    }
+
+    /**
+     * Plays out the buffered frames and stops the scheduler thread.
+     */
+    public void finish() throws InterruptedException {
+        synchronized (this) {
+            mEndOfStream = true;
+            notifyAll();
+        }
+        if (mThread != null) {
+            mThread.join();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Stops the scheduler thread without playing out the buffered frames, e.g.
+     * when decoding failed.  Does nothing after finish().
+     */
+    public void stop() throws InterruptedException {
+        synchronized (this) {
+            mFrames.clear();
+            mEndOfStream = true;
+            notifyAll();
+        }
+        if (mThread != null) {
+            mThread.join();
+            mThread = null;
+        }
+    }
+
+    public int getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the presentation error of the rendered frames.
+     */
+    public LatencyStats getError() {
+        return mError;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Frame frame = takeDueFrame();
+                if (frame == null) {
+                    break;
+                }
+                release(frame);
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Playback scheduler interrupted");
+        }
+        Log.d(TAG, "Playback: " + toString());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < mHistogram.length; i++) {
+            histogram.append(i < HISTOGRAM_LIMITS_US.length ?
+                    " <" + HISTOGRAM_LIMITS_US[i] / 1000 + "ms " :
+                    " >=" + HISTOGRAM_LIMITS_US[i - 1] / 1000 + "ms ");
+            histogram.append(mHistogram[i]);
+        }
+        return "Depth " + mDepth + ", max buffered " + mMaxBuffered + ". Preroll " +
+                mPrerollMs + " ms. Rendered " + mRenderedCount + ". Dropped late " +
+                mDroppedCount + ". Presentation error " + mError + ". Histogram:" + histogram;
+    }
+
+    // Waits until the first buffered frame is due.  Returns null at the end
+    // of the stream.
+    private synchronized Frame takeDueFrame() throws InterruptedException {
+        while (true) {
+            if (mFrames.isEmpty()) {
+                if (mEndOfStream) {
+                    return null;
+                }
+                wait();
+                continue;
+            }
+            Frame frame = mFrames.peekFirst();
+            if (!frame.render) {
+                return mFrames.removeFirst();
+            }
+            long nowNs = System.nanoTime();
+            if (!mPlaying) {
+                long prerollEndNs = mFirstQueuedNs + PREROLL_TIMEOUT_MS * 1000000;
+                if (mFrames.size() < mDepth && !mEndOfStream && nowNs < prerollEndNs) {
+                    waitNs(prerollEndNs - nowNs);
+                    continue;
+                }
+                mPlaying = true;
+                mStartNs = nowNs;
+                mStartPresentationTimeUs = frame.presentationTimeUs;
+                mPrerollMs = (nowNs - mFirstQueuedNs) / 1000000;
+            }
+            long dueNs = getDueNs(frame);
+            if (nowNs < dueNs) {
+                waitNs(dueNs - nowNs);
+                continue;
+            }
+            return mFrames.removeFirst();
+        }
+    }
+
+    private void release(Frame frame) {
+        if (!frame.render) {
+            mCodec.releaseOutputBuffer(frame.index, false);
+            return;
+        }
+        long errorUs;
+        synchronized (this) {
+            errorUs = (System.nanoTime() - getDueNs(frame)) / 1000;
+        }
+        if (errorUs > mLateDropUs) {
+            mCodec.releaseOutputBuffer(frame.index, false);
+            mDroppedCount++;
+            Log.d(TAG, "Drop late frame. TS: " + (frame.presentationTimeUs / 1000) +
+                    " ms. Late: " + (errorUs / 1000) + " ms");
+            return;
+        }
+        mCodec.releaseOutputBuffer(frame.index, true);
+        mError.add(Math.max(0, errorUs));
+        int bin = 0;
+        while (bin < HISTOGRAM_LIMITS_US.length && errorUs >= HISTOGRAM_LIMITS_US[bin]) {
+            bin++;
+        }
+        mHistogram[bin]++;
+        mRenderedCount++;
+        if (mListener != null) {
+            mListener.onFrameRendered(frame.presentationTimeUs, errorUs);
+        }
+    }
+
+    private long getDueNs(Frame frame) {
+        return mStartNs + (frame.presentationTimeUs - mStartPresentationTimeUs) * 1000;
+    }
+
+    private void waitNs(long timeoutNs) throws InterruptedException {
+        wait(timeoutNs / 1000000, (int)(timeoutNs % 1000000));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import org.webrtc.MediaCodecVideoDecoder;
+
+import java.io.IOException;
+
+/**
+ * WebRTC VP8 decoder which finds its codec in CodecCatalog and takes byte
+ * buffer decoders from CodecPool, so a new stream skips MediaCodecList
+ * enumeration and, with the same format, codec creation.  Surface decoders
+ * are bound to their surface and are created as usual.
+ *
+ * A decoder from the pool is flushed and does not report its output format
+ * again, so the format it reported to an earlier stream is reused.
+ */
+public class PooledVideoDecoder extends MediaCodecVideoDecoder {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final String VP8_MIME = "video/x-vnd.on2.vp8";
+
+    private MediaCodecVideoCodec mPooledCodec;
+    private int mWidth;
+    private int mHeight;
+
+    @Override
+    protected DecoderProperties findDecoder(boolean useSwCodec) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return null; // MediaCodec.setParameters is missing.
+        }
+        for (CodecCatalog.CodecEntry codec :
+                CodecCatalog.getInstance().getCodecs(VP8_MIME, false)) {
+            if (!isSupportedDecoder(codec.name, useSwCodec)) {
+                continue;
+            }
+            int colorFormat = codec.selectColorFormat(supportedColorList);
+            if (colorFormat >= 0) {
+                Log.d(TAG, "Found target decoder " + codec.name +
+                        ". Color: 0x" + Integer.toHexString(colorFormat));
+                return new DecoderProperties(codec.name, colorFormat);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected VideoCodec createDecoder(String codecName, MediaFormat format,
+            Surface surface) throws IOException {
+        mWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (surface != null) {
+            return super.createDecoder(codecName, format, surface);
+        }
+        mPooledCodec = CodecPool.getInstance().acquire(codecName, format, 0);
+        return mPooledCodec;
+    }
+
+    @Override
+    protected void releaseDecoder(VideoCodec codec) {
+        if (codec == mPooledCodec) {
+            CodecPool.getInstance().recycle(mPooledCodec);
+            mPooledCodec = null;
+        } else {
+            super.releaseDecoder(codec);
+        }
+    }
+
+    @Override
+    protected VideoCodec.Format getKnownOutputFormat(VideoCodec codec) {
+        if (codec != mPooledCodec) {
+            return null;
+        }
+        VideoCodec.Format format = mPooledCodec.getLastOutputFormat();
+        if (format != null && format.width == mWidth && format.height == mHeight) {
+            return format;
+        }
+        return null;
+    }
+}
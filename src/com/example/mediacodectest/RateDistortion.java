@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Rate-distortion curves and Bjontegaard delta rate.
+ *
+ * A curve point is an encoded IVF file, its decoded output and the source
+ * clip: the bitrate is taken from the IVF frame sizes and timestamps, the
+ * quality is the PSNR of the decoded against the source YUV.  Frames are
+ * read sequentially and the per-frame error is computed on a thread pool.
+ * Curves can also be built from SweepBenchmark results.
+ *
+ * BD-rate is the average bitrate difference of a curve to an anchor curve at
+ * equal luma PSNR, over the PSNR range both cover: log rate is fitted as a
+ * polynomial of PSNR (cubic for 4 or more points) and the fits are
+ * integrated.  A positive BD-rate means the curve needs that many percent
+ * more bits than the anchor for the same quality.
+ *
+ * The curves of the test are listed in CURVES_FILE, one point per line:
+ * <label> <width> <height> <source.yuv> <encoded.ivf> <decoded.yuv> [nv12].
+ * The first label is the anchor.  Paths are relative to external storage.
+ */
+public class RateDistortion {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final File INPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final File OUTPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final String CURVES_FILE = "rd_curves.txt";
+    private static final String REPORT_FILE = "rd_report.csv";
+    private static final double MAX_PSNR = 100;
+
+    private Thread mTestRunner;
+
+    /**
+     * One encoded operating point.
+     */
+    public static class Point {
+        public Point(double bitrate, double psnrY, double psnr) {
+            this.bitrate = bitrate;
+            this.psnrY = psnrY;
+            this.psnr = psnr;
+        }
+
+        public final double bitrate;
+        public final double psnrY;    // average luma PSNR
+        public final double psnr;     // average (6 Y + U + V) / 8 PSNR
+
+        @Override
+        public String toString() {
+            return (int)bitrate + " bps: Y " + String.format("%.2f", psnrY) + " dB, YUV " +
+                    String.format("%.2f", psnr) + " dB";
+        }
+    }
+
+    /**
+     * Points of one codec configuration, sorted by bitrate.
+     */
+    public static class Curve {
+        public Curve(String label) {
+            this.label = label;
+        }
+
+        public final String label;
+        public final List<Point> points = new ArrayList<Point>();
+
+        public void add(Point point) {
+            points.add(point);
+            Collections.sort(points, new Comparator<Point>() {
+                @Override
+                public int compare(Point p1, Point p2) {
+                    return Double.compare(p1.bitrate, p2.bitrate);
+                }
+            });
+        }
+
+        @Override
+        public String toString() {
+            return label + ": " + points;
+        }
+    }
+
+    /** test entry point */
+    public void testRdCurves() {
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    List<Curve> curves = readCurves(new File(INPUT_DIR, CURVES_FILE));
+                    writeReport(curves, new File(OUTPUT_DIR, REPORT_FILE));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        mTestRunner = new Thread(r, "RateDistortion");
+        mTestRunner.start();
+    }
+
+    /**
+     * Reads the curve list and measures all points.
+     */
+    public static List<Curve> readCurves(File file) throws IOException, InterruptedException {
+        LinkedHashMap<String, Curve> curves = new LinkedHashMap<String, Curve>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 6) {
+                    throw new IOException("Bad curve line: " + line);
+                }
+                int width;
+                int height;
+                try {
+                    width = Integer.parseInt(fields[1]);
+                    height = Integer.parseInt(fields[2]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad curve line: " + line);
+                }
+                Point point = measurePoint(new File(INPUT_DIR, fields[3]).toString(),
+                        new File(INPUT_DIR, fields[4]).toString(),
+                        new File(INPUT_DIR, fields[5]).toString(), width, height,
+                        fields.length > 6 && fields[6].equals("nv12"), executor);
+                Log.d(TAG, fields[0] + " " + fields[4] + ": " + point);
+                Curve curve = curves.get(fields[0]);
+                if (curve == null) {
+                    curve = new Curve(fields[0]);
+                    curves.put(fields[0], curve);
+                }
+                curve.add(point);
+            }
+        } finally {
+            reader.close();
+            executor.shutdown();
+        }
+        return new ArrayList<Curve>(curves.values());
+    }
+
+    /**
+     * Builds one curve per configuration of the sweep, over its bitrates.
+     * SweepBenchmark measures luma PSNR only, which is used for both PSNR values.
+     */
+    public static List<Curve> fromSweep(List<SweepBenchmark.Result> results) {
+        LinkedHashMap<String, Curve> curves = new LinkedHashMap<String, Curve>();
+        for (SweepBenchmark.Result result : results) {
+            if (result.runs == 0 || result.psnr <= 0) {
+                continue;
+            }
+            SweepBenchmark.Config config = result.config;
+            String label = result.codecName + " " + config.width + "x" + config.height + " " +
+                    config.frameRate + "fps";
+            Curve curve = curves.get(label);
+            if (curve == null) {
+                curve = new Curve(label);
+                curves.put(label, curve);
+            }
+            curve.add(new Point(result.actualBitrate, result.psnr, result.psnr));
+        }
+        return new ArrayList<Curve>(curves.values());
+    }
+
+    /**
+     * Logs the curves and writes them with their BD-rate and BD-PSNR against
+     * the first curve as CSV.
+     */
+    public static void writeReport(List<Curve> curves, File file) throws IOException {
+        if (curves.isEmpty()) {
+            Log.w(TAG, "No RD curves");
+            return;
+        }
+        Curve anchor = curves.get(0);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write("curve,bitrate,psnr_y,psnr_yuv\n");
+            for (Curve curve : curves) {
+                Log.d(TAG, "RD curve " + curve);
+                for (Point point : curve.points) {
+                    writer.write(curve.label + "," + (int)point.bitrate + "," +
+                            String.format("%.3f", point.psnrY) + "," +
+                            String.format("%.3f", point.psnr) + "\n");
+                }
+            }
+            writer.write("\ncurve,anchor,bd_rate_pct,bd_psnr_db\n");
+            for (Curve curve : curves) {
+                if (curve == anchor) {
+                    continue;
+                }
+                double bdRate = getBdRate(anchor, curve);
+                double bdPsnr = getBdPsnr(anchor, curve);
+                Log.d(TAG, "BD-rate of " + curve.label + " vs " + anchor.label + ": " +
+                        String.format("%.2f", bdRate) + "%. BD-PSNR " +
+                        String.format("%.3f", bdPsnr) + " dB");
+                writer.write(curve.label + "," + anchor.label + "," +
+                        String.format("%.3f", bdRate) + "," + String.format("%.4f", bdPsnr) +
+                        "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        Log.d(TAG, "RD report: " + file);
+    }
+
+    /**
+     * Measures one curve point.  Frames are compared in order, up to the end
+     * of the shorter YUV file.
+     *
+     * @param nv12      true if the decoded file is NV12, the source is always I420
+     * @param executor  runs the per-frame error computation
+     */
+    public static Point measurePoint(String sourcePath, String ivfPath, String decodedPath,
+            int width, int height, final boolean nv12, ExecutorService executor)
+            throws IOException, InterruptedException {
+        double bitrate = getIvfBitrate(ivfPath);
+        final int lumaSize = width * height;
+        int frameSize = lumaSize * 3 / 2;
+        int maxPending = 2 * Runtime.getRuntime().availableProcessors();
+        ArrayDeque<Future<long[]>> pending = new ArrayDeque<Future<long[]>>();
+        double psnrYSum = 0;
+        double psnrSum = 0;
+        int frames = 0;
+
+        YuvReader source = new YuvReader(sourcePath, width, height, 0);
+        YuvReader decoded = new YuvReader(decodedPath, width, height, 0);
+        try {
+            while (true) {
+                // YuvReader converts the I420 source to NV12 when not planar.
+                final byte[] sourceFrame = new byte[frameSize];
+                final byte[] decodedFrame = new byte[frameSize];
+                if (source.readFrame(sourceFrame, !nv12) < frameSize ||
+                        decoded.readFrame(decodedFrame, true) < frameSize) {
+                    break;
+                }
+                pending.addLast(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() {
+                        // U and V planes, or interleaved UV samples in NV12.
+                        int uStart = lumaSize;
+                        int vStart = nv12 ? lumaSize + 1 : lumaSize + lumaSize / 4;
+                        int chromaStep = nv12 ? 2 : 1;
+                        int chromaSize = lumaSize / 4;
+                        return new long[] {
+                                getSquaredError(sourceFrame, decodedFrame, 0, lumaSize, 1),
+                                getSquaredError(sourceFrame, decodedFrame, uStart,
+                                        chromaSize, chromaStep),
+                                getSquaredError(sourceFrame, decodedFrame, vStart,
+                                        chromaSize, chromaStep) };
+                    }
+                }));
+                while (pending.size() >= maxPending ||
+                        (!pending.isEmpty() && pending.peekFirst().isDone())) {
+                    long[] errors = getResult(pending.removeFirst());
+                    double psnrY = getPsnr(errors[0], lumaSize);
+                    psnrYSum += psnrY;
+                    psnrSum += (6 * psnrY + getPsnr(errors[1], lumaSize / 4) +
+                            getPsnr(errors[2], lumaSize / 4)) / 8;
+                    frames++;
+                }
+            }
+            while (!pending.isEmpty()) {
+                long[] errors = getResult(pending.removeFirst());
+                double psnrY = getPsnr(errors[0], lumaSize);
+                psnrYSum += psnrY;
+                psnrSum += (6 * psnrY + getPsnr(errors[1], lumaSize / 4) +
+                        getPsnr(errors[2], lumaSize / 4)) / 8;
+                frames++;
+            }
+        } finally {
+            for (Future<long[]> future : pending) {
+                future.cancel(false);
+            }
+            source.close();
+            decoded.close();
+        }
+        if (frames == 0) {
+            throw new IOException("No frames to compare in " + decodedPath);
+        }
+        return new Point(bitrate, psnrYSum / frames, psnrSum / frames);
+    }
+
+    /**
+     * Returns the bitrate of an IVF file from frame sizes and timestamps.  The
+     * last frame lasts one average frame interval.
+     */
+    public static double getIvfBitrate(String ivfPath) throws IOException {
+        final long[] stats = new long[1];          // total bytes
+        final double[] times = new double[] { -1, 0 };  // first, last timestamp
+        int frames = IvfReader.scanFrameHeaders(ivfPath, new IvfReader.FrameHeaderListener() {
+            @Override
+            public void onFrameHeader(int frameIndex, int frameSize, double timestamp) {
+                stats[0] += frameSize;
+                if (frameIndex == 0) {
+                    times[0] = timestamp;
+                }
+                times[1] = timestamp;
+            }
+        });
+        if (frames < 2 || times[1] <= times[0]) {
+            throw new IOException("Can not get the bitrate of " + ivfPath);
+        }
+        double duration = (times[1] - times[0]) * frames / (frames - 1);
+        return stats[0] * 8 / duration;
+    }
+
+    /**
+     * Returns the average bitrate difference in percent of the test curve to
+     * the anchor at equal luma PSNR, or NaN if the curves do not overlap.
+     */
+    public static double getBdRate(Curve anchor, Curve test) {
+        double[][] a = getLogRates(anchor);
+        double[][] t = getLogRates(test);
+        double low = Math.max(min(a[1]), min(t[1]));
+        double high = Math.min(max(a[1]), max(t[1]));
+        if (a[0].length < 2 || t[0].length < 2 || high <= low) {
+            return Double.NaN;
+        }
+        // log rate as a function of PSNR.
+        double[] fitA = fitPolynomial(a[1], a[0]);
+        double[] fitT = fitPolynomial(t[1], t[0]);
+        double averageDiff = (integrate(fitT, low, high) - integrate(fitA, low, high)) /
+                (high - low);
+        return (Math.exp(averageDiff) - 1) * 100;
+    }
+
+    /**
+     * Returns the average luma PSNR difference in dB of the test curve to the
+     * anchor at equal bitrate, or NaN if the curves do not overlap.
+     */
+    public static double getBdPsnr(Curve anchor, Curve test) {
+        double[][] a = getLogRates(anchor);
+        double[][] t = getLogRates(test);
+        double low = Math.max(min(a[0]), min(t[0]));
+        double high = Math.min(max(a[0]), max(t[0]));
+        if (a[0].length < 2 || t[0].length < 2 || high <= low) {
+            return Double.NaN;
+        }
+        // PSNR as a function of log rate.
+        double[] fitA = fitPolynomial(a[0], a[1]);
+        double[] fitT = fitPolynomial(t[0], t[1]);
+        return (integrate(fitT, low, high) - integrate(fitA, low, high)) / (high - low);
+    }
+
+    // Returns { ln(bitrate) }, { luma PSNR } of the curve points.
+    private static double[][] getLogRates(Curve curve) {
+        int n = curve.points.size();
+        double[][] values = new double[2][n];
+        for (int i = 0; i < n; i++) {
+            Point point = curve.points.get(i);
+            values[0][i] = Math.log(point.bitrate);
+            values[1][i] = point.psnrY;
+        }
+        return values;
+    }
+
+    // Least squares polynomial of degree min(3, n - 1), coefficients from x^0 up.
+    private static double[] fitPolynomial(double[] x, double[] y) {
+        int terms = Math.min(4, x.length);
+        // Normal equations, solved by Gaussian elimination with partial pivoting.
+        double[][] m = new double[terms][terms + 1];
+        for (int i = 0; i < x.length; i++) {
+            for (int row = 0; row < terms; row++) {
+                for (int col = 0; col < terms; col++) {
+                    m[row][col] += Math.pow(x[i], row + col);
+                }
+                m[row][terms] += y[i] * Math.pow(x[i], row);
+            }
+        }
+        for (int col = 0; col < terms; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < terms; row++) {
+                if (Math.abs(m[row][col]) > Math.abs(m[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            double[] swap = m[col];
+            m[col] = m[pivot];
+            m[pivot] = swap;
+            for (int row = 0; row < terms; row++) {
+                if (row != col && m[col][col] != 0) {
+                    double factor = m[row][col] / m[col][col];
+                    for (int k = col; k <= terms; k++) {
+                        m[row][k] -= factor * m[col][k];
+                    }
+                }
+            }
+        }
+        double[] coefficients = new double[terms];
+        for (int i = 0; i < terms; i++) {
+            coefficients[i] = m[i][i] != 0 ? m[i][terms] / m[i][i] : 0;
+        }
+        return coefficients;
+    }
+
+    private static double integrate(double[] coefficients, double low, double high) {
+        double result = 0;
+        for (int i = 0; i < coefficients.length; i++) {
+            result += coefficients[i] * (Math.pow(high, i + 1) - Math.pow(low, i + 1)) / (i + 1);
+        }
+        return result;
+    }
+
+    // Sums the squared differences of count samples, step bytes apart.
+    private static long getSquaredError(byte[] a, byte[] b, int start, int count, int step) {
+        long error = 0;
+        for (int i = 0, j = start; i < count; i++, j += step) {
+            int diff = (a[j] & 0xFF) - (b[j] & 0xFF);
+            error += diff * diff;
+        }
+        return error;
+    }
+
+    private static double getPsnr(long squaredError, int samples) {
+        if (squaredError == 0) {
+            return MAX_PSNR;
+        }
+        return Math.min(MAX_PSNR,
+                10 * Math.log10(255.0 * 255.0 * samples / squaredError));
+    }
+
+    private static long[] getResult(Future<long[]> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static double min(double[] values) {
+        double result = Double.MAX_VALUE;
+        for (double value : values) {
+            result = Math.min(result, value);
+        }
+        return result;
+    }
+
+    private static double max(double[] values) {
+        double result = -Double.MAX_VALUE;
+        for (double value : values) {
+            result = Math.max(result, value);
+        }
+        return result;
+    }
+}
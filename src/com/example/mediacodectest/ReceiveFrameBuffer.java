@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.util.TreeMap;
+
+/**
+ * Receive side frame buffer in front of the decoder.
+ *
+ * Frames arriving out of order are put back in sequence number order.  A
+ * missing frame is waited for at most maxWaitUs after a later frame
+ * arrived; then it is declared lost.  After a loss the delta frames until
+ * the next key frame reference a missing frame and are discarded - the
+ * decoder stalls on its last frame.  The time from noticing the loss to the
+ * next decodable key frame is the recovery time.  Frames arriving after
+ * their turn are dropped as late.
+ *
+ * Times are in microseconds of the caller's clock.  Not thread safe.
+ */
+public class ReceiveFrameBuffer {
+    private final long mMaxWaitUs;
+    private final boolean mWaitForKeyFrame;
+    private final TreeMap<Integer, NetworkImpairment.Frame> mFrames =
+            new TreeMap<Integer, NetworkImpairment.Frame>();
+    private int mNextSequenceNumber;
+    private int mMaxSequenceNumber = -1;
+    private long mGapDetectedUs = -1;
+    private boolean mWaitingForKeyFrame;
+    private long mStallStartUs;
+
+    // Statistics.
+    private int mReceivedCount;
+    private int mReleasedCount;
+    private int mMissingCount;
+    private int mDiscardedCount;
+    private int mLateCount;
+    private int mReorderedCount;
+    private int mStallCount;
+    private final LatencyStats mRecovery = new LatencyStats();
+
+    /**
+     * @param maxWaitUs         time a missing frame is waited for
+     * @param waitForKeyFrame   false to pass delta frames after a loss to the decoder
+     */
+    public ReceiveFrameBuffer(long maxWaitUs, boolean waitForKeyFrame) {
+        mMaxWaitUs = maxWaitUs;
+        mWaitForKeyFrame = waitForKeyFrame;
+    }
+
+    /**
+     * Adds an arrived frame.
+     */
+    public void insert(NetworkImpairment.Frame frame, long nowUs) {
+        mReceivedCount++;
+        int sequenceNumber = frame.sequenceNumber;
+        if (sequenceNumber < mNextSequenceNumber || mFrames.containsKey(sequenceNumber)) {
+            mLateCount++;
+            return;
+        }
+        if (sequenceNumber < mMaxSequenceNumber) {
+            mReorderedCount++;
+        }
+        mMaxSequenceNumber = Math.max(mMaxSequenceNumber, sequenceNumber);
+        mFrames.put(sequenceNumber, frame);
+    }
+
+    /**
+     * Returns the next frame to decode, or null if it has not arrived yet.
+     *
+     * @param endOfStream   true if no more frames will arrive, missing frames
+     *                      are then lost at once
+     */
+    public NetworkImpairment.Frame poll(long nowUs, boolean endOfStream) {
+        while (!mFrames.isEmpty()) {
+            NetworkImpairment.Frame frame = mFrames.remove(mNextSequenceNumber);
+            if (frame != null) {
+                mNextSequenceNumber++;
+                mGapDetectedUs = -1;
+                if (mWaitingForKeyFrame) {
+                    if (!frame.keyFrame) {
+                        mDiscardedCount++;
+                        continue;
+                    }
+                    mWaitingForKeyFrame = false;
+                    mRecovery.add(nowUs - mStallStartUs);
+                }
+                mReleasedCount++;
+                return frame;
+            }
+
+            // The next frame is missing, later ones are here.
+            if (mGapDetectedUs < 0) {
+                mGapDetectedUs = nowUs;
+            }
+            if (!endOfStream && nowUs - mGapDetectedUs < mMaxWaitUs) {
+                return null;
+            }
+            int firstAvailable = mFrames.firstKey();
+            mMissingCount += firstAvailable - mNextSequenceNumber;
+            mNextSequenceNumber = firstAvailable;
+            if (mWaitForKeyFrame && !mWaitingForKeyFrame) {
+                mWaitingForKeyFrame = true;
+                mStallCount++;
+                mStallStartUs = mGapDetectedUs;
+            }
+            mGapDetectedUs = -1;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the time at which a missing frame is declared lost, or
+     * Long.MAX_VALUE if no frame is missing.
+     */
+    public long getDeadlineUs() {
+        return mGapDetectedUs < 0 ? Long.MAX_VALUE : mGapDetectedUs + mMaxWaitUs;
+    }
+
+    public boolean isEmpty() {
+        return mFrames.isEmpty();
+    }
+
+    public int getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * Returns the time from detecting a loss to the next decodable key frame.
+     */
+    public LatencyStats getRecovery() {
+        return mRecovery;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame buffer: received " + mReceivedCount + ". Decoded " + mReleasedCount +
+                ". Missing " + mMissingCount + ". Discarded " + mDiscardedCount + ". Late " +
+                mLateCount + ". Reordered " + mReorderedCount + ". Stalls " + mStallCount +
+                (mWaitingForKeyFrame ? " (not recovered)" : "") + ". Recovery " + mRecovery;
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.media.MediaFormat;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Streams an IVF file as VP8 over RTP through a UDP socket pair on localhost
+ * into a decoder.
+ *
+ * The sender thread packetizes each frame into pooled direct buffers and
+ * sends the packets of the frame back to back, either paced by the frame
+ * timestamps or as fast as possible.  The receiver thread reassembles the
+ * frames and hands complete ones over a queue to the decoding thread;
+ * after an incomplete frame, frames are skipped up to the next key frame.
+ * A datagram shorter than an RTP header ends the stream.  Packet rates on
+ * both sides, losses and the reassembly latency are logged.
+ *
+ * Optionally each frame is protected by XOR parity packets over groups of
+ * media packets, and the sender drops packets at random from a seeded
+ * generator to simulate a lossy link.  The parity overhead, the share of
+ * lost packets recovered and the time from a broken frame to the next
+ * decodable key frame are logged; testFecOverhead() compares group sizes.
+ */
+public class RtpLoopbackTest {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final File INPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final String INPUT_IVF = "nicklas.ivf";
+    private static final String VP8_MIME = "video/x-vnd.on2.vp8";
+    private static final int MAX_PACKET_SIZE = 1200;
+    private static final int PAYLOAD_TYPE = 100;
+    private static final int SSRC = 0x4d435431;
+    private static final int FEC_PAYLOAD_TYPE = 101;
+    private static final int FEC_SSRC = SSRC + 1;
+    private static final int FEC_WINDOW = 512;
+    private static final long LOSS_SEED = 1;
+    private static final int LOOPS = 10;
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int FRAME_QUEUE_SIZE = 16;
+    private static final int END_OF_STREAM_PACKETS = 3;
+    private static final long RECEIVE_TIMEOUT_MS = 2000;
+    private static final long TIMEOUT_US = 10000;
+    // Send at the frame timestamps, otherwise as fast as possible.
+    private static boolean PACED = false;
+    // Decode the received frames, otherwise only reassemble them.
+    private static boolean DECODE = true;
+    private static boolean FORCE_SW_CODEC = false;
+    private static boolean USE_FAKE_CODEC = false;
+    // Media packets per parity packet, 0 for no FEC.
+    private static int FEC_GROUP_SIZE = 0;
+    private static double LOSS_PROBABILITY = 0;
+    private static final int[] FEC_SWEEP_GROUP_SIZES = { 0, 2, 4, 8, 16 };
+    private static final double FEC_SWEEP_LOSS_PROBABILITY = 0.02;
+
+    private final boolean mDecode;
+    private final int mFecGroupSize;
+    private final double mLossProbability;
+    private final Random mLossRandom = new Random(LOSS_SEED);
+    // Parity packets are larger than the media packets.
+    private final PacketPool mSendPool = new PacketPool(MAX_PACKET_SIZE + XorFecEncoder.OVERHEAD);
+    private final PacketPool mReceivePool =
+            new PacketPool(MAX_PACKET_SIZE + XorFecEncoder.OVERHEAD);
+    private final XorFecDecoder mFecDecoder = new XorFecDecoder(MAX_PACKET_SIZE, FEC_WINDOW);
+    private XorFecEncoder mFecEncoder;
+    private final SpscQueue<Vp8RtpDepacketizer.Frame> mFrames =
+            new SpscQueue<Vp8RtpDepacketizer.Frame>("rtp.frames", FRAME_QUEUE_SIZE);
+    private final Vp8RtpDepacketizer mDepacketizer = new Vp8RtpDepacketizer(mReceivePool);
+
+    // Sender statistics.
+    private long mSentPackets;
+    private long mSentBytes;
+    private long mSendElapsedNs;
+    private long mDroppedPackets;
+    private long mDroppedFecPackets;
+    // Receiver statistics.
+    private long mFirstReceiveNs;
+    private long mLastReceiveNs;
+    private int mSkippedFrames;
+    private int mDecodedFrames;
+    private long mStallStartNs;
+    private final LatencyStats mKeyFrameRecovery = new LatencyStats();
+
+    /**
+     * @param decode            decode the received frames, otherwise only reassemble them
+     * @param fecGroupSize      media packets per parity packet, 0 for no FEC
+     * @param lossProbability   probability of the sender to drop a packet
+     */
+    public RtpLoopbackTest(boolean decode, int fecGroupSize, double lossProbability) {
+        mDecode = decode;
+        mFecGroupSize = fecGroupSize;
+        mLossProbability = lossProbability;
+    }
+
+    /** test entry point */
+    public static void testRtpLoopback() {
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    new RtpLoopbackTest(DECODE, FEC_GROUP_SIZE, LOSS_PROBABILITY).stream(
+                            new File(INPUT_DIR, INPUT_IVF).toString(), LOOPS);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Thread testRunner = new Thread(r, "RtpLoopbackTest");
+        testRunner.start();
+    }
+
+    /** test entry point */
+    public static void testFecOverhead() {
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    String ivfPath = new File(INPUT_DIR, INPUT_IVF).toString();
+                    for (int i = 0; i < FEC_SWEEP_GROUP_SIZES.length; i++) {
+                        new RtpLoopbackTest(false, FEC_SWEEP_GROUP_SIZES[i],
+                                FEC_SWEEP_LOSS_PROBABILITY).stream(ivfPath, LOOPS);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Thread testRunner = new Thread(r, "RtpLoopbackTest");
+        testRunner.start();
+    }
+
+    /**
+     * Streams the file the given number of times and waits for the end.
+     */
+    public void stream(final String ivfPath, final int loops) throws Exception {
+        final IvfReader ivf = new IvfReader(ivfPath);
+        final DatagramChannel receiveChannel = DatagramChannel.open();
+        final DatagramChannel sendChannel = DatagramChannel.open();
+        VideoCodec decoder = null;
+        try {
+            receiveChannel.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            receiveChannel.socket().bind(
+                    new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            sendChannel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+            sendChannel.connect(receiveChannel.socket().getLocalSocketAddress());
+            Log.d(TAG, "RTP loopback " + ivfPath + " " + ivf.getWidth() + "x" + ivf.getHeight() +
+                    " to " + receiveChannel.socket().getLocalSocketAddress() + ", " + loops +
+                    " loops" + (PACED ? ", paced" : "") + ". FEC group " + mFecGroupSize +
+                    ". Loss " + mLossProbability);
+
+            if (mDecode) {
+                decoder = createDecoder(ivf.getWidth(), ivf.getHeight());
+            }
+            mDepacketizer.setListener(new Vp8RtpDepacketizer.Listener() {
+                private boolean mWaitForKeyFrame;
+
+                @Override
+                public void onFrame(Vp8RtpDepacketizer.Frame frame) {
+                    if (!frame.complete || (mWaitForKeyFrame && !frame.keyFrame)) {
+                        startWaitForKeyFrame();
+                        return;
+                    }
+                    if (mWaitForKeyFrame) {
+                        mWaitForKeyFrame = false;
+                        mKeyFrameRecovery.add((System.nanoTime() - mStallStartNs) / 1000);
+                    }
+                    if (!mFrames.offer(frame)) {
+                        // The decoder is behind, its references are gone.
+                        startWaitForKeyFrame();
+                    }
+                }
+
+                private void startWaitForKeyFrame() {
+                    if (!mWaitForKeyFrame) {
+                        mWaitForKeyFrame = true;
+                        mStallStartNs = System.nanoTime();
+                    }
+                    mSkippedFrames++;
+                }
+            });
+
+            final Thread receiver = new Thread(new Runnable() {
+                public void run() {
+                    receive(receiveChannel);
+                }
+            }, "RtpReceiver");
+            Thread sender = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        send(sendChannel, ivf, loops);
+                    } catch (Exception e) {
+                        Log.e(TAG, "RTP sender failure: " + e.toString());
+                    }
+                    // Stop the receiver if the end of stream packets got lost.
+                    try {
+                        receiver.join(RECEIVE_TIMEOUT_MS);
+                        if (receiver.isAlive()) {
+                            receiveChannel.close();
+                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "RTP receiver stop failure: " + e.toString());
+                    }
+                }
+            }, "RtpSender");
+            receiver.start();
+            sender.start();
+
+            if (decoder != null) {
+                decode(decoder);
+            } else {
+                while (mFrames.take() != null) {
+                    mDecodedFrames++;
+                }
+            }
+            sender.join();
+            receiver.join();
+        } finally {
+            sendChannel.close();
+            receiveChannel.close();
+            ivf.close();
+            if (decoder != null) {
+                try {
+                    decoder.stop();
+                    decoder.release();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Decoder release failure: " + e.toString());
+                }
+            }
+        }
+
+        double sendSeconds = mSendElapsedNs / 1e9;
+        double receiveSeconds = (mLastReceiveNs - mFirstReceiveNs) / 1e9;
+        Log.d(TAG, "RTP sent " + mSentPackets + " packets, " + mSentBytes + " bytes in " +
+                String.format("%.2f s: %.0f packets/s, %.1f Mbps", sendSeconds,
+                mSentPackets / Math.max(sendSeconds, 1e-9),
+                mSentBytes * 8 / Math.max(sendSeconds, 1e-9) / 1e6) + ". Pool " +
+                mSendPool.getAllocatedCount() + " buffers");
+        Log.d(TAG, "RTP received " + String.format("%.0f packets/s. ",
+                mDepacketizer.getPacketCount() / Math.max(receiveSeconds, 1e-9)) +
+                mDepacketizer + ". Pool " + mReceivePool.getAllocatedCount() + " buffers");
+        Log.d(TAG, "RTP frames " + (mDecode ? "decoded " : "reassembled ") + mDecodedFrames +
+                ", skipped " + mSkippedFrames + ". Queue " + mFrames);
+        if (mFecEncoder != null) {
+            Log.d(TAG, "RTP " + mFecEncoder + ". " + mFecDecoder);
+        }
+        long recovered = mFecDecoder.getRecoveredCount();
+        Log.d(TAG, "RTP FEC group " + mFecGroupSize + ": overhead " +
+                String.format("%.1f%%", (mFecEncoder != null ? mFecEncoder.getOverhead() : 0) *
+                100) + ". Dropped " + mDroppedPackets + " media, " + mDroppedFecPackets +
+                " parity packets. Recovered " + recovered + " (" +
+                String.format("%.1f%%", mDroppedPackets > 0 ?
+                recovered * 100.0 / mDroppedPackets : 0) + "). Key frame recovery " +
+                mKeyFrameRecovery);
+    }
+
+    private void send(DatagramChannel channel, IvfReader ivf, int loops)
+            throws IOException, InterruptedException {
+        Vp8RtpPacketizer packetizer = new Vp8RtpPacketizer(SSRC, PAYLOAD_TYPE, MAX_PACKET_SIZE);
+        if (mFecGroupSize > 0) {
+            mFecEncoder = new XorFecEncoder(FEC_SSRC, FEC_PAYLOAD_TYPE, mFecGroupSize,
+                    MAX_PACKET_SIZE);
+        }
+        ArrayList<ByteBuffer> packets = new ArrayList<ByteBuffer>();
+        int frameCount = ivf.getFrameCount();
+        long loopDurationUs = frameCount > 1 ?
+                (long)(ivf.getFrameTimestamp(frameCount - 1) * 1e6) * frameCount /
+                (frameCount - 1) : 0;
+        long startNs = System.nanoTime();
+        try {
+            for (int loop = 0; loop < loops; loop++) {
+                for (int i = 0; i < frameCount; i++) {
+                    byte[] frame = ivf.readFrame(i);
+                    long presentationTimeUs = loop * loopDurationUs +
+                            (long)(ivf.getFrameTimestamp(i) * 1e6);
+                    if (PACED) {
+                        long waitUs = presentationTimeUs - (System.nanoTime() - startNs) / 1000;
+                        if (waitUs > 0) {
+                            Thread.sleep(waitUs / 1000, (int)(waitUs % 1000) * 1000);
+                        }
+                    }
+                    // Packetize the whole frame first, then send it as one burst.
+                    packets.clear();
+                    packetizer.packetize(frame, frame.length, presentationTimeUs, mSendPool,
+                            packets);
+                    for (int j = 0; j < packets.size(); j++) {
+                        ByteBuffer packet = packets.get(j);
+                        ByteBuffer fec = mFecEncoder != null ?
+                                mFecEncoder.addPacket(packet, mSendPool) : null;
+                        sendPacket(channel, packet, false);
+                        if (fec != null) {
+                            sendPacket(channel, fec, true);
+                        }
+                    }
+                    // Parity groups end with the frame, so a lost packet can be
+                    // recovered before the next frame arrives.
+                    if (mFecEncoder != null) {
+                        ByteBuffer fec = mFecEncoder.flush(mSendPool);
+                        if (fec != null) {
+                            sendPacket(channel, fec, true);
+                        }
+                    }
+                }
+            }
+        } finally {
+            mSendElapsedNs = System.nanoTime() - startNs;
+            ByteBuffer end = ByteBuffer.allocate(1);
+            for (int i = 0; i < END_OF_STREAM_PACKETS; i++) {
+                end.rewind();
+                channel.write(end);
+            }
+        }
+    }
+
+    // Sends and releases a packet, unless the simulated loss drops it.
+    private void sendPacket(DatagramChannel channel, ByteBuffer packet, boolean fec)
+            throws IOException {
+        if (mLossProbability > 0 && mLossRandom.nextDouble() < mLossProbability) {
+            if (fec) {
+                mDroppedFecPackets++;
+            } else {
+                mDroppedPackets++;
+            }
+        } else {
+            mSentBytes += packet.remaining();
+            mSentPackets++;
+            channel.write(packet);
+        }
+        mSendPool.release(packet);
+    }
+
+    private void receive(DatagramChannel channel) {
+        try {
+            while (true) {
+                ByteBuffer packet = mReceivePool.acquire();
+                channel.receive(packet);
+                long nowNs = System.nanoTime();
+                packet.flip();
+                if (packet.remaining() < Vp8RtpPacketizer.RTP_HEADER_SIZE) {
+                    mReceivePool.release(packet);
+                    break;
+                }
+                if (mFirstReceiveNs == 0) {
+                    mFirstReceiveNs = nowNs;
+                }
+                mLastReceiveNs = nowNs;
+                if ((packet.get(1) & 0x7F) == FEC_PAYLOAD_TYPE) {
+                    ByteBuffer recovered = mFecDecoder.addFecPacket(packet, mReceivePool, nowNs);
+                    mReceivePool.release(packet);
+                    if (recovered != null) {
+                        mDepacketizer.push(recovered, nowNs);
+                    }
+                    continue;
+                }
+                mFecDecoder.addMediaPacket(packet, nowNs);
+                mDepacketizer.push(packet, nowNs);
+            }
+        } catch (ClosedChannelException e) {
+            Log.e(TAG, "RTP receiver closed before the end of the stream");
+        } catch (IOException e) {
+            Log.e(TAG, "RTP receiver failure: " + e.toString());
+        } finally {
+            mDepacketizer.flush(System.nanoTime());
+            mFrames.close();
+        }
+    }
+
+    // Feeds the queued frames to the decoder until the queue is closed.
+    private void decode(VideoCodec decoder) throws InterruptedException {
+        VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+        boolean inputDone = false;
+        Vp8RtpDepacketizer.Frame frame = null;
+        while (true) {
+            if (!inputDone) {
+                if (frame == null) {
+                    frame = mFrames.take();
+                }
+                int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0) {
+                    ByteBuffer buffer = decoder.getInputBuffer(index);
+                    buffer.clear();
+                    if (frame == null) {
+                        decoder.queueInputBuffer(index, 0, 0, 0,
+                                VideoCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        buffer.put(frame.data);
+                        decoder.queueInputBuffer(index, 0, frame.data.length,
+                                frame.presentationTimeUs, 0);
+                        frame = null;
+                    }
+                }
+            }
+            int index = decoder.dequeueOutputBuffer(info, inputDone ? TIMEOUT_US : 0);
+            if (index >= 0) {
+                if (info.size > 0) {
+                    mDecodedFrames++;
+                }
+                decoder.releaseOutputBuffer(index, false);
+                if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static VideoCodec createDecoder(int width, int height) throws IOException {
+        if (USE_FAKE_CODEC) {
+            FakeVideoCodec decoder = new FakeVideoCodec("fake.decoder", VP8_MIME, false,
+                    width, height);
+            decoder.start();
+            return decoder;
+        }
+        CodecCatalog.CodecProperties properties =
+                CodecCatalog.getInstance().getCodecProperties(VP8_MIME, false, FORCE_SW_CODEC);
+        MediaFormat format = MediaFormat.createVideoFormat(VP8_MIME, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, properties.colorFormat);
+        MediaCodecVideoCodec decoder = new MediaCodecVideoCodec(properties.codecName);
+        try {
+            decoder.configure(format, null, 0);
+            decoder.start();
+        } catch (RuntimeException e) {
+            decoder.release();
+            throw e;
+        }
+        return decoder;
+    }
+}
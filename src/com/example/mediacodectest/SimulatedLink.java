@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+/**
+ * Simulated bottleneck link: a drop tail FIFO queue in front of a link with a
+ * capacity that changes at given times, followed by a propagation delay.
+ *
+ * Frames are sent whole; a frame is transmitted at the capacity at the start
+ * of its transmission.  Time is a virtual clock in microseconds supplied by
+ * the caller, e.g. presentation time.  The link measures queueing delay,
+ * drops and utilization, the delivered bits relative to the capacity over
+ * the time from the first send to the end of the last transmission.
+ * Not thread safe.
+ */
+public class SimulatedLink {
+    private final long[] mChangeTimesUs;
+    private final int[] mCapacities;
+    private final long mPropagationDelayUs;
+    private final int mQueueBytes;
+
+    private long mFirstSendUs = -1;
+    private long mBusyUntilUs;
+
+    // Statistics.
+    private int mSentFrames;
+    private int mDroppedFrames;
+    private long mDeliveredBits;
+    private int mMaxQueueBytes;
+    private final LatencyStats mQueueDelay = new LatencyStats();
+
+    /**
+     * @param changeTimesUs        times of the capacity changes, ascending, the first 0
+     * @param capacities           capacity in bits per second from each change time on
+     * @param propagationDelayUs   delay after the transmission
+     * @param queueBytes           queue size, larger frames are dropped
+     */
+    public SimulatedLink(long[] changeTimesUs, int[] capacities, long propagationDelayUs,
+            int queueBytes) {
+        if (changeTimesUs.length == 0 || changeTimesUs.length != capacities.length) {
+            throw new IllegalArgumentException("Invalid capacity schedule");
+        }
+        mChangeTimesUs = changeTimesUs;
+        mCapacities = capacities;
+        mPropagationDelayUs = propagationDelayUs;
+        mQueueBytes = queueBytes;
+    }
+
+    /**
+     * Returns the capacity in bits per second at the given time.
+     */
+    public int getCapacity(long timeUs) {
+        int i = 0;
+        while (i + 1 < mChangeTimesUs.length && mChangeTimesUs[i + 1] <= timeUs) {
+            i++;
+        }
+        return mCapacities[i];
+    }
+
+    public long getPropagationDelayUs() {
+        return mPropagationDelayUs;
+    }
+
+    /**
+     * Sends a frame.
+     *
+     * @return the arrival time of the frame, or -1 if it was dropped
+     */
+    public long send(int size, long sendTimeUs) {
+        if (mFirstSendUs < 0) {
+            mFirstSendUs = sendTimeUs;
+        }
+        mSentFrames++;
+        int capacity = getCapacity(sendTimeUs);
+        long backlogUs = Math.max(0, mBusyUntilUs - sendTimeUs);
+        int queuedBytes = (int)(backlogUs * capacity / 8 / 1000000);
+        if (queuedBytes + size > mQueueBytes) {
+            mDroppedFrames++;
+            return -1;
+        }
+        mMaxQueueBytes = Math.max(mMaxQueueBytes, queuedBytes + size);
+
+        long startUs = Math.max(sendTimeUs, mBusyUntilUs);
+        mQueueDelay.add(startUs - sendTimeUs);
+        mBusyUntilUs = startUs + (long)size * 8 * 1000000 / getCapacity(startUs);
+        mDeliveredBits += (long)size * 8;
+        return mBusyUntilUs + mPropagationDelayUs;
+    }
+
+    /**
+     * Returns the delivered bits relative to the capacity, 0 - 1.
+     */
+    public double getUtilization() {
+        double capacityBits = getCapacityBits(mFirstSendUs, mBusyUntilUs);
+        return capacityBits > 0 ? mDeliveredBits / capacityBits : 0;
+    }
+
+    /**
+     * Returns the time frames waited in the queue before their transmission.
+     */
+    public LatencyStats getQueueDelay() {
+        return mQueueDelay;
+    }
+
+    @Override
+    public String toString() {
+        return "Link frames " + mSentFrames + ", dropped " + mDroppedFrames + ". Max queue " +
+                mMaxQueueBytes + " of " + mQueueBytes + " bytes. Queue delay " + mQueueDelay +
+                ". Utilization " + String.format("%.1f%%", getUtilization() * 100);
+    }
+
+    // Integrates the capacity over a time range.
+    private double getCapacityBits(long startUs, long endUs) {
+        double bits = 0;
+        for (int i = 0; i < mChangeTimesUs.length; i++) {
+            long segmentStartUs = Math.max(startUs, mChangeTimesUs[i]);
+            long segmentEndUs = i + 1 < mChangeTimesUs.length ?
+                    Math.min(endUs, mChangeTimesUs[i + 1]) : endUs;
+            if (segmentEndUs > segmentStartUs) {
+                bits += (double)mCapacities[i] * (segmentEndUs - segmentStartUs) / 1e6;
+            }
+        }
+        return bits;
+    }
+}
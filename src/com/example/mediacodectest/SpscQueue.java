@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+/**
+ * Bounded single producer / single consumer queue connecting two pipeline stages.
+ *
+ * The ring buffer is lock free while it is neither full nor empty; a stage
+ * only takes the monitor to sleep on a full (producer) or empty (consumer)
+ * queue, and the other side wakes it up.  A full queue blocks the producer,
+ * which is how backpressure propagates upstream.
+ *
+ * Exactly one thread may call offer() / put() and exactly one other thread may
+ * call poll() / take().  close() may be called from any thread.
+ */
+public class SpscQueue<T> {
+    private final String mName;
+    private final Object[] mItems;
+    private final int mMask;
+    private final Object mLock = new Object();
+
+    private volatile long mHead;      // next item to take, written by consumer
+    private volatile long mTail;      // next free slot, written by producer
+    private volatile boolean mClosed;
+    private volatile boolean mProducerWaiting;
+    private volatile boolean mConsumerWaiting;
+
+    // Statistics, written by the producer only.
+    private volatile int mMaxDepth;
+    private volatile long mDepthSum;
+    private volatile long mPutCount;
+    private volatile long mBlockedPutCount;
+    private volatile long mBlockedPutTimeNs;
+    private volatile long mRejectedOfferCount;
+
+    /**
+     * @param name      name used in the statistics
+     * @param capacity  maximum number of queued items, rounded up to a power of 2
+     */
+    public SpscQueue(String name, int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mName = name;
+        mItems = new Object[size];
+        mMask = size - 1;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getCapacity() {
+        return mItems.length;
+    }
+
+    /**
+     * Returns the number of queued items.
+     */
+    public int size() {
+        return (int)(mTail - mHead);
+    }
+
+    /**
+     * Queues the item without blocking.  Returns false if the queue is full or closed.
+     */
+    public boolean offer(T item) {
+        if (!tryPut(item)) {
+            if (!mClosed) {
+                mRejectedOfferCount++;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues the item, waiting while the queue is full.  Returns false if the
+     * queue has been closed.
+     */
+    public boolean put(T item) throws InterruptedException {
+        if (tryPut(item)) {
+            return true;
+        }
+        long startNs = System.nanoTime();
+        mBlockedPutCount++;
+        try {
+            synchronized (mLock) {
+                while (!tryPut(item)) {
+                    if (mClosed) {
+                        return false;
+                    }
+                    mProducerWaiting = true;
+                    if (size() == mItems.length && !mClosed) {
+                        mLock.wait();
+                    }
+                    mProducerWaiting = false;
+                }
+            }
+        } finally {
+            mBlockedPutTimeNs += System.nanoTime() - startNs;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next item or null if the queue is empty.
+     */
+    public T poll() {
+        long head = mHead;
+        if (head == mTail) {
+            return null;
+        }
+        int i = (int)head & mMask;
+        @SuppressWarnings("unchecked")
+        T item = (T)mItems[i];
+        mItems[i] = null;
+        mHead = head + 1;
+        if (mProducerWaiting) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Returns the next item, waiting while the queue is empty.  Returns null
+     * once the queue is closed and all queued items have been taken.
+     */
+    public T take() throws InterruptedException {
+        T item = poll();
+        if (item != null) {
+            return item;
+        }
+        synchronized (mLock) {
+            while ((item = poll()) == null) {
+                if (mClosed) {
+                    return poll();
+                }
+                mConsumerWaiting = true;
+                if (mHead == mTail && !mClosed) {
+                    mLock.wait();
+                }
+                mConsumerWaiting = false;
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Rejects further items and wakes up both sides.  Items already queued
+     * can still be taken.
+     */
+    public void close() {
+        mClosed = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Returns the largest queue depth seen by the producer.
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Returns the average queue depth right after an item was queued.
+     */
+    public double getAverageDepth() {
+        long puts = mPutCount;
+        return puts > 0 ? (double)mDepthSum / puts : 0;
+    }
+
+    /**
+     * Returns number of put() calls which had to wait for the consumer.
+     */
+    public long getBlockedPutCount() {
+        return mBlockedPutCount;
+    }
+
+    public long getBlockedPutTimeNs() {
+        return mBlockedPutTimeNs;
+    }
+
+    /**
+     * Returns number of offer() calls rejected because the queue was full.
+     */
+    public long getRejectedOfferCount() {
+        return mRejectedOfferCount;
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": items " + mPutCount + ". Depth avg " +
+                String.format("%.2f", getAverageDepth()) + ", max " + mMaxDepth +
+                " of " + mItems.length + ". Blocked puts " + mBlockedPutCount +
+                " (" + (mBlockedPutTimeNs / 1000000) + " ms). Rejected offers " +
+                mRejectedOfferCount;
+    }
+
+    private boolean tryPut(T item) {
+        if (mClosed) {
+            return false;
+        }
+        long tail = mTail;
+        if (tail - mHead == mItems.length) {
+            return false;
+        }
+        mItems[(int)tail & mMask] = item;
+        mTail = tail + 1;
+
+        int depth = (int)(tail + 1 - mHead);
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        mDepthSum += depth;
+        mPutCount++;
+
+        if (mConsumerWaiting) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaFormat;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Encode benchmark over a matrix of resolutions, bitrates, frame rates and
+ * HW / SW codecs.
+ *
+ * Every configuration encodes up to MAX_FRAMES of the YUV clip
+ * <INPUT_BASE>.<width>_<height>.yuv as fast as the encoder accepts input,
+ * WARMUP_RUNS times unmeasured and then REPEAT_RUNS times measured.  With
+ * LOOPBACK_DECODE the encoded frames are decoded again and compared to the
+ * clip.  One line per configuration is written to REPORT_FILE in CSV:
+ * throughput, latency percentiles, bitrate error against the target, decode
+ * throughput and luma PSNR.
+ *
+ * The matrix is read from MATRIX_FILE if it exists, one configuration per
+ * line: <width> <height> <bitrate> <fps> <hw|sw> [mime].  Otherwise the
+ * default matrix is used.
+ */
+public class SweepBenchmark {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final File INPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final File OUTPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final String INPUT_BASE = "mac_marco_moving";
+    private static final String MATRIX_FILE = "sweep_matrix.txt";
+    private static final String REPORT_FILE = "sweep_report.csv";
+    private static final String VP8_MIME = "video/x-vnd.on2.vp8";
+    private static final int IFRAME_INTERVAL = 10;
+    private static final int VIDEO_ControlRateConstant = 2;
+
+    private static final int MAX_FRAMES = 300;
+    private static final int MAX_FRAMES_IN_FLIGHT = 4;
+    private static final int WARMUP_RUNS = 1;
+    private static final int REPEAT_RUNS = 3;
+    private static final long TIMEOUT_US = 10000;
+    private static final long RUN_TIMEOUT_MS = 60000;
+    private static boolean LOOPBACK_DECODE = true;
+    private static boolean USE_FAKE_CODEC = false;
+
+    // Default matrix.
+    private static final int[][] RESOLUTIONS = { {320, 240}, {640, 480}, {1280, 720} };
+    private static final int[] BITRATES = { 300000, 1000000, 2500000 };
+    private static final int[] FRAME_RATES = { 15, 30 };
+    private static final boolean[] SOFTWARE = { false, true };
+
+    private Thread mTestRunner;
+
+    /**
+     * One operating point.
+     */
+    public static class Config {
+        public Config(String mime, int width, int height, int bitrate, int frameRate,
+                boolean software) {
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+            this.bitrate = bitrate;
+            this.frameRate = frameRate;
+            this.software = software;
+        }
+
+        public final String mime;
+        public final int width;
+        public final int height;
+        public final int bitrate;
+        public final int frameRate;
+        public final boolean software;
+
+        @Override
+        public String toString() {
+            return mime + " " + width + "x" + height + " @ " + bitrate + " bps, " + frameRate +
+                    " fps, " + (software ? "sw" : "hw");
+        }
+    }
+
+    /**
+     * Measurements of one configuration, averaged over the measured runs.
+     */
+    public static class Result {
+        public static final String CSV_HEADER = "mime,width,height,bitrate,fps,codec,status," +
+                "runs,frames,encode_fps,latency_avg_ms,latency_p50_ms,latency_p90_ms," +
+                "latency_p99_ms,latency_max_ms,actual_bitrate,bitrate_error_pct,decode_fps," +
+                "psnr_y";
+
+        public Result(Config config) {
+            this.config = config;
+        }
+
+        public final Config config;
+        public String codecName = "";
+        public String status = "ok";
+        public int runs;
+        public int frames;
+        public double encodeFps;
+        public final LatencyStats latency = new LatencyStats();
+        public double actualBitrate;
+        public double decodeFps;
+        public double psnr;
+
+        public double getBitrateErrorPercent() {
+            return 100 * (actualBitrate - config.bitrate) / config.bitrate;
+        }
+
+        public String toCsv() {
+            return config.mime + "," + config.width + "," + config.height + "," +
+                    config.bitrate + "," + config.frameRate + "," + codecName + "," +
+                    status.replace(',', ';') + "," + runs + "," + frames + "," +
+                    format(encodeFps) + "," + format(latency.getAverageUs() / 1000.0) + "," +
+                    format(latency.getPercentileUs(50) / 1000.0) + "," +
+                    format(latency.getPercentileUs(90) / 1000.0) + "," +
+                    format(latency.getPercentileUs(99) / 1000.0) + "," +
+                    format(latency.getMaxUs() / 1000.0) + "," + (int)actualBitrate + "," +
+                    format(getBitrateErrorPercent()) + "," + format(decodeFps) + "," +
+                    format(psnr);
+        }
+
+        @Override
+        public String toString() {
+            if (!status.equals("ok")) {
+                return config + ": " + status;
+            }
+            return config + ": " + codecName + ". Encode fps " + format(encodeFps) +
+                    ". Latency " + latency + ". Bitrate " + (int)actualBitrate + " (" +
+                    format(getBitrateErrorPercent()) + "%). Decode fps " + format(decodeFps) +
+                    ". PSNR " + format(psnr) + " dB";
+        }
+
+        private static String format(double value) {
+            return String.format("%.2f", value);
+        }
+    }
+
+    // Output of one encode run.
+    private static class EncodeRun {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        final List<Long> presentationTimesUs = new ArrayList<Long>();
+        final LatencyStats latency = new LatencyStats();
+        long elapsedNs;
+        long bytes;
+    }
+
+    /** test entry point */
+    public void testSweep() {
+        Runnable r = new Runnable() {
+            public void run() {
+                try {
+                    runSweep(loadMatrix());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        mTestRunner = new Thread(r, "SweepBenchmark");
+        mTestRunner.start();
+    }
+
+    /**
+     * Returns the matrix of MATRIX_FILE, or the default matrix if there is none.
+     */
+    public static List<Config> loadMatrix() throws IOException {
+        File file = new File(INPUT_DIR, MATRIX_FILE);
+        if (file.exists()) {
+            Log.d(TAG, "Sweep matrix from " + file);
+            return readMatrix(file);
+        }
+        List<Config> matrix = new ArrayList<Config>();
+        for (int[] resolution : RESOLUTIONS) {
+            for (int bitrate : BITRATES) {
+                for (int frameRate : FRAME_RATES) {
+                    for (boolean software : SOFTWARE) {
+                        matrix.add(new Config(VP8_MIME, resolution[0], resolution[1], bitrate,
+                                frameRate, software));
+                    }
+                }
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Reads a matrix file.  Empty lines and lines starting with # are skipped.
+     */
+    public static List<Config> readMatrix(File file) throws IOException {
+        List<Config> matrix = new ArrayList<Config>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                // <width> <height> <bitrate> <fps> <hw|sw> [mime]
+                String[] fields = line.split("\\s+");
+                if (fields.length < 5 || !(fields[4].equals("hw") || fields[4].equals("sw"))) {
+                    throw new IOException("Bad matrix line: " + line);
+                }
+                try {
+                    matrix.add(new Config(fields.length > 5 ? fields[5] : VP8_MIME,
+                            Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                            Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                            fields[4].equals("sw")));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad matrix line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return matrix;
+    }
+
+    /**
+     * Runs all configurations and writes the report.
+     *
+     * @return results in matrix order
+     */
+    public List<Result> runSweep(List<Config> matrix) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        for (Config config : matrix) {
+            Log.d(TAG, "Sweep " + (results.size() + 1) + " / " + matrix.size() + ": " + config);
+            Result result = runConfig(config);
+            Log.d(TAG, result.toString());
+            results.add(result);
+        }
+
+        File reportFile = new File(OUTPUT_DIR, REPORT_FILE);
+        FileWriter writer = new FileWriter(reportFile);
+        try {
+            writer.write(Result.CSV_HEADER + "\n");
+            for (Result result : results) {
+                writer.write(result.toCsv() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        Log.d(TAG, "Sweep report: " + reportFile);
+        CodecPool.getInstance().evictIdle(0);
+        return results;
+    }
+
+    /**
+     * Runs warmup and measured runs of one configuration.  Failures are
+     * reported in the result status.
+     */
+    public Result runConfig(Config config) {
+        Result result = new Result(config);
+        String yuvPath = new File(INPUT_DIR, INPUT_BASE + "." + config.width + "_" +
+                config.height + ".yuv").toString();
+        if (!new File(yuvPath).exists()) {
+            result.status = "no input " + yuvPath;
+            return result;
+        }
+
+        CodecCatalog.CodecEntry encoderEntry = null;
+        CodecCatalog.CodecEntry decoderEntry = null;
+        if (!USE_FAKE_CODEC) {
+            CodecCatalog catalog = CodecCatalog.getInstance();
+            encoderEntry = catalog.findCodec(config.mime, true, config.software,
+                    CodecCatalog.SUPPORTED_COLOR_LIST);
+            decoderEntry = catalog.findCodec(config.mime, false, config.software,
+                    CodecCatalog.SUPPORTED_COLOR_LIST);
+            if (encoderEntry == null || (LOOPBACK_DECODE && decoderEntry == null)) {
+                result.status = "no codec";
+                return result;
+            }
+            result.codecName = encoderEntry.name;
+        } else {
+            result.codecName = "fake.encoder";
+        }
+
+        double encodeFpsSum = 0;
+        double bitrateSum = 0;
+        double decodeFpsSum = 0;
+        double psnrSum = 0;
+        try {
+            for (int run = 0; run < WARMUP_RUNS + REPEAT_RUNS; run++) {
+                boolean measured = run >= WARMUP_RUNS;
+                EncodeRun encoded = encode(config, encoderEntry, yuvPath);
+                int frames = encoded.frames.size();
+                if (frames == 0) {
+                    throw new RuntimeException("No encoded frames");
+                }
+                double decodeFps = 0;
+                double psnr = 0;
+                if (LOOPBACK_DECODE) {
+                    double[] decodeResult = decode(config, decoderEntry, encoded, yuvPath);
+                    decodeFps = decodeResult[0];
+                    psnr = decodeResult[1];
+                }
+                if (!measured) {
+                    continue;
+                }
+                result.runs++;
+                result.frames = frames;
+                encodeFpsSum += frames * 1e9 / encoded.elapsedNs;
+                bitrateSum += (double)encoded.bytes * 8 * config.frameRate / frames;
+                decodeFpsSum += decodeFps;
+                psnrSum += psnr;
+                result.latency.merge(encoded.latency);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Sweep " + config + " failed: " + e.toString());
+            result.status = "failed " + e.toString();
+        }
+        if (result.runs > 0) {
+            result.encodeFps = encodeFpsSum / result.runs;
+            result.actualBitrate = bitrateSum / result.runs;
+            result.decodeFps = decodeFpsSum / result.runs;
+            result.psnr = psnrSum / result.runs;
+        }
+        return result;
+    }
+
+    // Encodes the clip as fast as the encoder accepts input, keeping the output.
+    private EncodeRun encode(Config config, CodecCatalog.CodecEntry entry, String yuvPath)
+            throws IOException {
+        boolean planar = true;
+        VideoCodec encoder;
+        if (USE_FAKE_CODEC) {
+            FakeVideoCodec fake = new FakeVideoCodec("fake.encoder", config.mime, true,
+                    config.width, config.height);
+            fake.setBitrate(config.bitrate, config.frameRate);
+            fake.setKeyFrames(IFRAME_INTERVAL * config.frameRate, 4.0);
+            fake.start();
+            encoder = fake;
+        } else {
+            int colorFormat = entry.selectColorFormat(CodecCatalog.SUPPORTED_COLOR_LIST);
+            planar = colorFormat == CodecCapabilities.COLOR_FormatYUV420Planar;
+            MediaFormat format = MediaFormat.createVideoFormat(config.mime, config.width,
+                    config.height);
+            format.setInteger("bitrate-mode", VIDEO_ControlRateConstant);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, config.bitrate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, config.frameRate);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+            encoder = CodecPool.getInstance().acquire(entry.name, format,
+                    MediaCodec.CONFIGURE_FLAG_ENCODE);
+        }
+
+        EncodeRun run = new EncodeRun();
+        YuvReader reader = new YuvReader(yuvPath, config.width, config.height, 0);
+        try {
+            byte[] frame = new byte[config.width * config.height * 3 / 2];
+            VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+            // Input time of the frames queued and not encoded yet, by presentation time.
+            TreeMap<Long, Long> inputTimesNs = new TreeMap<Long, Long>();
+            long frameIntervalUs = 1000000 / config.frameRate;
+            int inputFrames = 0;
+            boolean inputDone = false;
+            long startNs = System.nanoTime();
+            long deadlineNs = startNs + RUN_TIMEOUT_MS * 1000000;
+            while (true) {
+                if (!inputDone && inputTimesNs.size() < MAX_FRAMES_IN_FLIGHT) {
+                    int index = encoder.dequeueInputBuffer(0);
+                    if (index >= 0) {
+                        long presentationTimeUs = inputFrames * frameIntervalUs;
+                        if (inputFrames >= MAX_FRAMES || reader.readFrame(frame, planar) <= 0) {
+                            encoder.queueInputBuffer(index, 0, 0, presentationTimeUs,
+                                    VideoCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            ByteBuffer buffer = encoder.getInputBuffer(index);
+                            buffer.clear();
+                            buffer.put(frame);
+                            inputTimesNs.put(presentationTimeUs, System.nanoTime());
+                            encoder.queueInputBuffer(index, 0, frame.length, presentationTimeUs,
+                                    0);
+                            inputFrames++;
+                        }
+                    }
+                }
+                if (System.nanoTime() > deadlineNs) {
+                    throw new RuntimeException("Encoder timeout after " + run.frames.size() +
+                            " frames");
+                }
+
+                int result = encoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (result < 0) {
+                    continue;
+                }
+                if (info.size > 0 && (info.flags & VideoCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    ByteBuffer buffer = encoder.getOutputBuffer(result);
+                    byte[] data = new byte[info.size];
+                    buffer.position(info.offset);
+                    buffer.get(data);
+                    // Frames queued before this one and not encoded were skipped by the
+                    // encoder and are no longer in flight.
+                    inputTimesNs.headMap(info.presentationTimeUs).clear();
+                    Long inputTimeNs = inputTimesNs.remove(info.presentationTimeUs);
+                    if (inputTimeNs != null) {
+                        run.latency.add((System.nanoTime() - inputTimeNs) / 1000);
+                    }
+                    run.frames.add(data);
+                    run.presentationTimesUs.add(info.presentationTimeUs);
+                    run.bytes += info.size;
+                }
+                encoder.releaseOutputBuffer(result, false);
+                if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+            run.elapsedNs = System.nanoTime() - startNs;
+        } finally {
+            reader.close();
+            CodecPool.getInstance().recycle(encoder);
+        }
+        return run;
+    }
+
+    // Decodes the encoded frames as fast as possible and compares the luma
+    // plane with the clip.  Returns decode fps and average luma PSNR.
+    private double[] decode(Config config, CodecCatalog.CodecEntry entry, EncodeRun encoded,
+            String yuvPath) throws IOException {
+        VideoCodec decoder;
+        if (USE_FAKE_CODEC) {
+            FakeVideoCodec fake = new FakeVideoCodec("fake.decoder", config.mime, false,
+                    config.width, config.height);
+            fake.start();
+            decoder = fake;
+        } else {
+            MediaFormat format = MediaFormat.createVideoFormat(config.mime, config.width,
+                    config.height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    entry.selectColorFormat(CodecCatalog.SUPPORTED_COLOR_LIST));
+            decoder = CodecPool.getInstance().acquire(entry.name, format, 0);
+        }
+
+        RandomAccessFile source = new RandomAccessFile(yuvPath, "r");
+        try {
+            int frameSize = config.width * config.height * 3 / 2;
+            long frameIntervalUs = 1000000 / config.frameRate;
+            byte[] sourceLuma = new byte[config.width * config.height];
+            byte[] decodedRow = new byte[config.width];
+            VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
+            int stride = config.width;
+            int inputFrames = 0;
+            int outputFrames = 0;
+            int comparedFrames = 0;
+            double psnrSum = 0;
+            boolean inputDone = false;
+            long startNs = System.nanoTime();
+            long deadlineNs = startNs + RUN_TIMEOUT_MS * 1000000;
+            while (true) {
+                if (!inputDone) {
+                    int index = decoder.dequeueInputBuffer(0);
+                    if (index >= 0) {
+                        if (inputFrames == encoded.frames.size()) {
+                            decoder.queueInputBuffer(index, 0, 0,
+                                    inputFrames * frameIntervalUs,
+                                    VideoCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            byte[] data = encoded.frames.get(inputFrames);
+                            ByteBuffer buffer = decoder.getInputBuffer(index);
+                            buffer.clear();
+                            buffer.put(data);
+                            decoder.queueInputBuffer(index, 0, data.length,
+                                    encoded.presentationTimesUs.get(inputFrames), 0);
+                            inputFrames++;
+                        }
+                    }
+                }
+                if (System.nanoTime() > deadlineNs) {
+                    throw new RuntimeException("Decoder timeout after " + outputFrames +
+                            " frames");
+                }
+
+                int result = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (result == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    VideoCodec.Format format = decoder.getOutputFormat();
+                    stride = format.stride > 0 ? format.stride : config.width;
+                    continue;
+                }
+                if (result < 0) {
+                    continue;
+                }
+                if (info.size >= stride * (config.height - 1) + config.width) {
+                    outputFrames++;
+                    // Source frame of the output by presentation time.
+                    long sourceIndex = info.presentationTimeUs / frameIntervalUs;
+                    source.seek(sourceIndex * frameSize);
+                    if (source.read(sourceLuma) == sourceLuma.length) {
+                        ByteBuffer buffer = decoder.getOutputBuffer(result);
+                        long squaredError = 0;
+                        for (int y = 0; y < config.height; y++) {
+                            buffer.position(info.offset + y * stride);
+                            buffer.get(decodedRow);
+                            int sourceOffset = y * config.width;
+                            for (int x = 0; x < config.width; x++) {
+                                int diff = (decodedRow[x] & 0xFF) -
+                                        (sourceLuma[sourceOffset + x] & 0xFF);
+                                squaredError += diff * diff;
+                            }
+                        }
+                        psnrSum += getPsnr(squaredError, config.width * config.height);
+                        comparedFrames++;
+                    }
+                }
+                decoder.releaseOutputBuffer(result, false);
+                if ((info.flags & VideoCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+            long elapsedNs = System.nanoTime() - startNs;
+            return new double[] {
+                    outputFrames * 1e9 / elapsedNs,
+                    comparedFrames > 0 ? psnrSum / comparedFrames : 0 };
+        } finally {
+            source.close();
+            CodecPool.getInstance().recycle(decoder);
+        }
+    }
+
+    // Identical frames are reported as 100 dB.
+    private static double getPsnr(long squaredError, int samples) {
+        if (squaredError == 0) {
+            return 100;
+        }
+        double mse = (double)squaredError / samples;
+        return 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.io.IOException;
+
+/**
+ * Leaky bucket (VBV / HRD) compliance check of an encoded stream.
+ *
+ * Simulates the decoder buffer of a player on a constant rate link: bits
+ * arrive at the drain rate, the first frame is decoded after the initial
+ * delay and every following frame at its presentation time, removing the
+ * whole frame from the buffer at once.
+ *
+ * Underflow: a frame is not completely received at its decode time.  The
+ * player stalls until it is, and all following frames are decoded later by
+ * the stall time.  Overflow: the buffer is full, the link has to pause
+ * or bits are lost.  On a CBR link both are violations, on a VBR link only
+ * underflow is.
+ *
+ * Independently of the simulated buffer, the smallest buffer which plays the
+ * stream at the drain rate without underflow is computed: the peak of the
+ * encoder side bucket, which fills with every frame and drains at the rate.
+ * With that buffer an initial delay of size / rate is enough.
+ *
+ * Frames are fed one by one with onFrame(), or read from an IVF file with
+ * analyzeIvf(); memory use does not depend on the stream length.  Not thread
+ * safe.
+ */
+public class VbvAnalyzer {
+    /**
+     * Receives the buffer state after every frame.
+     */
+    public interface Listener {
+        /**
+         * @param frameIndex        index of the frame
+         * @param frameSize         frame size in bytes
+         * @param fullnessBits      buffer fullness right before the frame is removed
+         * @param underflowUs       player stall caused by the frame, 0 if none
+         * @param overflowBits      bits which did not fit in the buffer before the frame
+         */
+        public void onFrame(int frameIndex, int frameSize, long fullnessBits,
+                long underflowUs, long overflowBits);
+    }
+
+    private final int mDrainRate;
+    private final long mBufferBits;
+    private final long mInitialDelayUs;
+    private Listener mListener;
+
+    // Decoder buffer.
+    private int mFrameCount;
+    private long mFirstPresentationTimeUs;
+    private long mLastPresentationTimeUs;
+    private double mFullnessBits;
+    private long mBufferTimeUs;        // time up to which arrivals are counted
+    private long mStallUs;             // total player stall so far
+    private long mMinFullnessBits = Long.MAX_VALUE;
+    private long mMaxFullnessBits;
+    private int mUnderflowCount;
+    private int mOverflowCount;
+    private long mOverflowBits;
+    private long mTotalBits;
+
+    // Encoder side bucket.
+    private double mBucketBits;
+    private double mMaxBucketBits;
+
+    /**
+     * @param drainRate         link rate in bits per second
+     * @param bufferBits        decoder buffer size in bits
+     * @param initialDelayUs    time from the first received bit to the first decoded frame
+     */
+    public VbvAnalyzer(int drainRate, long bufferBits, long initialDelayUs) {
+        mDrainRate = drainRate;
+        mBufferBits = bufferBits;
+        mInitialDelayUs = initialDelayUs;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Called for every encoded frame in decode order, codec config buffers excluded.
+     */
+    public void onFrame(int frameSize, long presentationTimeUs) {
+        long frameBits = (long)frameSize * 8;
+        if (mFrameCount == 0) {
+            mFirstPresentationTimeUs = presentationTimeUs;
+        } else {
+            double drainedBits = (double)mDrainRate *
+                    Math.max(0, presentationTimeUs - mLastPresentationTimeUs) / 1e6;
+            mBucketBits = Math.max(0, mBucketBits - drainedBits);
+        }
+        mBucketBits += frameBits;
+        mMaxBucketBits = Math.max(mMaxBucketBits, mBucketBits);
+        mLastPresentationTimeUs = presentationTimeUs;
+
+        // Bits received up to the decode time of the frame.
+        long decodeTimeUs = Math.max(mBufferTimeUs,
+                presentationTimeUs - mFirstPresentationTimeUs + mInitialDelayUs + mStallUs);
+        mFullnessBits += (double)mDrainRate * (decodeTimeUs - mBufferTimeUs) / 1e6;
+        mBufferTimeUs = decodeTimeUs;
+        long overflowBits = 0;
+        if (mFullnessBits > mBufferBits) {
+            overflowBits = (long)(mFullnessBits - mBufferBits);
+            mFullnessBits = mBufferBits;
+            mOverflowCount++;
+            mOverflowBits += overflowBits;
+        }
+        long fullnessBits = (long)mFullnessBits;
+        long underflowUs = 0;
+        if (mFullnessBits < frameBits) {
+            // Wait for the rest of the frame.
+            underflowUs = (long)Math.ceil((frameBits - mFullnessBits) * 1e6 / mDrainRate);
+            mStallUs += underflowUs;
+            mBufferTimeUs += underflowUs;
+            mFullnessBits = frameBits;
+            mUnderflowCount++;
+        }
+        mMinFullnessBits = Math.min(mMinFullnessBits, fullnessBits);
+        mMaxFullnessBits = Math.max(mMaxFullnessBits, fullnessBits);
+        mFullnessBits -= frameBits;
+        mTotalBits += frameBits;
+
+        if (mListener != null) {
+            mListener.onFrame(mFrameCount, frameSize, fullnessBits, underflowUs, overflowBits);
+        }
+        mFrameCount++;
+    }
+
+    /**
+     * Feeds all frames of an IVF file.
+     */
+    public void analyzeIvf(String filename) throws IOException {
+        IvfReader.scanFrameHeaders(filename, new IvfReader.FrameHeaderListener() {
+            @Override
+            public void onFrameHeader(int frameIndex, int frameSize, double timestamp) {
+                onFrame(frameSize, (long)(timestamp * 1e6 + 0.5));
+            }
+        });
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getUnderflowCount() {
+        return mUnderflowCount;
+    }
+
+    public int getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    /**
+     * Returns the total player stall caused by underflows.
+     */
+    public long getStallUs() {
+        return mStallUs;
+    }
+
+    /**
+     * Returns true if the stream played without underflow and overflow.
+     */
+    public boolean isCompliant() {
+        return mUnderflowCount == 0 && mOverflowCount == 0;
+    }
+
+    /**
+     * Returns the smallest decoder buffer in bits which plays the stream at
+     * the drain rate without underflow, given an initial delay of size / rate.
+     */
+    public long getMinBufferBits() {
+        return (long)Math.ceil(mMaxBucketBits);
+    }
+
+    /**
+     * Returns the average bitrate of the stream.
+     */
+    public double getAverageBitrate() {
+        long durationUs = mLastPresentationTimeUs - mFirstPresentationTimeUs;
+        if (mFrameCount < 2 || durationUs <= 0) {
+            return 0;
+        }
+        // Every frame lasts one frame interval, including the last one.
+        return mTotalBits * 1e6 / (durationUs * mFrameCount / (mFrameCount - 1));
+    }
+
+    @Override
+    public String toString() {
+        return "Rate " + mDrainRate + " bps. Buffer " + mBufferBits + " bits. Initial delay " +
+                (mInitialDelayUs / 1000) + " ms. Frames " + mFrameCount +
+                ". Average bitrate " + (int)getAverageBitrate() + " bps. Fullness " +
+                (mFrameCount > 0 ? mMinFullnessBits : 0) + " - " + mMaxFullnessBits +
+                " bits. Underflows " + mUnderflowCount + ", stall " + (mStallUs / 1000) +
+                " ms. Overflows " + mOverflowCount + ", " + mOverflowBits +
+                " bits. Min buffer " + getMinBufferBits() + " bits (" +
+                (getMinBufferBits() * 1000 / Math.max(1, mDrainRate)) + " ms)";
+    }
+}
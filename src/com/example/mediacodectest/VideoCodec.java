@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Video encoder or decoder with the buffer contract of android.media.MediaCodec.
+ *
+ * Input buffers are dequeued, filled and queued back, output buffers are
+ * dequeued and released.  Status codes and buffer flags have the same values
+ * as their MediaCodec counterparts.  The interface does not depend on Android
+ * classes, so code written against it can run on a desktop JVM with
+ * FakeVideoCodec, while MediaCodecVideoCodec is used on a device.
+ *
+ * Like MediaCodec, a codec runs either in synchronous mode, where the client
+ * dequeues buffers, or in asynchronous mode selected by setCallback(), where
+ * buffer availability is reported by events on a codec owned handler thread.
+ *
+ * Implementations are not thread safe unless stated otherwise.
+ */
+public interface VideoCodec {
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    /**
+     * Metadata of a dequeued output buffer, equivalent of MediaCodec.BufferInfo.
+     */
+    public static class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+
+    /**
+     * Output format of the codec, subset of MediaFormat used by the tests.
+     */
+    public static class Format {
+        public Format(String mime, int width, int height, int colorFormat,
+                int stride, int sliceHeight) {
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+            this.colorFormat = colorFormat;
+            this.stride = stride;
+            this.sliceHeight = sliceHeight;
+        }
+
+        public final String mime;
+        public final int width;
+        public final int height;
+        public final int colorFormat;
+        public final int stride;       // Row stride of the output frames.
+        public final int sliceHeight;  // Plane height of the output frames.
+
+        @Override
+        public String toString() {
+            return mime + " " + width + " x " + height + ". Color: 0x" +
+                    Integer.toHexString(colorFormat) + ". Stride: " + stride +
+                    ". Slice height: " + sliceHeight;
+        }
+    }
+
+    /**
+     * Events of a codec in asynchronous mode.  All events of one codec are
+     * delivered in order on a single thread owned by the codec.
+     */
+    public interface Callback {
+        public void onInputBufferAvailable(VideoCodec codec, int index);
+
+        public void onOutputBufferAvailable(VideoCodec codec, int index, BufferInfo info);
+
+        public void onOutputFormatChanged(VideoCodec codec, Format format);
+
+        public void onError(VideoCodec codec, RuntimeException e);
+    }
+
+    /**
+     * Returns component name of the codec.
+     */
+    public String getName();
+
+    public boolean isEncoder();
+
+    public void start();
+
+    public ByteBuffer[] getInputBuffers();
+
+    public ByteBuffer[] getOutputBuffers();
+
+    /**
+     * Returns index of an input buffer to fill, or INFO_TRY_AGAIN_LATER.
+     *
+     * @param timeoutUs  time to wait for a buffer, negative value waits forever
+     */
+    public int dequeueInputBuffer(long timeoutUs);
+
+    /**
+     * Returns the input buffer with the given index.  Works in both modes,
+     * unlike getInputBuffers() which is not available in asynchronous mode.
+     */
+    public ByteBuffer getInputBuffer(int index);
+
+    /**
+     * Returns the output buffer with the given index.
+     */
+    public ByteBuffer getOutputBuffer(int index);
+
+    public void queueInputBuffer(int index, int offset, int size,
+            long presentationTimeUs, int flags);
+
+    /**
+     * Returns index of an output buffer described by info, or one of
+     * INFO_TRY_AGAIN_LATER, INFO_OUTPUT_FORMAT_CHANGED and INFO_OUTPUT_BUFFERS_CHANGED.
+     *
+     * @param timeoutUs  time to wait for a buffer, negative value waits forever
+     */
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs);
+
+    public void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * Signals end of stream for surface input encoders.
+     */
+    public void signalEndOfInputStream();
+
+    /**
+     * Returns the format of the output buffers, valid after INFO_OUTPUT_FORMAT_CHANGED.
+     */
+    public Format getOutputFormat();
+
+    /**
+     * Returns all input and output buffers to the codec and discards pending data.
+     */
+    public void flush();
+
+    /**
+     * Switches the codec to asynchronous mode.  Must be called before the codec
+     * is configured (MediaCodecVideoCodec) and started.  dequeueInputBuffer() and
+     * dequeueOutputBuffer() must not be used afterwards.
+     */
+    public void setCallback(Callback callback);
+
+    /**
+     * Changes the target bitrate of a started encoder, equivalent of
+     * MediaCodec.setParameters() with PARAMETER_KEY_VIDEO_BITRATE.
+     * MediaCodecVideoCodec requires API 19, see isParameterUpdateSupported().
+     *
+     * @throws UnsupportedOperationException if the codec can not change the bitrate
+     */
+    public void setVideoBitrate(int bitrate);
+
+    public void stop();
+
+    public void release();
+}
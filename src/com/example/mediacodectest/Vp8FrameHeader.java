@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+/**
+ * Uncompressed header of a VP8 frame, RFC 6386 section 9.1.
+ *
+ * The 3 byte frame tag holds the key frame flag, version, show_frame flag and
+ * the size of the first partition.  Key frames continue with the start code
+ * 0x9d 0x01 0x2a and the frame dimensions with their scaling.
+ *
+ * parseFrameHeader() also decodes the bool coded frame header at the start
+ * of the first partition, section 9.2 - 9.8 and 19.2, up to
+ * refresh_last: segmentation, loop filter, token partitions, quantizer
+ * indices and reference buffer updates.
+ */
+public class Vp8FrameHeader {
+    private static final int FRAME_TAG_SIZE = 3;
+    private static final int KEY_FRAME_HEADER_SIZE = 10;
+
+    public boolean keyFrame;
+    public int version;
+    public boolean showFrame;
+    public int firstPartitionSize;
+    // Key frames only.
+    public int width;
+    public int height;
+    public int horizontalScale;
+    public int verticalScale;
+    // Bool coded frame header, parseFrameHeader() only.
+    public int colorSpace;          // key frames only
+    public int clampingType;        // key frames only
+    public boolean segmentationEnabled;
+    public int filterType;
+    public int loopFilterLevel;
+    public int sharpnessLevel;
+    public int tokenPartitions;
+    public int baseQIndex;          // y_ac_qi, 0 - 127
+    // Deltas of y_dc, y2_dc, y2_ac, uv_dc and uv_ac to the base index.
+    public final int[] qIndexDeltas = new int[5];
+    public boolean refreshGolden;
+    public boolean refreshAltref;
+    public int copyToGolden;        // 0 none, 1 last frame, 2 altref frame
+    public int copyToAltref;        // 0 none, 1 last frame, 2 golden frame
+    public boolean signBiasGolden;
+    public boolean signBiasAltref;
+    public boolean refreshEntropyProbs;
+    public boolean refreshLast;
+
+    /**
+     * Boolean entropy decoder, RFC 6386 section 7.3.  Reads past the data
+     * return zeros; more than the 2 bytes the decoder reads ahead set overrun.
+     */
+    private static class BoolDecoder {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPosition;
+        private int mValue;
+        private int mRange = 255;
+        private int mBitCount;
+        boolean overrun;
+
+        BoolDecoder(byte[] data, int start, int end) {
+            mData = data;
+            mPosition = start;
+            mEnd = end;
+            mValue = (nextByte() << 8) | nextByte();
+        }
+
+        boolean readBool(int probability) {
+            int split = 1 + (((mRange - 1) * probability) >> 8);
+            int bigSplit = split << 8;
+            boolean bit;
+            if (mValue >= bigSplit) {
+                bit = true;
+                mRange -= split;
+                mValue -= bigSplit;
+            } else {
+                bit = false;
+                mRange = split;
+            }
+            while (mRange < 128) {
+                mValue <<= 1;
+                mRange <<= 1;
+                if (++mBitCount == 8) {
+                    mBitCount = 0;
+                    mValue |= nextByte();
+                }
+            }
+            return bit;
+        }
+
+        boolean readFlag() {
+            return readBool(128);
+        }
+
+        // L(n), an unsigned n bit literal.
+        int readLiteral(int bits) {
+            int value = 0;
+            for (int i = 0; i < bits; i++) {
+                value = (value << 1) | (readFlag() ? 1 : 0);
+            }
+            return value;
+        }
+
+        // A flag, and if it is set a magnitude of the given bits and a sign.
+        int readOptionalSigned(int bits) {
+            if (!readFlag()) {
+                return 0;
+            }
+            int value = readLiteral(bits);
+            return readFlag() ? -value : value;
+        }
+
+        private int nextByte() {
+            if (mPosition >= mEnd) {
+                overrun = mPosition++ >= mEnd + 2;
+                return 0;
+            }
+            return mData[mPosition++] & 0xFF;
+        }
+    }
+
+    /**
+     * Parses the header of a frame.
+     *
+     * @return the header, or null if the data is too short or a key frame has
+     *         no valid start code
+     */
+    public static Vp8FrameHeader parse(byte[] frame, int offset, int length) {
+        if (length < FRAME_TAG_SIZE) {
+            return null;
+        }
+        int tag = (frame[offset] & 0xFF) | ((frame[offset + 1] & 0xFF) << 8) |
+                ((frame[offset + 2] & 0xFF) << 16);
+        Vp8FrameHeader header = new Vp8FrameHeader();
+        header.keyFrame = (tag & 1) == 0;
+        header.version = (tag >> 1) & 7;
+        header.showFrame = ((tag >> 4) & 1) != 0;
+        header.firstPartitionSize = tag >>> 5;
+        if (!header.keyFrame) {
+            return header;
+        }
+        if (length < KEY_FRAME_HEADER_SIZE || (frame[offset + 3] & 0xFF) != 0x9d ||
+                (frame[offset + 4] & 0xFF) != 0x01 || (frame[offset + 5] & 0xFF) != 0x2a) {
+            return null;
+        }
+        int horizontal = (frame[offset + 6] & 0xFF) | ((frame[offset + 7] & 0xFF) << 8);
+        int vertical = (frame[offset + 8] & 0xFF) | ((frame[offset + 9] & 0xFF) << 8);
+        header.width = horizontal & 0x3FFF;
+        header.horizontalScale = horizontal >> 14;
+        header.height = vertical & 0x3FFF;
+        header.verticalScale = vertical >> 14;
+        return header;
+    }
+
+    /**
+     * Parses the header of a frame including the bool coded frame header.
+     * Only the start of the first partition is read, about 30 bytes.
+     *
+     * @return the header, or null if the data is too short or a key frame has
+     *         no valid start code
+     */
+    public static Vp8FrameHeader parseFrameHeader(byte[] frame, int offset, int length) {
+        Vp8FrameHeader header = parse(frame, offset, length);
+        if (header == null) {
+            return null;
+        }
+        int start = offset + (header.keyFrame ? KEY_FRAME_HEADER_SIZE : FRAME_TAG_SIZE);
+        int end = offset + length;
+        if (start + header.firstPartitionSize < end) {
+            end = start + header.firstPartitionSize;
+        }
+        BoolDecoder decoder = new BoolDecoder(frame, start, end);
+        if (header.keyFrame) {
+            header.colorSpace = decoder.readLiteral(1);
+            header.clampingType = decoder.readLiteral(1);
+        }
+        header.segmentationEnabled = decoder.readFlag();
+        if (header.segmentationEnabled) {
+            boolean updateMap = decoder.readFlag();
+            if (decoder.readFlag()) {
+                decoder.readFlag();     // segment_feature_mode
+                for (int i = 0; i < 4; i++) {
+                    decoder.readOptionalSigned(7);      // quantizer
+                }
+                for (int i = 0; i < 4; i++) {
+                    decoder.readOptionalSigned(6);      // loop filter level
+                }
+            }
+            if (updateMap) {
+                for (int i = 0; i < 3; i++) {
+                    if (decoder.readFlag()) {
+                        decoder.readLiteral(8);         // segment_prob
+                    }
+                }
+            }
+        }
+        header.filterType = decoder.readLiteral(1);
+        header.loopFilterLevel = decoder.readLiteral(6);
+        header.sharpnessLevel = decoder.readLiteral(3);
+        if (decoder.readFlag() && decoder.readFlag()) {
+            // Reference frame and mode loop filter deltas.
+            for (int i = 0; i < 8; i++) {
+                decoder.readOptionalSigned(6);
+            }
+        }
+        header.tokenPartitions = 1 << decoder.readLiteral(2);
+        header.baseQIndex = decoder.readLiteral(7);
+        for (int i = 0; i < header.qIndexDeltas.length; i++) {
+            header.qIndexDeltas[i] = decoder.readOptionalSigned(4);
+        }
+        if (header.keyFrame) {
+            // Key frames replace all reference buffers.
+            header.refreshGolden = true;
+            header.refreshAltref = true;
+            header.refreshEntropyProbs = decoder.readFlag();
+            header.refreshLast = true;
+        } else {
+            header.refreshGolden = decoder.readFlag();
+            header.refreshAltref = decoder.readFlag();
+            if (!header.refreshGolden) {
+                header.copyToGolden = decoder.readLiteral(2);
+            }
+            if (!header.refreshAltref) {
+                header.copyToAltref = decoder.readLiteral(2);
+            }
+            header.signBiasGolden = decoder.readFlag();
+            header.signBiasAltref = decoder.readFlag();
+            header.refreshEntropyProbs = decoder.readFlag();
+            header.refreshLast = decoder.readFlag();
+        }
+        return decoder.overrun ? null : header;
+    }
+
+    /**
+     * Returns true if the frame is a key frame.  Only the frame tag is checked.
+     */
+    public static boolean isKeyFrame(byte[] frame) {
+        return frame.length >= FRAME_TAG_SIZE && (frame[0] & 1) == 0;
+    }
+
+    @Override
+    public String toString() {
+        String result = (keyFrame ? "Key" : "Delta") + " frame. Version " + version +
+                (showFrame ? "" : ", hidden") + ". First partition " + firstPartitionSize;
+        if (keyFrame) {
+            result += ". " + width + " x " + height;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Rebuilds VP8 frames from RTP packets made by Vp8RtpPacketizer, RFC 7741.
+ *
+ * Packets of one frame share the RTP timestamp and may arrive in any order.
+ * A frame is complete when its packets from the start of partition 0 to the
+ * marker packet have consecutive sequence numbers; it is then passed to the
+ * listener at once.  A frame missing packets is passed on, marked incomplete,
+ * when the first packet of a later frame arrives or on flush(), with a flag
+ * telling whether its first partition is complete.  Packets of frames
+ * already passed on are dropped as late.
+ *
+ * The reassembly latency is the time from the first received packet of a
+ * complete frame to its completion.  Packet buffers are returned to the pool
+ * once their frame is passed on.  Not thread safe.
+ */
+public class Vp8RtpDepacketizer {
+    private static final int HEADER_SIZE =
+            Vp8RtpPacketizer.RTP_HEADER_SIZE + Vp8RtpPacketizer.DESCRIPTOR_SIZE;
+
+    /**
+     * Notified of every frame, complete or not.
+     */
+    public interface Listener {
+        public void onFrame(Frame frame);
+    }
+
+    /**
+     * A reassembled frame.
+     */
+    public static class Frame {
+        public byte[] data;                 // payload of the received packets in order
+        public long presentationTimeUs;
+        public int pictureId;
+        public boolean keyFrame;
+        public boolean complete;
+        public boolean firstPartitionComplete;
+        public int packetCount;
+        public long reassemblyNs;           // complete frames only
+    }
+
+    private static class Packet {
+        ByteBuffer buffer;
+        long sequenceNumber;                // extended to 64 bits
+        long receiveTimeNs;
+    }
+
+    private final PacketPool mPool;
+    private Listener mListener;
+    private final ArrayList<Packet> mPackets = new ArrayList<Packet>();
+    private final ArrayList<Packet> mFreePackets = new ArrayList<Packet>();
+    private boolean mHasFrame;
+    private int mTimestamp;
+    private boolean mHasLastTimestamp;
+    private int mLastTimestamp;            // last frame passed on
+    private long mFirstSequenceNumber = -1;
+    private long mMaxSequenceNumber = -1;
+
+    // Statistics.
+    private long mPacketCount;
+    private long mInvalidCount;
+    private long mLateCount;
+    private long mReorderedCount;
+    private int mCompleteCount;
+    private int mIncompleteCount;
+    private int mFirstPartitionOnlyCount;
+    private final LatencyStats mReassembly = new LatencyStats();
+
+    public Vp8RtpDepacketizer(PacketPool pool) {
+        mPool = pool;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Takes a received packet, positioned at its start.  The buffer belongs
+     * to the depacketizer from now on.
+     */
+    public void push(ByteBuffer buffer, long receiveTimeNs) {
+        if (buffer.remaining() < HEADER_SIZE ||
+                (buffer.get(buffer.position()) & 0xC0) >> 6 != Vp8RtpPacketizer.RTP_VERSION) {
+            mInvalidCount++;
+            mPool.release(buffer);
+            return;
+        }
+        mPacketCount++;
+        int start = buffer.position();
+        int timestamp = buffer.getInt(start + 4);
+        long sequenceNumber = extendSequenceNumber(buffer.getShort(start + 2) & 0xFFFF);
+
+        if (mHasLastTimestamp && timestamp - mLastTimestamp <= 0) {
+            mLateCount++;
+            mPool.release(buffer);
+            return;
+        }
+        if (mHasFrame && timestamp != mTimestamp) {
+            if (timestamp - mTimestamp < 0) {
+                // Packet of an older frame still being waited for.
+                mLateCount++;
+                mPool.release(buffer);
+                return;
+            }
+            deliver(false, receiveTimeNs);
+        }
+        mHasFrame = true;
+        mTimestamp = timestamp;
+
+        Packet packet = mFreePackets.isEmpty() ? new Packet() :
+                mFreePackets.remove(mFreePackets.size() - 1);
+        packet.buffer = buffer;
+        packet.sequenceNumber = sequenceNumber;
+        packet.receiveTimeNs = receiveTimeNs;
+        // Keep the packets sorted, out of order arrival is rare.
+        int i = mPackets.size();
+        while (i > 0 && mPackets.get(i - 1).sequenceNumber > sequenceNumber) {
+            i--;
+        }
+        if (i > 0 && mPackets.get(i - 1).sequenceNumber == sequenceNumber) {
+            mLateCount++;   // duplicate
+            mPool.release(buffer);
+            mFreePackets.add(packet);
+            return;
+        }
+        if (i < mPackets.size()) {
+            mReorderedCount++;
+        }
+        mPackets.add(i, packet);
+
+        if (isComplete()) {
+            deliver(true, receiveTimeNs);
+        }
+    }
+
+    /**
+     * Passes on the frame being assembled, e.g. at the end of the stream.
+     */
+    public void flush(long nowNs) {
+        if (mHasFrame) {
+            deliver(false, nowNs);
+        }
+    }
+
+    /**
+     * Returns the number of packets lost, from the sequence number gaps.
+     */
+    public long getLostCount() {
+        if (mFirstSequenceNumber < 0) {
+            return 0;
+        }
+        return Math.max(0, mMaxSequenceNumber - mFirstSequenceNumber + 1 - mPacketCount);
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public LatencyStats getReassembly() {
+        return mReassembly;
+    }
+
+    @Override
+    public String toString() {
+        return "Packets " + mPacketCount + ". Lost " + getLostCount() + ". Late " + mLateCount +
+                ". Reordered " + mReorderedCount + ". Invalid " + mInvalidCount +
+                ". Frames complete " + mCompleteCount + ", incomplete " + mIncompleteCount +
+                " (" + mFirstPartitionOnlyCount + " with first partition). Reassembly " +
+                mReassembly;
+    }
+
+    private long extendSequenceNumber(int sequenceNumber) {
+        if (mMaxSequenceNumber < 0) {
+            mFirstSequenceNumber = sequenceNumber;
+            mMaxSequenceNumber = sequenceNumber;
+            return sequenceNumber;
+        }
+        // Closest to the highest sequence number so far.
+        long extended = (mMaxSequenceNumber & ~0xFFFFL) | sequenceNumber;
+        if (extended < mMaxSequenceNumber - 0x8000) {
+            extended += 0x10000;
+        } else if (extended > mMaxSequenceNumber + 0x8000) {
+            extended -= 0x10000;
+        }
+        mMaxSequenceNumber = Math.max(mMaxSequenceNumber, extended);
+        return extended;
+    }
+
+    private static boolean isPartitionStart(ByteBuffer buffer, int partition) {
+        int descriptor = buffer.get(buffer.position() + Vp8RtpPacketizer.RTP_HEADER_SIZE);
+        return (descriptor & 0x10) != 0 && (descriptor & 0x07) == partition;
+    }
+
+    private static boolean hasMarker(ByteBuffer buffer) {
+        return (buffer.get(buffer.position() + 1) & 0x80) != 0;
+    }
+
+    // Returns the number of consecutive packets from the start of partition 0.
+    private int getConsecutiveCount() {
+        if (mPackets.isEmpty() || !isPartitionStart(mPackets.get(0).buffer, 0)) {
+            return 0;
+        }
+        int count = 1;
+        while (count < mPackets.size() && mPackets.get(count).sequenceNumber ==
+                mPackets.get(count - 1).sequenceNumber + 1) {
+            count++;
+        }
+        return count;
+    }
+
+    private boolean isComplete() {
+        int count = getConsecutiveCount();
+        return count > 0 && count == mPackets.size() && hasMarker(mPackets.get(count - 1).buffer);
+    }
+
+    private void deliver(boolean complete, long nowNs) {
+        Frame frame = new Frame();
+        frame.complete = complete;
+        frame.packetCount = mPackets.size();
+        frame.presentationTimeUs = (mTimestamp & 0xFFFFFFFFL) * 1000000 /
+                Vp8RtpPacketizer.CLOCK_RATE;
+
+        // The first partition is complete if the consecutive packets reach
+        // the start of partition 1 or the end of the frame.
+        int consecutive = getConsecutiveCount();
+        frame.firstPartitionComplete = consecutive > 0 &&
+                hasMarker(mPackets.get(consecutive - 1).buffer);
+        for (int i = 1; !frame.firstPartitionComplete && i < consecutive; i++) {
+            frame.firstPartitionComplete = isPartitionStart(mPackets.get(i).buffer, 1);
+        }
+
+        int size = 0;
+        for (int i = 0; i < mPackets.size(); i++) {
+            size += mPackets.get(i).buffer.remaining() - HEADER_SIZE;
+        }
+        frame.data = new byte[size];
+        int offset = 0;
+        for (int i = 0; i < mPackets.size(); i++) {
+            Packet packet = mPackets.get(i);
+            ByteBuffer buffer = packet.buffer;
+            if (i == 0) {
+                frame.pictureId = buffer.getShort(buffer.position() + 14) & 0x7FFF;
+            }
+            int length = buffer.remaining() - HEADER_SIZE;
+            buffer.position(buffer.position() + HEADER_SIZE);
+            buffer.get(frame.data, offset, length);
+            offset += length;
+            mPool.release(buffer);
+            packet.buffer = null;
+            mFreePackets.add(packet);
+        }
+        frame.keyFrame = consecutive > 0 && Vp8FrameHeader.isKeyFrame(frame.data);
+        if (complete) {
+            long firstReceiveTimeNs = nowNs;
+            for (int i = 0; i < mPackets.size(); i++) {
+                firstReceiveTimeNs = Math.min(firstReceiveTimeNs, mPackets.get(i).receiveTimeNs);
+            }
+            frame.reassemblyNs = nowNs - firstReceiveTimeNs;
+            mReassembly.add(frame.reassemblyNs / 1000);
+            mCompleteCount++;
+        } else {
+            mIncompleteCount++;
+            if (frame.firstPartitionComplete) {
+                mFirstPartitionOnlyCount++;
+            }
+        }
+        mPackets.clear();
+        mHasFrame = false;
+        mHasLastTimestamp = true;
+        mLastTimestamp = mTimestamp;
+        if (mListener != null) {
+            mListener.onFrame(frame);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Splits VP8 frames into RTP packets, RFC 7741.
+ *
+ * Every packet has a 12 byte RTP header and a 4 byte VP8 payload descriptor
+ * with a 15 bit picture ID.  The frame is split in two partitions: the
+ * uncompressed header with the first (mode and motion vector) partition, and
+ * the DCT token partitions.  A packet never spans both, so the receiver can
+ * tell whether the first partition is complete.  The RTP timestamp runs at
+ * 90 kHz and the marker bit is set on the last packet of a frame.
+ */
+public class Vp8RtpPacketizer {
+    public static final int RTP_HEADER_SIZE = 12;
+    public static final int DESCRIPTOR_SIZE = 4;
+    public static final int RTP_VERSION = 2;
+    public static final int CLOCK_RATE = 90000;
+
+    private final int mSsrc;
+    private final int mPayloadType;
+    private final int mMaxPacketSize;
+    private int mSequenceNumber;
+    private int mPictureId;
+
+    /**
+     * @param maxPacketSize   maximum RTP packet size, the MTU without the
+     *                        IP and UDP headers
+     */
+    public Vp8RtpPacketizer(int ssrc, int payloadType, int maxPacketSize) {
+        if (maxPacketSize <= RTP_HEADER_SIZE + DESCRIPTOR_SIZE) {
+            throw new IllegalArgumentException("Packet size " + maxPacketSize + " too small");
+        }
+        mSsrc = ssrc;
+        mPayloadType = payloadType;
+        mMaxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Packetizes a frame into buffers from the pool, ready to send.
+     *
+     * @param packets   the packets are appended here
+     * @return the number of packets
+     */
+    public int packetize(byte[] frame, int length, long presentationTimeUs, PacketPool pool,
+            List<ByteBuffer> packets) {
+        if (pool.getBufferSize() < mMaxPacketSize) {
+            throw new IllegalArgumentException("Pool buffers smaller than packets");
+        }
+        int timestamp = (int)(presentationTimeUs * CLOCK_RATE / 1000000);
+        int firstPartitionEnd = length;
+        Vp8FrameHeader header = Vp8FrameHeader.parse(frame, 0, length);
+        if (header != null) {
+            firstPartitionEnd = Math.min(length, (header.keyFrame ? 10 : 3) +
+                    header.firstPartitionSize);
+        }
+
+        int maxPayload = mMaxPacketSize - RTP_HEADER_SIZE - DESCRIPTOR_SIZE;
+        int count = 0;
+        int offset = 0;
+        while (offset < length || count == 0) {
+            int partition = offset < firstPartitionEnd ? 0 : 1;
+            int partitionEnd = partition == 0 ? firstPartitionEnd : length;
+            boolean start = offset == 0 || offset == firstPartitionEnd;
+            int size = Math.min(maxPayload, partitionEnd - offset);
+            boolean last = offset + size == length;
+
+            ByteBuffer packet = pool.acquire();
+            packet.put((byte)(RTP_VERSION << 6));
+            packet.put((byte)((last ? 0x80 : 0) | mPayloadType));
+            packet.putShort((short)mSequenceNumber);
+            packet.putInt(timestamp);
+            packet.putInt(mSsrc);
+            // Payload descriptor: X, S and PID; I; M and picture ID.
+            packet.put((byte)(0x80 | (start ? 0x10 : 0) | partition));
+            packet.put((byte)0x80);
+            packet.putShort((short)(0x8000 | mPictureId));
+            packet.put(frame, offset, size);
+            packet.flip();
+            packets.add(packet);
+
+            mSequenceNumber = (mSequenceNumber + 1) & 0xFFFF;
+            offset += size;
+            count++;
+        }
+        mPictureId = (mPictureId + 1) & 0x7FFF;
+        return count;
+    }
+}
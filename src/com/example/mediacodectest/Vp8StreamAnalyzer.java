@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * VP8 bitstream analysis of an IVF file: frame type, show_frame, dimensions,
+ * first partition size, base quantizer index, golden / altref refresh and
+ * token partitions of every frame, see Vp8FrameHeader.parseFrameHeader().
+ *
+ * The calling thread scans the IVF frame headers sequentially and hands
+ * batches of BATCH_FRAMES frames to worker threads, which read only the
+ * first MAX_HEADER_BYTES bytes of each frame.  Finished batches are
+ * reported in frame order on the calling thread, to the listener, the frame
+ * table and the histograms, and at most 2 batches per worker are in flight,
+ * so memory use does not depend on the file size.  Not thread safe.
+ */
+public class Vp8StreamAnalyzer {
+    private static final String TAG = "VP8CodecTestBase";
+    private static final File INPUT_DIR = Environment.getExternalStorageDirectory();
+    private static final String INPUT_IVF = "nicklas.ivf";
+    private static final int IVF_HEADER_SIZE = 32;
+    private static final int IVF_FRAME_HEADER_SIZE = 12;
+    // Frame tag, key frame header and the bool coded header with all updates.
+    private static final int MAX_HEADER_BYTES = 64;
+    private static final int BATCH_FRAMES = 1024;
+    private static final int QP_BIN_SIZE = 8;
+    // Upper limits of the frame size histogram bins in bytes, the last bin is open.
+    private static final int[] SIZE_HISTOGRAM_LIMITS =
+            { 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000 };
+
+    /**
+     * Receives every frame, in frame order, on the thread calling analyzeIvf().
+     */
+    public interface Listener {
+        /**
+         * @param frameIndex    index of the frame
+         * @param frameSize     frame size in bytes
+         * @param timestamp     frame timestamp in seconds
+         * @param header        the parsed header, or null if the frame is corrupt
+         */
+        public void onFrame(int frameIndex, int frameSize, double timestamp,
+                Vp8FrameHeader header);
+    }
+
+    /**
+     * Frames of the file, parsed by a worker.
+     */
+    private static class Batch implements Callable<Batch> {
+        final FileChannel channel;
+        final int firstIndex;
+        final long[] offsets = new long[BATCH_FRAMES];
+        final int[] sizes = new int[BATCH_FRAMES];
+        final double[] timestamps = new double[BATCH_FRAMES];
+        final Vp8FrameHeader[] headers = new Vp8FrameHeader[BATCH_FRAMES];
+        int count;
+
+        Batch(FileChannel channel, int firstIndex) {
+            this.channel = channel;
+            this.firstIndex = firstIndex;
+        }
+
+        @Override
+        public Batch call() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_BYTES);
+            for (int i = 0; i < count; i++) {
+                buffer.clear();
+                buffer.limit(Math.min(sizes[i], MAX_HEADER_BYTES));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offsets[i] + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                headers[i] = Vp8FrameHeader.parseFrameHeader(buffer.array(), 0,
+                        buffer.position());
+            }
+            return this;
+        }
+    }
+
+    private final int mThreads;
+    private Listener mListener;
+    private Writer mTable;
+
+    // Scan state.
+    private FileChannel mChannel;
+    private ExecutorService mExecutor;
+    private final ArrayDeque<Future<Batch>> mPending = new ArrayDeque<Future<Batch>>();
+    private Batch mBatch;
+    private long mNextOffset;
+    private IOException mFailure;
+
+    // Statistics.
+    private int mFrameCount;
+    private int mKeyFrameCount;
+    private int mHiddenFrameCount;
+    private int mCorruptFrameCount;
+    private int mGoldenRefreshCount;
+    private int mAltrefRefreshCount;
+    private int mResolutionChangeCount;
+    private int mWidth;
+    private int mHeight;
+    private long mKeyFrameBytes;
+    private long mInterFrameBytes;
+    private long mFirstPartitionBytes;
+    private long mKeyFrameQpSum;
+    private long mInterFrameQpSum;
+    private int mMinQp = Integer.MAX_VALUE;
+    private int mMaxQp;
+    private final int[] mQpHistogram = new int[128 / QP_BIN_SIZE];
+    private final int[] mSizeHistogram = new int[SIZE_HISTOGRAM_LIMITS.length + 1];
+    private final int[] mPartitionHistogram = new int[4];      // 1, 2, 4 and 8
+
+    /**
+     * @param threads   number of worker threads, 1 to parse on the calling thread
+     */
+    public Vp8StreamAnalyzer(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Writes a tab separated table with a line per frame to the file, or
+     * stops writing it if filename is null.
+     */
+    public void setTableFile(String filename) throws IOException {
+        if (mTable != null) {
+            mTable.close();
+            mTable = null;
+        }
+        if (filename != null) {
+            mTable = new BufferedWriter(new FileWriter(filename));
+            mTable.write("frame\tts_ms\tsize\ttype\tshow\twidth\theight\tpart1\tqp\tgolden" +
+                    "\taltref\tpartitions\n");
+        }
+    }
+
+    /**
+     * Analyzes all frames of an IVF file, up to the end of the file.  The
+     * statistics of an earlier file are cleared.
+     */
+    public void analyzeIvf(String filename) throws IOException {
+        resetStatistics();
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        mChannel = file.getChannel();
+        mNextOffset = IVF_HEADER_SIZE;
+        mFailure = null;
+        if (mThreads > 1) {
+            mExecutor = Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Vp8StreamAnalyzer " + mCount++);
+                }
+            });
+        }
+        try {
+            IvfReader.scanFrameHeaders(filename, new IvfReader.FrameHeaderListener() {
+                @Override
+                public void onFrameHeader(int frameIndex, int frameSize, double timestamp) {
+                    if (mFailure == null) {
+                        try {
+                            addFrame(frameIndex, frameSize, timestamp);
+                        } catch (IOException e) {
+                            mFailure = e;
+                        }
+                    }
+                }
+            });
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            submitBatch();
+            while (!mPending.isEmpty()) {
+                reportBatch();
+            }
+            if (mTable != null) {
+                mTable.flush();
+            }
+        } finally {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
+            mPending.clear();
+            mBatch = null;
+            file.close();
+        }
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getKeyFrameCount() {
+        return mKeyFrameCount;
+    }
+
+    public int getCorruptFrameCount() {
+        return mCorruptFrameCount;
+    }
+
+    /**
+     * Returns the average base quantizer index of the frames, or 0.
+     */
+    public double getAverageQp() {
+        int parsed = mFrameCount - mCorruptFrameCount;
+        return parsed > 0 ? (double)(mKeyFrameQpSum + mInterFrameQpSum) / parsed : 0;
+    }
+
+    @Override
+    public String toString() {
+        int interFrames = mFrameCount - mKeyFrameCount - mCorruptFrameCount;
+        long totalBytes = mKeyFrameBytes + mInterFrameBytes;
+        StringBuilder qp = new StringBuilder();
+        for (int i = 0; i < mQpHistogram.length; i++) {
+            qp.append(" " + (i * QP_BIN_SIZE) + "-" + ((i + 1) * QP_BIN_SIZE - 1) + ":" +
+                    mQpHistogram[i]);
+        }
+        StringBuilder size = new StringBuilder();
+        for (int i = 0; i < mSizeHistogram.length; i++) {
+            size.append(i < SIZE_HISTOGRAM_LIMITS.length ?
+                    " <" + SIZE_HISTOGRAM_LIMITS[i] + ":" :
+                    " >=" + SIZE_HISTOGRAM_LIMITS[i - 1] + ":");
+            size.append(mSizeHistogram[i]);
+        }
+        StringBuilder partitions = new StringBuilder();
+        for (int i = 0; i < mPartitionHistogram.length; i++) {
+            partitions.append(" " + (1 << i) + ":" + mPartitionHistogram[i]);
+        }
+        return mWidth + " x " + mHeight + ". Frames " + mFrameCount + ", key " +
+                mKeyFrameCount + ", hidden " + mHiddenFrameCount + ", corrupt " +
+                mCorruptFrameCount + ". Resolution changes " + mResolutionChangeCount +
+                ". Golden refresh " + mGoldenRefreshCount + ", altref refresh " +
+                mAltrefRefreshCount + ". Average size key " +
+                (mKeyFrameCount > 0 ? mKeyFrameBytes / mKeyFrameCount : 0) + ", inter " +
+                (interFrames > 0 ? mInterFrameBytes / interFrames : 0) +
+                " bytes. First partition " +
+                (totalBytes > 0 ? mFirstPartitionBytes * 100 / totalBytes : 0) +
+                "%. QP " + (mMinQp <= mMaxQp ? mMinQp : 0) + " - " + mMaxQp +
+                ", average key " + String.format("%.1f", mKeyFrameCount > 0 ?
+                        (double)mKeyFrameQpSum / mKeyFrameCount : 0.0) +
+                ", inter " + String.format("%.1f", interFrames > 0 ?
+                        (double)mInterFrameQpSum / interFrames : 0.0) +
+                ". QP histogram:" + qp + ". Size histogram:" + size +
+                ". Token partitions:" + partitions;
+    }
+
+    // Adds a frame to the current batch, and hands the batch to a worker
+    // when it is full.
+    private void addFrame(int frameIndex, int frameSize, double timestamp) throws IOException {
+        if (mBatch == null) {
+            mBatch = new Batch(mChannel, frameIndex);
+        }
+        int i = mBatch.count++;
+        mBatch.offsets[i] = mNextOffset + IVF_FRAME_HEADER_SIZE;
+        mBatch.sizes[i] = frameSize;
+        mBatch.timestamps[i] = timestamp;
+        mNextOffset += IVF_FRAME_HEADER_SIZE + frameSize;
+        if (mBatch.count == BATCH_FRAMES) {
+            submitBatch();
+        }
+    }
+
+    private void submitBatch() throws IOException {
+        if (mBatch == null) {
+            return;
+        }
+        if (mExecutor == null) {
+            mBatch.call();
+            report(mBatch);
+        } else {
+            while (mPending.size() >= 2 * mThreads) {
+                reportBatch();
+            }
+            mPending.add(mExecutor.submit(mBatch));
+        }
+        mBatch = null;
+    }
+
+    // Waits for the oldest batch and reports it.
+    private void reportBatch() throws IOException {
+        Batch batch;
+        try {
+            batch = mPending.remove().get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Analysis interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Analysis failed: " + e.getCause());
+        }
+        report(batch);
+    }
+
+    private void report(Batch batch) throws IOException {
+        for (int i = 0; i < batch.count; i++) {
+            int frameIndex = batch.firstIndex + i;
+            Vp8FrameHeader header = batch.headers[i];
+            onFrame(batch.sizes[i], header);
+            if (mListener != null) {
+                mListener.onFrame(frameIndex, batch.sizes[i], batch.timestamps[i], header);
+            }
+            if (mTable != null) {
+                writeTableLine(frameIndex, batch.sizes[i], batch.timestamps[i], header);
+            }
+        }
+    }
+
+    private void resetStatistics() {
+        mFrameCount = 0;
+        mKeyFrameCount = 0;
+        mHiddenFrameCount = 0;
+        mCorruptFrameCount = 0;
+        mGoldenRefreshCount = 0;
+        mAltrefRefreshCount = 0;
+        mResolutionChangeCount = 0;
+        mWidth = 0;
+        mHeight = 0;
+        mKeyFrameBytes = 0;
+        mInterFrameBytes = 0;
+        mFirstPartitionBytes = 0;
+        mKeyFrameQpSum = 0;
+        mInterFrameQpSum = 0;
+        mMinQp = Integer.MAX_VALUE;
+        mMaxQp = 0;
+        Arrays.fill(mQpHistogram, 0);
+        Arrays.fill(mSizeHistogram, 0);
+        Arrays.fill(mPartitionHistogram, 0);
+    }
+
+    private void onFrame(int frameSize, Vp8FrameHeader header) {
+        mFrameCount++;
+        int bin = 0;
+        while (bin < SIZE_HISTOGRAM_LIMITS.length && frameSize >= SIZE_HISTOGRAM_LIMITS[bin]) {
+            bin++;
+        }
+        mSizeHistogram[bin]++;
+        if (header == null) {
+            mCorruptFrameCount++;
+            return;
+        }
+        if (header.keyFrame) {
+            if (mKeyFrameCount > 0 && (header.width != mWidth || header.height != mHeight)) {
+                mResolutionChangeCount++;
+            }
+            mWidth = header.width;
+            mHeight = header.height;
+            mKeyFrameCount++;
+            mKeyFrameBytes += frameSize;
+            mKeyFrameQpSum += header.baseQIndex;
+        } else {
+            mInterFrameBytes += frameSize;
+            mInterFrameQpSum += header.baseQIndex;
+            if (header.refreshGolden || header.copyToGolden != 0) {
+                mGoldenRefreshCount++;
+            }
+            if (header.refreshAltref || header.copyToAltref != 0) {
+                mAltrefRefreshCount++;
+            }
+        }
+        if (!header.showFrame) {
+            mHiddenFrameCount++;
+        }
+        mFirstPartitionBytes += header.firstPartitionSize;
+        mMinQp = Math.min(mMinQp, header.baseQIndex);
+        mMaxQp = Math.max(mMaxQp, header.baseQIndex);
+        mQpHistogram[header.baseQIndex / QP_BIN_SIZE]++;
+        mPartitionHistogram[Integer.numberOfTrailingZeros(header.tokenPartitions)]++;
+    }
+
+    private void writeTableLine(int frameIndex, int frameSize, double timestamp,
+            Vp8FrameHeader header) throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append(frameIndex).append('\t').append((long)(timestamp * 1000 + 0.5))
+                .append('\t').append(frameSize).append('\t');
+        if (header == null) {
+            line.append("corrupt\n");
+        } else {
+            line.append(header.keyFrame ? "key" : "inter").append('\t')
+                    .append(header.showFrame ? 1 : 0).append('\t')
+                    .append(header.keyFrame ? header.width : mWidth).append('\t')
+                    .append(header.keyFrame ? header.height : mHeight).append('\t')
+                    .append(header.firstPartitionSize).append('\t')
+                    .append(header.baseQIndex).append('\t')
+                    .append(header.refreshGolden ? "refresh" :
+                            header.copyToGolden == 1 ? "last" :
+                            header.copyToGolden == 2 ? "altref" : "-").append('\t')
+                    .append(header.refreshAltref ? "refresh" :
+                            header.copyToAltref == 1 ? "last" :
+                            header.copyToAltref == 2 ? "golden" : "-").append('\t')
+                    .append(header.tokenPartitions).append('\n');
+        }
+        mTable.write(line.toString());
+    }
+
+    /** test entry point */
+    public static void testAnalyze() {
+        Runnable r = new Runnable() {
+            public void run() {
+                String ivfPath = new File(INPUT_DIR, INPUT_IVF).toString();
+                Vp8StreamAnalyzer analyzer = new Vp8StreamAnalyzer(
+                        Runtime.getRuntime().availableProcessors());
+                try {
+                    analyzer.setTableFile(ivfPath + ".frames.txt");
+                    long startMs = System.currentTimeMillis();
+                    analyzer.analyzeIvf(ivfPath);
+                    Log.d(TAG, "VP8 analysis of " + INPUT_IVF + " in " +
+                            (System.currentTimeMillis() - startMs) + " ms: " + analyzer);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    try {
+                        analyzer.setTableFile(null);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        Thread testRunner = new Thread(r, "Vp8StreamAnalyzer");
+        testRunner.start();
+    }
+}
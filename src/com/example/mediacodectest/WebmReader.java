@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the first video track of a WebM file, e.g. written by WebmWriter.
+ *
+ * The clusters are scanned when the file is opened and the SimpleBlocks and
+ * Blocks of the track go into a FrameIndex; only the element headers are
+ * read, not the frame data.  The Cues only point to clusters, so the scan
+ * does not need them, and it also works for a live file without Cues and
+ * with segment and clusters of unknown size, up to its last complete block.
+ * Frames are read from the memory mapped file: getFrameBuffer() returns a
+ * view without a copy, readFrame() copies straight into the target buffer.
+ * Laced blocks are not supported.
+ */
+public class WebmReader implements EncodedFrameSource {
+    private static final int ID_EBML = 0x1A45DFA3;
+    private static final int ID_DOC_TYPE = 0x4282;
+    private static final int ID_SEGMENT = 0x18538067;
+    private static final int ID_INFO = 0x1549A966;
+    private static final int ID_TIMECODE_SCALE = 0x2AD7B1;
+    private static final int ID_TRACKS = 0x1654AE6B;
+    private static final int ID_TRACK_ENTRY = 0xAE;
+    private static final int ID_TRACK_NUMBER = 0xD7;
+    private static final int ID_TRACK_TYPE = 0x83;
+    private static final int ID_CODEC_ID = 0x86;
+    private static final int ID_VIDEO = 0xE0;
+    private static final int ID_PIXEL_WIDTH = 0xB0;
+    private static final int ID_PIXEL_HEIGHT = 0xBA;
+    private static final int ID_CLUSTER = 0x1F43B675;
+    private static final int ID_TIMECODE = 0xE7;
+    private static final int ID_SIMPLE_BLOCK = 0xA3;
+    private static final int ID_BLOCK_GROUP = 0xA0;
+    private static final int ID_BLOCK = 0xA1;
+    private static final int ID_REFERENCE_BLOCK = 0xFB;
+    // Other children of a cluster, which end a cluster of unknown size otherwise.
+    private static final int ID_POSITION = 0xA7;
+    private static final int ID_PREV_SIZE = 0xAB;
+    private static final int ID_VOID = 0xEC;
+    private static final int ID_CRC32 = 0xBF;
+    private static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * Position and ID of an element.
+     */
+    private static class Element {
+        int id;
+        long start;
+        long contentStart;
+        long end;       // the parent end if the size is unknown
+        boolean unknownSize;
+    }
+
+    private final MappedFile mFile;
+    private final FrameIndex mIndex = new FrameIndex();
+    private String mMime;
+    private int mWidth;
+    private int mHeight;
+    private long mTrackNumber = -1;
+    private long mTimecodeScaleNs = 1000000;
+
+    /**
+     * Opens the file and indexes its frames.
+     *
+     * @param filename   name of the WebM file
+     */
+    public WebmReader(String filename) throws IOException {
+        mFile = new MappedFile(filename);
+        try {
+            Element element = new Element();
+            long end = mFile.length();
+            if (!readElement(0, end, element) || element.id != ID_EBML) {
+                throw new IOException("Not an EBML file: " + filename);
+            }
+            String docType = readString(findElement(element.contentStart, element.end,
+                    ID_DOC_TYPE));
+            if (!docType.equals("webm") && !docType.equals("matroska")) {
+                throw new IOException("Unsupported document type " + docType);
+            }
+            if (!readElement(element.end, end, element) || element.id != ID_SEGMENT) {
+                throw new IOException("No segment in " + filename);
+            }
+            parseSegment(element.contentStart, element.end);
+            if (mTrackNumber < 0) {
+                throw new IOException("No video track in " + filename);
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            mFile.close();
+            throw new IOException("Invalid WebM file " + filename + ": " + e);
+        }
+    }
+
+    @Override
+    public String getMime() {
+        return mMime;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getFrameCount() {
+        return mIndex.size();
+    }
+
+    @Override
+    public int getFrameSize(int frameIndex) {
+        return mIndex.getSize(frameIndex);
+    }
+
+    @Override
+    public double getFrameTimestamp(int frameIndex) {
+        if (frameIndex >= mIndex.size() || frameIndex < 0) {
+            return 0;
+        }
+        return mIndex.getTimeUs(frameIndex) / 1e6;
+    }
+
+    public boolean isKeyFrame(int frameIndex) {
+        return mIndex.isKeyFrame(frameIndex);
+    }
+
+    /**
+     * Returns a view of a frame in the file, without a copy.
+     */
+    public ByteBuffer getFrameBuffer(int frameIndex) throws IOException {
+        return mFile.slice(mIndex.getOffset(frameIndex), mIndex.getSize(frameIndex));
+    }
+
+    @Override
+    public byte[] readFrame(int frameIndex) throws IOException {
+        if (frameIndex >= mIndex.size() || frameIndex < 0) {
+            return null;
+        }
+        byte[] frame = new byte[mIndex.getSize(frameIndex)];
+        getFrameBuffer(frameIndex).get(frame);
+        return frame;
+    }
+
+    @Override
+    public int readFrame(int frameIndex, ByteBuffer buffer) throws IOException {
+        if (frameIndex >= mIndex.size() || frameIndex < 0) {
+            return -1;
+        }
+        buffer.put(getFrameBuffer(frameIndex));
+        return mIndex.getSize(frameIndex);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return mMime + " " + mWidth + "x" + mHeight + ". Frames " + mIndex.size() +
+                ", key frames " + mIndex.getKeyFrameCount();
+    }
+
+    private void parseSegment(long start, long end) throws IOException {
+        Element element = new Element();
+        long position = start;
+        while (readElement(position, end, element)) {
+            if (element.id == ID_INFO) {
+                Element scale = findElement(element.contentStart, element.end,
+                        ID_TIMECODE_SCALE);
+                if (scale != null) {
+                    mTimecodeScaleNs = readUnsigned(scale);
+                }
+            } else if (element.id == ID_TRACKS) {
+                parseTracks(element.contentStart, element.end);
+            } else if (element.id == ID_CLUSTER) {
+                position = parseCluster(element);
+                continue;
+            } else if (element.unknownSize) {
+                break;
+            }
+            position = element.end;
+        }
+    }
+
+    private void parseTracks(long start, long end) throws IOException {
+        Element entry = new Element();
+        for (long position = start; readElement(position, end, entry);
+                position = entry.end) {
+            if (entry.id != ID_TRACK_ENTRY || mTrackNumber >= 0) {
+                continue;
+            }
+            Element type = findElement(entry.contentStart, entry.end, ID_TRACK_TYPE);
+            if (type == null || readUnsigned(type) != 1) {
+                continue;   // Not video.
+            }
+            String codecId = readString(findElement(entry.contentStart, entry.end,
+                    ID_CODEC_ID));
+            if (codecId.equals("V_VP8")) {
+                mMime = "video/x-vnd.on2.vp8";
+            } else if (codecId.equals("V_VP9")) {
+                mMime = "video/x-vnd.on2.vp9";
+            } else {
+                throw new IOException("Unsupported codec " + codecId);
+            }
+            mTrackNumber = readUnsigned(findElement(entry.contentStart, entry.end,
+                    ID_TRACK_NUMBER));
+            Element video = findElement(entry.contentStart, entry.end, ID_VIDEO);
+            if (video != null) {
+                Element width = findElement(video.contentStart, video.end, ID_PIXEL_WIDTH);
+                Element height = findElement(video.contentStart, video.end, ID_PIXEL_HEIGHT);
+                mWidth = width != null ? (int)readUnsigned(width) : 0;
+                mHeight = height != null ? (int)readUnsigned(height) : 0;
+            }
+        }
+    }
+
+    /**
+     * Indexes the blocks of a cluster.
+     *
+     * @return the end of the cluster
+     */
+    private long parseCluster(Element cluster) throws IOException {
+        Element child = new Element();
+        long timecode = 0;
+        long position = cluster.contentStart;
+        while (readElement(position, cluster.end, child)) {
+            if (child.id == ID_TIMECODE) {
+                timecode = readUnsigned(child);
+            } else if (child.id == ID_SIMPLE_BLOCK) {
+                addBlock(child, timecode, (mFile.get(child.contentStart +
+                        getVintLength(child.contentStart) + 2) & 0x80) != 0);
+            } else if (child.id == ID_BLOCK_GROUP) {
+                Element block = findElement(child.contentStart, child.end, ID_BLOCK);
+                if (block != null) {
+                    addBlock(block, timecode, findElement(child.contentStart, child.end,
+                            ID_REFERENCE_BLOCK) == null);
+                }
+            } else if (cluster.unknownSize && child.id != ID_POSITION &&
+                    child.id != ID_PREV_SIZE && child.id != ID_VOID && child.id != ID_CRC32) {
+                // The next top level element ends a cluster of unknown size.
+                // Other children, e.g. SilentTracks, are skipped in a sized one.
+                return position;
+            }
+            position = child.end;
+        }
+        return cluster.unknownSize ? position : cluster.end;
+    }
+
+    private void addBlock(Element block, long clusterTimecode, boolean keyFrame)
+            throws IOException {
+        long position = block.contentStart;
+        int trackLength = getVintLength(position);
+        long track = readVint(position, trackLength, false);
+        if (track != mTrackNumber) {
+            return;
+        }
+        short timecode = (short)mFile.getShort(position + trackLength);
+        int flags = mFile.get(position + trackLength + 2);
+        if ((flags & 0x06) != 0) {
+            throw new IOException("Laced blocks are not supported");
+        }
+        long dataStart = position + trackLength + 3;
+        mIndex.add(dataStart, (int)(block.end - dataStart),
+                (clusterTimecode + timecode) * mTimecodeScaleNs / 1000, keyFrame);
+    }
+
+    /**
+     * Reads the ID and size of the element at position.
+     *
+     * @return false at the end, or if the element is not complete
+     */
+    private boolean readElement(long position, long end, Element element) throws IOException {
+        if (position + 2 > end) {
+            return false;
+        }
+        int idLength = getVintLength(position);
+        if (idLength > 4 || position + idLength + 1 > end) {
+            return false;
+        }
+        element.id = (int)readVint(position, idLength, true);
+        int sizeLength = getVintLength(position + idLength);
+        if (position + idLength + sizeLength > end) {
+            return false;
+        }
+        long size = readVint(position + idLength, sizeLength, false);
+        element.start = position;
+        element.contentStart = position + idLength + sizeLength;
+        element.unknownSize = size == UNKNOWN_SIZE;
+        if (element.unknownSize) {
+            element.end = end;
+            return true;
+        }
+        element.end = element.contentStart + size;
+        if (element.end > end) {
+            // A truncated segment or cluster is read up to its last element.
+            if (element.id == ID_SEGMENT || element.id == ID_CLUSTER) {
+                element.end = end;
+                return true;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private Element findElement(long start, long end, int id) throws IOException {
+        Element element = new Element();
+        for (long position = start; readElement(position, end, element);
+                position = element.end) {
+            if (element.id == id) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private int getVintLength(long position) throws IOException {
+        int first = mFile.get(position);
+        int length = 1;
+        while (length <= 8 && (first & (0x100 >> length)) == 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Reads a variable length integer, with its length marker for IDs.
+     *
+     * @return the value, or UNKNOWN_SIZE for a size with all value bits set
+     */
+    private long readVint(long position, int length, boolean id) throws IOException {
+        if (length > 8) {
+            throw new IOException("Invalid variable length integer at " + position);
+        }
+        long value = mFile.get(position);
+        if (!id) {
+            value &= (0xFF >> length);
+        }
+        boolean allOnes = value == (0xFF >> length);
+        for (int i = 1; i < length; i++) {
+            int b = mFile.get(position + i);
+            allOnes &= b == 0xFF;
+            value = (value << 8) | b;
+        }
+        return !id && allOnes ? UNKNOWN_SIZE : value;
+    }
+
+    private long readUnsigned(Element element) throws IOException {
+        if (element == null) {
+            throw new IOException("Missing element");
+        }
+        long value = 0;
+        for (long position = element.contentStart; position < element.end; position++) {
+            value = (value << 8) | mFile.get(position);
+        }
+        return value;
+    }
+
+    private String readString(Element element) throws IOException {
+        if (element == null) {
+            return "";
+        }
+        StringBuilder value = new StringBuilder();
+        for (long position = element.contentStart; position < element.end; position++) {
+            int c = mFile.get(position);
+            if (c == 0) {
+                break;
+            }
+            value.append((char)c);
+        }
+        return value.toString();
+    }
+}
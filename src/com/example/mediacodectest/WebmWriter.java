@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a WebM file with a single VP8 or VP9 video track.
+ *
+ * The segment and the clusters are written with unknown size, so the file
+ * can be read as a live stream while it is being written.  Every key frame
+ * starts a new cluster; a cluster is also started when the block timecode,
+ * relative to the cluster, would not fit in 16 bits.  Frames are written as
+ * SimpleBlocks straight from the encoder output buffer, without a copy.
+ *
+ * close() fills in the sizes, the duration, a Cues index with one cue point
+ * per key frame and a SeekHead in space reserved at the start of the
+ * segment, so the finished file is seekable.  Timecodes are in milliseconds
+ * from the first frame.  Not thread safe.
+ *
+ * See http://www.webmproject.org/docs/container/ for the format.
+ */
+public class WebmWriter {
+    public static final String MIME_VP8 = "video/x-vnd.on2.vp8";
+    public static final String MIME_VP9 = "video/x-vnd.on2.vp9";
+
+    // Element IDs.
+    private static final int ID_EBML = 0x1A45DFA3;
+    private static final int ID_EBML_VERSION = 0x4286;
+    private static final int ID_EBML_READ_VERSION = 0x42F7;
+    private static final int ID_EBML_MAX_ID_LENGTH = 0x42F2;
+    private static final int ID_EBML_MAX_SIZE_LENGTH = 0x42F3;
+    private static final int ID_DOC_TYPE = 0x4282;
+    private static final int ID_DOC_TYPE_VERSION = 0x4287;
+    private static final int ID_DOC_TYPE_READ_VERSION = 0x4285;
+    private static final int ID_SEGMENT = 0x18538067;
+    private static final int ID_SEEK_HEAD = 0x114D9B74;
+    private static final int ID_SEEK = 0x4DBB;
+    private static final int ID_SEEK_ID = 0x53AB;
+    private static final int ID_SEEK_POSITION = 0x53AC;
+    private static final int ID_INFO = 0x1549A966;
+    private static final int ID_TIMECODE_SCALE = 0x2AD7B1;
+    private static final int ID_DURATION = 0x4489;
+    private static final int ID_MUXING_APP = 0x4D80;
+    private static final int ID_WRITING_APP = 0x5741;
+    private static final int ID_TRACKS = 0x1654AE6B;
+    private static final int ID_TRACK_ENTRY = 0xAE;
+    private static final int ID_TRACK_NUMBER = 0xD7;
+    private static final int ID_TRACK_UID = 0x73C5;
+    private static final int ID_TRACK_TYPE = 0x83;
+    private static final int ID_FLAG_LACING = 0x9C;
+    private static final int ID_CODEC_ID = 0x86;
+    private static final int ID_VIDEO = 0xE0;
+    private static final int ID_PIXEL_WIDTH = 0xB0;
+    private static final int ID_PIXEL_HEIGHT = 0xBA;
+    private static final int ID_CLUSTER = 0x1F43B675;
+    private static final int ID_TIMECODE = 0xE7;
+    private static final int ID_SIMPLE_BLOCK = 0xA3;
+    private static final int ID_CUES = 0x1C53BB6B;
+    private static final int ID_CUE_POINT = 0xBB;
+    private static final int ID_CUE_TIME = 0xB3;
+    private static final int ID_CUE_TRACK_POSITIONS = 0xB7;
+    private static final int ID_CUE_TRACK = 0xF7;
+    private static final int ID_CUE_CLUSTER_POSITION = 0xF1;
+    private static final int ID_VOID = 0xEC;
+
+    private static final long UNKNOWN_SIZE = 0x00FFFFFFFFFFFFFFL;
+    private static final int TRACK_NUMBER = 1;
+    private static final int SEEK_HEAD_SIZE = 96;
+    private static final String APP_NAME = "MediaCodecTest";
+
+    private final RandomAccessFile mOutputFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(512);
+    private final ByteBuffer[] mBlock = new ByteBuffer[2];
+    private long mPosition;
+
+    // Positions in the file.
+    private long mSegmentSizePosition;
+    private long mSegmentStart;
+    private long mDurationPosition;
+    private long mInfoPosition;
+    private long mTracksPosition;
+    private long mClusterPosition = -1;
+
+    private long mFirstTimeUs = -1;
+    private long mClusterTimeMs;
+    private long mLastTimeMs;
+    private long mLastDurationMs;
+    private int mFrameCount;
+    private int mClusterCount;
+
+    // Cues, one per key frame cluster.
+    private long[] mCueTimesMs = new long[64];
+    private long[] mCuePositions = new long[64];
+    private int mCueCount;
+
+    /**
+     * Initializes the WebM file writer and writes the file header.
+     *
+     * @param filename   name of the WebM file
+     * @param mime       MIME_VP8 or MIME_VP9
+     * @param width      frame width
+     * @param height     frame height
+     */
+    public WebmWriter(String filename, String mime, int width, int height) throws IOException {
+        String codecId = getCodecId(mime);
+        if (codecId == null) {
+            throw new IllegalArgumentException("Unsupported type " + mime);
+        }
+        mOutputFile = new RandomAccessFile(filename, "rw");
+        mOutputFile.setLength(0);
+        mChannel = mOutputFile.getChannel();
+
+        ByteBuffer b = mHeader;
+        b.clear();
+        putId(b, ID_EBML);
+        int ebml = startElement(b);
+        putUint(b, ID_EBML_VERSION, 1);
+        putUint(b, ID_EBML_READ_VERSION, 1);
+        putUint(b, ID_EBML_MAX_ID_LENGTH, 4);
+        putUint(b, ID_EBML_MAX_SIZE_LENGTH, 8);
+        putString(b, ID_DOC_TYPE, "webm");
+        putUint(b, ID_DOC_TYPE_VERSION, 2);
+        putUint(b, ID_DOC_TYPE_READ_VERSION, 2);
+        endElement(b, ebml);
+
+        putId(b, ID_SEGMENT);
+        mSegmentSizePosition = mPosition + b.position();
+        putSize8(b, UNKNOWN_SIZE);
+        mSegmentStart = mPosition + b.position();
+        // Space for the SeekHead, written at close().
+        putVoid(b, SEEK_HEAD_SIZE);
+
+        mInfoPosition = mPosition + b.position();
+        putId(b, ID_INFO);
+        int info = startElement(b);
+        putUint(b, ID_TIMECODE_SCALE, 1000000);     // milliseconds
+        putId(b, ID_DURATION);
+        putSize(b, 8);
+        mDurationPosition = mPosition + b.position();
+        b.putDouble(0);
+        putString(b, ID_MUXING_APP, APP_NAME);
+        putString(b, ID_WRITING_APP, APP_NAME);
+        endElement(b, info);
+
+        mTracksPosition = mPosition + b.position();
+        putId(b, ID_TRACKS);
+        int tracks = startElement(b);
+        putId(b, ID_TRACK_ENTRY);
+        int entry = startElement(b);
+        putUint(b, ID_TRACK_NUMBER, TRACK_NUMBER);
+        putUint(b, ID_TRACK_UID, TRACK_NUMBER);
+        putUint(b, ID_TRACK_TYPE, 1);               // video
+        putUint(b, ID_FLAG_LACING, 0);
+        putString(b, ID_CODEC_ID, codecId);
+        putId(b, ID_VIDEO);
+        int video = startElement(b);
+        putUint(b, ID_PIXEL_WIDTH, width);
+        putUint(b, ID_PIXEL_HEIGHT, height);
+        endElement(b, video);
+        endElement(b, entry);
+        endElement(b, tracks);
+        writeHeader();
+    }
+
+    /**
+     * Writes a single encoded frame from a buffer, e.g. an encoder output
+     * buffer.  The buffer is read from offset to offset + size, its position
+     * and limit are not changed.
+     *
+     * @param presentationTimeUs  presentation time of the frame, not decreasing
+     * @param keyFrame            true for key frames
+     */
+    public void writeFrame(ByteBuffer buffer, int offset, int size, long presentationTimeUs,
+            boolean keyFrame) throws IOException {
+        if (mFirstTimeUs < 0) {
+            mFirstTimeUs = presentationTimeUs;
+        }
+        long timeMs = (presentationTimeUs - mFirstTimeUs) / 1000;
+        if (mFrameCount > 0) {
+            mLastDurationMs = timeMs - mLastTimeMs;
+        }
+        mLastTimeMs = timeMs;
+
+        ByteBuffer b = mHeader;
+        if (mClusterPosition < 0 || keyFrame || timeMs - mClusterTimeMs > Short.MAX_VALUE) {
+            endCluster();
+            b.clear();
+            mClusterPosition = mPosition;
+            mClusterTimeMs = timeMs;
+            mClusterCount++;
+            putId(b, ID_CLUSTER);
+            putSize8(b, UNKNOWN_SIZE);
+            putUint(b, ID_TIMECODE, timeMs);
+            if (keyFrame) {
+                addCue(timeMs, mClusterPosition - mSegmentStart);
+            }
+        } else {
+            b.clear();
+        }
+        putId(b, ID_SIMPLE_BLOCK);
+        putSize(b, 4 + size);
+        b.put((byte)(0x80 | TRACK_NUMBER));
+        b.putShort((short)(timeMs - mClusterTimeMs));
+        b.put((byte)(keyFrame ? 0x80 : 0));
+        b.flip();
+
+        ByteBuffer data = buffer.duplicate();
+        data.limit(offset + size);
+        data.position(offset);
+        mBlock[0] = b;
+        mBlock[1] = data;
+        long bytes = b.remaining() + size;
+        long written = 0;
+        while (written < bytes) {
+            written += mChannel.write(mBlock);
+        }
+        mPosition += bytes;
+        mBlock[1] = null;
+        mFrameCount++;
+    }
+
+    /**
+     * Writes the Cues, SeekHead, duration and sizes, and closes the file.
+     */
+    public void close() throws IOException {
+        try {
+            endCluster();
+
+            // Cues at the end.
+            long cuesPosition = mPosition;
+            for (int i = 0; i < mCueCount; i++) {
+                ByteBuffer b = mHeader;
+                b.clear();
+                if (i == 0) {
+                    putId(b, ID_CUES);
+                    putSize8(b, 0);
+                }
+                putId(b, ID_CUE_POINT);
+                int point = startElement(b);
+                putUint(b, ID_CUE_TIME, mCueTimesMs[i]);
+                putId(b, ID_CUE_TRACK_POSITIONS);
+                int positions = startElement(b);
+                putUint(b, ID_CUE_TRACK, TRACK_NUMBER);
+                putUint(b, ID_CUE_CLUSTER_POSITION, mCuePositions[i]);
+                endElement(b, positions);
+                endElement(b, point);
+                writeHeader();
+            }
+            if (mCueCount > 0) {
+                writeSize8(cuesPosition + 4, mPosition - cuesPosition - 12);
+            }
+
+            // SeekHead in the reserved space.
+            ByteBuffer b = mHeader;
+            b.clear();
+            putId(b, ID_SEEK_HEAD);
+            int seekHead = startElement(b);
+            putSeek(b, ID_INFO, mInfoPosition - mSegmentStart);
+            putSeek(b, ID_TRACKS, mTracksPosition - mSegmentStart);
+            if (mCueCount > 0) {
+                putSeek(b, ID_CUES, cuesPosition - mSegmentStart);
+            }
+            endElement(b, seekHead);
+            putVoid(b, SEEK_HEAD_SIZE - b.position());
+            b.flip();
+            mChannel.write(b, mSegmentStart);
+
+            b.clear();
+            b.putDouble(mLastTimeMs + mLastDurationMs);
+            b.flip();
+            mChannel.write(b, mDurationPosition);
+            writeSize8(mSegmentSizePosition, mPosition - mSegmentStart);
+        } finally {
+            mOutputFile.close();
+        }
+    }
+
+    public int getClusterCount() {
+        return mClusterCount;
+    }
+
+    public int getCueCount() {
+        return mCueCount;
+    }
+
+    /**
+     * Returns whether frames of a MIME type can be written to WebM.
+     */
+    public static boolean isSupportedType(String mime) {
+        return getCodecId(mime) != null;
+    }
+
+    private static String getCodecId(String mime) {
+        if (MIME_VP8.equals(mime)) {
+            return "V_VP8";
+        } else if (MIME_VP9.equals(mime)) {
+            return "V_VP9";
+        }
+        return null;
+    }
+
+    // Fills in the size of the current cluster.
+    private void endCluster() throws IOException {
+        if (mClusterPosition >= 0) {
+            writeSize8(mClusterPosition + 4, mPosition - mClusterPosition - 12);
+            mClusterPosition = -1;
+        }
+    }
+
+    private void addCue(long timeMs, long position) {
+        if (mCueCount == mCueTimesMs.length) {
+            long[] times = new long[mCueCount * 2];
+            long[] positions = new long[mCueCount * 2];
+            System.arraycopy(mCueTimesMs, 0, times, 0, mCueCount);
+            System.arraycopy(mCuePositions, 0, positions, 0, mCueCount);
+            mCueTimesMs = times;
+            mCuePositions = positions;
+        }
+        mCueTimesMs[mCueCount] = timeMs;
+        mCuePositions[mCueCount] = position;
+        mCueCount++;
+    }
+
+    private void writeHeader() throws IOException {
+        mHeader.flip();
+        while (mHeader.hasRemaining()) {
+            mPosition += mChannel.write(mHeader);
+        }
+    }
+
+    private void writeSize8(long position, long size) throws IOException {
+        ByteBuffer b = mHeader;
+        b.clear();
+        putSize8(b, size);
+        b.flip();
+        mChannel.write(b, position);
+    }
+
+    private static void putSeek(ByteBuffer b, int id, long position) {
+        putId(b, ID_SEEK);
+        int seek = startElement(b);
+        putId(b, ID_SEEK_ID);
+        putSize(b, 4);
+        b.putInt(id);
+        putUint(b, ID_SEEK_POSITION, position);
+        endElement(b, seek);
+    }
+
+    // Void element of the given total size, at least 2 bytes.
+    private static void putVoid(ByteBuffer b, int size) {
+        putId(b, ID_VOID);
+        putSize(b, size - 2);
+        for (int i = 0; i < size - 2; i++) {
+            b.put((byte)0);
+        }
+    }
+
+    private static void putId(ByteBuffer b, int id) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            if ((id >>> shift) != 0) {
+                b.put((byte)(id >>> shift));
+            }
+        }
+    }
+
+    // Size as a variable length integer, 1 byte up to 126.
+    private static void putSize(ByteBuffer b, long size) {
+        int length = 1;
+        while (length < 8 && size >= (1L << (7 * length)) - 1) {
+            length++;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            long value = size >>> (8 * i);
+            if (i == length - 1) {
+                value |= 0x80 >> (length - 1);
+            }
+            b.put((byte)value);
+        }
+    }
+
+    // Size as an 8 byte variable length integer, which can be overwritten.
+    private static void putSize8(ByteBuffer b, long size) {
+        b.putLong(0x0100000000000000L | size);
+    }
+
+    // Starts a master element with a 1 byte size, up to 126 bytes of content.
+    private static int startElement(ByteBuffer b) {
+        b.put((byte)0);
+        return b.position();
+    }
+
+    private static void endElement(ByteBuffer b, int start) {
+        int size = b.position() - start;
+        if (size > 126) {
+            throw new IllegalStateException("Element size " + size);
+        }
+        b.put(start - 1, (byte)(0x80 | size));
+    }
+
+    private static void putUint(ByteBuffer b, int id, long value) {
+        int length = 1;
+        while (length < 8 && (value >>> (8 * length)) != 0) {
+            length++;
+        }
+        putId(b, id);
+        putSize(b, length);
+        for (int i = length - 1; i >= 0; i--) {
+            b.put((byte)(value >>> (8 * i)));
+        }
+    }
+
+    private static void putString(ByteBuffer b, int id, String value) {
+        byte[] bytes = value.getBytes();
+        putId(b, id);
+        putSize(b, bytes.length);
+        b.put(bytes);
+    }
+}
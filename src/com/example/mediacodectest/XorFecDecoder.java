@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rebuilds lost media packets from the parity packets of XorFecEncoder.
+ *
+ * Copies of the most recent media packets are kept in a window of
+ * preallocated slots indexed by sequence number.  When a parity packet
+ * arrives and exactly one packet of its group is missing from the window,
+ * the missing packet is the XOR of the parity and the other packets of the
+ * group.  Groups with more lost packets cannot be recovered.
+ *
+ * The recovery latency is the time from the arrival of the first packet
+ * after the lost one, when a receiver can notice the loss, to the recovery.
+ * Not thread safe.
+ */
+public class XorFecDecoder {
+    private static class Slot {
+        ByteBuffer buffer;
+        int sequenceNumber = -1;
+        int length;
+        long receiveTimeNs;
+    }
+
+    private final Slot[] mSlots;
+    private final int mMask;
+
+    // Statistics.
+    private long mFecPackets;
+    private long mRecoveredCount;
+    private long mUnrecoverableCount;
+    private final LatencyStats mRecoveryLatency = new LatencyStats();
+
+    /**
+     * @param maxPacketSize   maximum size of the media packets
+     * @param window          number of media packets kept, rounded up to a
+     *                        power of 2; must cover the largest group
+     */
+    public XorFecDecoder(int maxPacketSize, int window) {
+        int size = 1;
+        while (size < Math.max(window, XorFecEncoder.MAX_GROUP_SIZE + 1)) {
+            size <<= 1;
+        }
+        mSlots = new Slot[size];
+        mMask = size - 1;
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Slot();
+            mSlots[i].buffer = ByteBuffer.allocateDirect(maxPacketSize);
+        }
+    }
+
+    /**
+     * Keeps a copy of a received media packet.  The packet is not changed.
+     */
+    public void addMediaPacket(ByteBuffer packet, long receiveTimeNs) {
+        int start = packet.position();
+        int length = packet.remaining();
+        if (length < Vp8RtpPacketizer.RTP_HEADER_SIZE) {
+            return;
+        }
+        Slot slot = mSlots[(packet.getShort(start + 2) & 0xFFFF) & mMask];
+        if (length > slot.buffer.capacity()) {
+            return;
+        }
+        slot.sequenceNumber = packet.getShort(start + 2) & 0xFFFF;
+        slot.length = length;
+        slot.receiveTimeNs = receiveTimeNs;
+        XorFecEncoder.copy(slot.buffer, packet, start, length);
+    }
+
+    /**
+     * Takes a parity packet, which stays owned by the caller.
+     *
+     * @return the recovered media packet in a buffer from the pool, or null
+     *         if no packet of the group is missing or more than one is
+     */
+    public ByteBuffer addFecPacket(ByteBuffer fec, PacketPool pool, long nowNs) {
+        int start = fec.position();
+        int parityLength = fec.remaining() - XorFecEncoder.OVERHEAD;
+        if (parityLength < 0) {
+            return null;
+        }
+        mFecPackets++;
+        int header = start + Vp8RtpPacketizer.RTP_HEADER_SIZE;
+        int baseSequenceNumber = fec.getShort(header) & 0xFFFF;
+        int count = fec.get(header + 2) & 0xFF;
+        int lengthRecovery = fec.getShort(header + 4) & 0xFFFF;
+
+        int missing = -1;
+        for (int i = 0; i < count; i++) {
+            int sequenceNumber = (baseSequenceNumber + i) & 0xFFFF;
+            if (mSlots[sequenceNumber & mMask].sequenceNumber != sequenceNumber) {
+                if (missing >= 0) {
+                    mUnrecoverableCount++;
+                    return null;
+                }
+                missing = sequenceNumber;
+            }
+        }
+        if (missing < 0) {
+            return null;
+        }
+
+        ByteBuffer packet = pool.acquire();
+        if (packet.capacity() < parityLength) {
+            pool.release(packet);
+            return null;
+        }
+        XorFecEncoder.copy(packet, fec, start + XorFecEncoder.OVERHEAD, parityLength);
+        long firstAfterLossNs = nowNs;
+        for (int i = 0; i < count; i++) {
+            int sequenceNumber = (baseSequenceNumber + i) & 0xFFFF;
+            if (sequenceNumber == missing) {
+                continue;
+            }
+            Slot slot = mSlots[sequenceNumber & mMask];
+            XorFecEncoder.xor(packet, slot.buffer, 0, slot.length);
+            lengthRecovery ^= slot.length;
+            if (((sequenceNumber - missing) & 0xFFFF) < 0x8000) {
+                firstAfterLossNs = Math.min(firstAfterLossNs, slot.receiveTimeNs);
+            }
+        }
+        if (lengthRecovery < Vp8RtpPacketizer.RTP_HEADER_SIZE || lengthRecovery > parityLength) {
+            mUnrecoverableCount++;
+            pool.release(packet);
+            return null;
+        }
+        packet.position(0);
+        packet.limit(lengthRecovery);
+        addMediaPacket(packet, nowNs);
+        mRecoveredCount++;
+        mRecoveryLatency.add((nowNs - firstAfterLossNs) / 1000);
+        return packet;
+    }
+
+    public long getRecoveredCount() {
+        return mRecoveredCount;
+    }
+
+    public LatencyStats getRecoveryLatency() {
+        return mRecoveryLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "FEC packets " + mFecPackets + ". Recovered " + mRecoveredCount +
+                ". Unrecoverable groups " + mUnrecoverableCount + ". Recovery " +
+                mRecoveryLatency;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.mediacodectest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XOR parity forward error correction for RTP packets.
+ *
+ * Every group of up to groupSize consecutive media packets is followed by
+ * one parity packet which is the XOR of the whole media packets, RTP header
+ * included, padded with zeros to the longest one.  The receiver rebuilds a
+ * single lost packet of a group with XorFecDecoder.
+ *
+ * The parity packet is an RTP packet of its own stream (own SSRC and
+ * sequence numbers) followed by a 6 byte FEC header: sequence number of the
+ * first protected packet (16 bits), number of protected packets (8 bits),
+ * reserved (8 bits) and the XOR of the protected packet lengths (16 bits).
+ * Parity packets are at most OVERHEAD bytes larger than the media packets.
+ *
+ * The parity is accumulated 8 bytes at a time in a preallocated buffer.
+ * Not thread safe.
+ */
+public class XorFecEncoder {
+    public static final int FEC_HEADER_SIZE = 6;
+    public static final int OVERHEAD = Vp8RtpPacketizer.RTP_HEADER_SIZE + FEC_HEADER_SIZE;
+    public static final int MAX_GROUP_SIZE = 255;
+
+    private final int mSsrc;
+    private final int mPayloadType;
+    private final int mGroupSize;
+    private final ByteBuffer mParity;
+    private int mSequenceNumber;
+    private int mGroupCount;
+    private int mBaseSequenceNumber;
+    private int mTimestamp;
+    private int mLengthRecovery;
+    private int mMaxLength;
+
+    // Statistics.
+    private long mMediaPackets;
+    private long mMediaBytes;
+    private long mFecPackets;
+    private long mFecBytes;
+
+    /**
+     * @param maxPacketSize   maximum size of the protected media packets
+     */
+    public XorFecEncoder(int ssrc, int payloadType, int groupSize, int maxPacketSize) {
+        if (groupSize < 1 || groupSize > MAX_GROUP_SIZE) {
+            throw new IllegalArgumentException("FEC group size " + groupSize);
+        }
+        mSsrc = ssrc;
+        mPayloadType = payloadType;
+        mGroupSize = groupSize;
+        mParity = ByteBuffer.allocateDirect(maxPacketSize);
+    }
+
+    /**
+     * Adds a media packet, from its position to its limit; the position is not
+     * changed.
+     *
+     * @return a parity packet from the pool if the packet completed a group,
+     *         otherwise null
+     */
+    public ByteBuffer addPacket(ByteBuffer packet, PacketPool pool) {
+        int start = packet.position();
+        int length = packet.remaining();
+        if (length > mParity.capacity()) {
+            throw new IllegalArgumentException("Packet size " + length + " over " +
+                    mParity.capacity());
+        }
+        if (mGroupCount == 0) {
+            mBaseSequenceNumber = packet.getShort(start + 2) & 0xFFFF;
+            mLengthRecovery = 0;
+            mMaxLength = 0;
+        }
+        mTimestamp = packet.getInt(start + 4);
+        // Bytes past mMaxLength are still zero from the previous group.
+        xor(mParity, packet, start, length);
+        mLengthRecovery ^= length;
+        mMaxLength = Math.max(mMaxLength, length);
+        mGroupCount++;
+        mMediaPackets++;
+        mMediaBytes += length;
+        return mGroupCount == mGroupSize ? flush(pool) : null;
+    }
+
+    /**
+     * Ends the current group, e.g. at the end of a frame.
+     *
+     * @return the parity packet of the group, or null if the group is empty
+     */
+    public ByteBuffer flush(PacketPool pool) {
+        if (mGroupCount == 0) {
+            return null;
+        }
+        ByteBuffer fec = pool.acquire();
+        if (fec.capacity() < OVERHEAD + mMaxLength) {
+            throw new IllegalArgumentException("Pool buffers smaller than FEC packets");
+        }
+        fec.put((byte)(Vp8RtpPacketizer.RTP_VERSION << 6));
+        fec.put((byte)mPayloadType);
+        fec.putShort((short)mSequenceNumber);
+        fec.putInt(mTimestamp);
+        fec.putInt(mSsrc);
+        fec.putShort((short)mBaseSequenceNumber);
+        fec.put((byte)mGroupCount);
+        fec.put((byte)0);
+        fec.putShort((short)mLengthRecovery);
+        // Copy the parity out and clear it for the next group.
+        int i = 0;
+        for (; i + 8 <= mMaxLength; i += 8) {
+            fec.putLong(mParity.getLong(i));
+            mParity.putLong(i, 0);
+        }
+        for (; i < mMaxLength; i++) {
+            fec.put(mParity.get(i));
+            mParity.put(i, (byte)0);
+        }
+        fec.flip();
+
+        mSequenceNumber = (mSequenceNumber + 1) & 0xFFFF;
+        mGroupCount = 0;
+        mFecPackets++;
+        mFecBytes += fec.remaining();
+        return fec;
+    }
+
+    /**
+     * Returns the parity bytes relative to the media bytes.
+     */
+    public double getOverhead() {
+        return mMediaBytes > 0 ? (double)mFecBytes / mMediaBytes : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "FEC group " + mGroupSize + ". Media " + mMediaPackets + " packets, " +
+                mMediaBytes + " bytes. Parity " + mFecPackets + " packets, " + mFecBytes +
+                " bytes. Overhead " + String.format("%.1f%%", getOverhead() * 100);
+    }
+
+    /**
+     * Copies length bytes of source from sourceOffset into target from 0, 8 bytes at a time.
+     */
+    static void copy(ByteBuffer target, ByteBuffer source, int sourceOffset, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            target.putLong(i, source.getLong(sourceOffset + i));
+        }
+        for (; i < length; i++) {
+            target.put(i, source.get(sourceOffset + i));
+        }
+    }
+
+    /**
+     * XORs length bytes of source from sourceOffset into target from 0, 8 bytes at a time.
+     */
+    static void xor(ByteBuffer target, ByteBuffer source, int sourceOffset, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            target.putLong(i, target.getLong(i) ^ source.getLong(sourceOffset + i));
+        }
+        for (; i < length; i++) {
+            target.put(i, (byte)(target.get(i) ^ source.get(sourceOffset + i)));
+        }
+    }
+}
@@ -28,7 +28,6 @@
 package org.webrtc;
 
 import android.graphics.SurfaceTexture;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecInfo.CodecCapabilities;
 import android.media.MediaCodecList;
@@ -45,6 +44,9 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 
+import com.example.mediacodectest.MediaCodecVideoCodec;
+import com.example.mediacodectest.VideoCodec;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -62,7 +64,7 @@ public class MediaCodecVideoDecoder {
 
   private static final int DEQUEUE_INPUT_TIMEOUT = 500000;  // 500 ms timeout.
   private Thread mediaCodecThread;
-  private MediaCodec mediaCodec;
+  private VideoCodec mediaCodec;
   public ByteBuffer[] inputBuffers;
   public ByteBuffer[] outputBuffers;
   private static final String VP8_MIME_TYPE = "video/x-vnd.on2.vp8";
@@ -78,7 +80,7 @@ public class MediaCodecVideoDecoder {
   private static final int
     COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m = 0x7FA30C04;
   // Allowable color formats supported by codec - in order of preference.
-  private static final int[] supportedColorList = {
+  protected static final int[] supportedColorList = {
     CodecCapabilities.COLOR_FormatYUV420Planar,
     CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
     CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
@@ -102,7 +104,7 @@ public class MediaCodecVideoDecoder {
   public MediaCodecVideoDecoder() { }
 
   // Helper struct for findVp8HwDecoder() below.
-  private static class DecoderProperties {
+  protected static class DecoderProperties {
     public DecoderProperties(String codecName, int colorFormat) {
       this.codecName = codecName;
       this.colorFormat = colorFormat;
@@ -115,10 +117,6 @@ public class MediaCodecVideoDecoder {
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
       return null; // MediaCodec.setParameters is missing.
     }
-    String[] supportedCodecPrefixes = supportedHwCodecPrefixes;
-    if (useSwCodec) {
-      supportedCodecPrefixes = supportedSwCodecPrefixes;
-    }
     for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
       MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
       if (info.isEncoder()) {
@@ -137,14 +135,7 @@ public class MediaCodecVideoDecoder {
       Log.d(TAG, "Found candidate decoder " + name);
 
       // Check if this is supported decoder.
-      boolean supportedCodec = false;
-      for (String codecPrefix : supportedCodecPrefixes) {
-        if (name.startsWith(codecPrefix)) {
-          supportedCodec = true;
-          break;
-        }
-      }
-      if (!supportedCodec) {
+      if (!isSupportedDecoder(name, useSwCodec)) {
         continue;
       }
 
@@ -168,6 +159,50 @@ public class MediaCodecVideoDecoder {
     return null;  // No HW VP8 decoder.
   }
 
+  // Checks if the decoder is one of the supported HW or SW VP8 decoders.
+  protected static boolean isSupportedDecoder(String name, boolean useSwCodec) {
+    String[] supportedCodecPrefixes = supportedHwCodecPrefixes;
+    if (useSwCodec) {
+      supportedCodecPrefixes = supportedSwCodecPrefixes;
+    }
+    for (String codecPrefix : supportedCodecPrefixes) {
+      if (name.startsWith(codecPrefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Finds the decoder for initDecode().  Can be overridden, e.g. to look up
+  // cached codec capabilities instead of enumerating MediaCodecList.
+  protected DecoderProperties findDecoder(boolean useSwCodec) {
+    return findVp8Decoder(useSwCodec);
+  }
+
+  // Creates, configures and starts a decoder for initDecode().  Can be
+  // overridden to reuse decoders, see getKnownOutputFormat(), or to return a
+  // byte buffer FakeVideoCodec, which runs without a device codec.
+  protected VideoCodec createDecoder(String codecName, MediaFormat format,
+      Surface surface) throws IOException {
+    MediaCodecVideoCodec codec = new MediaCodecVideoCodec(codecName);
+    codec.configure(format, surface, 0);
+    codec.start();
+    return codec;
+  }
+
+  // Stops and releases a decoder of createDecoder().
+  protected void releaseDecoder(VideoCodec codec) {
+    codec.stop();
+    codec.release();
+  }
+
+  // Returns the output format of a decoder of createDecoder() which already
+  // decoded a stream, or null.  A flushed decoder does not report
+  // INFO_OUTPUT_FORMAT_CHANGED again.
+  protected VideoCodec.Format getKnownOutputFormat(VideoCodec codec) {
+    return null;
+  }
+
   private static boolean isPlatformSupported() {
     return findVp8Decoder(false) != null;
   }
@@ -282,7 +317,7 @@ public class MediaCodecVideoDecoder {
     if (useSurface && sharedContext == null) {
       throw new RuntimeException("No shared EGL context.");
     }
-    DecoderProperties properties = findVp8Decoder(useSwCodec);
+    DecoderProperties properties = findDecoder(useSwCodec);
     if (properties == null) {
       throw new RuntimeException("Cannot find HW VP8 decoder");
     }
@@ -336,16 +371,19 @@ public class MediaCodecVideoDecoder {
       }
       Log.d(TAG, "  Format: " + format);
       try {
-        mediaCodec = MediaCodec.createByCodecName(properties.codecName);
+        mediaCodec = createDecoder(properties.codecName, format, decodeSurface);
       } catch (IOException e) {
         e.printStackTrace();
       }
       if (mediaCodec == null) {
         return false;
       }
-      mediaCodec.configure(format, decodeSurface, null, 0);
-      mediaCodec.start();
       colorFormat = properties.colorFormat;
+      VideoCodec.Format outputFormat = getKnownOutputFormat(mediaCodec);
+      if (outputFormat != null) {
+        Log.d(TAG, "Known output format: " + outputFormat);
+        setOutputFormat(outputFormat);
+      }
       outputBuffers = mediaCodec.getOutputBuffers();
       inputBuffers = mediaCodec.getInputBuffers();
       Log.d(TAG, "Input buffers: " + inputBuffers.length +
@@ -361,8 +399,7 @@ public class MediaCodecVideoDecoder {
     Log.d(TAG, "Java releaseDecoder");
     checkOnMediaCodecThread();
     try {
-      mediaCodec.stop();
-      mediaCodec.release();
+      releaseDecoder(mediaCodec);
     } catch (IllegalStateException e) {
       Log.e(TAG, "release failed", e);
     }
@@ -432,44 +469,19 @@ public class MediaCodecVideoDecoder {
     checkOnMediaCodecThread();
     //Log.v(TAG, "dequeueOutputBuffer: " + dequeueTimeoutUs);
     try {
-      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      VideoCodec.BufferInfo info = new VideoCodec.BufferInfo();
       int result = mediaCodec.dequeueOutputBuffer(info, dequeueTimeoutUs);
-      while (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
-          result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-        if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+      while (result == VideoCodec.INFO_OUTPUT_BUFFERS_CHANGED ||
+          result == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        if (result == VideoCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
           outputBuffers = mediaCodec.getOutputBuffers();
           Log.d(TAG, "Output buffers changed: " + outputBuffers.length);
-        } else if (result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-          MediaFormat format = mediaCodec.getOutputFormat();
+        } else if (result == VideoCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+          VideoCodec.Format format = mediaCodec.getOutputFormat();
           Log.d(TAG, "Format changed: " + format.toString());
-          width = format.getInteger(MediaFormat.KEY_WIDTH);
-          height = format.getInteger(MediaFormat.KEY_HEIGHT);
-          if (!useSurface && format.containsKey(MediaFormat.KEY_COLOR_FORMAT)) {
-            colorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
-            Log.d(TAG, "Color: 0x" + Integer.toHexString(colorFormat));
-            // Check if new color space is supported.
-            boolean validColorFormat = false;
-            for (int supportedColorFormat : supportedColorList) {
-              if (colorFormat == supportedColorFormat) {
-                validColorFormat = true;
-                break;
-              }
-            }
-            if (!validColorFormat) {
-              Log.e(TAG, "Non supported color format");
-              return new DecoderOutputBufferInfo(-1, 0, 0, -1);
-            }
-          }
-          if (format.containsKey("stride")) {
-            stride = format.getInteger("stride");
-          }
-          if (format.containsKey("slice-height")) {
-            sliceHeight = format.getInteger("slice-height");
+          if (!setOutputFormat(format)) {
+            return new DecoderOutputBufferInfo(-1, 0, 0, -1);
           }
-          Log.d(TAG, "Frame stride and slice height: "
-              + stride + " x " + sliceHeight);
-          stride = Math.max(width, stride);
-          sliceHeight = Math.max(height, sliceHeight);
         }
         result = mediaCodec.dequeueOutputBuffer(info, dequeueTimeoutUs);
       }
@@ -484,6 +496,36 @@ public class MediaCodecVideoDecoder {
     }
   }
 
+  // Takes the size, color format, stride and slice height of an output
+  // format.  Returns false if the color format is not supported.
+  private boolean setOutputFormat(VideoCodec.Format format) {
+    width = format.width;
+    height = format.height;
+    if (!useSurface && format.colorFormat != 0) {
+      colorFormat = format.colorFormat;
+      Log.d(TAG, "Color: 0x" + Integer.toHexString(colorFormat));
+      // Check if new color space is supported.
+      boolean validColorFormat = false;
+      for (int supportedColorFormat : supportedColorList) {
+        if (colorFormat == supportedColorFormat) {
+          validColorFormat = true;
+          break;
+        }
+      }
+      if (!validColorFormat) {
+        Log.e(TAG, "Non supported color format");
+        return false;
+      }
+    }
+    stride = format.stride;
+    sliceHeight = format.sliceHeight;
+    Log.d(TAG, "Frame stride and slice height: "
+        + stride + " x " + sliceHeight);
+    stride = Math.max(width, stride);
+    sliceHeight = Math.max(height, sliceHeight);
+    return true;
+  }
+
   // Release a dequeued output buffer back to the codec for re-use.  Return
   // false if the codec is no longer operable.
   public boolean releaseOutputBuffer(int index, boolean render) {